@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2026 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ch.blinkenlights.android.medialibrary;
+
+import android.os.SystemClock;
+
+import java.util.HashSet;
+
+/**
+ * Groups the database writes of the media scanner into transactions.
+ *
+ * Without this, every single insert / update / delete of a scan would be
+ * committed (and synced to disk) on its own. The writer keeps a transaction
+ * open until MAX_BATCH_FILES were inspected or the transaction was open
+ * for MAX_BATCH_MILLIS, whatever happens first.
+ *
+ * All methods must be called from the thread doing the writes.
+ */
+class MediaBatchWriter {
+	/**
+	 * Commit after this many files were inspected in the current batch
+	 */
+	private static final int MAX_BATCH_FILES = 400;
+	/**
+	 * Commit if the transaction was open for this many ms.
+	 * Other threads can not use the database while we hold the
+	 * transaction, so this should not be too high.
+	 */
+	private static final long MAX_BATCH_MILLIS = 500;
+	/**
+	 * The backend we are writing to
+	 */
+	private final MediaLibraryBackend mBackend;
+	/**
+	 * True if we currently hold an open transaction
+	 */
+	private boolean mInTransaction;
+	/**
+	 * uptimeMillis ts of the moment we started the current transaction
+	 */
+	private long mStartedAt;
+	/**
+	 * Number of files inspected in the current batch
+	 */
+	private int mFiles;
+	/**
+	 * Number of files which caused a database change in the current batch
+	 */
+	private int mChanged;
+	/**
+	 * Albums which gained or lost songs in the current batch
+	 */
+	private final HashSet<Long> mChangedAlbums = new HashSet<>();
+	/**
+	 * Number of commits done by this writer
+	 */
+	private int mCommits;
+	/**
+	 * Number of changed files in the last commit
+	 */
+	private int mLastCommitSize;
+	/**
+	 * How long the last commit took, in ms
+	 */
+	private long mLastCommitMillis;
+
+	MediaBatchWriter(MediaLibraryBackend backend) {
+		mBackend = backend;
+	}
+
+	/**
+	 * Ensures that a transaction is open.
+	 * Must be called before doing any write.
+	 */
+	void begin() {
+		if (!mInTransaction) {
+			mBackend.beginTransaction();
+			mInTransaction = true;
+			mStartedAt = SystemClock.uptimeMillis();
+		}
+	}
+
+	/**
+	 * Returns how long the current transaction may stay open
+	 *
+	 * @return the time left in ms, -1 if there is no open transaction
+	 */
+	long getMillisUntilCommit() {
+		if (!mInTransaction)
+			return -1;
+		return Math.max(0, MAX_BATCH_MILLIS - (SystemClock.uptimeMillis() - mStartedAt));
+	}
+
+	/**
+	 * Registers an inspected file and commits the batch if it is full.
+	 *
+	 * @param changed true if the file caused a database change
+	 * @return true if this triggered a commit containing changes
+	 */
+	boolean registerFile(boolean changed) {
+		mFiles++;
+		if (changed)
+			mChanged++;
+
+		if (mInTransaction &&
+		    (mFiles >= MAX_BATCH_FILES || SystemClock.uptimeMillis() - mStartedAt >= MAX_BATCH_MILLIS)) {
+			return commit();
+		}
+		return false;
+	}
+
+	/**
+	 * Registers an album which gained or lost songs. Its aggregates
+	 * are updated right before the batch gets committed.
+	 *
+	 * @param albumId the id of the album
+	 */
+	void registerAlbumChange(long albumId) {
+		mChangedAlbums.add(albumId);
+	}
+
+	/**
+	 * Commits the current transaction, if any.
+	 *
+	 * @return true if the committed batch contained changes
+	 */
+	boolean commit() {
+		boolean hadChanges = mChanged != 0;
+
+		if (mInTransaction) {
+			long startedAt = SystemClock.uptimeMillis();
+			try {
+				if (!mChangedAlbums.isEmpty()) {
+					mBackend.updateAlbumAggregates(mChangedAlbums);
+					mChangedAlbums.clear();
+				}
+				mBackend.setTransactionSuccessful();
+			} finally {
+				mBackend.endTransaction();
+				mInTransaction = false;
+			}
+			mCommits++;
+			mLastCommitSize = mChanged;
+			mLastCommitMillis = SystemClock.uptimeMillis() - startedAt;
+		}
+
+		mFiles = 0;
+		mChanged = 0;
+		return hadChanges;
+	}
+
+	/**
+	 * Resets the commit statistics of this writer
+	 */
+	void resetStatistics() {
+		mCommits = 0;
+		mLastCommitSize = 0;
+		mLastCommitMillis = 0;
+	}
+
+	/**
+	 * Populates the commit statistics of given progress object
+	 *
+	 * @param progress the progress object to populate
+	 */
+	void describeProgress(MediaLibrary.ScanProgress progress) {
+		progress.commits = mCommits;
+		progress.lastCommitSize = mLastCommitSize;
+		progress.lastCommitMillis = mLastCommitMillis;
+	}
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2026 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ch.blinkenlights.android.medialibrary;
+
+import android.database.Cursor;
+
+import java.io.File;
+
+/**
+ * Returns the files referenced by the rows of a cursor.
+ */
+class MediaCursorSource implements MediaScanSource {
+	/**
+	 * The cursor to read, null if we are closed
+	 */
+	private Cursor mCursor;
+	/**
+	 * Column containing the path of the file
+	 */
+	private final int mPathColumn;
+	/**
+	 * Column containing the mtime of the row, -1 if there is none
+	 */
+	private final int mMtimeColumn;
+	/**
+	 * The mtime of the last returned row
+	 */
+	private int mLastMtime;
+
+	/**
+	 * Creates a new cursor source
+	 *
+	 * @param cursor the cursor to read, may be null
+	 * @param pathColumn the column index containing the path
+	 * @param mtimeColumn the column index containing the mtime, -1 if there is none
+	 * @param mtime the initial value returned by getLastMtime()
+	 */
+	MediaCursorSource(Cursor cursor, int pathColumn, int mtimeColumn, int mtime) {
+		mCursor = cursor;
+		mPathColumn = pathColumn;
+		mMtimeColumn = mtimeColumn;
+		mLastMtime = mtime;
+	}
+
+	@Override
+	public File next() {
+		if (mCursor == null)
+			return null;
+
+		while (mCursor.moveToNext()) {
+			String path = mCursor.getString(mPathColumn);
+			if (mMtimeColumn != -1)
+				mLastMtime = mCursor.getInt(mMtimeColumn);
+			if (path != null) // this seems to be a thing...
+				return new File(path);
+		}
+		close();
+		return null;
+	}
+
+	@Override
+	public void close() {
+		if (mCursor != null) {
+			mCursor.close();
+			mCursor = null;
+		}
+	}
+
+	/**
+	 * Returns the mtime of the last returned row
+	 */
+	int getLastMtime() {
+		return mLastMtime;
+	}
+}
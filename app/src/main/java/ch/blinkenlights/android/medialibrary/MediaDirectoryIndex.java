@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2026 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ch.blinkenlights.android.medialibrary;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+
+import java.io.File;
+import java.util.ArrayList;
+
+/**
+ * Index of the directories seen by the last full scan.
+ *
+ * A directory whose mtime did not change since the last scan has no new
+ * or removed entries, so there is no need to list it again: the walker
+ * can descend into its known subdirectories right away. Note that this
+ * does not catch modified files, these are found by the library verify step.
+ *
+ * Subdirectories which were not listed at all (such as the ones containing
+ * a .nomedia file) are recorded with SKIPPED_MTIME: they are returned by
+ * getSubdirectories(), so each scan checks them again. The same goes for
+ * directories listed right after they were modified, as a coarse mtime
+ * would not change if they are modified again within its resolution.
+ *
+ * Updates are kept pending until all files of the scanned directories
+ * were written to the database: commit() must only be called after this
+ * happened.
+ */
+class MediaDirectoryIndex {
+	/**
+	 * The mtime stored for directories which were skipped without being
+	 * listed or which must be listed again, it never matches the mtime
+	 * of an existing directory
+	 */
+	static final long SKIPPED_MTIME = 0;
+	/**
+	 * The state of a directory as seen by the last scan
+	 */
+	static class Entry {
+		final String path;
+		final long mtime;
+		final int childCount;
+
+		Entry(String path, long mtime, int childCount) {
+			this.path = path;
+			this.mtime = mtime;
+			this.childCount = childCount;
+		}
+	}
+
+	/**
+	 * A recorded but not yet written directory
+	 */
+	private static class Pending {
+		final Entry entry;
+		/**
+		 * True if the directory was listed, which means that its
+		 * known subdirectories must be replaced.
+		 */
+		final boolean listed;
+
+		Pending(Entry entry, boolean listed) {
+			this.entry = entry;
+			this.listed = listed;
+		}
+	}
+
+	/**
+	 * The backend to use
+	 */
+	private final MediaLibraryBackend mBackend;
+	/**
+	 * Directories visited since the last commit
+	 */
+	private final ArrayList<Pending> mPending = new ArrayList<>();
+
+	MediaDirectoryIndex(MediaLibraryBackend backend) {
+		mBackend = backend;
+	}
+
+	/**
+	 * Returns the state of given directory as seen by the last scan
+	 *
+	 * @param dir the directory to look up
+	 * @return the entry of this directory, null if unknown
+	 */
+	Entry get(File dir) {
+		Entry entry = null;
+		String path = dir.getAbsolutePath();
+		String[] projection = { MediaLibrary.DirectoryColumns.MTIME, MediaLibrary.DirectoryColumns.CHILD_COUNT };
+		Cursor cursor = mBackend.query(false, MediaLibrary.TABLE_DIRECTORIES, projection,
+		                               MediaLibrary.DirectoryColumns._ID+"="+MediaLibrary.hash63(path), null, null, null, null, "1");
+		if (cursor.moveToFirst())
+			entry = new Entry(path, cursor.getLong(0), cursor.getInt(1));
+		cursor.close();
+		return entry;
+	}
+
+	/**
+	 * Returns the known subdirectories of given directory
+	 *
+	 * @param dir the directory to look up
+	 * @return all known subdirectories
+	 */
+	File[] getSubdirectories(File dir) {
+		String[] projection = { MediaLibrary.DirectoryColumns.PATH };
+		Cursor cursor = mBackend.query(false, MediaLibrary.TABLE_DIRECTORIES, projection,
+		                               MediaLibrary.DirectoryColumns.PARENT_ID+"="+MediaLibrary.hash63(dir.getAbsolutePath()), null, null, null, null, null);
+		File[] result = new File[cursor.getCount()];
+		for (int i = 0; cursor.moveToNext(); i++) {
+			result[i] = new File(cursor.getString(0));
+		}
+		cursor.close();
+		return result;
+	}
+
+	/**
+	 * Records a visited directory. Directories must be recorded
+	 * before any of their subdirectories.
+	 *
+	 * @param entry the new state of the directory
+	 * @param listed true if the directory was listed, false if we used its known subdirectories
+	 */
+	void record(Entry entry, boolean listed) {
+		mPending.add(new Pending(entry, listed));
+	}
+
+	/**
+	 * Records a directory which was skipped without being listed
+	 *
+	 * @param dir the skipped directory
+	 */
+	void recordSkipped(File dir) {
+		// nothing below a skipped directory should be known: drop its subdirectories
+		record(new Entry(dir.getAbsolutePath(), SKIPPED_MTIME, 0), true);
+	}
+
+	/**
+	 * Returns true if there are recorded directories to commit
+	 */
+	boolean hasPending() {
+		return mPending.size() != 0;
+	}
+
+	/**
+	 * Writes all recorded directories to the database
+	 */
+	void commit() {
+		ContentValues v = new ContentValues();
+		for (Pending pending : mPending) {
+			Entry entry = pending.entry;
+			long id = MediaLibrary.hash63(entry.path);
+			String parent = new File(entry.path).getParent();
+
+			if (pending.listed) {
+				// Subdirectories seen during this scan are recorded after us, this
+				// drops the ones which do not exist anymore.
+				mBackend.delete(MediaLibrary.TABLE_DIRECTORIES, MediaLibrary.DirectoryColumns.PARENT_ID+"="+id, null);
+			}
+
+			v.clear();
+			v.put(MediaLibrary.DirectoryColumns._ID,         id);
+			v.put(MediaLibrary.DirectoryColumns.PATH,        entry.path);
+			v.put(MediaLibrary.DirectoryColumns.PARENT_ID,   (parent == null ? 0 : MediaLibrary.hash63(parent)));
+			v.put(MediaLibrary.DirectoryColumns.MTIME,       entry.mtime);
+			v.put(MediaLibrary.DirectoryColumns.CHILD_COUNT, entry.childCount);
+			mBackend.replace(MediaLibrary.TABLE_DIRECTORIES, null, v);
+		}
+		discard();
+	}
+
+	/**
+	 * Drops all recorded directories without writing them
+	 */
+	void discard() {
+		mPending.clear();
+	}
+
+	/**
+	 * Removes all directories from the index
+	 */
+	void clear() {
+		discard();
+		mBackend.delete(MediaLibrary.TABLE_DIRECTORIES, null, null);
+	}
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2026 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ch.blinkenlights.android.medialibrary;
+
+import android.util.Log;
+
+import java.io.File;
+
+/**
+ * Walks a directory tree depth first, returning all found files.
+ *
+ * Only the listings of the directories on the path to the current
+ * file are kept, and the depth of this path is limited, so the
+ * memory used by the walker is bounded independently of the number
+ * of files in the tree.
+ *
+ * If a directory index is given, directories which did not change since
+ * the last scan are not listed again: the walker only descends into their
+ * known subdirectories. Skipped subdirectories are part of the index, so
+ * a directory which loses its .nomedia file is still found this way.
+ *
+ * If a folder filter is given, subtrees which should not be scanned
+ * at all are skipped.
+ */
+class MediaDirectoryWalker implements MediaScanSource {
+	/**
+	 * Directories nested deeper than this are ignored: this also
+	 * protects us from symlink loops.
+	 */
+	private static final int MAX_DEPTH = 64;
+	/**
+	 * A directory listed less than this many ms after its mtime may be changed
+	 * again without a different mtime: FAT and exFAT only store mtimes with a
+	 * resolution of 2 seconds, and we allow one more for clock differences.
+	 */
+	private static final long MTIME_SLACK_MS = 3000;
+	/**
+	 * The directory listings of the current path
+	 */
+	private final File[][] mListings = new File[MAX_DEPTH][];
+	/**
+	 * The position within each listing
+	 */
+	private final int[] mPositions = new int[MAX_DEPTH];
+	/**
+	 * Index of the innermost listing, -1 if we are done
+	 */
+	private int mDepth = -1;
+	/**
+	 * The index to use and update, may be null
+	 */
+	private final MediaDirectoryIndex mIndex;
+	/**
+	 * The filter used to prune excluded subtrees, may be null
+	 */
+	private final MediaFolderFilter mFilter;
+	/**
+	 * Ignore the stored state of the index if true
+	 */
+	private final boolean mDeep;
+	/**
+	 * Number of listed directories
+	 */
+	private int mVisited;
+	/**
+	 * Number of directories which were not listed as they did not change
+	 */
+	private int mSkipped;
+
+	/**
+	 * Creates a new walker
+	 *
+	 * @param root the directory to walk
+	 * @param filter the filter used to prune excluded subtrees, may be null
+	 */
+	MediaDirectoryWalker(File root, MediaFolderFilter filter) {
+		this(root, filter, null, false);
+	}
+
+	/**
+	 * Creates a new walker using a directory index
+	 *
+	 * @param root the directory to walk
+	 * @param filter the filter used to prune excluded subtrees, may be null
+	 * @param index the directory index to use and update, may be null
+	 * @param deep list all directories, but still update the index
+	 */
+	MediaDirectoryWalker(File root, MediaFolderFilter filter, MediaDirectoryIndex index, boolean deep) {
+		mFilter = filter;
+		mIndex = index;
+		mDeep = deep;
+		enter(root);
+	}
+
+	/**
+	 * Returns the number of listed directories
+	 */
+	int getVisitedCount() {
+		return mVisited;
+	}
+
+	/**
+	 * Returns the number of skipped (unchanged) directories
+	 */
+	int getSkippedCount() {
+		return mSkipped;
+	}
+
+	@Override
+	public File next() {
+		while (mDepth >= 0) {
+			File[] listing = mListings[mDepth];
+			if (mPositions[mDepth] == listing.length) {
+				// this directory is done, continue with its parent.
+				mListings[mDepth] = null;
+				mDepth--;
+				continue;
+			}
+
+			File file = listing[mPositions[mDepth]++];
+			if (file.isFile())
+				return file;
+
+			enter(file);
+		}
+		return null;
+	}
+
+	@Override
+	public void close() {
+		while (mDepth >= 0) {
+			mListings[mDepth--] = null;
+		}
+	}
+
+	/**
+	 * Pushes the listing of given directory to our stack, if
+	 * it should be scanned at all.
+	 *
+	 * @param dir the directory to enter
+	 */
+	private void enter(File dir) {
+		if (!dir.isDirectory())
+			return;
+
+		if (!shouldEnter(dir)) {
+			skip(dir);
+			return;
+		}
+
+		File[] dirents;
+		MediaDirectoryIndex.Entry known = (mIndex != null && !mDeep ? mIndex.get(dir) : null);
+		long mtime = dir.lastModified();
+		if (known != null && mtime != 0 && known.mtime == mtime) {
+			// Nothing was added or removed: only descend into subdirectories.
+			dirents = mIndex.getSubdirectories(dir);
+			mIndex.record(known, false);
+			mSkipped++;
+		} else {
+			dirents = dir.listFiles();
+			if (dirents == null) {
+				skip(dir); // not readable (yet?)
+				return;
+			}
+
+			if (mIndex != null) {
+				// Do not trust the mtime of a directory which was just modified: the next scan lists it again.
+				long stored = (mtime > System.currentTimeMillis() - MTIME_SLACK_MS ? MediaDirectoryIndex.SKIPPED_MTIME : mtime);
+				mIndex.record(new MediaDirectoryIndex.Entry(dir.getAbsolutePath(), stored, dirents.length), true);
+			}
+			mVisited++;
+		}
+
+		mDepth++;
+		mListings[mDepth] = dirents;
+		mPositions[mDepth] = 0;
+	}
+
+	/**
+	 * Returns true if given directory should be listed
+	 *
+	 * @param dir the directory to check
+	 */
+	private boolean shouldEnter(File dir) {
+		if (new File(dir, ".nomedia").exists())
+			return false;
+
+		if (dir.getName().startsWith("."))
+			return false;
+
+		if (mFilter != null && mFilter.isExcludedTree(dir.getPath()))
+			return false;
+
+		if (mDepth + 1 == MAX_DEPTH) {
+			Log.v("VanillaMusic", "MediaDirectoryWalker: not descending into "+dir+", too deep");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Records a directory which was not listed in the index,
+	 * so that the next scan checks it again.
+	 *
+	 * @param dir the skipped directory
+	 */
+	private void skip(File dir) {
+		if (mIndex != null)
+			mIndex.recordSkipped(dir);
+	}
+}
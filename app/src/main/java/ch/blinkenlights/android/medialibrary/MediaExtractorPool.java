@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2026 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ch.blinkenlights.android.medialibrary;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded pool of threads running the MediaMetadataExtractor.
+ *
+ * Tasks are submitted and collected by a single thread (the scanner thread,
+ * which also owns all database writes). The number of tasks in flight is limited:
+ * once the pool is full, the caller is expected to collect finished tasks
+ * before submitting new ones, which keeps our memory usage bounded.
+ */
+class MediaExtractorPool {
+	/**
+	 * How many tasks per thread may be in flight
+	 */
+	private static final int TASKS_PER_THREAD = 4;
+	/**
+	 * Idle threads are stopped after this many seconds
+	 */
+	private static final int KEEP_ALIVE_SECONDS = 30;
+	/**
+	 * The executor running our tasks
+	 */
+	private final ThreadPoolExecutor mExecutor;
+	/**
+	 * Tasks which finished their extraction
+	 */
+	private final LinkedBlockingQueue<Task> mFinished = new LinkedBlockingQueue<>();
+	/**
+	 * Number of threads used by this pool
+	 */
+	private final int mThreads;
+	/**
+	 * Maximum number of tasks in flight
+	 */
+	private final int mMaxInFlight;
+	/**
+	 * Number of submitted but not yet collected tasks
+	 */
+	private int mInFlight;
+
+	/**
+	 * A file to extract
+	 */
+	static class Task {
+		final File file;
+		final String path;
+		final boolean forceBastp;
+		final boolean nativeFallback;
+		/**
+		 * The result of the extraction, null if it failed
+		 */
+		MediaMetadataExtractor tags;
+		/**
+		 * How long the extraction took, in us
+		 */
+		long extractMicros;
+
+		Task(File file, boolean forceBastp, boolean nativeFallback) {
+			this.file = file;
+			this.path = file.getAbsolutePath();
+			this.forceBastp = forceBastp;
+			this.nativeFallback = nativeFallback;
+		}
+	}
+
+	/**
+	 * Creates a new extractor pool
+	 *
+	 * @param threads the number of threads to use, 0 to pick a default
+	 */
+	MediaExtractorPool(int threads) {
+		mThreads = (threads > 0 ? threads : getDefaultThreadCount());
+		mMaxInFlight = mThreads * TASKS_PER_THREAD;
+
+		ThreadFactory factory = new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				return new Thread(new Runnable() {
+					@Override
+					public void run() {
+						Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+						r.run();
+					}
+				}, "MediaExtractorThread");
+			}
+		};
+		mExecutor = new ThreadPoolExecutor(mThreads, mThreads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), factory);
+		mExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Returns the number of threads we would use by default
+	 */
+	static int getDefaultThreadCount() {
+		// Leave one core for the writer and the UI, but do not go
+		// crazy on devices with many cores: we are also limited by I/O.
+		int cores = Runtime.getRuntime().availableProcessors();
+		return Math.max(1, Math.min(4, cores - 1));
+	}
+
+	/**
+	 * Returns the number of threads of this pool
+	 */
+	int getThreadCount() {
+		return mThreads;
+	}
+
+	/**
+	 * Returns true if no more tasks should be submitted
+	 * before collecting finished ones
+	 */
+	boolean isFull() {
+		return mInFlight >= mMaxInFlight;
+	}
+
+	/**
+	 * Returns true if there are tasks in flight
+	 */
+	boolean isBusy() {
+		return mInFlight != 0;
+	}
+
+	/**
+	 * Queues a new task
+	 *
+	 * @param task the task to run
+	 */
+	void submit(final Task task) {
+		mInFlight++;
+		mExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				long startedAt = System.nanoTime();
+				try {
+					task.tags = new MediaMetadataExtractor(task.path, task.forceBastp, task.nativeFallback);
+				} catch (RuntimeException e) {
+					Log.e("VanillaMusic", "Extracting tags of "+task.path+" failed: "+e);
+				}
+				task.extractMicros = (System.nanoTime() - startedAt) / 1000;
+				mFinished.add(task);
+			}
+		});
+	}
+
+	/**
+	 * Returns a finished task without blocking
+	 *
+	 * @return a finished task, null if none is ready
+	 */
+	Task poll() {
+		Task task = mFinished.poll();
+		if (task != null)
+			mInFlight--;
+		return task;
+	}
+
+	/**
+	 * Waits up to 'timeout' ms for the next finished task
+	 *
+	 * @param timeout how long to wait, in ms
+	 * @return a finished task, null if none finished in time
+	 */
+	Task poll(long timeout) {
+		if (mInFlight == 0)
+			return null;
+
+		Task task = null;
+		try {
+			task = mFinished.poll(timeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			// ignored, the caller handles null anyway.
+		}
+		if (task != null)
+			mInFlight--;
+		return task;
+	}
+
+	/**
+	 * Waits for the next finished task
+	 *
+	 * @return a finished task, null if there are no tasks in flight
+	 */
+	Task take() {
+		if (mInFlight == 0)
+			return null;
+
+		Task task = null;
+		while (task == null) {
+			try {
+				task = mFinished.take();
+			} catch (InterruptedException e) {
+				// ignored, just retry.
+			}
+		}
+		mInFlight--;
+		return task;
+	}
+
+	/**
+	 * Stops all threads of this pool. Tasks still in flight are lost.
+	 */
+	void shutdown() {
+		mExecutor.shutdown();
+	}
+}
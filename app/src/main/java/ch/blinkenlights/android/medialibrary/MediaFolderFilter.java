@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2026 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ch.blinkenlights.android.medialibrary;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Decides if a path is within the configured media folders.
+ *
+ * The folder lists are sorted by length, longest first, so the first
+ * matching prefix is also the longest one. Lookups compare the path
+ * in place, ignoring case, and do not allocate anything.
+ */
+class MediaFolderFilter {
+	/**
+	 * Media folders, longest first
+	 */
+	private final String[] mWhitelist;
+	/**
+	 * Blacklisted folders, longest first
+	 */
+	private final String[] mBlacklist;
+
+	/**
+	 * Creates a new filter
+	 *
+	 * @param mediaFolders the folders to scan
+	 * @param blacklistedFolders folders within mediaFolders which should not be scanned
+	 */
+	MediaFolderFilter(ArrayList<String> mediaFolders, ArrayList<String> blacklistedFolders) {
+		mWhitelist = sortedByLength(mediaFolders);
+		mBlacklist = sortedByLength(blacklistedFolders);
+	}
+
+	/**
+	 * Returns true if the path should not be scanned: this is the case
+	 * if it is not within any media folder OR if we found a blacklist
+	 * entry with a longer prefix.
+	 *
+	 * @param path the path to check
+	 */
+	boolean isBlacklisted(String path) {
+		int wlPoints = longestPrefix(mWhitelist, path);
+		int blPoints = longestPrefix(mBlacklist, path);
+		return (wlPoints < 0 || blPoints > wlPoints);
+	}
+
+	/**
+	 * Returns true if nothing within given directory should be scanned:
+	 * it must be blacklisted and must not contain a media folder.
+	 *
+	 * @param dir the path of the directory to check
+	 */
+	boolean isExcludedTree(String dir) {
+		if (!isBlacklisted(dir))
+			return false;
+
+		for (String prefix : mWhitelist) {
+			if (prefix.length() > dir.length() && prefix.regionMatches(true, 0, dir, 0, dir.length()))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the length of the longest prefix of path found in list
+	 *
+	 * @param list the prefixes, longest first
+	 * @param path the path to check
+	 * @return the length of the prefix, -1 if there was no match
+	 */
+	private static int longestPrefix(String[] list, String path) {
+		for (String prefix : list) {
+			if (path.regionMatches(true, 0, prefix, 0, prefix.length()))
+				return prefix.length();
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the given list as array, sorted by length, longest first.
+	 */
+	private static String[] sortedByLength(ArrayList<String> list) {
+		String[] result = list.toArray(new String[list.size()]);
+		Arrays.sort(result, new Comparator<String>() {
+			@Override
+			public int compare(String a, String b) {
+				return b.length() - a.length();
+			}
+		});
+		return result;
+	}
+}
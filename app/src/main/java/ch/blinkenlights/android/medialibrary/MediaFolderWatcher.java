@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2026 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ch.blinkenlights.android.medialibrary;
+
+import android.os.Build;
+import android.os.FileObserver;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * Watches the media folders for changes using one FileObserver per directory.
+ *
+ * Events are not handled right away: the watcher collects the changed paths
+ * and lets the callback know that something changed. The callback is expected
+ * to wait a bit (to coalesce multiple events) before fetching all collected
+ * changes using drainChanges().
+ *
+ * The number of watched directories is capped, directories are added breadth
+ * first, so that the top levels of all media folders get watched.
+ * Apart from the callback and drainChanges(), all methods must be called
+ * from the same thread.
+ */
+class MediaFolderWatcher {
+	/**
+	 * Do not watch more than this many directories, each uses an inotify watch.
+	 */
+	private static final int MAX_WATCHED_DIRECTORIES = 1024;
+	/**
+	 * The events we are interested in
+	 */
+	private static final int EVENT_MASK = FileObserver.CLOSE_WRITE | FileObserver.CREATE | FileObserver.DELETE |
+	                                      FileObserver.MOVED_FROM | FileObserver.MOVED_TO;
+	/**
+	 * Set by inotify if the event refers to a directory, not exported by FileObserver
+	 */
+	private static final int IN_ISDIR = 0x40000000;
+
+	interface Callback {
+		/**
+		 * Called from a FileObserver thread if new changes were collected
+		 */
+		void onFolderChanged();
+	}
+
+	/**
+	 * The changes collected since the last call to drainChanges()
+	 */
+	static class Changes {
+		/**
+		 * Created or modified files and directories
+		 */
+		final ArrayList<File> changed = new ArrayList<>();
+		/**
+		 * Directories which vanished
+		 */
+		final ArrayList<File> removed = new ArrayList<>();
+	}
+
+	/**
+	 * The callback to notify
+	 */
+	private final Callback mCallback;
+	/**
+	 * All observers, keyed by the watched path
+	 */
+	private final HashMap<String, FileObserver> mObservers = new HashMap<>();
+	/**
+	 * Collected paths of changed files and directories
+	 */
+	private final LinkedHashSet<String> mChanged = new LinkedHashSet<>();
+	/**
+	 * Collected paths of removed directories
+	 */
+	private final LinkedHashSet<String> mRemoved = new LinkedHashSet<>();
+	/**
+	 * Filter to skip folders which should not be watched
+	 */
+	private MediaFolderFilter mFilter;
+
+	MediaFolderWatcher(Callback callback) {
+		mCallback = callback;
+	}
+
+	/**
+	 * Drops all existing watches and starts watching given folders
+	 *
+	 * @param mediaFolders the folders to watch
+	 * @param filter the filter to skip folders which should not be watched
+	 */
+	void watch(ArrayList<String> mediaFolders, MediaFolderFilter filter) {
+		stop();
+		mFilter = filter;
+		for (String path : mediaFolders) {
+			watchTree(new File(path));
+		}
+		Log.v("VanillaMusic", "MediaFolderWatcher: watching "+mObservers.size()+" directories");
+	}
+
+	/**
+	 * Adds watches for given directory and all its subdirectories
+	 *
+	 * @param root the directory to watch
+	 */
+	void watchTree(File root) {
+		ArrayDeque<File> queue = new ArrayDeque<>();
+		queue.add(root);
+
+		File dir;
+		while ((dir = queue.poll()) != null) {
+			if (mObservers.size() >= MAX_WATCHED_DIRECTORIES) {
+				Log.v("VanillaMusic", "MediaFolderWatcher: too many directories, not watching "+dir+" and "+queue.size()+" others");
+				break;
+			}
+
+			if (!isWatchable(dir))
+				continue;
+
+			String path = dir.getAbsolutePath();
+			if (!mObservers.containsKey(path)) {
+				FileObserver observer = newObserver(path);
+				observer.startWatching();
+				mObservers.put(path, observer);
+			}
+
+			File[] dirents = dir.listFiles();
+			if (dirents == null)
+				continue;
+
+			for (File file : dirents) {
+				if (file.isDirectory())
+					queue.add(file);
+			}
+		}
+	}
+
+	/**
+	 * Removes the watches of given directory and all its subdirectories
+	 *
+	 * @param root the directory to drop
+	 */
+	void unwatchTree(File root) {
+		String path = root.getAbsolutePath();
+		String prefix = path + "/";
+		Iterator<HashMap.Entry<String, FileObserver>> iter = mObservers.entrySet().iterator();
+		while (iter.hasNext()) {
+			HashMap.Entry<String, FileObserver> entry = iter.next();
+			if (entry.getKey().equals(path) || entry.getKey().startsWith(prefix)) {
+				entry.getValue().stopWatching();
+				iter.remove();
+			}
+		}
+	}
+
+	/**
+	 * Stops watching all directories
+	 */
+	void stop() {
+		for (FileObserver observer : mObservers.values()) {
+			observer.stopWatching();
+		}
+		mObservers.clear();
+	}
+
+	/**
+	 * Returns all changes collected since the last call
+	 *
+	 * @return the collected changes
+	 */
+	Changes drainChanges() {
+		Changes changes = new Changes();
+		synchronized (this) {
+			for (String path : mChanged) {
+				changes.changed.add(new File(path));
+			}
+			for (String path : mRemoved) {
+				changes.removed.add(new File(path));
+			}
+			mChanged.clear();
+			mRemoved.clear();
+		}
+		return changes;
+	}
+
+	/**
+	 * Returns true if we should watch given directory
+	 *
+	 * @param dir the directory to check
+	 */
+	private boolean isWatchable(File dir) {
+		if (!dir.isDirectory() || dir.getName().startsWith("."))
+			return false;
+
+		if (new File(dir, ".nomedia").exists())
+			return false;
+
+		return !mFilter.isExcludedTree(dir.getPath());
+	}
+
+	/**
+	 * Returns a new observer for given directory
+	 *
+	 * @param dir the path of the directory to watch
+	 */
+	private FileObserver newObserver(String dir) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q)
+			return new DirectoryObserver(new File(dir), dir);
+		return new DirectoryObserver(dir);
+	}
+
+	/**
+	 * Collects the events of a single directory
+	 */
+	private class DirectoryObserver extends FileObserver {
+		/**
+		 * The path of the watched directory
+		 */
+		private final String mDir;
+
+		/**
+		 * Creates an observer using the File based constructor of API 29+
+		 */
+		DirectoryObserver(File file, String dir) {
+			super(file, EVENT_MASK);
+			mDir = dir;
+		}
+
+		/**
+		 * Creates an observer on older releases, the String based
+		 * constructor is deprecated since API 29
+		 */
+		@SuppressWarnings("deprecation")
+		DirectoryObserver(String dir) {
+			super(dir, EVENT_MASK);
+			mDir = dir;
+		}
+
+		@Override
+		public void onEvent(int event, String dirent) {
+			// Events such as IN_IGNORED pass dirent = null.
+			if (dirent == null)
+				return;
+
+			boolean isDir = (event & IN_ISDIR) != 0;
+			event &= FileObserver.ALL_EVENTS;
+			if (event == FileObserver.CREATE && !isDir)
+				return; // wait for CLOSE_WRITE.
+
+			String path = mDir + "/" + dirent;
+			synchronized (MediaFolderWatcher.this) {
+				if (isDir && (event & (FileObserver.DELETE | FileObserver.MOVED_FROM)) != 0) {
+					mChanged.remove(path);
+					mRemoved.add(path);
+				} else {
+					mChanged.add(path);
+				}
+			}
+			mCallback.onFolderChanged();
+		}
+	}
+}
@@ -48,6 +48,11 @@ public class MediaLibrary  {
 	public static final String TABLE_GENRES_SONGS             = "genres_songs";
 	public static final String TABLE_PLAYLISTS                = "playlists";
 	public static final String TABLE_PLAYLISTS_SONGS          = "playlists_songs";
+	public static final String TABLE_DIRECTORIES              = "directories";
+	public static final String TABLE_SONGS_SEARCH             = "songs_search";
+	public static final String TABLE_GENRES_ALBUMS            = "genres_albums";
+	public static final String TABLE_GENRES_CONTRIBUTORS      = "genres_contributors";
+	public static final String TABLE_CONTRIBUTORS_ALBUMS      = "contributors_albums";
 	public static final String VIEW_ARTISTS                   = "_artists";
 	public static final String VIEW_ALBUMARTISTS              = "_albumartists";
 	public static final String VIEW_COMPOSERS                 = "_composers";
@@ -64,6 +69,7 @@ public class MediaLibrary  {
 	public static final int SONG_FLAG_OUTDATED            = (1 << 0); // entry in library should get rescanned.
 	public static final int SONG_FLAG_NO_ALBUM            = (1 << 1); // file had no real album tag.
 	public static final int SONG_FLAG_NO_ARTIST           = (1 << 2); // file had no real artist tag.
+	public static final int SONG_FLAG_HAS_GAIN_INFO       = (1 << 3); // replay gain columns were populated by the scanner.
 
 	public static final String PREFERENCES_FILE = "_prefs-v1.obj";
 
@@ -71,12 +77,20 @@ public class MediaLibrary  {
 	 * Options used by the MediaScanner class
 	 */
 	public static class Preferences implements Serializable {
+		// Pinned to the value computed for the initial version of this class:
+		// new fields can be added without invalidating stored preferences.
+		private static final long serialVersionUID = -5334488210707433859L;
 		public boolean forceBastp;
 		public boolean groupAlbumsByFolder;
 		public ArrayList<String> mediaFolders;
 		public ArrayList<String> blacklistedFolders;
+		public int scanThreads; // number of tag extraction threads, 0 picks a default.
+		public int deepScanDays; // full scans ignore the directory index if the last deep scan is older, 0 picks a default.
+		public boolean nativeFallback; // only use the native metadata retriever if bastp can not read the audio properties.
 		int _nativeLibraryCount;
 		int _nativeLastMtime;
+		int _lastDeepScan;
+		long _directoryIndexKey;
 	}
 
 	/**
@@ -89,6 +103,40 @@ public class MediaLibrary  {
 		public int seen;
 		public int changed;
 		public int total;
+		public int commits;
+		public int lastCommitSize;
+		public long lastCommitMillis;
+		public int dirsVisited;
+		public int dirsSkipped;
+		public long elapsedMillis;
+		public float filesPerSecond;
+		public long bytesRead;
+		public int skipped;
+		public int blacklisted;
+		public int truncated;
+		public String metrics;
+	}
+
+	/**
+	 * Details of a song which are not part of the Song class,
+	 * as stored by the scanner
+	 */
+	public static class TrackDetails {
+		public String genre;
+		public String composer;
+		public String year;
+		public String codec;
+		public int bitrate;
+		public int sampleRate;
+		public int channels;
+		public int bitsPerSample;
+
+		/**
+		 * Returns a human-friendly description of the audio format
+		 */
+		public String getFormat() {
+			return MediaMetadataExtractor.describeFormat(codec, bitrate, sampleRate, bitsPerSample, channels);
+		}
 	}
 
 	/**
@@ -126,6 +174,17 @@ public class MediaLibrary  {
 		return sBackend;
 	}
 
+	/**
+	 * Returns the scanner instance, creating the backend if needed
+	 *
+	 * @param context the context to use
+	 * @return the media scanner
+	 */
+	private static MediaScanner getScanner(Context context) {
+		getBackend(context);
+		return sScanner;
+	}
+
 	/**
 	 * Returns the scanner preferences
 	 *
@@ -144,6 +203,7 @@ public class MediaLibrary  {
 			if (prefs == null) {
 				prefs = new MediaLibrary.Preferences();
 				prefs.forceBastp = true; // Auto enable for new installations
+				prefs.nativeFallback = true;
 			}
 
 			if (prefs.mediaFolders == null || prefs.mediaFolders.size() == 0)
@@ -298,6 +358,7 @@ public class MediaLibrary  {
 	 */
 	public static void createDebugDump(Context context, String dst) {
 		final String src = context.getDatabasePath(MediaLibraryBackend.DATABASE_NAME).getPath();
+		getBackend(context).checkpoint(); // recent changes might still be in the WAL
 		try {
 			try (InputStream in = new FileInputStream(src)) {
 				try (OutputStream out = new FileOutputStream(dst)) {
@@ -311,6 +372,12 @@ public class MediaLibrary  {
 		} catch (Exception e) {
 			Log.v("VanillaMusic", "Debug dump failed: "+e);
 		}
+
+		try (OutputStream out = new FileOutputStream(dst + ".scan-metrics.txt")) {
+			out.write(getScanner(context).describeScanProgress().metrics.getBytes("UTF-8"));
+		} catch (Exception e) {
+			Log.v("VanillaMusic", "Metrics dump failed: "+e);
+		}
 	}
 
 	/**
@@ -372,6 +439,44 @@ public class MediaLibrary  {
 		return getBackend(context).query(false, table, projection, selection, selectionArgs, null, null, orderBy, null);
 	}
 
+	/**
+	 * Returns the details of a song, as found by the last scan
+	 *
+	 * @param context the context to use
+	 * @param id the id of the song
+	 * @return the details, null if the song does not exist
+	 */
+	public static TrackDetails getTrackDetails(Context context, long id) {
+		final String[] projection = { SongColumns.YEAR, ContributorColumns.COMPOSER, SongColumns.CODEC, SongColumns.BITRATE,
+		                              SongColumns.SAMPLE_RATE, SongColumns.CHANNELS, SongColumns.BITS_PER_SAMPLE };
+		final String selection = SongColumns._ID+"="+id;
+		TrackDetails details = null;
+
+		Cursor cursor = queryLibrary(context, VIEW_SONGS_ALBUMS_ARTISTS_HUGE, projection, selection, null, null);
+		if (cursor.moveToFirst()) {
+			details = new TrackDetails();
+			details.year = cursor.getString(0);
+			details.composer = cursor.getString(1);
+			details.codec = cursor.getString(2);
+			details.bitrate = cursor.getInt(3);
+			details.sampleRate = cursor.getInt(4);
+			details.channels = cursor.getInt(5);
+			details.bitsPerSample = cursor.getInt(6);
+		}
+		cursor.close();
+
+		if (details != null) {
+			final String[] genreProjection = { GenreColumns._GENRE };
+			final String genreSelection = GenreColumns._ID+" IN (SELECT "+GenreSongColumns._GENRE_ID+" FROM "+TABLE_GENRES_SONGS
+			                              +" WHERE "+GenreSongColumns.SONG_ID+"="+id+")";
+			cursor = queryLibrary(context, TABLE_GENRES, genreProjection, genreSelection, null, null);
+			if (cursor.moveToFirst())
+				details.genre = cursor.getString(0);
+			cursor.close();
+		}
+		return details;
+	}
+
 	/**
 	 * Removes a single song from the database
 	 *
@@ -380,10 +485,10 @@ public class MediaLibrary  {
 	 * @return the number of affected rows
 	 */
 	public static int removeSong(Context context, long id) {
-		int rows = getBackend(context).delete(TABLE_SONGS, SongColumns._ID+"="+id, null);
+		int rows = getBackend(context).removeSong(id);
 
 		if (rows > 0) {
-			getBackend(context).cleanOrphanedEntries(true);
+			sScanner.invalidateSongState(id);
 			notifyObserver(LibraryObserver.Type.SONG, id, false);
 			notifyObserver(LibraryObserver.Type.PLAYLIST, LibraryObserver.Value.UNKNOWN, false);
 		}
@@ -400,6 +505,7 @@ public class MediaLibrary  {
 		final String column = played ? MediaLibrary.SongColumns.PLAYCOUNT : MediaLibrary.SongColumns.SKIPCOUNT;
 		String selection = MediaLibrary.SongColumns._ID+"="+id;
 		getBackend(context).execSQL("UPDATE "+MediaLibrary.TABLE_SONGS+" SET "+column+"="+column+"+1 WHERE "+selection);
+		sScanner.invalidateSongState(id);
 	}
 
 	/**
@@ -601,6 +707,19 @@ public class MediaLibrary  {
 		return MediaStore.Audio.keyFor(name);
 	}
 
+	/**
+	 * Returns a sub-select listing the ids of all songs matching the given search string.
+	 * Every word of the constraint must be the prefix of a word in one of the searched columns.
+	 *
+	 * @param constraint the search string, as entered by the user
+	 * @param columns the SongSearchColumns to search in, null to search all of them
+	 * @param args the list to append the selection arguments to
+	 * @return the sub-select, null if the constraint does not contain any searchable words
+	 */
+	public static String buildSongSearch(String constraint, String[] columns, ArrayList<String> args) {
+		return MediaSearchIndex.buildSongSearch(constraint, columns, args);
+	}
+
 	/**
 	 * Simple 63 bit hash function for strings
 	 *
@@ -673,6 +792,46 @@ public class MediaLibrary  {
 		 * Various flags of this entry, see SONG_FLAG...
 		 */
 		String FLAGS = "_flags";
+		/**
+		 * The replay gain of this track in dB, null if untagged
+		 */
+		String REPLAYGAIN_TRACK = "rg_track";
+		/**
+		 * The replay gain of the album of this track in dB, null if untagged
+		 */
+		String REPLAYGAIN_ALBUM = "rg_album";
+		/**
+		 * The R128 track gain in dB, null if untagged
+		 */
+		String R128_TRACK = "r128_track";
+		/**
+		 * The R128 album gain in dB, null if untagged
+		 */
+		String R128_ALBUM = "r128_album";
+		/**
+		 * The output gain of the Opus header in dB, null if this is not an Opus file
+		 */
+		String R128_BASE = "r128_base";
+		/**
+		 * The codec of this track, such as "FLAC", null if unknown
+		 */
+		String CODEC = "codec";
+		/**
+		 * The (average) bitrate in bit/s, null if unknown
+		 */
+		String BITRATE = "bitrate";
+		/**
+		 * The sampling rate in Hz, null if unknown
+		 */
+		String SAMPLE_RATE = "sample_rate";
+		/**
+		 * The number of audio channels, null if unknown
+		 */
+		String CHANNELS = "channels";
+		/**
+		 * Bits per sample of lossless formats, null if unknown
+		 */
+		String BITS_PER_SAMPLE = "bits_per_sample";
 	}
 
 	// Columns of Album entries
@@ -701,6 +860,30 @@ public class MediaLibrary  {
 		 * The mtime of this item
 		 */
 		String MTIME = "mtime";
+		/**
+		 * The number of songs of this album
+		 */
+		String SONG_COUNT = "song_count";
+		/**
+		 * The summed up duration of all songs, in ms
+		 */
+		String TOTAL_DURATION = "total_duration";
+		/**
+		 * The number of distinct discs of this album
+		 */
+		String DISC_COUNT = "disc_count";
+		/**
+		 * The lowest year of all songs, null if none is set
+		 */
+		String MIN_YEAR = "min_year";
+		/**
+		 * The highest year of all songs, null if none is set
+		 */
+		String MAX_YEAR = "max_year";
+		/**
+		 * The mtime of the most recently modified song, in unixtime
+		 */
+		String LATEST_MTIME = "latest_mtime";
 	}
 
 	// Columns of Contributors entries
@@ -807,6 +990,50 @@ public class MediaLibrary  {
 		String SONG_ID = "song_id";
 	}
 
+	// Genres <-> Albums rollup: albums with at least one song of the genre
+	public interface GenreAlbumColumns {
+		/**
+		 * the genre id this maps to
+		 */
+		String _GENRE_ID = GenreSongColumns._GENRE_ID;
+		/**
+		 * the album this maps to
+		 */
+		String ALBUM_ID = "album_id";
+	}
+
+	// Genres <-> Contributors rollup: contributors of at least one song of the genre
+	public interface GenreContributorColumns {
+		/**
+		 * the genre id this maps to
+		 */
+		String _GENRE_ID = GenreSongColumns._GENRE_ID;
+		/**
+		 * the role of the contributor
+		 */
+		String ROLE = ContributorSongColumns.ROLE;
+		/**
+		 * the contributor id this maps to
+		 */
+		String _CONTRIBUTOR_ID = ContributorSongColumns._CONTRIBUTOR_ID;
+	}
+
+	// Contributors <-> Albums rollup: albums the contributor has at least one song on
+	public interface ContributorAlbumColumns {
+		/**
+		 * the role of the contributor
+		 */
+		String ROLE = ContributorSongColumns.ROLE;
+		/**
+		 * the contributor id this maps to
+		 */
+		String _CONTRIBUTOR_ID = ContributorSongColumns._CONTRIBUTOR_ID;
+		/**
+		 * the album this maps to
+		 */
+		String ALBUM_ID = "album_id";
+	}
+
 	// Playlists
 	public interface PlaylistColumns {
 		/**
@@ -843,6 +1070,66 @@ public class MediaLibrary  {
 		String POSITION = "position";
 	}
 
+	// Directories seen by the last full scan
+	public interface DirectoryColumns {
+		/**
+		 * The id of this directory, a hash of its path
+		 */
+		String _ID = SongColumns._ID;
+		/**
+		 * The absolute path of this directory
+		 */
+		String PATH = "path";
+		/**
+		 * The id of the parent directory
+		 */
+		String PARENT_ID = "parent_id";
+		/**
+		 * The mtime of this directory in ms, as seen by the last scan
+		 */
+		String MTIME = "mtime";
+		/**
+		 * The number of entries in this directory
+		 */
+		String CHILD_COUNT = "child_count";
+	}
+
+	// Full text search index of songs, the docid is the song id
+	public interface SongSearchColumns {
+		/**
+		 * The song this entry belongs to
+		 */
+		String DOCID = "docid";
+		/**
+		 * The title of the song
+		 */
+		String TITLE = "title";
+		/**
+		 * The album of the song
+		 */
+		String ALBUM = "album";
+		/**
+		 * The artist of the song
+		 */
+		String ARTIST = "artist";
+		/**
+		 * The albumartist of the song
+		 */
+		String ALBUMARTIST = "albumartist";
+		/**
+		 * The composer of the song
+		 */
+		String COMPOSER = "composer";
+		/**
+		 * All genres of the song
+		 */
+		String GENRE = "genre";
+		/**
+		 * The file name of the song, without its directory
+		 */
+		String FILENAME = "filename";
+	}
+
 	// Preference keys
 	public interface PreferenceColumns {
 		/**
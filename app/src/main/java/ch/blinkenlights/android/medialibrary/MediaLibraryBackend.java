@@ -19,11 +19,15 @@ package ch.blinkenlights.android.medialibrary;
 
 import android.content.Context;
 import android.content.ContentValues;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteQueryBuilder;
 import android.database.Cursor;
+import android.os.Build;
 import android.util.Log;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -32,10 +36,24 @@ public class MediaLibraryBackend extends SQLiteOpenHelper {
 	 * Enables or disables debugging
 	 */
 	private static final boolean DEBUG = false;
+	/**
+	 * Use write-ahead logging, so that readers do not wait on the scanner.
+	 * Setting this to false allows to compare the 'query during scan' metrics
+	 * against the rollback journal.
+	 */
+	private static final boolean WRITE_AHEAD_LOGGING = true;
+	/**
+	 * Close idle reader connections of the pool after this many ms
+	 */
+	private static final long IDLE_CONNECTION_TIMEOUT_MS = 30000;
+	/**
+	 * Truncate the WAL file to this size after a checkpoint
+	 */
+	private static final long WAL_SIZE_LIMIT = 4 * 1024 * 1024;
 	/**
 	 * The database version we are using
 	 */
-	private static final int DATABASE_VERSION = 20190210;
+	private static final int DATABASE_VERSION = 20261023;
 	/**
 	 * on-disk file to store the database
 	 */
@@ -61,6 +79,32 @@ public class MediaLibraryBackend extends SQLiteOpenHelper {
 	 * Regexp to detect costy composer_id queries which we can optimize
 	 */
 	private static final Pattern sQueryMatchComposerSearch = Pattern.compile("(^|.+ )"+MediaLibrary.ContributorColumns.COMPOSER_ID+"=(\\d+)$");
+	/**
+	 * Regexp matching a full table scan in the output of EXPLAIN QUERY PLAN,
+	 * older sqlite versions prefix the table name with 'TABLE'
+	 */
+	static final Pattern sQueryPlanTableScan = Pattern.compile("^SCAN (TABLE )?(\\w+)( AS \\w+)?$");
+	/**
+	 * The aggregate columns of the albums table, as a row value
+	 */
+	private static final String ALBUM_AGGREGATE_COLUMNS = "("+MediaLibrary.AlbumColumns.SONG_COUNT+", "+MediaLibrary.AlbumColumns.TOTAL_DURATION+", "
+	  + MediaLibrary.AlbumColumns.DISC_COUNT+", "+MediaLibrary.AlbumColumns.MIN_YEAR+", "+MediaLibrary.AlbumColumns.MAX_YEAR+", "
+	  + MediaLibrary.AlbumColumns.LATEST_MTIME+")";
+	/**
+	 * Sub-select calculating ALBUM_AGGREGATE_COLUMNS of the album in the outer query
+	 */
+	private static final String ALBUM_AGGREGATE_SELECT = "(SELECT count(*), coalesce(sum("+MediaLibrary.SongColumns.DURATION+"), 0), "
+	  + "count(DISTINCT "+MediaLibrary.SongColumns.DISC_NUMBER+"), min("+MediaLibrary.SongColumns.YEAR+"), max("+MediaLibrary.SongColumns.YEAR+"), "
+	  + "coalesce(max("+MediaLibrary.SongColumns.MTIME+"), 0) FROM "+MediaLibrary.TABLE_SONGS
+	  + " WHERE "+MediaLibrary.SongColumns.ALBUM_ID+"="+MediaLibrary.TABLE_ALBUMS+"."+MediaLibrary.AlbumColumns._ID+")";
+	/**
+	 * Metrics receiving the latency of queries, may be null
+	 */
+	private volatile MediaScanMetrics mQueryMetrics;
+	/**
+	 * Thread whose queries are not recorded in mQueryMetrics
+	 */
+	private volatile Thread mQueryMetricsWriter;
 
 	/**
 	* Constructor for the MediaLibraryBackend helper
@@ -69,6 +113,41 @@ public class MediaLibraryBackend extends SQLiteOpenHelper {
 	*/
 	MediaLibraryBackend(Context context) {
 		super(context, DATABASE_NAME, null, DATABASE_VERSION);
+		if (WRITE_AHEAD_LOGGING) {
+			// Readers get their own connections from the pool, its size is
+			// picked by the platform. We only close them once they go idle.
+			setWriteAheadLoggingEnabled(true);
+			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1)
+				setIdleTimeout(IDLE_CONNECTION_TIMEOUT_MS);
+		}
+	}
+
+	/**
+	 * Closes pooled connections once they were idle for given time.
+	 * Both setIdleConnectionTimeout() of the helper and the one of
+	 * SQLiteDatabase.OpenParams.Builder are deprecated without a
+	 * replacement, but still honored by the pool.
+	 *
+	 * @param timeoutMs the timeout in ms
+	 */
+	@SuppressWarnings("deprecation")
+	private void setIdleTimeout(long timeoutMs) {
+		setIdleConnectionTimeout(timeoutMs);
+	}
+
+	/**
+	 * Called when the database connection is being configured
+	 *
+	 * @param dbh the writeable database handle
+	 */
+	@Override
+	public void onConfigure(SQLiteDatabase dbh) {
+		if (WRITE_AHEAD_LOGGING) {
+			// The library can be rebuilt by a scan: losing the last commits on
+			// power loss is fine, an fsync on every scanner commit is not.
+			dbh.execSQL("PRAGMA synchronous=NORMAL");
+			DatabaseUtils.longForQuery(dbh, "PRAGMA journal_size_limit="+WAL_SIZE_LIMIT, null);
+		}
 	}
 
 	/**
@@ -92,6 +171,52 @@ public class MediaLibraryBackend extends SQLiteOpenHelper {
 	@Override
 	public void onUpgrade(SQLiteDatabase dbh, int oldVersion, int newVersion) {
 		MediaSchema.upgradeDatabaseSchema(dbh, oldVersion);
+		verifyAlbumAggregates(dbh);
+	}
+
+	/**
+	 * Checks the aggregate columns of all albums and rebuilds
+	 * them if any of them does not match its songs
+	 *
+	 * @param dbh the writeable database handle
+	 * @return true if the aggregates were consistent
+	 */
+	static boolean verifyAlbumAggregates(SQLiteDatabase dbh) {
+		long broken = DatabaseUtils.longForQuery(dbh, "SELECT count(*) FROM "+MediaLibrary.TABLE_ALBUMS
+		                                            +" WHERE "+ALBUM_AGGREGATE_COLUMNS+" IS NOT "+ALBUM_AGGREGATE_SELECT, null);
+		if (broken == 0)
+			return true;
+
+		Log.w("VanillaMusic", "+++ warning: rebuilding album aggregates, "+broken+" albums were outdated");
+		updateAlbumAggregates(dbh, null);
+		return false;
+	}
+
+	/**
+	 * Recalculates the aggregate columns of albums from their songs
+	 *
+	 * @param dbh the writeable database handle
+	 * @param albumIds the albums to update, null to update all of them
+	 */
+	private static void updateAlbumAggregates(SQLiteDatabase dbh, Collection<Long> albumIds) {
+		final String sql = "UPDATE "+MediaLibrary.TABLE_ALBUMS+" SET "+ALBUM_AGGREGATE_COLUMNS+" = "+ALBUM_AGGREGATE_SELECT;
+		if (albumIds == null) {
+			dbh.execSQL(sql);
+			return;
+		}
+		for (String ids : joinIds(albumIds)) {
+			dbh.execSQL(sql+" WHERE "+MediaLibrary.AlbumColumns._ID+" IN ("+ids+")");
+		}
+	}
+
+	/**
+	 * Recalculates the aggregate columns of the given albums.
+	 * Must be called after adding or removing songs of an album.
+	 *
+	 * @param albumIds the albums to update
+	 */
+	void updateAlbumAggregates(Collection<Long> albumIds) {
+		updateAlbumAggregates(getWritableDatabase(), albumIds);
 	}
 
 	/**
@@ -146,6 +271,55 @@ public class MediaLibraryBackend extends SQLiteOpenHelper {
 		getWritableDatabase().execSQL(sql);
 	}
 
+	/**
+	 * Moves the content of the WAL into the database file and truncates
+	 * the WAL. Sqlite only does passive checkpoints on its own, which
+	 * can not catch up while readers are active during a scan.
+	 */
+	void checkpoint() {
+		if (!WRITE_AHEAD_LOGGING)
+			return;
+
+		Cursor cursor = getWritableDatabase().rawQuery("PRAGMA wal_checkpoint(TRUNCATE)", null);
+		if (cursor.moveToFirst() && cursor.getInt(0) != 0)
+			Log.v("VanillaMusic", "+++ warning: wal checkpoint was blocked, "+cursor.getInt(2)+" of "+cursor.getInt(1)+" pages done");
+		cursor.close();
+	}
+
+	/**
+	 * Sets the metrics which should receive the latency of all queries
+	 * except those of the writing thread: its own queries never wait on
+	 * the scan and would hide the latency seen by the UI.
+	 *
+	 * @param metrics the metrics to use, null to stop recording
+	 * @param writer the thread to ignore, usually the scanner thread
+	 */
+	void setQueryMetrics(MediaScanMetrics metrics, Thread writer) {
+		mQueryMetricsWriter = writer;
+		mQueryMetrics = metrics;
+	}
+
+	/**
+	 * Wrapper for SQLiteDatabase.beginTransactionNonExclusive() function
+	 */
+	void beginTransaction() {
+		getWritableDatabase().beginTransactionNonExclusive();
+	}
+
+	/**
+	 * Wrapper for SQLiteDatabase.setTransactionSuccessful() function
+	 */
+	void setTransactionSuccessful() {
+		getWritableDatabase().setTransactionSuccessful();
+	}
+
+	/**
+	 * Wrapper for SQLiteDatabase.endTransaction() function
+	 */
+	void endTransaction() {
+		getWritableDatabase().endTransaction();
+	}
+
 	/**
 	 * Wrapper for SQLiteDatabase.insert() function
 	 *
@@ -164,6 +338,24 @@ public class MediaLibraryBackend extends SQLiteOpenHelper {
 		return result;
 	}
 
+	/**
+	 * Wrapper for SQLiteDatabase.replace() function
+	 *
+	 * @param table the table to insert data to
+	 * @param nullColumnHack android hackery (see SQLiteDatabase documentation)
+	 * @param values the values to insert or replace
+	 */
+	long replace (String table, String nullColumnHack, ContentValues values) {
+		long result = -1;
+		try {
+			result = getWritableDatabase().replaceOrThrow(table, nullColumnHack, values);
+		} catch (Exception e) {
+			// avoid logspam as done by replace()
+		}
+
+		return result;
+	}
+
 	/**
 	 * Marks all songs as 'deleteable' - but doesn't delete them yet.
 	 * Calling cleanOrphanedEntries() would take care of the actual deletion.
@@ -181,11 +373,28 @@ public class MediaLibraryBackend extends SQLiteOpenHelper {
 	 */
 	void cleanOrphanedEntries(boolean fullCleanup) {
 		SQLiteDatabase dbh = getWritableDatabase();
+		// Readers must not see the rollups and aggregates while they are rebuilt
+		dbh.beginTransactionNonExclusive();
+		try {
+			purgeOrphanedEntries(dbh, fullCleanup);
+			dbh.setTransactionSuccessful();
+		} finally {
+			dbh.endTransaction();
+		}
+	}
 
+	/**
+	 * Does the work of cleanOrphanedEntries(), must be called within a transaction
+	 *
+	 * @param dbh the writeable database handle
+	 * @param fullCleanup also remove orphaned playlist entries and songs marked for deletion.
+	 */
+	private static void purgeOrphanedEntries(SQLiteDatabase dbh, boolean fullCleanup) {
 		// Remove all songs which are marked for deletion and playlist orphaned playlist entries.
 		if (fullCleanup) {
 			dbh.execSQL("DELETE FROM "+MediaLibrary.TABLE_SONGS+" WHERE "+MediaLibrary.SongColumns.MTIME+"="+PENDING_DELETION_MTIME);
 			dbh.execSQL("DELETE FROM "+MediaLibrary.TABLE_PLAYLISTS_SONGS+" WHERE "+MediaLibrary.PlaylistSongColumns.SONG_ID+" NOT IN (SELECT "+MediaLibrary.SongColumns._ID+" FROM "+MediaLibrary.TABLE_SONGS+");");
+			dbh.execSQL("DELETE FROM "+MediaLibrary.TABLE_SONGS_SEARCH+" WHERE "+MediaLibrary.SongSearchColumns.DOCID+" NOT IN (SELECT "+MediaLibrary.SongColumns._ID+" FROM "+MediaLibrary.TABLE_SONGS+");");
 		}
 
 		// And remove any orphaned references.
@@ -194,6 +403,203 @@ public class MediaLibraryBackend extends SQLiteOpenHelper {
 		dbh.execSQL("DELETE FROM "+MediaLibrary.TABLE_GENRES+" WHERE "+MediaLibrary.GenreColumns._ID+" NOT IN (SELECT "+MediaLibrary.GenreSongColumns._GENRE_ID+" FROM "+MediaLibrary.TABLE_GENRES_SONGS+");");
 		dbh.execSQL("DELETE FROM "+MediaLibrary.TABLE_CONTRIBUTORS_SONGS+" WHERE "+MediaLibrary.ContributorSongColumns.SONG_ID+" NOT IN (SELECT "+MediaLibrary.SongColumns._ID+" FROM "+MediaLibrary.TABLE_SONGS+");");
 		dbh.execSQL("DELETE FROM "+MediaLibrary.TABLE_CONTRIBUTORS+" WHERE "+MediaLibrary.ContributorColumns._ID+" NOT IN (SELECT "+MediaLibrary.ContributorSongColumns._CONTRIBUTOR_ID+" FROM "+MediaLibrary.TABLE_CONTRIBUTORS_SONGS+");");
+
+		// We do not know which albums lost songs: refresh all of them.
+		if (fullCleanup) {
+			updateAlbumAggregates(dbh, null);
+			rebuildRollups(dbh);
+		}
+	}
+
+	/**
+	 * Removes a single song together with its references. Albums, contributors
+	 * and genres which only existed because of this song are purged as well.
+	 *
+	 * @param songId the song to remove
+	 * @return the number of removed songs
+	 */
+	int removeSong(long songId) {
+		SQLiteDatabase dbh = getWritableDatabase();
+		int rows = 0;
+		dbh.beginTransactionNonExclusive();
+		try {
+			ArrayList<Long> albumIds = collectIds(dbh, MediaLibrary.TABLE_SONGS, MediaLibrary.SongColumns.ALBUM_ID, MediaLibrary.SongColumns._ID, songId);
+			ArrayList<Long> contributorIds = collectIds(dbh, MediaLibrary.TABLE_CONTRIBUTORS_SONGS, MediaLibrary.ContributorSongColumns._CONTRIBUTOR_ID,
+			                                            MediaLibrary.ContributorSongColumns.SONG_ID, songId);
+			ArrayList<Long> genreIds = collectIds(dbh, MediaLibrary.TABLE_GENRES_SONGS, MediaLibrary.GenreSongColumns._GENRE_ID,
+			                                      MediaLibrary.GenreSongColumns.SONG_ID, songId);
+
+			rows = dbh.delete(MediaLibrary.TABLE_SONGS, MediaLibrary.SongColumns._ID+"="+songId, null);
+			if (rows > 0) {
+				deleteSongReferences(songId);
+				dbh.delete(MediaLibrary.TABLE_PLAYLISTS_SONGS, MediaLibrary.PlaylistSongColumns.SONG_ID+"="+songId, null);
+				cleanOrphanedEntries(albumIds, contributorIds, genreIds);
+				updateAlbumAggregates(dbh, albumIds);
+			}
+			dbh.setTransactionSuccessful();
+		} finally {
+			dbh.endTransaction();
+		}
+		return rows;
+	}
+
+	/**
+	 * Returns the values of `column' of all rows matching `key'=`songId'
+	 */
+	private static ArrayList<Long> collectIds(SQLiteDatabase dbh, String table, String column, String key, long songId) {
+		ArrayList<Long> result = new ArrayList<>();
+		Cursor cursor = dbh.query(table, new String[]{ column }, key+"="+songId, null, null, null, null);
+		while (cursor.moveToNext()) {
+			result.add(cursor.getLong(0));
+		}
+		cursor.close();
+		return result;
+	}
+
+	/**
+	 * Adds the rollup links of a song: must be called after all
+	 * contributor and genre references of the song were inserted.
+	 * Stale links are removed by cleanOrphanedEntries()
+	 *
+	 * @param songId the song to add the links of
+	 */
+	void addSongRollups(long songId) {
+		SQLiteDatabase dbh = getWritableDatabase();
+		for (String sql : buildRollupInserts(songId)) {
+			dbh.execSQL(sql);
+		}
+	}
+
+	/**
+	 * Re-creates all rollup links from scratch
+	 *
+	 * @param dbh the writeable database handle
+	 */
+	static void rebuildRollups(SQLiteDatabase dbh) {
+		dbh.execSQL("DELETE FROM "+MediaLibrary.TABLE_GENRES_ALBUMS);
+		dbh.execSQL("DELETE FROM "+MediaLibrary.TABLE_GENRES_CONTRIBUTORS);
+		dbh.execSQL("DELETE FROM "+MediaLibrary.TABLE_CONTRIBUTORS_ALBUMS);
+		for (String sql : buildRollupInserts(0)) {
+			dbh.execSQL(sql);
+		}
+	}
+
+	/**
+	 * Returns the statements populating the rollup tables from the
+	 * genre and contributor references of the songs
+	 *
+	 * @param songId only add links of this song, 0 to add the links of all songs
+	 * @return the statements to run
+	 */
+	static String[] buildRollupInserts(long songId) {
+		final String genreSongFilter = (songId == 0 ? "" : " WHERE _gs."+MediaLibrary.GenreSongColumns.SONG_ID+"="+songId);
+		final String contributorSongFilter = (songId == 0 ? "" : " WHERE _cs."+MediaLibrary.ContributorSongColumns.SONG_ID+"="+songId);
+		return new String[] {
+			"INSERT OR IGNORE INTO "+MediaLibrary.TABLE_GENRES_ALBUMS+" ("+MediaLibrary.GenreAlbumColumns._GENRE_ID+", "+MediaLibrary.GenreAlbumColumns.ALBUM_ID+")"
+			+" SELECT _gs."+MediaLibrary.GenreSongColumns._GENRE_ID+", _s."+MediaLibrary.SongColumns.ALBUM_ID+" FROM "+MediaLibrary.TABLE_GENRES_SONGS+" AS _gs"
+			+" JOIN "+MediaLibrary.TABLE_SONGS+" AS _s ON _s."+MediaLibrary.SongColumns._ID+" = _gs."+MediaLibrary.GenreSongColumns.SONG_ID
+			+genreSongFilter,
+			"INSERT OR IGNORE INTO "+MediaLibrary.TABLE_GENRES_CONTRIBUTORS+" ("+MediaLibrary.GenreContributorColumns._GENRE_ID+", "
+			+MediaLibrary.GenreContributorColumns.ROLE+", "+MediaLibrary.GenreContributorColumns._CONTRIBUTOR_ID+")"
+			+" SELECT _gs."+MediaLibrary.GenreSongColumns._GENRE_ID+", _cs."+MediaLibrary.ContributorSongColumns.ROLE+", _cs."+MediaLibrary.ContributorSongColumns._CONTRIBUTOR_ID
+			+" FROM "+MediaLibrary.TABLE_GENRES_SONGS+" AS _gs"
+			+" JOIN "+MediaLibrary.TABLE_CONTRIBUTORS_SONGS+" AS _cs ON _cs."+MediaLibrary.ContributorSongColumns.SONG_ID+" = _gs."+MediaLibrary.GenreSongColumns.SONG_ID
+			+genreSongFilter,
+			"INSERT OR IGNORE INTO "+MediaLibrary.TABLE_CONTRIBUTORS_ALBUMS+" ("+MediaLibrary.ContributorAlbumColumns.ROLE+", "
+			+MediaLibrary.ContributorAlbumColumns._CONTRIBUTOR_ID+", "+MediaLibrary.ContributorAlbumColumns.ALBUM_ID+")"
+			+" SELECT _cs."+MediaLibrary.ContributorSongColumns.ROLE+", _cs."+MediaLibrary.ContributorSongColumns._CONTRIBUTOR_ID+", _s."+MediaLibrary.SongColumns.ALBUM_ID
+			+" FROM "+MediaLibrary.TABLE_CONTRIBUTORS_SONGS+" AS _cs"
+			+" JOIN "+MediaLibrary.TABLE_SONGS+" AS _s ON _s."+MediaLibrary.SongColumns._ID+" = _cs."+MediaLibrary.ContributorSongColumns.SONG_ID
+			+contributorSongFilter,
+		};
+	}
+
+	/**
+	 * Removes all contributor and genre references of a song,
+	 * as well as its search index entry
+	 *
+	 * @param songId the song to drop the references of
+	 */
+	void deleteSongReferences(long songId) {
+		SQLiteDatabase dbh = getWritableDatabase();
+		dbh.delete(MediaLibrary.TABLE_CONTRIBUTORS_SONGS, MediaLibrary.ContributorSongColumns.SONG_ID+"="+songId, null);
+		dbh.delete(MediaLibrary.TABLE_GENRES_SONGS, MediaLibrary.GenreSongColumns.SONG_ID+"="+songId, null);
+		dbh.delete(MediaLibrary.TABLE_SONGS_SEARCH, MediaLibrary.SongSearchColumns.DOCID+"="+songId, null);
+	}
+
+	/**
+	 * Purges the given albums, contributors and genres if they became orphaned,
+	 * together with their rollup links which are no longer backed by any song.
+	 * Unlike cleanOrphanedEntries(), this only looks at the given ids.
+	 *
+	 * @param albumIds the albums to check
+	 * @param contributorIds the contributors to check
+	 * @param genreIds the genres to check
+	 */
+	void cleanOrphanedEntries(Collection<Long> albumIds, Collection<Long> contributorIds, Collection<Long> genreIds) {
+		SQLiteDatabase dbh = getWritableDatabase();
+
+		for (String ids : joinIds(albumIds)) {
+			dbh.execSQL("DELETE FROM "+MediaLibrary.TABLE_ALBUMS+" WHERE "+MediaLibrary.AlbumColumns._ID+" IN ("+ids+") AND NOT EXISTS "+
+			            "(SELECT 1 FROM "+MediaLibrary.TABLE_SONGS+" WHERE "+MediaLibrary.SongColumns.ALBUM_ID+"="+MediaLibrary.TABLE_ALBUMS+"."+MediaLibrary.AlbumColumns._ID+");");
+		}
+		for (String ids : joinIds(genreIds)) {
+			dbh.execSQL("DELETE FROM "+MediaLibrary.TABLE_GENRES+" WHERE "+MediaLibrary.GenreColumns._ID+" IN ("+ids+") AND NOT EXISTS "+
+			            "(SELECT 1 FROM "+MediaLibrary.TABLE_GENRES_SONGS+" WHERE "+MediaLibrary.GenreSongColumns._GENRE_ID+"="+MediaLibrary.TABLE_GENRES+"."+MediaLibrary.GenreColumns._ID+");");
+			// Any stale rollup link involves a genre of the removed song, so checking the genres is enough.
+			dbh.execSQL("DELETE FROM "+MediaLibrary.TABLE_GENRES_ALBUMS+" WHERE "+MediaLibrary.GenreAlbumColumns._GENRE_ID+" IN ("+ids+") AND NOT EXISTS "+
+			            "(SELECT 1 FROM "+MediaLibrary.TABLE_SONGS+" AS _s JOIN "+MediaLibrary.TABLE_GENRES_SONGS+" AS _gs"+
+			            " ON _gs."+MediaLibrary.GenreSongColumns.SONG_ID+"=_s."+MediaLibrary.SongColumns._ID+
+			            " AND _gs."+MediaLibrary.GenreSongColumns._GENRE_ID+"="+MediaLibrary.TABLE_GENRES_ALBUMS+"."+MediaLibrary.GenreAlbumColumns._GENRE_ID+
+			            " WHERE _s."+MediaLibrary.SongColumns.ALBUM_ID+"="+MediaLibrary.TABLE_GENRES_ALBUMS+"."+MediaLibrary.GenreAlbumColumns.ALBUM_ID+");");
+			dbh.execSQL("DELETE FROM "+MediaLibrary.TABLE_GENRES_CONTRIBUTORS+" WHERE "+MediaLibrary.GenreContributorColumns._GENRE_ID+" IN ("+ids+") AND NOT EXISTS "+
+			            "(SELECT 1 FROM "+MediaLibrary.TABLE_CONTRIBUTORS_SONGS+" AS _cs JOIN "+MediaLibrary.TABLE_GENRES_SONGS+" AS _gs"+
+			            " ON _gs."+MediaLibrary.GenreSongColumns.SONG_ID+"=_cs."+MediaLibrary.ContributorSongColumns.SONG_ID+
+			            " AND _gs."+MediaLibrary.GenreSongColumns._GENRE_ID+"="+MediaLibrary.TABLE_GENRES_CONTRIBUTORS+"."+MediaLibrary.GenreContributorColumns._GENRE_ID+
+			            " WHERE _cs."+MediaLibrary.ContributorSongColumns.ROLE+"="+MediaLibrary.TABLE_GENRES_CONTRIBUTORS+"."+MediaLibrary.GenreContributorColumns.ROLE+
+			            " AND _cs."+MediaLibrary.ContributorSongColumns._CONTRIBUTOR_ID+"="+MediaLibrary.TABLE_GENRES_CONTRIBUTORS+"."+MediaLibrary.GenreContributorColumns._CONTRIBUTOR_ID+");");
+		}
+		for (String ids : joinIds(contributorIds)) {
+			// Listing all roles lets sqlite use the primary key of contributors_songs.
+			dbh.execSQL("DELETE FROM "+MediaLibrary.TABLE_CONTRIBUTORS+" WHERE "+MediaLibrary.ContributorColumns._ID+" IN ("+ids+") AND NOT EXISTS "+
+			            "(SELECT 1 FROM "+MediaLibrary.TABLE_CONTRIBUTORS_SONGS+" WHERE "+MediaLibrary.ContributorSongColumns.ROLE+" IN ("+
+			            MediaLibrary.ROLE_ARTIST+","+MediaLibrary.ROLE_COMPOSER+","+MediaLibrary.ROLE_ALBUMARTIST+") AND "+
+			            MediaLibrary.ContributorSongColumns._CONTRIBUTOR_ID+"="+MediaLibrary.TABLE_CONTRIBUTORS+"."+MediaLibrary.ContributorColumns._ID+");");
+			dbh.execSQL("DELETE FROM "+MediaLibrary.TABLE_CONTRIBUTORS_ALBUMS+" WHERE "+MediaLibrary.ContributorAlbumColumns.ROLE+" IN ("+
+			            MediaLibrary.ROLE_ARTIST+","+MediaLibrary.ROLE_COMPOSER+","+MediaLibrary.ROLE_ALBUMARTIST+") AND "+
+			            MediaLibrary.ContributorAlbumColumns._CONTRIBUTOR_ID+" IN ("+ids+") AND NOT EXISTS "+
+			            "(SELECT 1 FROM "+MediaLibrary.TABLE_CONTRIBUTORS_SONGS+" AS _cs JOIN "+MediaLibrary.TABLE_SONGS+" AS _s"+
+			            " ON _s."+MediaLibrary.SongColumns._ID+"=_cs."+MediaLibrary.ContributorSongColumns.SONG_ID+
+			            " WHERE _cs."+MediaLibrary.ContributorSongColumns.ROLE+"="+MediaLibrary.TABLE_CONTRIBUTORS_ALBUMS+"."+MediaLibrary.ContributorAlbumColumns.ROLE+
+			            " AND _cs."+MediaLibrary.ContributorSongColumns._CONTRIBUTOR_ID+"="+MediaLibrary.TABLE_CONTRIBUTORS_ALBUMS+"."+MediaLibrary.ContributorAlbumColumns._CONTRIBUTOR_ID+
+			            " AND _s."+MediaLibrary.SongColumns.ALBUM_ID+"="+MediaLibrary.TABLE_CONTRIBUTORS_ALBUMS+"."+MediaLibrary.ContributorAlbumColumns.ALBUM_ID+");");
+		}
+	}
+
+	/**
+	 * Joins the given ids into comma separated lists of limited size
+	 *
+	 * @param ids the ids to join
+	 * @return the joined lists
+	 */
+	private static ArrayList<String> joinIds(Collection<Long> ids) {
+		final int chunkSize = 500;
+		ArrayList<String> result = new ArrayList<>();
+		StringBuilder sb = new StringBuilder();
+		int count = 0;
+		for (Long id : ids) {
+			if (count != 0)
+				sb.append(',');
+			sb.append(id);
+			if (++count == chunkSize) {
+				result.add(sb.toString());
+				sb.setLength(0);
+				count = 0;
+			}
+		}
+		if (count != 0)
+			result.add(sb.toString());
+		return result;
 	}
 
 	/**
@@ -237,75 +643,13 @@ public class MediaLibraryBackend extends SQLiteOpenHelper {
 			Log.v("VanillaMusic", "+++ warning : using HUGE table in genquery!");
 		}
 
-		if (selection != null) {
-			if (MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS.equals(table)) {
-				// artist matches in the song-view are costy: try to give sqlite a hint
-				String[] contributorMatch = extractVirtualColumn(selection);
-				if (contributorMatch != null) {
-					selection = contributorMatch[0];
-					final String contributorId = contributorMatch[1];
-					final String contributorRole = contributorMatch[2];
-
-					selection += MediaLibrary.SongColumns._ID+" IN (SELECT "+MediaLibrary.ContributorSongColumns.SONG_ID+" FROM "+MediaLibrary.TABLE_CONTRIBUTORS_SONGS+" WHERE "
-					          + MediaLibrary.ContributorSongColumns.ROLE+"="+contributorRole+" AND "+MediaLibrary.ContributorSongColumns._CONTRIBUTOR_ID+"="+contributorId+")";
-				}
-			}
-
-			if (MediaLibrary.VIEW_ALBUMS_ARTISTS.equals(table)) {
-				// looking up artists by albums will magically return every album where this
-				// artist has at least one item (while still using the primary_artist_id as the artist key)
-				String[] contributorMatch = extractVirtualColumn(selection);
-				if (contributorMatch != null) {
-					selection = contributorMatch[0];
-					final String contributorId = contributorMatch[1];
-					final String contributorRole = contributorMatch[2];
-
-					selection += MediaLibrary.SongColumns._ID+" IN (SELECT DISTINCT "+MediaLibrary.SongColumns.ALBUM_ID+" FROM "+MediaLibrary.TABLE_SONGS+" WHERE "
-					          + MediaLibrary.SongColumns._ID+" IN (SELECT "+MediaLibrary.ContributorSongColumns.SONG_ID+" FROM "+MediaLibrary.TABLE_CONTRIBUTORS_SONGS+" WHERE "
-					          + MediaLibrary.ContributorSongColumns.ROLE+"="+contributorRole+" AND "+MediaLibrary.ContributorSongColumns._CONTRIBUTOR_ID+"="+contributorId+"))";
-				}
-			}
-
-			// Genre queries are a special beast: 'optimize' all of them
-			Matcher genreMatch = sQueryMatchGenreSearch.matcher(selection);
-			if (genreMatch.matches()) {
-				selection = genreMatch.group(1); // keep the non-genre search part of the query
-				final String genreId = genreMatch.group(2); // and extract the searched genre id
-				final String songsQuery = buildSongIdFromGenreSelect(genreId);
-
-				if(table.equals(MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS)      ||
-				   table.equals(MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS_HUGE) ) {
-					selection += MediaLibrary.SongColumns._ID+" IN ("+songsQuery+") ";
-				}
-
-				if (table.equals(MediaLibrary.VIEW_ALBUMS_ARTISTS)) {
-					selection += MediaLibrary.AlbumColumns._ID+" IN ("+
-						buildSongIdFromGenreSelect(MediaLibrary.SongColumns.ALBUM_ID, MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS, songsQuery)+") ";
-				}
-
-				if (table.equals(MediaLibrary.VIEW_ARTISTS)) {
-					selection += MediaLibrary.ContributorColumns.ARTIST_ID+" IN ("+
-						buildSongIdFromGenreSelect(MediaLibrary.ContributorColumns.ARTIST_ID, MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS, songsQuery)+") ";
-				}
-
-				if (table.equals(MediaLibrary.VIEW_ALBUMARTISTS)) {
-					selection += MediaLibrary.ContributorColumns.ALBUMARTIST_ID+" IN ("+
-						buildSongIdFromGenreSelect(MediaLibrary.ContributorColumns.ALBUMARTIST_ID, MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS_HUGE, songsQuery)+") ";
-					Log.v("VanillaMusic", "+++ warning: huge genrequery for albumartist!");
-				}
-
-				if (table.equals(MediaLibrary.VIEW_COMPOSERS)) {
-					selection += MediaLibrary.ContributorColumns.COMPOSER_ID+" IN ("+
-						buildSongIdFromGenreSelect(MediaLibrary.ContributorColumns.COMPOSER_ID, MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS_HUGE, songsQuery)+") ";
-					Log.v("VanillaMusic", "+++ warning: huge genrequery composer!");
-				}
-
-			}
-		}
+		if (selection != null)
+			selection = optimizeSelection(table, selection);
 
 		if (DEBUG)
 			debugQuery(distinct, table, columns, selection, selectionArgs, groupBy, having, orderBy, limit);
 
+		final long startedAt = System.nanoTime();
 		Cursor cursor = getReadableDatabase().query(distinct, table, columns, selection, selectionArgs, groupBy, having, orderBy, limit);
 		if (cursor != null) {
 			// Hold on! This is not some kind of black magic - it makes '''sense''':
@@ -315,9 +659,82 @@ public class MediaLibraryBackend extends SQLiteOpenHelper {
 			// here as we are (hopefully!) in a background thread anyway.
 			cursor.getCount();
 		}
+
+		MediaScanMetrics metrics = mQueryMetrics;
+		if (metrics != null && Thread.currentThread() != mQueryMetricsWriter)
+			metrics.recordQuery((System.nanoTime() - startedAt) / 1000);
 		return cursor;
 	}
 
+	/**
+	 * Rewrites the selection of a query on given table, so that sqlite
+	 * can answer it using our indexes and rollup tables
+	 *
+	 * @param table the table or view to query
+	 * @param selection the selection of the query, must not be null
+	 * @return the selection to use instead
+	 */
+	static String optimizeSelection(String table, String selection) {
+		if (MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS.equals(table) || MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS_HUGE.equals(table)) {
+			// artist matches in the song-views are costy: try to give sqlite a hint
+			String[] contributorMatch = extractVirtualColumn(selection);
+			if (contributorMatch != null) {
+				selection = contributorMatch[0];
+				final String contributorId = contributorMatch[1];
+				final String contributorRole = contributorMatch[2];
+
+				selection += MediaLibrary.SongColumns._ID+" IN (SELECT "+MediaLibrary.ContributorSongColumns.SONG_ID+" FROM "+MediaLibrary.TABLE_CONTRIBUTORS_SONGS+" WHERE "
+				          + MediaLibrary.ContributorSongColumns.ROLE+"="+contributorRole+" AND "+MediaLibrary.ContributorSongColumns._CONTRIBUTOR_ID+"="+contributorId+")";
+			}
+		}
+
+		if (MediaLibrary.VIEW_ALBUMS_ARTISTS.equals(table)) {
+			// looking up artists by albums will magically return every album where this
+			// artist has at least one item (while still using the primary_artist_id as the artist key)
+			String[] contributorMatch = extractVirtualColumn(selection);
+			if (contributorMatch != null) {
+				selection = contributorMatch[0];
+				final String contributorId = contributorMatch[1];
+				final String contributorRole = contributorMatch[2];
+
+				selection += MediaLibrary.AlbumColumns._ID+" IN (SELECT "+MediaLibrary.ContributorAlbumColumns.ALBUM_ID+" FROM "+MediaLibrary.TABLE_CONTRIBUTORS_ALBUMS+" WHERE "
+				          + MediaLibrary.ContributorAlbumColumns.ROLE+"="+contributorRole+" AND "+MediaLibrary.ContributorAlbumColumns._CONTRIBUTOR_ID+"="+contributorId+")";
+			}
+		}
+
+		// Genre queries are a special beast: 'optimize' all of them
+		Matcher genreMatch = sQueryMatchGenreSearch.matcher(selection);
+		if (genreMatch.matches()) {
+			selection = genreMatch.group(1); // keep the non-genre search part of the query
+			final String genreId = genreMatch.group(2); // and extract the searched genre id
+
+			if(table.equals(MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS)      ||
+			   table.equals(MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS_HUGE) ) {
+				selection += MediaLibrary.SongColumns._ID+" IN ("+buildSongIdFromGenreSelect(genreId)+") ";
+			}
+
+			// everything else is answered by the rollup tables, no need to touch the songs
+			if (table.equals(MediaLibrary.VIEW_ALBUMS_ARTISTS)) {
+				selection += MediaLibrary.AlbumColumns._ID+" IN (SELECT "+MediaLibrary.GenreAlbumColumns.ALBUM_ID+" FROM "+MediaLibrary.TABLE_GENRES_ALBUMS+" WHERE "
+				          + MediaLibrary.GenreAlbumColumns._GENRE_ID+"="+genreId+") ";
+			}
+
+			if (table.equals(MediaLibrary.VIEW_ARTISTS)) {
+				selection += MediaLibrary.ContributorColumns.ARTIST_ID+" IN ("+buildContributorIdFromGenreSelect(genreId, MediaLibrary.ROLE_ARTIST)+") ";
+			}
+
+			if (table.equals(MediaLibrary.VIEW_ALBUMARTISTS)) {
+				selection += MediaLibrary.ContributorColumns.ALBUMARTIST_ID+" IN ("+buildContributorIdFromGenreSelect(genreId, MediaLibrary.ROLE_ALBUMARTIST)+") ";
+			}
+
+			if (table.equals(MediaLibrary.VIEW_COMPOSERS)) {
+				selection += MediaLibrary.ContributorColumns.COMPOSER_ID+" IN ("+buildContributorIdFromGenreSelect(genreId, MediaLibrary.ROLE_COMPOSER)+") ";
+			}
+
+		}
+		return selection;
+	}
+
 	/**
 	 * Detects queries for artists, composers and albumartists and returns the
 	 * role of the contributor.
@@ -325,7 +742,7 @@ public class MediaLibraryBackend extends SQLiteOpenHelper {
 	 * @param sql the raw sql query
 	 * @return String[]{ sql-part, contributor-id, contributor-role }
 	 */
-	private String[] extractVirtualColumn(String sql) {
+	private static String[] extractVirtualColumn(String sql) {
 		final Pattern[] pattern = new Pattern[]{ sQueryMatchArtistSearch, sQueryMatchComposerSearch, sQueryMatchAlbArtistSearch };
 		final int[] roles = { MediaLibrary.ROLE_ARTIST, MediaLibrary.ROLE_COMPOSER, MediaLibrary.ROLE_ALBUMARTIST };
 
@@ -344,22 +761,21 @@ public class MediaLibraryBackend extends SQLiteOpenHelper {
 	 * @param genreId the id to query as a string
 	 * @return an SQL string which should return song id's for the queried genre
 	 */
-	private String buildSongIdFromGenreSelect(String genreId) {
+	private static String buildSongIdFromGenreSelect(String genreId) {
 		return "SELECT "+MediaLibrary.GenreSongColumns.SONG_ID+" FROM "+MediaLibrary.TABLE_GENRES_SONGS+" WHERE "
 		                +MediaLibrary.GenreSongColumns._GENRE_ID+"="+genreId+" GROUP BY "+MediaLibrary.GenreSongColumns.SONG_ID;
 	}
 
 	/**
-	 * Returns a select query to get artists or albums from a genre
+	 * Returns a select query to get all contributors of a genre
 	 *
-	 * @param target the target to query
-	 * @param table the table to query
-	 * @param genreSelect the select string generated by buildSongIdFromGenreSelect
-	 * @return an SQL string
+	 * @param genreId the id to query as a string
+	 * @param role the role of the contributors
+	 * @return an SQL string which should return contributor id's for the queried genre
 	 */
-	private String buildSongIdFromGenreSelect(String target, String table, String genreSelect) {
-		return "SELECT "+target+" FROM "+ table +" WHERE "
-		                +MediaLibrary.SongColumns._ID+" IN ("+genreSelect+") GROUP BY "+target;
+	private static String buildContributorIdFromGenreSelect(String genreId, int role) {
+		return "SELECT "+MediaLibrary.GenreContributorColumns._CONTRIBUTOR_ID+" FROM "+MediaLibrary.TABLE_GENRES_CONTRIBUTORS+" WHERE "
+		                +MediaLibrary.GenreContributorColumns._GENRE_ID+"="+genreId+" AND "+MediaLibrary.GenreContributorColumns.ROLE+"="+role;
 	}
 
 	/**
@@ -395,6 +811,35 @@ public class MediaLibraryBackend extends SQLiteOpenHelper {
 		}
 		long tookMs = System.currentTimeMillis() - startAt;
 		Log.v(LT, "--- finished in "+tookMs+" ms with count="+results);
+
+		// Unfiltered and unsorted queries need to read everything anyway
+		if ((selection == null || selection.isEmpty()) && orderBy == null)
+			return;
+
+		String sql = SQLiteQueryBuilder.buildQueryString(distinct, table, columns, selection, groupBy, having, orderBy, limit);
+		Cursor plan = getReadableDatabase().rawQuery("EXPLAIN QUERY PLAN "+sql, selectionArgs);
+		while (plan.moveToNext()) {
+			String detail = plan.getString(3);
+			Log.v(LT, "plan: "+detail);
+			Matcher scan = sQueryPlanTableScan.matcher(detail);
+			if (scan.matches() && isTable(scan.group(2)))
+				Log.w(LT, "+++ warning: query on "+table+" does a full table scan of "+scan.group(2)+"!");
+		}
+		plan.close();
+	}
+
+	/**
+	 * Returns true if given name is one of our tables (and not a view or subquery)
+	 */
+	private static boolean isTable(String name) {
+		final String[] tables = { MediaLibrary.TABLE_SONGS, MediaLibrary.TABLE_ALBUMS, MediaLibrary.TABLE_CONTRIBUTORS,
+		                          MediaLibrary.TABLE_CONTRIBUTORS_SONGS, MediaLibrary.TABLE_GENRES, MediaLibrary.TABLE_GENRES_SONGS,
+		                          MediaLibrary.TABLE_PLAYLISTS, MediaLibrary.TABLE_PLAYLISTS_SONGS, MediaLibrary.TABLE_DIRECTORIES };
+		for (String table : tables) {
+			if (table.equals(name))
+				return true;
+		}
+		return false;
 	}
 
 }
@@ -18,10 +18,14 @@
 package ch.blinkenlights.android.medialibrary;
 
 import ch.blinkenlights.bastp.Bastp;
+import ch.blinkenlights.bastp.TagCache;
 import android.media.MediaMetadataRetriever;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -35,12 +39,21 @@ public class MediaMetadataExtractor extends HashMap<String, ArrayList<String>> {
 	public final static String ALBUMARTIST  = "ALBUM_ARTIST";
 	public final static String ARTIST       = "ARTIST";
 	public final static String BITRATE      = "BITRATE";
+	public final static String BITS_PER_SAMPLE = "BITS_PER_SAMPLE";
+	public final static String CHANNELS     = "CHANNELS";
+	public final static String CODEC        = "CODEC";
 	public final static String COMPOSER     = "COMPOSER";
 	public final static String DISC_COUNT   = "DISC_COUNT";
 	public final static String DISC_NUMBER  = "DISC_NUMBER";
 	public final static String DURATION     = "DURATION";
 	public final static String GENRE        = "GENRE";
 	public final static String MIME_TYPE    = "MIME";
+	public final static String R128_ALBUM   = "R128_ALBUM";
+	public final static String R128_BASE    = "R128_BASE";
+	public final static String R128_TRACK   = "R128_TRACK";
+	public final static String REPLAYGAIN_ALBUM = "REPLAYGAIN_ALBUM";
+	public final static String REPLAYGAIN_TRACK = "REPLAYGAIN_TRACK";
+	public final static String SAMPLE_RATE  = "SAMPLE_RATE";
 	public final static String TRACK_COUNT  = "TRACK_COUNT";
 	public final static String TRACK_NUMBER = "TRACK_NUM";
 	public final static String TITLE        = "TITLE";
@@ -226,6 +239,20 @@ public class MediaMetadataExtractor extends HashMap<String, ArrayList<String>> {
 	 * True if we should try bastp for 'experimental' formats
 	 */
 	private boolean mForceBastp = false;
+	/**
+	 * True if the native MediaMetadataRetriever should only be used
+	 * if bastp can not provide the audio properties
+	 */
+	private boolean mNativeFallback = false;
+
+	/**
+	 * The file type as detected by bastp, empty if unknown
+	 */
+	private String mBastpType = "";
+	/**
+	 * True if bastp gave up on this file before reading all tags
+	 */
+	private boolean mTruncated = false;
 
 	/**
 	 * Constructor for MediaMetadataExtractor
@@ -243,7 +270,19 @@ public class MediaMetadataExtractor extends HashMap<String, ArrayList<String>> {
 	 * @param forceBastp always prefer bastp if possible
 	 */
 	public MediaMetadataExtractor(String path, boolean forceBastp) {
+		this(path, forceBastp, false);
+	}
+
+	/**
+	 * Constructor for MediaMetadataExtractor
+	 *
+	 * @param path the path to scan
+	 * @param forceBastp always prefer bastp if possible
+	 * @param nativeFallback only use the native retriever if bastp can not read the file
+	 */
+	public MediaMetadataExtractor(String path, boolean forceBastp, boolean nativeFallback) {
 		mForceBastp = forceBastp;
+		mNativeFallback = nativeFallback;
 		extractMetadata(path);
 	}
 
@@ -264,17 +303,60 @@ public class MediaMetadataExtractor extends HashMap<String, ArrayList<String>> {
 	 * @return a human-friendly description of the mime type and bit rate
 	 */
 	public String getFormat() {
-		StringBuilder sb = new StringBuilder(18);
-		sb.append(decodeMimeType(getFirst(MIME_TYPE)));
-		String bitrate = getFirst(BITRATE);
-		if (bitrate != null && bitrate.length() > 3) {
+		return describeFormat(getFirst(CODEC), parseInt(getFirst(BITRATE)), parseInt(getFirst(SAMPLE_RATE)),
+		                      parseInt(getFirst(BITS_PER_SAMPLE)), parseInt(getFirst(CHANNELS)));
+	}
+
+	/**
+	 * Returns a human-friendly description of an audio format, such
+	 * as "FLAC 1024kbps, 44.1kHz/16bit, 2ch"
+	 *
+	 * @param codec the name of the codec, may be null
+	 * @param bitrate the bitrate in bit/s, 0 if unknown
+	 * @param sampleRate the sampling rate in Hz, 0 if unknown
+	 * @param bitsPerSample the bits per sample, 0 if unknown
+	 * @param channels the number of channels, 0 if unknown
+	 * @return the description
+	 */
+	public static String describeFormat(String codec, int bitrate, int sampleRate, int bitsPerSample, int channels) {
+		StringBuilder sb = new StringBuilder(40);
+		sb.append(codec != null ? codec : "");
+		if (bitrate >= 1000) {
 			sb.append(' ')
-				.append(bitrate.substring(0, bitrate.length() - 3))
+				.append(bitrate / 1000)
 				.append("kbps");
 		}
+		if (sampleRate > 0) {
+			sb.append(sb.length() > 0 ? ", " : "")
+				.append(String.format(Locale.US, "%.1fkHz", sampleRate / 1000f));
+			if (bitsPerSample > 0)
+				sb.append('/').append(bitsPerSample).append("bit");
+		}
+		if (channels > 0) {
+			sb.append(sb.length() > 0 ? ", " : "")
+				.append(channels)
+				.append("ch");
+		}
 		return sb.toString();
 	}
 
+	/**
+	 * Returns the file type as detected by bastp
+	 *
+	 * @return the type, such as "FLAC" or "MP3/ID3v2", empty if unknown
+	 */
+	String getBastpType() {
+		return mBastpType;
+	}
+
+	/**
+	 * Returns true if bastp ran out of its parse budget,
+	 * in which case some tags may be missing
+	 */
+	boolean isTruncated() {
+		return mTruncated;
+	}
+
 	/**
 	 * Returns true if this file contains any (interesting) data
 	 * @return true if file is considered to be media data
@@ -294,7 +376,28 @@ public class MediaMetadataExtractor extends HashMap<String, ArrayList<String>> {
 
 		Log.v("VanillaMusic", "Extracting tags from "+path);
 
-		HashMap bastpTags = (new Bastp()).getTags(path);
+		// Shared with the replay gain lookup and the track details
+		Map bastpTags = TagCache.getTags(path);
+		if (bastpTags.containsKey("type"))
+			mBastpType = (String)bastpTags.get("type");
+		if (bastpTags.containsKey(Bastp.BUDGET_EXCEEDED)) {
+			Log.w("VanillaMusic", "Parse budget exceeded, tags may be incomplete: "+path);
+			mTruncated = true;
+		}
+
+		if (mNativeFallback && hasBastpProperties(bastpTags)) {
+			putSingle(DURATION, bastpTags.get("duration_ms").toString());
+			putSingle(BITRATE, bastpTags.get("bitrate").toString());
+			putSingle(MIME_TYPE, bastpTags.get("mime").toString());
+			populateSelf(bastpTags);
+			populateGain(bastpTags);
+			populateAudioProperties(bastpTags);
+			convertNumericGenre();
+			// bastp was able to parse it, which is stricter than Android's own parser
+			mIsMediaFile = true;
+			return;
+		}
+
 		MediaMetadataRetriever mediaTags = new MediaMetadataRetriever();
 		boolean nativelyReadable = false;
 
@@ -326,23 +429,15 @@ public class MediaMetadataExtractor extends HashMap<String, ArrayList<String>> {
 			return;
 		}
 
-		// Bastp can not read the duration and bitrates, so we always get it from the system
-		ArrayList<String> duration = new ArrayList<>(1);
-		duration.add(mediaTags.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION));
-		this.put(DURATION, duration);
-
-		ArrayList<String> bitrate = new ArrayList<>(1);
-		bitrate.add(mediaTags.extractMetadata(MediaMetadataRetriever.METADATA_KEY_BITRATE));
-		this.put(BITRATE, bitrate);
-
-		ArrayList<String> mime = new ArrayList<>(1);
-		mime.add(mediaTags.extractMetadata(MediaMetadataRetriever.METADATA_KEY_MIMETYPE));
-		this.put(MIME_TYPE, mime);
+		// Bastp could not provide the duration and bitrates, so we get it from the system
+		putSingle(DURATION, mediaTags.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION));
+		putSingle(BITRATE, mediaTags.extractMetadata(MediaMetadataRetriever.METADATA_KEY_BITRATE));
+		putSingle(MIME_TYPE, mediaTags.extractMetadata(MediaMetadataRetriever.METADATA_KEY_MIMETYPE));
 
 
 		// ...but we are using bastp for FLAC, OGG and OPUS as it handles them well
 		// Everything else goes to the framework (such as pcm, m4a and mp3)
-		String bastpType = (bastpTags.containsKey("type") ? (String)bastpTags.get("type") : "");
+		String bastpType = mBastpType;
 		switch (bastpType) {
 			case "FLAC":
 			case "OGG":
@@ -361,6 +456,9 @@ public class MediaMetadataExtractor extends HashMap<String, ArrayList<String>> {
 			default:
 				populateSelf(mediaTags);
 		}
+		// Replay gain values and the stream properties are always read by bastp
+		populateGain(bastpTags);
+		populateAudioProperties(bastpTags);
 		convertNumericGenre();
 
 		// We consider this a media file if it has some common tags OR
@@ -374,12 +472,53 @@ public class MediaMetadataExtractor extends HashMap<String, ArrayList<String>> {
 		}
 	}
 
+	/**
+	 * Returns true if bastp read all audio properties of a file whose
+	 * tags would also be taken from bastp
+	 *
+	 * @param bastp A hashmap as returned by bastp
+	 */
+	private boolean hasBastpProperties(Map bastp) {
+		switch (mBastpType) {
+			case "FLAC":
+			case "OGG":
+			case "OPUS":
+				break;
+			case "MP3/ID3v2":
+			case "MP3/Lame":
+			case "MP4":
+				if (mForceBastp)
+					break;
+				return false;
+			default:
+				return false;
+		}
+		// Video files are not for us, but let the framework decide.
+		if (Boolean.TRUE.equals(bastp.get("has_video")))
+			return false;
+
+		Object duration = bastp.get("duration_ms");
+		return (duration instanceof Long && (Long)duration > 0 && bastp.containsKey("bitrate") && bastp.containsKey("mime"));
+	}
+
+	/**
+	 * Stores a single value for given key
+	 *
+	 * @param key the key to use
+	 * @param value the value to store
+	 */
+	private void putSingle(String key, String value) {
+		ArrayList<String> list = new ArrayList<>(1);
+		list.add(value);
+		put(key, list);
+	}
+
 	/**
 	 * Populates `this' with tags read from bastp
 	 *
 	 * @param bastp A hashmap as returned by bastp
 	 */
-	private void populateSelf(HashMap bastp) {
+	private void populateSelf(Map bastp) {
 		// mapping between vorbiscomment -> constant
 		String[] map = new String[]{ "TITLE", TITLE, "ARTIST", ARTIST, "ALBUM", ALBUM, "ALBUMARTIST", ALBUMARTIST, "COMPOSER", COMPOSER, "GENRE", GENRE,
 		                             "TRACKNUMBER", TRACK_NUMBER, "TRACKTOTAL", TRACK_COUNT, "DISCNUMBER", DISC_NUMBER, "DISCTOTAL", DISC_COUNT,
@@ -394,7 +533,7 @@ public class MediaMetadataExtractor extends HashMap<String, ArrayList<String>> {
 				filter = sFilterLeftInt;
 
 			if (bastp.containsKey(map[i])) {
-				addFiltered(filter, map[i+1], (ArrayList<String>)bastp.get(map[i]));
+				addFiltered(filter, map[i+1], (List<String>)bastp.get(map[i]));
 			}
 		}
 
@@ -409,11 +548,58 @@ public class MediaMetadataExtractor extends HashMap<String, ArrayList<String>> {
 		// Try to guess YEAR from date field if only DATE was specified
 		// We expect it to match \d{4}
 		if (!containsKey(YEAR) && bastp.containsKey("DATE")) {
-			addFiltered(sFilterYear, YEAR, (ArrayList<String>)bastp.get("DATE"));
+			addFiltered(sFilterYear, YEAR, (List<String>)bastp.get("DATE"));
 		}
 
 	}
 
+	/**
+	 * Populates `this' with the replay gain values found by bastp, in dB
+	 *
+	 * @param bastp A hashmap as returned by bastp
+	 */
+	private void populateGain(Map bastp) {
+		// mapping between bastp key -> constant
+		String[] map = new String[]{ "REPLAYGAIN_TRACK_GAIN", REPLAYGAIN_TRACK, "REPLAYGAIN_ALBUM_GAIN", REPLAYGAIN_ALBUM,
+		                             "R128_TRACK_GAIN", R128_TRACK, "R128_ALBUM_GAIN", R128_ALBUM, "R128_BASTP_BASE_GAIN", R128_BASE };
+		// R128 values are Q7.8 fixed point numbers if i >= x
+		int fixedPointAt = 4;
+
+		for (int i=0; i<map.length; i+=2) {
+			if (!bastp.containsKey(map[i]))
+				continue;
+
+			float gain = 0f;
+			try {
+				String raw = (String)((List)bastp.get(map[i])).get(0);
+				gain = Float.parseFloat(raw.replaceAll("[^0-9.-]", ""));
+			} catch (Exception e) {} // same as BastpUtil: use 0 for garbage
+			if (i >= fixedPointAt)
+				gain /= 256.0f;
+			putSingle(map[i+1], Float.toString(gain));
+		}
+	}
+
+	/**
+	 * Populates the codec and stream properties found by bastp.
+	 * The codec falls back to the name of the mime type.
+	 *
+	 * @param bastp A hashmap as returned by bastp
+	 */
+	private void populateAudioProperties(Map bastp) {
+		String codec = (bastp.containsKey("codec") ? (String)bastp.get("codec") : decodeMimeType(getFirst(MIME_TYPE)));
+		if (codec != null)
+			putSingle(CODEC, codec);
+		if (getFirst(BITRATE) == null && bastp.containsKey("bitrate"))
+			putSingle(BITRATE, bastp.get("bitrate").toString());
+
+		String[] map = new String[]{ "sampling_rate", SAMPLE_RATE, "channels", CHANNELS, "bits_per_sample", BITS_PER_SAMPLE };
+		for (int i=0; i<map.length; i+=2) {
+			if (bastp.get(map[i]) != null)
+				putSingle(map[i+1], bastp.get(map[i]).toString());
+		}
+	}
+
 	/**
 	 * Populates `this' with tags read from the MediaMetadataRetriever
 	 *
@@ -447,7 +633,7 @@ public class MediaMetadataExtractor extends HashMap<String, ArrayList<String>> {
 	 * @param key the key to use for the data to put
 	 * @param data the array list to inspect
 	 */
-	private void addFiltered(Pattern filter, String key, ArrayList<String> data) {
+	private void addFiltered(Pattern filter, String key, List<String> data) {
 		ArrayList<String> list = new ArrayList<>();
 		for (String s : data) {
 			Matcher matcher = filter.matcher(s);
@@ -485,6 +671,19 @@ public class MediaMetadataExtractor extends HashMap<String, ArrayList<String>> {
 		}
 	}
 
+	/**
+	 * Parses a numeric tag value
+	 *
+	 * @return the value, 0 if it is null or not a number
+	 */
+	private static int parseInt(String value) {
+		try {
+			return (value != null ? Integer.parseInt(value) : 0);
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
 	/**
 	 * Decode the given MIME type into a more human-friendly description.
 	 *
@@ -502,6 +701,8 @@ public class MediaMetadataExtractor extends HashMap<String, ArrayList<String>> {
 			return "Ogg Vorbis";
 		} else if ("audio/flac".equals(mime)) {
 			return "FLAC";
+		} else if ("audio/opus".equals(mime)) {
+			return "Opus";
 		}
 		return mime;
 	}
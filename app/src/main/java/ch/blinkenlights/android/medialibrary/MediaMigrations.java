@@ -49,4 +49,29 @@ public class MediaMigrations {
 		cursor.close();
 	}
 
+	/**
+	 * Migrate to 20261021
+	 * That is: populate the search index from the existing library
+	 *
+	 * @param dbh the database to work on
+	 **/
+	static void migrate_to_20261021(SQLiteDatabase dbh) {
+		final String genres = "(SELECT group_concat("+MediaLibrary.GenreColumns._GENRE+", ' ') FROM "+MediaLibrary.TABLE_GENRES
+		                     +" WHERE "+MediaLibrary.GenreColumns._ID+" IN (SELECT "+MediaLibrary.GenreSongColumns._GENRE_ID+" FROM "+MediaLibrary.TABLE_GENRES_SONGS
+		                     +" WHERE "+MediaLibrary.GenreSongColumns.SONG_ID+"=_s."+MediaLibrary.SongColumns._ID+"))";
+		final String[] projection = { MediaLibrary.SongColumns._ID, MediaLibrary.SongColumns.TITLE, MediaLibrary.AlbumColumns.ALBUM,
+		                              MediaLibrary.ContributorColumns.ARTIST, MediaLibrary.ContributorColumns.ALBUMARTIST,
+		                              MediaLibrary.ContributorColumns.COMPOSER, genres, MediaLibrary.SongColumns.PATH };
+		Cursor cursor = dbh.query(MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS_HUGE+" AS _s", projection, null, null, null, null, null);
+		int count = 0;
+		while (cursor.moveToNext()) {
+			ContentValues v = MediaSearchIndex.buildValues(cursor.getLong(0), cursor.getString(1), cursor.getString(2), cursor.getString(3),
+			                                               cursor.getString(4), cursor.getString(5), cursor.getString(6), cursor.getString(7));
+			if (dbh.insert(MediaLibrary.TABLE_SONGS_SEARCH, null, v) != -1)
+				count++;
+		}
+		cursor.close();
+		Log.v("VanillaMusic", "migrate_to_20261021 -> indexed "+count+" songs");
+	}
+
 }
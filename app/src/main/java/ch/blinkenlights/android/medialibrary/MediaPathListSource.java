@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2026 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ch.blinkenlights.android.medialibrary;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Returns the files of a fixed list of paths.
+ * Directories in this list are walked recursively.
+ */
+class MediaPathListSource implements MediaScanSource {
+	/**
+	 * The paths to return
+	 */
+	private final List<File> mPaths;
+	/**
+	 * Position of the next path to return
+	 */
+	private int mPosition;
+	/**
+	 * The walker of the current directory, if any
+	 */
+	private MediaDirectoryWalker mWalker;
+	/**
+	 * The filter passed to directory walkers
+	 */
+	private final MediaFolderFilter mFilter;
+
+	/**
+	 * Creates a new source
+	 *
+	 * @param paths the files and directories to return
+	 * @param filter the filter used to prune excluded subtrees, may be null
+	 */
+	MediaPathListSource(List<File> paths, MediaFolderFilter filter) {
+		mPaths = paths;
+		mFilter = filter;
+	}
+
+	@Override
+	public File next() {
+		while (true) {
+			if (mWalker != null) {
+				File file = mWalker.next();
+				if (file != null)
+					return file;
+				mWalker = null;
+			}
+
+			if (mPosition == mPaths.size())
+				return null;
+
+			File path = mPaths.get(mPosition++);
+			if (!path.isDirectory())
+				return path; // also returns vanished files, so they get removed.
+
+			mWalker = new MediaDirectoryWalker(path, mFilter);
+		}
+	}
+
+	@Override
+	public void close() {
+		if (mWalker != null) {
+			mWalker.close();
+			mWalker = null;
+		}
+		mPosition = mPaths.size();
+	}
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) 2026 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ch.blinkenlights.android.medialibrary;
+
+import android.os.SystemClock;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.TreeMap;
+
+/**
+ * Collects timings and counters of a media scan, so that we can tell
+ * if a slow scan is limited by I/O, the tag parsers or sqlite.
+ *
+ * All record* methods except recordQuery are called from the scanner
+ * thread, but the report may be requested by any thread.
+ */
+class MediaScanMetrics {
+	/**
+	 * Keep the timings of this many scan steps
+	 */
+	private static final int MAX_STEPS = 16;
+
+	/**
+	 * A histogram of latencies using power of two buckets
+	 */
+	static class Histogram {
+		/**
+		 * Bucket n counts values below 2^n us
+		 */
+		private final long[] mBuckets = new long[24];
+		private long mCount;
+		private long mTotalMicros;
+		private long mMaxMicros;
+
+		/**
+		 * Adds a new value
+		 *
+		 * @param micros the latency in us
+		 */
+		void add(long micros) {
+			int bucket = 64 - Long.numberOfLeadingZeros(micros);
+			mBuckets[Math.min(bucket, mBuckets.length - 1)]++;
+			mCount++;
+			mTotalMicros += micros;
+			mMaxMicros = Math.max(mMaxMicros, micros);
+		}
+
+		/**
+		 * Returns the upper bound of the bucket containing given percentile
+		 *
+		 * @param percent the percentile to look up
+		 * @return the upper bound in us
+		 */
+		long percentile(int percent) {
+			long wanted = (mCount * percent + 99) / 100;
+			long seen = 0;
+			for (int i = 0; i < mBuckets.length; i++) {
+				seen += mBuckets[i];
+				if (seen >= wanted)
+					return Math.min(1L << i, mMaxMicros);
+			}
+			return mMaxMicros;
+		}
+
+		@Override
+		public String toString() {
+			if (mCount == 0)
+				return "n=0";
+			return String.format(Locale.US, "n=%d avg=%dus p50<=%dus p90<=%dus p99<=%dus max=%dus",
+				mCount, mTotalMicros / mCount, percentile(50), percentile(90), percentile(99), mMaxMicros);
+		}
+	}
+
+	/**
+	 * Timings of a finished scan step
+	 */
+	private static class Step {
+		final String name;
+		final long wallMillis;
+		final int files;
+		final int changed;
+
+		Step(String name, long wallMillis, int files, int changed) {
+			this.name = name;
+			this.wallMillis = wallMillis;
+			this.files = files;
+			this.changed = changed;
+		}
+	}
+
+	/**
+	 * uptimeMillis ts of the scan start
+	 */
+	private long mScanStartedAt;
+	/**
+	 * uptimeMillis ts of the scan end, 0 if still running
+	 */
+	private long mScanFinishedAt;
+	/**
+	 * uptimeMillis ts of the current step start
+	 */
+	private long mStepStartedAt;
+	/**
+	 * Name of the current step, null if none is running
+	 */
+	private String mStepName;
+	/**
+	 * Bytes read by our process at scan start, -1 if unknown
+	 */
+	private long mStartRchar;
+	/**
+	 * Bytes read by our process during the scan
+	 */
+	private long mBytesRead;
+	private int mFiles;
+	private int mSkipped;
+	private int mBlacklisted;
+	private int mTruncated;
+	private final ArrayList<Step> mSteps = new ArrayList<>();
+	private Histogram mWriteLatency = new Histogram();
+	private Histogram mQueryLatency = new Histogram();
+	private final TreeMap<String, Histogram> mExtractLatency = new TreeMap<>();
+
+	/**
+	 * Resets all metrics, called at the start of a scan
+	 */
+	synchronized void startScan() {
+		mScanStartedAt = SystemClock.uptimeMillis();
+		mScanFinishedAt = 0;
+		mStepName = null;
+		mStartRchar = readProcessRchar();
+		mBytesRead = 0;
+		mFiles = 0;
+		mSkipped = 0;
+		mBlacklisted = 0;
+		mTruncated = 0;
+		mSteps.clear();
+		mWriteLatency = new Histogram();
+		mQueryLatency = new Histogram();
+		mExtractLatency.clear();
+	}
+
+	/**
+	 * Called once all steps of the scan finished
+	 */
+	synchronized void finishScan() {
+		updateBytesRead();
+		mScanFinishedAt = SystemClock.uptimeMillis();
+	}
+
+	/**
+	 * Called if a new scan step starts
+	 *
+	 * @param name the name of the step
+	 */
+	synchronized void startStep(String name) {
+		mStepName = name;
+		mStepStartedAt = SystemClock.uptimeMillis();
+	}
+
+	/**
+	 * Called if the current scan step finished
+	 *
+	 * @param files the number of files seen by this step
+	 * @param changed the number of changed files
+	 */
+	synchronized void finishStep(int files, int changed) {
+		if (mStepName == null)
+			return;
+
+		if (mSteps.size() == MAX_STEPS)
+			mSteps.remove(0);
+		mSteps.add(new Step(mStepName, SystemClock.uptimeMillis() - mStepStartedAt, files, changed));
+		mStepName = null;
+		updateBytesRead();
+	}
+
+	/**
+	 * Records a file which did not need to be inspected
+	 *
+	 * @param blacklisted true if the file was blacklisted, false if it was unchanged
+	 */
+	synchronized void recordSkipped(boolean blacklisted) {
+		mFiles++;
+		if (blacklisted) {
+			mBlacklisted++;
+		} else {
+			mSkipped++;
+		}
+	}
+
+	/**
+	 * Records an extracted file
+	 *
+	 * @param type the bastp type of the file, may be empty
+	 * @param micros the time it took to extract the tags
+	 */
+	synchronized void recordExtraction(String type, long micros) {
+		mFiles++;
+		if (type == null || type.isEmpty())
+			type = "other";
+
+		Histogram histogram = mExtractLatency.get(type);
+		if (histogram == null) {
+			histogram = new Histogram();
+			mExtractLatency.put(type, histogram);
+		}
+		histogram.add(micros);
+	}
+
+	/**
+	 * Records a file whose parser ran out of budget
+	 */
+	synchronized void recordTruncated() {
+		mTruncated++;
+	}
+
+	/**
+	 * Records the time it took to write a file to the database
+	 *
+	 * @param micros the time it took
+	 */
+	synchronized void recordWrite(long micros) {
+		mWriteLatency.add(micros);
+	}
+
+	/**
+	 * Records the time it took to answer a library query of another thread.
+	 * Only queries running while the scan writes are of interest, others
+	 * are ignored.
+	 *
+	 * @param micros the time it took
+	 */
+	synchronized void recordQuery(long micros) {
+		if (mScanStartedAt != 0 && mScanFinishedAt == 0)
+			mQueryLatency.add(micros);
+	}
+
+	/**
+	 * Populates the metrics of given progress object
+	 *
+	 * @param progress the progress object to populate
+	 */
+	synchronized void describeProgress(MediaLibrary.ScanProgress progress) {
+		long elapsed = getElapsedMillis();
+		progress.elapsedMillis = elapsed;
+		progress.filesPerSecond = (elapsed > 0 ? mFiles * 1000f / elapsed : 0);
+		progress.bytesRead = mBytesRead;
+		progress.skipped = mSkipped;
+		progress.blacklisted = mBlacklisted;
+		progress.truncated = mTruncated;
+		progress.metrics = getReport();
+	}
+
+	/**
+	 * Returns a human readable report of all metrics
+	 */
+	synchronized String getReport() {
+		long elapsed = getElapsedMillis();
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format(Locale.US, "elapsed=%dms files=%d (%.1f/s) skipped=%d blacklisted=%d truncated=%d bytesRead=%d\n",
+			elapsed, mFiles, (elapsed > 0 ? mFiles * 1000f / elapsed : 0), mSkipped, mBlacklisted, mTruncated, mBytesRead));
+		for (Step step : mSteps) {
+			sb.append(String.format(Locale.US, "step %s: %dms files=%d changed=%d\n", step.name, step.wallMillis, step.files, step.changed));
+		}
+		if (mStepName != null) {
+			sb.append(String.format(Locale.US, "step %s: running since %dms\n", mStepName, SystemClock.uptimeMillis() - mStepStartedAt));
+		}
+		for (String type : mExtractLatency.keySet()) {
+			sb.append("extract ").append(type).append(": ").append(mExtractLatency.get(type)).append('\n');
+		}
+		sb.append("sqlite write: ").append(mWriteLatency).append('\n');
+		sb.append("sqlite query during scan: ").append(mQueryLatency).append('\n');
+		return sb.toString();
+	}
+
+	/**
+	 * Returns the duration of the current (or last) scan
+	 */
+	private long getElapsedMillis() {
+		if (mScanStartedAt == 0)
+			return 0;
+		return (mScanFinishedAt != 0 ? mScanFinishedAt : SystemClock.uptimeMillis()) - mScanStartedAt;
+	}
+
+	/**
+	 * Updates mBytesRead from the I/O counters of our process
+	 */
+	private void updateBytesRead() {
+		long rchar = readProcessRchar();
+		if (rchar >= 0 && mStartRchar >= 0)
+			mBytesRead = rchar - mStartRchar;
+	}
+
+	/**
+	 * Returns the number of bytes read by our process (including
+	 * the framework parsers), -1 if the kernel does not tell us.
+	 */
+	private static long readProcessRchar() {
+		try (BufferedReader reader = new BufferedReader(new FileReader("/proc/self/io"))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith("rchar:"))
+					return Long.parseLong(line.substring(6).trim());
+			}
+		} catch (Exception e) {
+			// not available on this kernel.
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2026 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ch.blinkenlights.android.medialibrary;
+
+import java.io.File;
+
+/**
+ * A source of files to be inspected by the scanner.
+ *
+ * Sources are pulled by the scanner thread, one file at a time,
+ * so that the amount of queued work does not depend on the size
+ * of the scanned library.
+ */
+interface MediaScanSource {
+	/**
+	 * Returns the next file to inspect
+	 *
+	 * @return the next file, null if this source is exhausted
+	 */
+	File next();
+
+	/**
+	 * Releases all resources held by this source.
+	 * Must be called even if the source was not exhausted.
+	 */
+	void close();
+}
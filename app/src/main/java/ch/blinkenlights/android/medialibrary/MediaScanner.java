@@ -26,6 +26,7 @@ import android.content.ContentValues;
 import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.database.ContentObserver;
+import android.text.TextUtils;
 import android.util.Log;
 import android.provider.MediaStore;
 import android.os.Handler;
@@ -37,6 +38,8 @@ import android.os.SystemClock;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class MediaScanner implements Handler.Callback {
@@ -60,6 +63,67 @@ public class MediaScanner implements Handler.Callback {
 	 * Instance of a media backend
 	 */
 	private MediaLibraryBackend mBackend;
+	/**
+	 * Groups our writes into transactions
+	 */
+	private MediaBatchWriter mBatchWriter;
+	/**
+	 * Snapshot of the song states in our library, only
+	 * valid while a scan is running. May be null.
+	 */
+	private MediaSongStateCache mSongStates;
+	/**
+	 * The threads extracting tags of modified files
+	 */
+	private MediaExtractorPool mExtractorPool;
+	/**
+	 * The source of files of the current scan step
+	 */
+	private MediaScanSource mSource;
+	/**
+	 * The type of the current scan step, one of RPC_*
+	 */
+	private int mSourceRpc;
+	/**
+	 * The directory index used by full scans
+	 */
+	private final MediaDirectoryIndex mDirectoryIndex;
+	/**
+	 * True if the running full scan ignores the directory index
+	 */
+	private boolean mDeepScanRunning;
+	/**
+	 * Number of directories listed by finished scan steps
+	 */
+	private int mDirsVisited;
+	/**
+	 * Number of directories skipped by finished scan steps
+	 */
+	private int mDirsSkipped;
+	/**
+	 * Watches the media folders for changes
+	 */
+	private final MediaFolderWatcher mFolderWatcher;
+	/**
+	 * The folder key of the preferences used to set up the folder watcher
+	 */
+	private long mWatchedFolderKey;
+	/**
+	 * Filter built from the configured media and blacklisted folders
+	 */
+	private MediaFolderFilter mFolderFilter;
+	/**
+	 * The folder key of the preferences used to build mFolderFilter
+	 */
+	private long mFolderFilterKey;
+	/**
+	 * Reusable matcher for sIgnoredFilenames
+	 */
+	private final Matcher mIgnoredFilenameMatcher = sIgnoredFilenames.matcher("");
+	/**
+	 * Timings and counters of the current scan
+	 */
+	private final MediaScanMetrics mMetrics = new MediaScanMetrics();
 	/**
 	 * True if this is a from-scratch import
 	 * Set by KICKSTART rpc
@@ -73,6 +137,13 @@ public class MediaScanner implements Handler.Callback {
 	 * True if we must do a full cleanup of orphaned entries after the scan finished.
 	 */
 	private boolean mPendingCleanup;
+	/**
+	 * Albums, contributors and genres which may have become orphaned
+	 * during this scan, only checked if mPendingCleanup is false
+	 */
+	private final HashSet<Long> mTouchedAlbums = new HashSet<>();
+	private final HashSet<Long> mTouchedContributors = new HashSet<>();
+	private final HashSet<Long> mTouchedGenres = new HashSet<>();
 	/**
 	 * Our NotificationHelper instance.
 	 */
@@ -97,14 +168,29 @@ public class MediaScanner implements Handler.Callback {
 	 * Delay native scans by this many ms to coalesce multiple modifications
 	 */
 	private static final int NATIVE_VRFY_COALESCE_DELAY = 3500;
+	/**
+	 * How many files we pull from the current source per message
+	 */
+	private static final int FILES_PER_MESSAGE = 32;
+	/**
+	 * Default number of days after which a full scan ignores the directory index
+	 */
+	private static final int DEFAULT_DEEP_SCAN_DAYS = 7;
+	/**
+	 * Delay the inspection of watched changes by this many ms to coalesce multiple events
+	 */
+	private static final int WATCHER_COALESCE_DELAY = 1500;
 
 	MediaScanner(Context context, MediaLibraryBackend backend) {
 		mContext = context;
 		mBackend = backend;
+		mBatchWriter = new MediaBatchWriter(backend);
+		mDirectoryIndex = new MediaDirectoryIndex(backend);
 		mScanPlan = new MediaScanPlan();
 		HandlerThread handlerThread = new HandlerThread("MediaScannerThread", Process.THREAD_PRIORITY_LOWEST);
 		handlerThread.start();
 		mHandler = new Handler(handlerThread.getLooper(), this);
+		mBackend.setQueryMetrics(mMetrics, handlerThread);
 		mWakeLock = ((PowerManager)context.getSystemService(Context.POWER_SERVICE)).newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "VanillaMusic:Indexer");
 		mNotificationHelper = new NotificationHelper(context, NOTIFICATION_CHANNEL, context.getString(R.string.media_stats_progress));
 
@@ -116,6 +202,16 @@ public class MediaScanner implements Handler.Callback {
 			}
 		};
 		context.getContentResolver().registerContentObserver(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, true, mObserver);
+
+		mFolderWatcher = new MediaFolderWatcher(new MediaFolderWatcher.Callback() {
+			@Override
+			public void onFolderChanged() {
+				if (!mHandler.hasMessages(MSG_WATCHED_CHANGES)) {
+					mHandler.sendEmptyMessageDelayed(MSG_WATCHED_CHANGES, WATCHER_COALESCE_DELAY);
+				}
+			}
+		});
+		mHandler.sendEmptyMessage(MSG_UPDATE_WATCHER);
 	}
 
 	/**
@@ -160,7 +256,7 @@ public class MediaScanner implements Handler.Callback {
 	public void abortScan() {
 		mHandler.removeMessages(MSG_SCAN_RPC);
 		mScanPlan.clear();
-		mHandler.sendMessage(mHandler.obtainMessage(MSG_SCAN_RPC, RPC_KICKSTART, 0));
+		mHandler.sendMessage(mHandler.obtainMessage(MSG_SCAN_RPC, RPC_KICKSTART, KICKSTART_ABORT));
 	}
 
 	/**
@@ -170,6 +266,23 @@ public class MediaScanner implements Handler.Callback {
 		mBackend.setPendingDeletion();
 		mPendingCleanup = true;
 		setNativeLastMtime(MTIME_PRISTINE);
+		invalidateSongState(INVALIDATE_ALL_SONGS);
+
+		// All files must be visited again, so the directory index is useless now.
+		MediaLibrary.Preferences prefs = MediaLibrary.getPreferences(mContext);
+		prefs._directoryIndexKey = 0;
+		MediaLibrary.setPreferences(mContext, prefs);
+	}
+
+	/**
+	 * Drops the cached scan state of a song. Must be called if
+	 * a song was modified outside of the scanner.
+	 *
+	 * @param id the id of the modified song, INVALIDATE_ALL_SONGS to drop everything
+	 */
+	public void invalidateSongState(long id) {
+		// Must be handled before any further inspection, so we jump the queue.
+		mHandler.sendMessageAtFrontOfQueue(mHandler.obtainMessage(MSG_INVALIDATE_SONG, id));
 	}
 
 	/**
@@ -187,31 +300,67 @@ public class MediaScanner implements Handler.Callback {
 		progress.seen = stats.seen;
 		progress.changed = stats.changed;
 		progress.total = prefs._nativeLibraryCount;
+		mBatchWriter.describeProgress(progress);
+		mMetrics.describeProgress(progress);
+
+		progress.dirsVisited = mDirsVisited;
+		progress.dirsSkipped = mDirsSkipped;
+		MediaScanSource source = mSource;
+		if (source instanceof MediaDirectoryWalker) {
+			progress.dirsVisited += ((MediaDirectoryWalker)source).getVisitedCount();
+			progress.dirsSkipped += ((MediaDirectoryWalker)source).getSkippedCount();
+		}
 
 		return progress;
 	}
 
 	private static final int MSG_SCAN_RPC         = 0;
 	private static final int MSG_SCAN_FINISHED    = 1;
-	private static final int MSG_NOTIFY_CHANGE    = 2;
+	private static final int MSG_INVALIDATE_SONG  = 2;
 	private static final int MSG_GUESS_QUICKSCAN  = 3;
+	private static final int MSG_WATCHED_CHANGES  = 4;
+	private static final int MSG_UPDATE_WATCHER   = 5;
 	private static final int RPC_KICKSTART        = 100;
 	private static final int RPC_READ_DIR         = 101;
-	private static final int RPC_INSPECT_FILE     = 102;
 	private static final int RPC_LIBRARY_VRFY     = 103;
 	private static final int RPC_NATIVE_VRFY      = 104;
+	private static final int RPC_NEXT_FILES       = 105;
+	private static final int RPC_INSPECT_PATHS    = 106;
+	/**
+	 * Passed as arg2 of RPC_KICKSTART to drop the current source
+	 */
+	private static final int KICKSTART_ABORT = 1;
+
+	/**
+	 * Special id for invalidateSongState() to drop all cached song states
+	 */
+	public static final long INVALIDATE_ALL_SONGS = -1;
 
 	@Override
 	public boolean handleMessage(Message message) {
 		int rpc = (message.what == MSG_SCAN_RPC ? message.arg1 : message.what);
 
 		switch (rpc) {
-			case MSG_NOTIFY_CHANGE: {
-				MediaLibrary.notifyObserver(LibraryObserver.Type.SONG, LibraryObserver.Value.UNKNOWN, true);
+			case MSG_INVALIDATE_SONG: {
+				long id = (Long)message.obj;
+				if (id == INVALIDATE_ALL_SONGS) {
+					mSongStates = null;
+				} else if (mSongStates != null) {
+					mSongStates.remove(id);
+				}
 				break;
 			}
 			case MSG_SCAN_FINISHED: {
 				mScanIsRunning = false;
+				mSongStates = null; // only valid during a scan, reloaded on demand.
+				mMetrics.finishScan();
+				Log.v("VanillaMusic", "MediaScanner finished: "+mMetrics.getReport());
+				if (mDeepScanRunning) {
+					mDeepScanRunning = false;
+					MediaLibrary.Preferences prefs = MediaLibrary.getPreferences(mContext);
+					prefs._lastDeepScan = (int)(System.currentTimeMillis() / 1000);
+					MediaLibrary.setPreferences(mContext, prefs);
+				}
 				if (mIsInitialScan) {
 					mIsInitialScan = false;
 					MediaLibrary.notifyObserver(LibraryObserver.Type.PLAYLIST, LibraryObserver.Value.OUTDATED, false);
@@ -221,60 +370,82 @@ public class MediaScanner implements Handler.Callback {
 					mBackend.cleanOrphanedEntries(true);
 					// scan run possibly deleted file which may affect playlists:
 					MediaLibrary.notifyObserver(LibraryObserver.Type.PLAYLIST, LibraryObserver.Value.UNKNOWN, false);
+				} else if (mTouchedAlbums.size() + mTouchedContributors.size() + mTouchedGenres.size() != 0) {
+					mBatchWriter.begin();
+					mBackend.cleanOrphanedEntries(mTouchedAlbums, mTouchedContributors, mTouchedGenres);
+					mBatchWriter.commit();
 				}
+				mTouchedAlbums.clear();
+				mTouchedContributors.clear();
+				mTouchedGenres.clear();
+				// All writes of this scan are done: fold the WAL back into the database.
+				mBackend.checkpoint();
 
 				// Send a last change notification to all observers.
 				// This lets all consumers know about (possible)
 				// cleanups of orphaned files. The `false' value
 				// also signals that this will be our last update
 				// for this scan.
-				mHandler.removeMessages(MSG_NOTIFY_CHANGE);
 				MediaLibrary.notifyObserver(LibraryObserver.Type.SONG, LibraryObserver.Value.UNKNOWN, false);
 				MediaLibrary.notifyObserver(LibraryObserver.Type.SCAN_PROGRESS, LibraryObserver.Value.UNKNOWN, false);
 
 				updateNotification(false);
+				updateFolderWatcher(); // media folders may have changed.
 				break;
 			}
 			case MSG_GUESS_QUICKSCAN: {
 				guessQuickScanPlan();
 				break;
 			}
+			case MSG_WATCHED_CHANGES: {
+				planWatchedChanges();
+				break;
+			}
+			case MSG_UPDATE_WATCHER: {
+				updateFolderWatcher();
+				break;
+			}
 			case RPC_KICKSTART: {
 				// a new scan was triggered: check if this is a 'initial / from scratch' scan
 				if (!mIsInitialScan && MediaLibrary.getPreferences(mContext)._nativeLastMtime == 0) {
 					mIsInitialScan = true;
 				}
-				break;
-			}
-			case RPC_INSPECT_FILE: {
-				final File file = (File)message.obj;
-				boolean changed = rpcInspectFile(file);
-				mScanPlan.registerProgress(file.toString(), changed);
-				if (changed && !mHandler.hasMessages(MSG_NOTIFY_CHANGE)) {
-					mHandler.sendMessageDelayed(mHandler.obtainMessage(MSG_NOTIFY_CHANGE), 500);
+				if (message.arg2 == KICKSTART_ABORT) {
+					closeSource();
+					mDirectoryIndex.discard();
+					mDeepScanRunning = false;
 				}
-
-				// Unlike MSG_NOTIFY_CHANGE, we don't want the progress report to lag behind, but we also don't want
-				// to call it on EVERY file inspection; so we add our own delay which will not be influenced by
-				// the message queue size.
-				long now = SystemClock.uptimeMillis();
-				if (now >= mNextProgressReportAt) {
-					mNextProgressReportAt = now + 80;
-					MediaLibrary.notifyObserver(LibraryObserver.Type.SCAN_PROGRESS, LibraryObserver.Value.UNKNOWN, true);
-					updateNotification(true);
+				updateFolderFilter();
+				if (!mScanIsRunning) {
+					mMetrics.startScan();
+					mBatchWriter.resetStatistics();
+					mDirsVisited = 0;
+					mDirsSkipped = 0;
+					setupExtractorPool();
 				}
 				break;
 			}
 			case RPC_READ_DIR: {
-				rpcReadDirectory((File)message.obj);
+				prepareDirectoryIndex();
+				openSource(rpc, new MediaDirectoryWalker((File)message.obj, mFolderFilter, mDirectoryIndex, mDeepScanRunning));
 				break;
 			}
 			case RPC_LIBRARY_VRFY: {
-				rpcLibraryVerify((Cursor)message.obj);
+				openSource(rpc, rpcLibraryVerify((File)message.obj));
+				break;
+			}
+			case RPC_INSPECT_PATHS: {
+				@SuppressWarnings("unchecked")
+				ArrayList<File> paths = (ArrayList<File>)message.obj;
+				openSource(rpc, new MediaPathListSource(paths, mFolderFilter));
 				break;
 			}
 			case RPC_NATIVE_VRFY: {
-				rpcNativeVerify((Cursor)message.obj, message.arg2);
+				openSource(rpc, rpcNativeVerify());
+				break;
+			}
+			case RPC_NEXT_FILES: {
+				rpcNextFiles();
 				break;
 			}
 			default: {
@@ -282,13 +453,40 @@ public class MediaScanner implements Handler.Callback {
 			}
 		}
 
+		if (message.what == MSG_SCAN_RPC) {
+			// Write out all extractions which finished in the meantime.
+			MediaExtractorPool.Task task;
+			while ((task = mExtractorPool.poll()) != null) {
+				finishInspection(task);
+			}
+		}
+
 		if (message.what == MSG_SCAN_RPC && !mHandler.hasMessages(MSG_SCAN_RPC)) {
+			// The current step is done: wait for all extractions to finish and commit
+			// everything before deciding on the next step.
+			MediaExtractorPool.Task task;
+			while ((task = takeExtraction()) != null) {
+				finishInspection(task);
+			}
+			if (mDirectoryIndex.hasPending()) {
+				// All files of the visited directories are written: the index may be updated.
+				mBatchWriter.begin();
+				mDirectoryIndex.commit();
+			}
+			if (mBatchWriter.commit()) {
+				MediaLibrary.notifyObserver(LibraryObserver.Type.SONG, LibraryObserver.Value.UNKNOWN, true);
+			}
+
+			MediaScanPlan.Statistics stats = mScanPlan.getStatistics();
+			mMetrics.finishStep(stats.seen, stats.changed);
+
 			mScanIsRunning = true;
 			MediaScanPlan.Step step = mScanPlan.getNextStep();
 			if (step == null) {
 				mHandler.sendEmptyMessage(MSG_SCAN_FINISHED);
 			} else {
 				Log.v("VanillaMusic", "xxx --- starting scan of type "+step.msg);
+				mMetrics.startStep(getStepName(step.msg, step.arg));
 				mHandler.sendMessage(mHandler.obtainMessage(MSG_SCAN_RPC, step.msg, 0, step.arg));
 			}
 		}
@@ -296,6 +494,63 @@ public class MediaScanner implements Handler.Callback {
 		return true;
 	}
 
+	/**
+	 * Returns a human readable name of a scan step
+	 *
+	 * @param rpc the type of the step
+	 * @param arg the argument of the step
+	 */
+	private static String getStepName(int rpc, Object arg) {
+		String name;
+		switch (rpc) {
+			case RPC_READ_DIR:      name = "read_dir"; break;
+			case RPC_LIBRARY_VRFY:  name = "library_verify"; break;
+			case RPC_NATIVE_VRFY:   name = "native_verify"; break;
+			case RPC_INSPECT_PATHS: name = "inspect_paths"; break;
+			default:                name = Integer.toString(rpc);
+		}
+		return (arg instanceof File ? name + "(" + arg + ")" : name);
+	}
+
+	/**
+	 * (Re-)creates the extractor pool if the configured size changed.
+	 */
+	private void setupExtractorPool() {
+		int threads = MediaLibrary.getPreferences(mContext).scanThreads;
+		if (threads <= 0)
+			threads = MediaExtractorPool.getDefaultThreadCount();
+
+		if (mExtractorPool == null || mExtractorPool.getThreadCount() != threads) {
+			if (mExtractorPool != null)
+				mExtractorPool.shutdown(); // this is always idle at this point.
+			mExtractorPool = new MediaExtractorPool(threads);
+		}
+	}
+
+	/**
+	 * Registers the outcome of an inspected file and reports our progress
+	 *
+	 * @param path the inspected path
+	 * @param changed true if the inspection modified the database
+	 */
+	private void registerInspection(String path, boolean changed) {
+		mScanPlan.registerProgress(path, changed);
+		if (mBatchWriter.registerFile(changed)) {
+			// A batch containing changes was committed: let observers see the new rows.
+			MediaLibrary.notifyObserver(LibraryObserver.Type.SONG, LibraryObserver.Value.UNKNOWN, true);
+		}
+
+		// We don't want the progress report to lag behind, but we also don't want
+		// to call it on EVERY file inspection; so we add our own delay which will not be influenced by
+		// the message queue size.
+		long now = SystemClock.uptimeMillis();
+		if (now >= mNextProgressReportAt) {
+			mNextProgressReportAt = now + 80;
+			MediaLibrary.notifyObserver(LibraryObserver.Type.SCAN_PROGRESS, LibraryObserver.Value.UNKNOWN, true);
+			updateNotification(true);
+		}
+	}
+
 	private static final int MTIME_PRISTINE = 0;
 	private static final int MTIME_DIRTY = 1;
 	/**
@@ -381,84 +636,209 @@ public class MediaScanner implements Handler.Callback {
 	}
 
 	/**
-	 * Scans the android library, inspecting every found file
+	 * Makes given source the source of the current scan step
+	 * and starts to pull files from it
 	 *
-	 * @param cursor the cursor we are using
-	 * @param mtime the mtime to carry over, ignored if cursor is null
+	 * @param rpc the type of the scan step
+	 * @param source the source to use, may be null
 	 */
-	private void rpcNativeVerify(Cursor cursor, int mtime) {
-		if (cursor == null) {
-			mtime = MediaLibrary.getPreferences(mContext)._nativeLastMtime; // starting a new scan -> read stored mtime from preferences
-			String selection = MediaStore.Audio.Media.IS_MUSIC + "!= 0 AND "+ MediaStore.MediaColumns.DATE_MODIFIED +" > " + (mtime - NATIVE_VRFY_MTIME_SLACK);
-			String sort = MediaStore.MediaColumns.DATE_MODIFIED;
-			String[] projection = { MediaStore.MediaColumns.DATA, MediaStore.MediaColumns.DATE_MODIFIED };
-			try {
-				cursor = mContext.getContentResolver().query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, projection, selection, null, sort);
-			} catch(SecurityException e) {
-				Log.e("VanillaMusic", "rpcNativeVerify failed: "+e);
-			}
-		}
+	private void openSource(int rpc, MediaScanSource source) {
+		closeSource();
+		if (source == null)
+			return; // fixme: handle me better
+
+		mSource = source;
+		mSourceRpc = rpc;
+		rpcNextFiles();
+	}
 
-		if (cursor == null)
-			return; // still null.. fixme: handle me better
+	/**
+	 * Closes the current source, if any
+	 */
+	private void closeSource() {
+		if (mSource != null) {
+			mSource.close();
+			mSource = null;
+		}
+	}
 
-		if (cursor.moveToNext()) {
-			String path = cursor.getString(0);
-			mtime = cursor.getInt(1);
-			if (path != null) { // this seems to be a thing...
-				File entry = new File(path);
-				mHandler.sendMessage(mHandler.obtainMessage(MSG_SCAN_RPC, RPC_INSPECT_FILE, 0, entry));
-				mHandler.sendMessage(mHandler.obtainMessage(MSG_SCAN_RPC, RPC_NATIVE_VRFY, mtime, cursor));
+	/**
+	 * Inspects the next few files of the current source, requeues
+	 * itself until the source is exhausted
+	 */
+	private void rpcNextFiles() {
+		if (mSource == null)
+			return; // scan was aborted.
+
+		for (int i = 0; i < FILES_PER_MESSAGE; i++) {
+			File file = mSource.next();
+			if (file == null) {
+				finishSource();
+				return;
 			}
-		} else {
-			cursor.close();
+			rpcInspectFile(file);
+		}
+		// Go trough the queue so that other messages still get a chance to run.
+		mHandler.sendMessage(mHandler.obtainMessage(MSG_SCAN_RPC, RPC_NEXT_FILES, 0));
+	}
+
+	/**
+	 * Called after the current source was exhausted
+	 */
+	private void finishSource() {
+		if (mSourceRpc == RPC_READ_DIR) {
+			MediaDirectoryWalker walker = (MediaDirectoryWalker)mSource;
+			mDirsVisited += walker.getVisitedCount();
+			mDirsSkipped += walker.getSkippedCount();
+			Log.v("VanillaMusic", "MediaDirectoryWalker finished, visited="+walker.getVisitedCount()+", skipped="+walker.getSkippedCount());
+		}
+		if (mSourceRpc == RPC_NATIVE_VRFY) {
+			int mtime = ((MediaCursorSource)mSource).getLastMtime();
 			setNativeLastMtime(mtime);
 			Log.v("VanillaMusic", "NativeLibraryScanner finished, mtime mark is now at "+mtime);
 		}
+		closeSource();
 	}
 
 	/**
-	 * Scans every file in our own library and checks for changes
+	 * Returns a hash of the configured media and blacklisted folders
 	 *
-	 * @param cursor the cursor we are using
+	 * @param prefs the preferences to use
+	 * @return the hash value
 	 */
-	private void rpcLibraryVerify(Cursor cursor) {
-		if (cursor == null)
-			cursor = mBackend.query(false, MediaLibrary.TABLE_SONGS, new String[]{MediaLibrary.SongColumns.PATH}, null, null, null, null, null, null);
+	private static long getFolderKey(MediaLibrary.Preferences prefs) {
+		return MediaLibrary.hash63(prefs.mediaFolders + "\n" + prefs.blacklistedFolders);
+	}
 
-		if (cursor.moveToNext()) {
-			File entry = new File(cursor.getString(0));
-			mHandler.sendMessage(mHandler.obtainMessage(MSG_SCAN_RPC, RPC_INSPECT_FILE, 0, entry));
-			mHandler.sendMessage(mHandler.obtainMessage(MSG_SCAN_RPC, RPC_LIBRARY_VRFY, 0, cursor));
-		} else {
-			cursor.close();
+	/**
+	 * Rebuilds the folder filter if the configured folders changed
+	 */
+	private void updateFolderFilter() {
+		MediaLibrary.Preferences prefs = MediaLibrary.getPreferences(mContext);
+		long key = getFolderKey(prefs);
+		if (mFolderFilter == null || key != mFolderFilterKey) {
+			mFolderFilterKey = key;
+			mFolderFilter = new MediaFolderFilter(prefs.mediaFolders, prefs.blacklistedFolders);
 		}
 	}
 
 	/**
-	 * Loops trough given directory and adds all found
-	 * files to the scan queue
+	 * (Re-)starts the folder watcher if the configured folders changed
+	 */
+	private void updateFolderWatcher() {
+		updateFolderFilter();
+		if (mFolderFilterKey != mWatchedFolderKey) {
+			mWatchedFolderKey = mFolderFilterKey;
+			mFolderWatcher.watch(MediaLibrary.getPreferences(mContext).mediaFolders, mFolderFilter);
+		}
+	}
+
+	/**
+	 * Adds scan steps for all changes collected by the folder watcher
+	 */
+	private void planWatchedChanges() {
+		MediaFolderWatcher.Changes changes = mFolderWatcher.drainChanges();
+
+		for (File dir : changes.removed) {
+			mFolderWatcher.unwatchTree(dir);
+			mScanPlan.addNextStep(RPC_LIBRARY_VRFY, dir);
+		}
+
+		if (changes.changed.size() != 0) {
+			for (File file : changes.changed) {
+				if (file.isDirectory())
+					mFolderWatcher.watchTree(file);
+			}
+			mScanPlan.addNextStep(RPC_INSPECT_PATHS, changes.changed);
+		}
+
+		mHandler.sendMessage(mHandler.obtainMessage(MSG_SCAN_RPC, RPC_KICKSTART, 0));
+	}
+
+	/**
+	 * Prepares the directory index for a directory scan: drops it if
+	 * the scanned folders changed and checks if a deep scan is due.
+	 */
+	private void prepareDirectoryIndex() {
+		MediaLibrary.Preferences prefs = MediaLibrary.getPreferences(mContext);
+		long key = getFolderKey(prefs);
+		if (prefs._directoryIndexKey != key) {
+			mDirectoryIndex.clear();
+			prefs._directoryIndexKey = key;
+			MediaLibrary.setPreferences(mContext, prefs);
+		}
+
+		if (!mDeepScanRunning) {
+			int days = (prefs.deepScanDays > 0 ? prefs.deepScanDays : DEFAULT_DEEP_SCAN_DAYS);
+			int now = (int)(System.currentTimeMillis() / 1000);
+			mDeepScanRunning = (now - prefs._lastDeepScan) > days * 86400;
+		}
+	}
+
+	/**
+	 * Returns a source for all modified files of the android library
 	 *
-	 * @param dir the directory to scan
+	 * @return a new source, null if the android library could not be queried
 	 */
-	private void rpcReadDirectory(File dir) {
-		if (!dir.isDirectory())
-			return;
+	private MediaScanSource rpcNativeVerify() {
+		int mtime = MediaLibrary.getPreferences(mContext)._nativeLastMtime; // starting a new scan -> read stored mtime from preferences
+		String selection = MediaStore.Audio.Media.IS_MUSIC + "!= 0 AND "+ MediaStore.MediaColumns.DATE_MODIFIED +" > " + (mtime - NATIVE_VRFY_MTIME_SLACK);
+		String sort = MediaStore.MediaColumns.DATE_MODIFIED;
+		String[] projection = { MediaStore.MediaColumns.DATA, MediaStore.MediaColumns.DATE_MODIFIED };
+		Cursor cursor = null;
+		try {
+			cursor = mContext.getContentResolver().query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, projection, selection, null, sort);
+		} catch(SecurityException e) {
+			Log.e("VanillaMusic", "rpcNativeVerify failed: "+e);
+		}
 
-		if (new File(dir, ".nomedia").exists())
-			return;
+		if (cursor == null)
+			return null;
 
-		if (isDotfile(dir))
-			return;
+		return new MediaCursorSource(cursor, 0, 1, mtime);
+	}
 
-		File[] dirents = dir.listFiles();
-		if (dirents == null)
-			return;
+	/**
+	 * Returns a source for every file in our own library
+	 *
+	 * @param dir only return files within this directory, all files if null
+	 * @return a new source
+	 */
+	private MediaScanSource rpcLibraryVerify(File dir) {
+		String selection = null;
+		String[] selectionArgs = null;
+		if (dir != null) {
+			// Matches all paths starting with 'dir/': '0' follows '/' in ASCII.
+			String path = dir.getAbsolutePath();
+			selection = MediaLibrary.SongColumns.PATH+" >= ? AND "+MediaLibrary.SongColumns.PATH+" < ?";
+			selectionArgs = new String[]{ path + "/", path + "0" };
+		}
+		Cursor cursor = mBackend.query(false, MediaLibrary.TABLE_SONGS, new String[]{MediaLibrary.SongColumns.PATH}, selection, selectionArgs, null, null, null, null);
+		return new MediaCursorSource(cursor, 0, -1, 0);
+	}
+
+	/**
+	 * Remembers the album, contributors and genres of a song
+	 * which is about to be removed, so that we can check if they
+	 * became orphaned once the scan finished.
+	 *
+	 * @param songId the song to inspect
+	 */
+	private void collectSongReferences(long songId) {
+		collectIds(mTouchedAlbums, MediaLibrary.TABLE_SONGS, MediaLibrary.SongColumns.ALBUM_ID, MediaLibrary.SongColumns._ID, songId);
+		collectIds(mTouchedContributors, MediaLibrary.TABLE_CONTRIBUTORS_SONGS, MediaLibrary.ContributorSongColumns._CONTRIBUTOR_ID, MediaLibrary.ContributorSongColumns.SONG_ID, songId);
+		collectIds(mTouchedGenres, MediaLibrary.TABLE_GENRES_SONGS, MediaLibrary.GenreSongColumns._GENRE_ID, MediaLibrary.GenreSongColumns.SONG_ID, songId);
+	}
 
-		for (File file : dirents) {
-			int rpc = (file.isFile() ? RPC_INSPECT_FILE : RPC_READ_DIR);
-			mHandler.sendMessage(mHandler.obtainMessage(MSG_SCAN_RPC, rpc, 0, file));
+	/**
+	 * Adds the values of `column' of all rows matching `key'=`songId' to `result'
+	 */
+	private void collectIds(HashSet<Long> result, String table, String column, String key, long songId) {
+		Cursor cursor = mBackend.query(false, table, new String[]{ column }, key+"="+songId, null, null, null, null, null);
+		while (cursor.moveToNext()) {
+			result.add(cursor.getLong(0));
 		}
+		cursor.close();
 	}
 
 	/**
@@ -473,59 +853,179 @@ public class MediaScanner implements Handler.Callback {
 
 
 	/**
-	 * Inspects a single file and adds it to the database or removes it. maybe.
+	 * Inspects a single file: Files which need to be (re-)inserted into our
+	 * database are handed over to the extractor pool, finishInspection()
+	 * takes care of the database update.
 	 *
-	 * @param file the file to add
-	 * @return true if we modified the database
+	 * @param file the file to inspect
 	 */
-	private boolean rpcInspectFile(File file) {
+	private void rpcInspectFile(File file) {
+		if (isBlacklisted(file) || isDotfile(file)) {
+			mMetrics.recordSkipped(true);
+			registerInspection(file.toString(), false);
+			return;
+		}
+		if (!isOutdated(file)) {
+			mMetrics.recordSkipped(false);
+			registerInspection(file.toString(), false);
+			return;
+		}
+
+		// Wait for some extractions to finish if the pool is full, this
+		// ensures that our memory usage stays bounded.
+		while (mExtractorPool.isFull()) {
+			finishInspection(takeExtraction());
+		}
+
 		MediaLibrary.Preferences prefs = MediaLibrary.getPreferences(mContext);
-		String path  = file.getAbsolutePath();
-		long songId  = MediaLibrary.hash63(path);
+		mExtractorPool.submit(new MediaExtractorPool.Task(file, prefs.forceBastp, prefs.nativeFallback));
+	}
+
+	/**
+	 * Waits for the next finished extraction. A slow file must not keep
+	 * the batch transaction open (and block all other writers): the batch
+	 * is committed once it is due and we are still waiting.
+	 *
+	 * @return a finished task, null if there are no tasks in flight
+	 */
+	private MediaExtractorPool.Task takeExtraction() {
+		if (!mExtractorPool.isBusy())
+			return null;
+
+		long wait = mBatchWriter.getMillisUntilCommit();
+		if (wait >= 0) {
+			MediaExtractorPool.Task task = mExtractorPool.poll(wait);
+			if (task != null)
+				return task;
+			if (mBatchWriter.commit()) {
+				MediaLibrary.notifyObserver(LibraryObserver.Type.SONG, LibraryObserver.Value.UNKNOWN, true);
+			}
+		}
+		return mExtractorPool.take();
+	}
+
+	/**
+	 * Returns true if the database entry of given file is outdated
+	 * or missing.
+	 *
+	 * @param file the file to check
+	 * @return true if the file needs to be (re-)inspected
+	 */
+	private boolean isOutdated(File file) {
+		if (mSongStates == null)
+			mSongStates = MediaSongStateCache.fromBackend(mBackend);
+
+		long songId = MediaLibrary.hash63(file.getAbsolutePath());
+		int stateSlot = mSongStates.indexOf(songId);
+		long dbEntryMtime = (stateSlot < 0 ? 0 : mSongStates.getMtime(stateSlot) * 1000); // this is in unixtime -> convert to 'ms'
+		long songFlags = (stateSlot < 0 ? 0 : mSongStates.getFlags(stateSlot));
+		return needsRescan(file.lastModified(), dbEntryMtime, songFlags);
+	}
+
+	/**
+	 * Returns true if a file must be extracted again
+	 *
+	 * @param fileMtime the on-disk mtime of the file in ms, 0 if it does not exist
+	 * @param dbEntryMtime the mtime of the database entry in ms, 0 if there is none
+	 * @param songFlags the flags of the database entry
+	 * @return true if the database entry is outdated or missing
+	 */
+	static boolean needsRescan(long fileMtime, long dbEntryMtime, long songFlags) {
+		// on-disk mtime is older than db mtime and it still exists -> nothing to do
+		return !(fileMtime > 0 && dbEntryMtime >= fileMtime && (songFlags & MediaLibrary.SONG_FLAG_OUTDATED) == 0);
+	}
+
+	/**
+	 * Returns the flags of a song which is about to be (re-)inserted
+	 *
+	 * @param songFlags the flags of the old database entry, 0 if there is none
+	 * @param truncated true if the parser ran out of budget
+	 * @return the new flags, without the tag dependent NO_ARTIST and NO_ALBUM flags
+	 */
+	static long flagsForInsert(long songFlags, boolean truncated) {
+		songFlags &= ~MediaLibrary.SONG_FLAG_OUTDATED;   // This file is not outdated anymore
+		songFlags &= ~MediaLibrary.SONG_FLAG_NO_ARTIST;  // May find an artist now.
+		songFlags &= ~MediaLibrary.SONG_FLAG_NO_ALBUM;   // May find an album now.
+		songFlags |= MediaLibrary.SONG_FLAG_HAS_GAIN_INFO; // Gain columns are populated below, even if empty.
+		// Tags of a truncated parse may be incomplete: keep what we got
+		// for now, but extract the file again during the next scan.
+		if (truncated)
+			songFlags |= MediaLibrary.SONG_FLAG_OUTDATED;
+		return songFlags;
+	}
 
-		if (isBlacklisted(file))
-			return false;
+	/**
+	 * Finishes the inspection of a file extracted by the pool
+	 *
+	 * @param task the finished extraction
+	 */
+	private void finishInspection(MediaExtractorPool.Task task) {
+		boolean changed = false;
+		mMetrics.recordExtraction(task.tags != null ? task.tags.getBastpType() : null, task.extractMicros);
+		if (task.tags != null && task.tags.isTruncated())
+			mMetrics.recordTruncated();
+		// The same file may have been queued twice, so we need to re-check.
+		if (isOutdated(task.file)) {
+			long startedAt = System.nanoTime();
+			changed = updateDatabase(task);
+			mMetrics.recordWrite((System.nanoTime() - startedAt) / 1000);
+		}
+		registerInspection(task.path, changed);
+	}
 
-		if (isDotfile(file))
-			return false;
+	/**
+	 * Adds a file with the extracted tags to the database or removes it. maybe.
+	 *
+	 * @param task the finished extraction of the file
+	 * @return true if we modified the database
+	 */
+	private boolean updateDatabase(MediaExtractorPool.Task task) {
+		MediaLibrary.Preferences prefs = MediaLibrary.getPreferences(mContext);
+		MediaMetadataExtractor tags = task.tags;
+		File file    = task.file;
+		String path  = task.path;
+		long songId  = MediaLibrary.hash63(path);
 
-		long dbEntryMtime = mBackend.getColumnFromSongId(MediaLibrary.SongColumns.MTIME, songId) * 1000; // this is in unixtime -> convert to 'ms'
-		long songFlags = mBackend.getColumnFromSongId(MediaLibrary.SongColumns.FLAGS, songId);
-		long fileMtime = file.lastModified();
+		int stateSlot = mSongStates.indexOf(songId);
+		long dbEntryMtime = (stateSlot < 0 ? 0 : mSongStates.getMtime(stateSlot) * 1000);
+		long songFlags = (stateSlot < 0 ? 0 : mSongStates.getFlags(stateSlot));
 		long playCount = 0;
 		long skipCount = 0;
 		boolean hasChanged = false;
 		boolean mustInsert = false;
 
-		if (fileMtime > 0 && dbEntryMtime >= fileMtime && (songFlags & MediaLibrary.SONG_FLAG_OUTDATED) == 0) {
-			return false; // on-disk mtime is older than db mtime and it still exists -> nothing to do
-		}
+		// We are going to modify the database: ensure that this happens in a batch.
+		mBatchWriter.begin();
 
 		if (dbEntryMtime != 0) {
 			// DB entry exists but is outdated - drop current entry and maybe re-insert it
 			// this tries to preserve play and skipcounts of the song
-			playCount = mBackend.getColumnFromSongId(MediaLibrary.SongColumns.PLAYCOUNT, songId);
-			skipCount = mBackend.getColumnFromSongId(MediaLibrary.SongColumns.SKIPCOUNT, songId);
+			playCount = mSongStates.getPlayCount(stateSlot);
+			skipCount = mSongStates.getSkipCount(stateSlot);
 			// Remove the song from the database for now but do not delete any
 			// playlist references to it.
+			mBatchWriter.registerAlbumChange(mBackend.getColumnFromSongId(MediaLibrary.SongColumns.ALBUM_ID, songId));
+			collectSongReferences(songId);
 			mBackend.delete(MediaLibrary.TABLE_SONGS, MediaLibrary.SongColumns._ID+"="+songId, null);
-			mBackend.cleanOrphanedEntries(false);
-			mPendingCleanup = true; // Ensure that we run a full cleanup after all scans finished, to get rid of orphaned playlist entries.
+			mBackend.deleteSongReferences(songId);
+			mSongStates.remove(songId);
 			hasChanged = true; // notify caller about change even if we are not going to re-insert this file.
 		}
 
 		// Check if we are willing to insert this file
 		// This is the case if we consider it to be playable on this device.
-		MediaMetadataExtractor tags = new MediaMetadataExtractor(path, prefs.forceBastp);
-		mustInsert = tags.isMediaFile();
+		mustInsert = tags != null && tags.isMediaFile();
+
+		if (dbEntryMtime != 0 && !mustInsert) {
+			// Ensure that we run a full cleanup after all scans finished, to get rid of orphaned playlist entries.
+			mPendingCleanup = true;
+		}
 
 		if (mustInsert) {
 			hasChanged = true;
 
 			// Clear old flags of this song:
-			songFlags &= ~MediaLibrary.SONG_FLAG_OUTDATED;   // This file is not outdated anymore
-			songFlags &= ~MediaLibrary.SONG_FLAG_NO_ARTIST;  // May find an artist now.
-			songFlags &= ~MediaLibrary.SONG_FLAG_NO_ALBUM;   // May find an album now.
+			songFlags = flagsForInsert(songFlags, tags.isTruncated());
 
 			// Get tags which always must be set
 			String title = tags.getFirst(MediaMetadataExtractor.TITLE);
@@ -569,7 +1069,20 @@ public class MediaScanner implements Handler.Callback {
 			v.put(MediaLibrary.SongColumns.SKIPCOUNT,   skipCount);
 			v.put(MediaLibrary.SongColumns.PATH,        path);
 			v.put(MediaLibrary.SongColumns.FLAGS,       songFlags);
-			mBackend.insert(MediaLibrary.TABLE_SONGS, null, v);
+			v.put(MediaLibrary.SongColumns.REPLAYGAIN_TRACK, tags.getFirst(MediaMetadataExtractor.REPLAYGAIN_TRACK));
+			v.put(MediaLibrary.SongColumns.REPLAYGAIN_ALBUM, tags.getFirst(MediaMetadataExtractor.REPLAYGAIN_ALBUM));
+			v.put(MediaLibrary.SongColumns.R128_TRACK,  tags.getFirst(MediaMetadataExtractor.R128_TRACK));
+			v.put(MediaLibrary.SongColumns.R128_ALBUM,  tags.getFirst(MediaMetadataExtractor.R128_ALBUM));
+			v.put(MediaLibrary.SongColumns.R128_BASE,   tags.getFirst(MediaMetadataExtractor.R128_BASE));
+			v.put(MediaLibrary.SongColumns.CODEC,       tags.getFirst(MediaMetadataExtractor.CODEC));
+			v.put(MediaLibrary.SongColumns.BITRATE,     tags.getFirst(MediaMetadataExtractor.BITRATE));
+			v.put(MediaLibrary.SongColumns.SAMPLE_RATE, tags.getFirst(MediaMetadataExtractor.SAMPLE_RATE));
+			v.put(MediaLibrary.SongColumns.CHANNELS,    tags.getFirst(MediaMetadataExtractor.CHANNELS));
+			v.put(MediaLibrary.SongColumns.BITS_PER_SAMPLE, tags.getFirst(MediaMetadataExtractor.BITS_PER_SAMPLE));
+			if (mBackend.insert(MediaLibrary.TABLE_SONGS, null, v) != -1) {
+				// The mtime column defaults to 'now'.
+				mSongStates.put(songId, System.currentTimeMillis() / 1000, (int)songFlags, (int)playCount, (int)skipCount);
+			}
 
 			v.clear();
 			v.put(MediaLibrary.AlbumColumns._ID,               albumId);
@@ -589,6 +1102,7 @@ public class MediaScanner implements Handler.Callback {
 				v.put(MediaLibrary.AlbumColumns.PRIMARY_ALBUM_YEAR,tags.getFirst(MediaMetadataExtractor.YEAR));
 				mBackend.update(MediaLibrary.TABLE_ALBUMS, v, MediaLibrary.AlbumColumns._ID+"=?", new String[]{ Long.toString(albumId) });
 			}
+			mBatchWriter.registerAlbumChange(albumId);
 
 			v.clear();
 			v.put(MediaLibrary.ContributorColumns._ID,               artistId);
@@ -637,8 +1151,8 @@ public class MediaScanner implements Handler.Callback {
 			}
 
 			// A song might be in multiple genres
-			if (tags.containsKey(MediaMetadataExtractor.GENRE)) {
-				ArrayList<String> genres = tags.get(MediaMetadataExtractor.GENRE);
+			ArrayList<String> genres = tags.get(MediaMetadataExtractor.GENRE);
+			if (genres != null) {
 				for (String genre : genres) {
 					long genreId = MediaLibrary.hash63(genre);
 					v.clear();
@@ -653,6 +1167,14 @@ public class MediaScanner implements Handler.Callback {
 					mBackend.insert(MediaLibrary.TABLE_GENRES_SONGS, null, v);
 				}
 			}
+
+			// Finally make the song searchable
+			v = MediaSearchIndex.buildValues(songId, title, album, artist, albumartist, composer,
+			                                 (genres != null ? TextUtils.join(" ", genres) : null), path);
+			mBackend.replace(MediaLibrary.TABLE_SONGS_SEARCH, null, v);
+
+			// ...and link its genres and contributors to each other
+			mBackend.addSongRollups(songId);
 		} // end if (mustInsert)
 
 		Log.v("VanillaMusic", "MediaScanner: inserted "+path);
@@ -667,30 +1189,10 @@ public class MediaScanner implements Handler.Callback {
 	 * @return boolean
 	 */
 	private boolean isBlacklisted(File file) {
-		if (sIgnoredFilenames.matcher(file.getName()).matches())
+		if (mIgnoredFilenameMatcher.reset(file.getName()).matches())
 			return true;
 
-		int wlPoints = -1;
-		int blPoints = -1;
-
-		for (String path : MediaLibrary.getPreferences(mContext).mediaFolders) {
-			if (path.length() > wlPoints &&
-			    file.getPath().toLowerCase().startsWith(path.toLowerCase())) {
-				wlPoints = path.length();
-			}
-		}
-
-		for (String path : MediaLibrary.getPreferences(mContext).blacklistedFolders) {
-			if (path.length() > blPoints &&
-			    file.getPath().toLowerCase().startsWith(path.toLowerCase())) {
-				blPoints = path.length();
-			}
-		}
-
-		// Consider a file to be blacklisted if it is not
-		// present in any whitelisted dir OR if we found
-		// a blacklist entry with a longer prefix.
-		return (wlPoints < 0 || blPoints > wlPoints);
+		return mFolderFilter.isBlacklisted(file.getPath());
 	}
 
 
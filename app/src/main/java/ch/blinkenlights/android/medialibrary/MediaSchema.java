@@ -36,7 +36,17 @@ public class MediaSchema {
 	  + MediaLibrary.SongColumns.MTIME        +" TIMESTAMP DEFAULT (strftime('%s', CURRENT_TIMESTAMP)), "
 	  + MediaLibrary.SongColumns.DURATION     +" INTEGER NOT NULL, "
 	  + MediaLibrary.SongColumns.PATH         +" VARCHAR(4096) NOT NULL, "
-	  + MediaLibrary.SongColumns.FLAGS        +" INTEGER NOT NULL DEFAULT 0 "
+	  + MediaLibrary.SongColumns.FLAGS        +" INTEGER NOT NULL DEFAULT 0, "
+	  + MediaLibrary.SongColumns.REPLAYGAIN_TRACK +" REAL, "
+	  + MediaLibrary.SongColumns.REPLAYGAIN_ALBUM +" REAL, "
+	  + MediaLibrary.SongColumns.R128_TRACK   +" REAL, "
+	  + MediaLibrary.SongColumns.R128_ALBUM   +" REAL, "
+	  + MediaLibrary.SongColumns.R128_BASE    +" REAL, "
+	  + MediaLibrary.SongColumns.CODEC        +" TEXT, "
+	  + MediaLibrary.SongColumns.BITRATE      +" INTEGER, "
+	  + MediaLibrary.SongColumns.SAMPLE_RATE  +" INTEGER, "
+	  + MediaLibrary.SongColumns.CHANNELS     +" INTEGER, "
+	  + MediaLibrary.SongColumns.BITS_PER_SAMPLE +" INTEGER "
 	  + ");";
 
 	/**
@@ -48,7 +58,13 @@ public class MediaSchema {
 	  + MediaLibrary.AlbumColumns.ALBUM_SORT        +" VARCHAR(64) NOT NULL, "
 	  + MediaLibrary.AlbumColumns.PRIMARY_ALBUM_YEAR+" INTEGER, "
 	  + MediaLibrary.AlbumColumns.PRIMARY_ARTIST_ID +" INTEGER NOT NULL DEFAULT 0, "
-	  + MediaLibrary.AlbumColumns.MTIME             +" TIMESTAMP DEFAULT CURRENT_TIMESTAMP "
+	  + MediaLibrary.AlbumColumns.MTIME             +" TIMESTAMP DEFAULT CURRENT_TIMESTAMP, "
+	  + MediaLibrary.AlbumColumns.SONG_COUNT        +" INTEGER NOT NULL DEFAULT 0, "
+	  + MediaLibrary.AlbumColumns.TOTAL_DURATION    +" INTEGER NOT NULL DEFAULT 0, "
+	  + MediaLibrary.AlbumColumns.DISC_COUNT        +" INTEGER NOT NULL DEFAULT 0, "
+	  + MediaLibrary.AlbumColumns.MIN_YEAR          +" INTEGER, "
+	  + MediaLibrary.AlbumColumns.MAX_YEAR          +" INTEGER, "
+	  + MediaLibrary.AlbumColumns.LATEST_MTIME      +" INTEGER NOT NULL DEFAULT 0 "
 	  + ");";
 
 	/**
@@ -100,6 +116,40 @@ public class MediaSchema {
 	                  +MediaLibrary.GenreSongColumns.SONG_ID+") "
 	  + ");";
 
+	/**
+	 * SQL Schema of 'genres<->albums' rollup table
+	 */
+	private static final String DATABASE_CREATE_GENRES_ALBUMS = "CREATE TABLE "+ MediaLibrary.TABLE_GENRES_ALBUMS + " ("
+	  + MediaLibrary.GenreAlbumColumns._GENRE_ID  +" INTEGER, "
+	  + MediaLibrary.GenreAlbumColumns.ALBUM_ID   +" INTEGER, "
+	  + "PRIMARY KEY("+MediaLibrary.GenreAlbumColumns._GENRE_ID+","
+	                  +MediaLibrary.GenreAlbumColumns.ALBUM_ID+") "
+	  + ");";
+
+	/**
+	 * SQL Schema of 'genres<->contributors' rollup table
+	 */
+	private static final String DATABASE_CREATE_GENRES_CONTRIBUTORS = "CREATE TABLE "+ MediaLibrary.TABLE_GENRES_CONTRIBUTORS + " ("
+	  + MediaLibrary.GenreContributorColumns._GENRE_ID       +" INTEGER, "
+	  + MediaLibrary.GenreContributorColumns.ROLE            +" INTEGER, "
+	  + MediaLibrary.GenreContributorColumns._CONTRIBUTOR_ID +" INTEGER, "
+	  + "PRIMARY KEY("+MediaLibrary.GenreContributorColumns._GENRE_ID+","
+	                  +MediaLibrary.GenreContributorColumns.ROLE+","
+	                  +MediaLibrary.GenreContributorColumns._CONTRIBUTOR_ID+") "
+	  + ");";
+
+	/**
+	 * SQL Schema of 'contributors<->albums' rollup table
+	 */
+	private static final String DATABASE_CREATE_CONTRIBUTORS_ALBUMS = "CREATE TABLE "+ MediaLibrary.TABLE_CONTRIBUTORS_ALBUMS + " ("
+	  + MediaLibrary.ContributorAlbumColumns.ROLE            +" INTEGER, "
+	  + MediaLibrary.ContributorAlbumColumns._CONTRIBUTOR_ID +" INTEGER, "
+	  + MediaLibrary.ContributorAlbumColumns.ALBUM_ID        +" INTEGER, "
+	  + "PRIMARY KEY("+MediaLibrary.ContributorAlbumColumns.ROLE+","
+	                  +MediaLibrary.ContributorAlbumColumns._CONTRIBUTOR_ID+","
+	                  +MediaLibrary.ContributorAlbumColumns.ALBUM_ID+") "
+	  + ");";
+
 	/**
 	 * SQL Schema for the playlists table
 	 */
@@ -133,6 +183,84 @@ public class MediaSchema {
 	 +" ("+MediaLibrary.PlaylistSongColumns.PLAYLIST_ID+", "+MediaLibrary.PlaylistSongColumns.SONG_ID+")"
 	 +";";
 
+	/**
+	 * Index to find the songs of an album quickly
+	 */
+	private static final String INDEX_IDX_SONGS_ALBUM_ID = "CREATE INDEX idx_songs_album_id ON "+MediaLibrary.TABLE_SONGS
+	 +" ("+MediaLibrary.SongColumns.ALBUM_ID+")"
+	 +";";
+
+	/**
+	 * Index to find the genres of a song quickly
+	 */
+	private static final String INDEX_IDX_GENRES_SONGS_SONG_ID = "CREATE INDEX idx_genres_songs_song_id ON "+MediaLibrary.TABLE_GENRES_SONGS
+	 +" ("+MediaLibrary.GenreSongColumns.SONG_ID+")"
+	 +";";
+
+	/**
+	 * Index to look up songs by path, also used for prefix (range) searches
+	 * and to sort by path. As every index includes the rowid, it covers
+	 * queries reading only the id and path of songs.
+	 */
+	private static final String INDEX_IDX_SONGS_PATH = "CREATE INDEX idx_songs_path ON "+MediaLibrary.TABLE_SONGS
+	 +" ("+MediaLibrary.SongColumns.PATH+")"
+	 +";";
+
+	/**
+	 * Index to list songs ordered by their title, includes all song columns
+	 * read by the songs tab, so that the listing does not touch the table
+	 */
+	private static final String INDEX_IDX_SONGS_TITLE_SORT = "CREATE INDEX idx_songs_title_sort ON "+MediaLibrary.TABLE_SONGS
+	 +" ("+MediaLibrary.SongColumns.TITLE_SORT+", "+MediaLibrary.SongColumns.TITLE+", "+MediaLibrary.SongColumns.ALBUM_ID+", "+MediaLibrary.SongColumns.DURATION+")"
+	 +";";
+
+	/**
+	 * Index to list albums ordered by their name, includes all album columns
+	 * read by the albums tab
+	 */
+	private static final String INDEX_IDX_ALBUMS_ALBUM_SORT = "CREATE INDEX idx_albums_album_sort ON "+MediaLibrary.TABLE_ALBUMS
+	 +" ("+MediaLibrary.AlbumColumns.ALBUM_SORT+", "+MediaLibrary.AlbumColumns.ALBUM+", "+MediaLibrary.AlbumColumns.PRIMARY_ARTIST_ID+", "+MediaLibrary.AlbumColumns.TOTAL_DURATION+")"
+	 +";";
+
+	/**
+	 * Index to list genres ordered by their name, covers the genres tab
+	 */
+	private static final String INDEX_IDX_GENRES_GENRE_SORT = "CREATE INDEX idx_genres_genre_sort ON "+MediaLibrary.TABLE_GENRES
+	 +" ("+MediaLibrary.GenreColumns._GENRE_SORT+", "+MediaLibrary.GenreColumns._GENRE+")"
+	 +";";
+
+	/**
+	 * Full text search index of `songs', the docid is the song id.
+	 * Its text is normalized by MediaSearchIndex, so the default tokenizer is good enough.
+	 */
+	private static final String DATABASE_CREATE_SONGS_SEARCH = "CREATE VIRTUAL TABLE "+MediaLibrary.TABLE_SONGS_SEARCH+" USING fts4("
+	  + MediaLibrary.SongSearchColumns.TITLE       +", "
+	  + MediaLibrary.SongSearchColumns.ALBUM       +", "
+	  + MediaLibrary.SongSearchColumns.ARTIST      +", "
+	  + MediaLibrary.SongSearchColumns.ALBUMARTIST +", "
+	  + MediaLibrary.SongSearchColumns.COMPOSER    +", "
+	  + MediaLibrary.SongSearchColumns.GENRE       +", "
+	  + MediaLibrary.SongSearchColumns.FILENAME
+	  + ");";
+
+	/**
+	 * SQL Schema of `directories' table
+	 */
+	private static final String DATABASE_CREATE_DIRECTORIES = "CREATE TABLE "+ MediaLibrary.TABLE_DIRECTORIES + " ("
+	  + MediaLibrary.DirectoryColumns._ID         +" INTEGER PRIMARY KEY, "
+	  + MediaLibrary.DirectoryColumns.PATH        +" VARCHAR(4096) NOT NULL, "
+	  + MediaLibrary.DirectoryColumns.PARENT_ID   +" INTEGER NOT NULL, "
+	  + MediaLibrary.DirectoryColumns.MTIME       +" INTEGER NOT NULL, "
+	  + MediaLibrary.DirectoryColumns.CHILD_COUNT +" INTEGER NOT NULL DEFAULT 0 "
+	  + ");";
+
+	/**
+	 * Index to select all subdirectories of a directory quickly
+	 */
+	private static final String INDEX_IDX_DIRECTORIES_PARENT_ID = "CREATE INDEX idx_directories_parent_id ON "+MediaLibrary.TABLE_DIRECTORIES
+	 +" ("+MediaLibrary.DirectoryColumns.PARENT_ID+")"
+	 +";";
+
 	/**
 	 * Additional columns to select for artist info
 	 */
@@ -188,16 +316,15 @@ public class MediaSchema {
 	  +" ;";
 
 	/**
-	 * View which includes album and artist information
+	 * View which includes album and artist information.
+	 * The album duration is stored in the albums table, see MediaLibraryBackend.updateAlbumAggregates()
 	 */
 	private static final String VIEW_CREATE_ALBUMS_ARTISTS = "CREATE VIEW "+ MediaLibrary.VIEW_ALBUMS_ARTISTS+ " AS "
-	  + "SELECT " + MediaLibrary.TABLE_ALBUMS + ".*, " + VIEW_ARTIST_SELECT + ", SUM(" + MediaLibrary.SongColumns.DURATION + ")" + " AS " + MediaLibrary.SongColumns.DURATION
+	  + "SELECT " + MediaLibrary.TABLE_ALBUMS + ".*, " + VIEW_ARTIST_SELECT
+	  +", " + MediaLibrary.TABLE_ALBUMS + "." + MediaLibrary.AlbumColumns.TOTAL_DURATION + " AS " + MediaLibrary.SongColumns.DURATION
 	  +" FROM " + MediaLibrary.TABLE_ALBUMS
 	  +" LEFT JOIN "+MediaLibrary.TABLE_CONTRIBUTORS+" AS _artist"
 	  +" ON _artist."+MediaLibrary.ContributorColumns._ID+" = "+MediaLibrary.TABLE_ALBUMS+"."+MediaLibrary.AlbumColumns.PRIMARY_ARTIST_ID
-	  +" LEFT JOIN " + MediaLibrary.TABLE_SONGS
-	  +" ON " + MediaLibrary.TABLE_SONGS + "." + MediaLibrary.SongColumns.ALBUM_ID + " = " + MediaLibrary.TABLE_ALBUMS + "." + MediaLibrary.AlbumColumns._ID
-	  +" GROUP BY " + MediaLibrary.TABLE_ALBUMS + "." + MediaLibrary.AlbumColumns._ID
 	  +" ;";
 
 	/**
@@ -251,31 +378,52 @@ public class MediaSchema {
 		+" GROUP BY " + MediaLibrary.TABLE_PLAYLISTS + "." + MediaLibrary.PlaylistColumns._ID
 		+" ;";
 
+	/**
+	 * The statements creating a new database schema, in order
+	 */
+	static final String[] DATABASE_SCHEMA = {
+		DATABASE_CREATE_SONGS,
+		DATABASE_CREATE_ALBUMS,
+		DATABASE_CREATE_CONTRIBUTORS,
+		DATABASE_CREATE_CONTRIBUTORS_SONGS,
+		INDEX_IDX_CONTRIBUTORS_SONGS,
+		DATABASE_CREATE_GENRES,
+		DATABASE_CREATE_GENRES_SONGS,
+		DATABASE_CREATE_GENRES_ALBUMS,
+		DATABASE_CREATE_GENRES_CONTRIBUTORS,
+		DATABASE_CREATE_CONTRIBUTORS_ALBUMS,
+		DATABASE_CREATE_PLAYLISTS,
+		DATABASE_CREATE_PLAYLISTS_SONGS,
+		INDEX_IDX_PLAYLIST_ID,
+		INDEX_IDX_PLAYLIST_ID_SONG,
+		DATABASE_CREATE_DIRECTORIES,
+		INDEX_IDX_DIRECTORIES_PARENT_ID,
+		INDEX_IDX_SONGS_ALBUM_ID,
+		INDEX_IDX_GENRES_SONGS_SONG_ID,
+		INDEX_IDX_SONGS_PATH,
+		INDEX_IDX_SONGS_TITLE_SORT,
+		INDEX_IDX_GENRES_GENRE_SORT,
+		INDEX_IDX_ALBUMS_ALBUM_SORT,
+		DATABASE_CREATE_SONGS_SEARCH,
+		VIEW_CREATE_SONGS_ALBUMS_ARTISTS,
+		VIEW_CREATE_SONGS_ALBUMS_ARTISTS_HUGE,
+		VIEW_CREATE_ALBUMS_ARTISTS,
+		VIEW_CREATE_ARTISTS,
+		VIEW_CREATE_ALBUMARTISTS,
+		VIEW_CREATE_COMPOSERS,
+		VIEW_CREATE_PLAYLISTS,
+		VIEW_CREATE_PLAYLISTS_SONGS,
+	};
+
 	/**
 	 * Creates a new database schema on dbh
 	 *
 	 * @param dbh the writeable dbh to act on
 	 */
 	public static void createDatabaseSchema(SQLiteDatabase dbh) {
-		dbh.execSQL(DATABASE_CREATE_SONGS);
-		dbh.execSQL(DATABASE_CREATE_ALBUMS);
-		dbh.execSQL(DATABASE_CREATE_CONTRIBUTORS);
-		dbh.execSQL(DATABASE_CREATE_CONTRIBUTORS_SONGS);
-		dbh.execSQL(INDEX_IDX_CONTRIBUTORS_SONGS);
-		dbh.execSQL(DATABASE_CREATE_GENRES);
-		dbh.execSQL(DATABASE_CREATE_GENRES_SONGS);
-		dbh.execSQL(DATABASE_CREATE_PLAYLISTS);
-		dbh.execSQL(DATABASE_CREATE_PLAYLISTS_SONGS);
-		dbh.execSQL(INDEX_IDX_PLAYLIST_ID);
-		dbh.execSQL(INDEX_IDX_PLAYLIST_ID_SONG);
-		dbh.execSQL(VIEW_CREATE_SONGS_ALBUMS_ARTISTS);
-		dbh.execSQL(VIEW_CREATE_SONGS_ALBUMS_ARTISTS_HUGE);
-		dbh.execSQL(VIEW_CREATE_ALBUMS_ARTISTS);
-		dbh.execSQL(VIEW_CREATE_ARTISTS);
-		dbh.execSQL(VIEW_CREATE_ALBUMARTISTS);
-		dbh.execSQL(VIEW_CREATE_COMPOSERS);
-		dbh.execSQL(VIEW_CREATE_PLAYLISTS);
-		dbh.execSQL(VIEW_CREATE_PLAYLISTS_SONGS);
+		for (String sql : DATABASE_SCHEMA) {
+			dbh.execSQL(sql);
+		}
 	}
 
 	/**
@@ -364,6 +512,74 @@ public class MediaSchema {
 		if (oldVersion < 20190210) {
 			dbh.execSQL(VIEW_CREATE_PLAYLISTS);
 		}
+
+		if (oldVersion < 20261016) {
+			dbh.execSQL(DATABASE_CREATE_DIRECTORIES);
+			dbh.execSQL(INDEX_IDX_DIRECTORIES_PARENT_ID);
+		}
+
+		if (oldVersion < 20261017) {
+			dbh.execSQL(INDEX_IDX_SONGS_ALBUM_ID);
+			dbh.execSQL(INDEX_IDX_GENRES_SONGS_SONG_ID);
+		}
+
+		if (oldVersion < 20261018) {
+			String[] columns = { MediaLibrary.SongColumns.REPLAYGAIN_TRACK, MediaLibrary.SongColumns.REPLAYGAIN_ALBUM,
+			                     MediaLibrary.SongColumns.R128_TRACK, MediaLibrary.SongColumns.R128_ALBUM, MediaLibrary.SongColumns.R128_BASE };
+			for (String column : columns) {
+				dbh.execSQL("ALTER TABLE "+MediaLibrary.TABLE_SONGS+" ADD COLUMN "+column+" REAL");
+			}
+			// Invalidate (but do not drop) all entries, so that the next
+			// scan populates the new columns. The directory index would
+			// skip unchanged folders, so it must go, too.
+			dbh.execSQL("UPDATE songs SET mtime=1");
+			dbh.execSQL("DELETE FROM "+MediaLibrary.TABLE_DIRECTORIES);
+		}
+
+		if (oldVersion < 20261019) {
+			dbh.execSQL("ALTER TABLE "+MediaLibrary.TABLE_SONGS+" ADD COLUMN "+MediaLibrary.SongColumns.CODEC+" TEXT");
+			String[] columns = { MediaLibrary.SongColumns.BITRATE, MediaLibrary.SongColumns.SAMPLE_RATE,
+			                     MediaLibrary.SongColumns.CHANNELS, MediaLibrary.SongColumns.BITS_PER_SAMPLE };
+			for (String column : columns) {
+				dbh.execSQL("ALTER TABLE "+MediaLibrary.TABLE_SONGS+" ADD COLUMN "+column+" INTEGER");
+			}
+			// Same as above: rescan everything to populate the new columns
+			dbh.execSQL("UPDATE songs SET mtime=1");
+			dbh.execSQL("DELETE FROM "+MediaLibrary.TABLE_DIRECTORIES);
+		}
+
+		if (oldVersion < 20261020) {
+			dbh.execSQL(INDEX_IDX_SONGS_PATH);
+			dbh.execSQL(INDEX_IDX_SONGS_TITLE_SORT);
+			dbh.execSQL(INDEX_IDX_GENRES_GENRE_SORT);
+		}
+
+		if (oldVersion < 20261021) {
+			dbh.execSQL(DATABASE_CREATE_SONGS_SEARCH);
+			MediaMigrations.migrate_to_20261021(dbh);
+		}
+
+		if (oldVersion < 20261022) {
+			String[] counters = { MediaLibrary.AlbumColumns.SONG_COUNT, MediaLibrary.AlbumColumns.TOTAL_DURATION,
+			                      MediaLibrary.AlbumColumns.DISC_COUNT, MediaLibrary.AlbumColumns.LATEST_MTIME };
+			for (String column : counters) {
+				dbh.execSQL("ALTER TABLE "+MediaLibrary.TABLE_ALBUMS+" ADD COLUMN "+column+" INTEGER NOT NULL DEFAULT 0");
+			}
+			dbh.execSQL("ALTER TABLE "+MediaLibrary.TABLE_ALBUMS+" ADD COLUMN "+MediaLibrary.AlbumColumns.MIN_YEAR+" INTEGER");
+			dbh.execSQL("ALTER TABLE "+MediaLibrary.TABLE_ALBUMS+" ADD COLUMN "+MediaLibrary.AlbumColumns.MAX_YEAR+" INTEGER");
+			dbh.execSQL(INDEX_IDX_ALBUMS_ALBUM_SORT);
+			// The view now reads the stored duration. The new columns are populated
+			// by the consistency check running after every upgrade.
+			dbh.execSQL("DROP VIEW "+MediaLibrary.VIEW_ALBUMS_ARTISTS);
+			dbh.execSQL(VIEW_CREATE_ALBUMS_ARTISTS);
+		}
+
+		if (oldVersion < 20261023) {
+			dbh.execSQL(DATABASE_CREATE_GENRES_ALBUMS);
+			dbh.execSQL(DATABASE_CREATE_GENRES_CONTRIBUTORS);
+			dbh.execSQL(DATABASE_CREATE_CONTRIBUTORS_ALBUMS);
+			MediaLibraryBackend.rebuildRollups(dbh);
+		}
 	}
 
 }
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2026 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package ch.blinkenlights.android.medialibrary;
+
+import android.content.ContentValues;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+
+/**
+ * Maintains and queries the full text search index of songs.
+ *
+ * The index uses the default FTS4 tokenizer, which only folds the case of ASCII
+ * characters. All text is therefore normalized by us, both when it is indexed
+ * and when it is searched.
+ *
+ * Scripts such as Chinese, Japanese or Thai do not separate their words by
+ * spaces: the tokenizer sees a whole title as a single word, which MATCH only
+ * finds by its start. Words of these scripts are therefore searched with LIKE.
+ */
+class MediaSearchIndex {
+	/**
+	 * Sub-select returning the ids of songs matching a single MATCH argument
+	 */
+	private static final String SELECT_MATCHING_SONGS = "SELECT "+MediaLibrary.SongSearchColumns.DOCID+" FROM "+MediaLibrary.TABLE_SONGS_SEARCH
+	                                                  +" WHERE "+MediaLibrary.TABLE_SONGS_SEARCH+" MATCH ?";
+	/**
+	 * Sub-select returning the ids of songs, the condition is appended by the caller
+	 */
+	private static final String SELECT_SONGS_WHERE = "SELECT "+MediaLibrary.SongSearchColumns.DOCID+" FROM "+MediaLibrary.TABLE_SONGS_SEARCH+" WHERE ";
+	/**
+	 * All searchable columns of the index
+	 */
+	private static final String[] ALL_COLUMNS = { MediaLibrary.SongSearchColumns.TITLE, MediaLibrary.SongSearchColumns.ALBUM,
+	                                              MediaLibrary.SongSearchColumns.ARTIST, MediaLibrary.SongSearchColumns.ALBUMARTIST,
+	                                              MediaLibrary.SongSearchColumns.COMPOSER, MediaLibrary.SongSearchColumns.GENRE,
+	                                              MediaLibrary.SongSearchColumns.FILENAME };
+
+	/**
+	 * Normalizes text for the search index: diacritics are dropped, letters are
+	 * lowercased and any run of other characters becomes a single space.
+	 *
+	 * @param text the text to normalize, may be null
+	 * @return the normalized text, without leading or trailing spaces
+	 */
+	static String normalize(String text) {
+		if (text == null)
+			return "";
+
+		String decomposed = Normalizer.normalize(text, Normalizer.Form.NFKD);
+		StringBuilder sb = new StringBuilder(decomposed.length());
+		boolean pendingSpace = false;
+		for (int i = 0; i < decomposed.length(); ) {
+			int cp = decomposed.codePointAt(i);
+			i += Character.charCount(cp);
+
+			int type = Character.getType(cp);
+			if (type == Character.NON_SPACING_MARK || type == Character.ENCLOSING_MARK)
+				continue; // diacritics of the previous character
+
+			if (Character.isLetterOrDigit(cp) || type == Character.COMBINING_SPACING_MARK) {
+				if (pendingSpace && sb.length() != 0)
+					sb.append(' ');
+				sb.appendCodePoint(Character.toLowerCase(cp));
+				pendingSpace = false;
+			} else {
+				pendingSpace = true;
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Returns true if given word contains characters of a script which
+	 * does not separate its words by spaces
+	 *
+	 * @param word the normalized word to check
+	 */
+	static boolean isUnsegmented(String word) {
+		for (int i = 0; i < word.length(); ) {
+			int cp = word.codePointAt(i);
+			i += Character.charCount(cp);
+
+			switch (Character.UnicodeScript.of(cp)) {
+				case HAN:
+				case HIRAGANA:
+				case KATAKANA:
+				case THAI:
+				case LAO:
+				case KHMER:
+				case MYANMAR:
+				case TIBETAN:
+					return true;
+				default:
+					break;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the search index entry of a song
+	 *
+	 * @param songId the id of the song
+	 * @param title the title of the song
+	 * @param album the album of the song
+	 * @param artist the artist of the song
+	 * @param albumartist the albumartist of the song, may be null
+	 * @param composer the composer of the song, may be null
+	 * @param genres all genres of the song, separated by whitespace, may be null
+	 * @param path the full path of the song
+	 * @return the values to insert into TABLE_SONGS_SEARCH
+	 */
+	static ContentValues buildValues(long songId, String title, String album, String artist, String albumartist, String composer, String genres, String path) {
+		ContentValues v = new ContentValues();
+		v.put(MediaLibrary.SongSearchColumns.DOCID,       songId);
+		v.put(MediaLibrary.SongSearchColumns.TITLE,       normalize(title));
+		v.put(MediaLibrary.SongSearchColumns.ALBUM,       normalize(album));
+		v.put(MediaLibrary.SongSearchColumns.ARTIST,      normalize(artist));
+		v.put(MediaLibrary.SongSearchColumns.ALBUMARTIST, normalize(albumartist));
+		v.put(MediaLibrary.SongSearchColumns.COMPOSER,    normalize(composer));
+		v.put(MediaLibrary.SongSearchColumns.GENRE,       normalize(genres));
+		v.put(MediaLibrary.SongSearchColumns.FILENAME,    normalize(path.substring(path.lastIndexOf('/') + 1)));
+		return v;
+	}
+
+	/**
+	 * Returns a sub-select listing the ids of all songs matching the given search string
+	 *
+	 * @param constraint the search string, as entered by the user
+	 * @param columns the SongSearchColumns to search in, null to search all of them
+	 * @param args the list to append the selection arguments to
+	 * @return the sub-select, null if the constraint does not contain any searchable words
+	 */
+	static String buildSongSearch(String constraint, String[] columns, ArrayList<String> args) {
+		String normalized = normalize(constraint);
+		if (normalized.length() == 0)
+			return null;
+
+		// Normalized words only consist of lowercase letters and digits, so they
+		// never clash with the (uppercase) operators of the FTS query syntax.
+		String[] words = normalized.split(" ");
+		boolean unsegmented = false;
+		for (String word : words) {
+			unsegmented |= isUnsegmented(word);
+		}
+
+		if (!unsegmented && (columns == null || columns.length == 1)) {
+			// Implicit AND of all words: each may match in any column
+			StringBuilder match = new StringBuilder();
+			for (String word : words) {
+				if (match.length() != 0)
+					match.append(' ');
+				if (columns != null)
+					match.append(columns[0]).append(':');
+				match.append(word).append('*');
+			}
+			args.add(match.toString());
+			return SELECT_MATCHING_SONGS;
+		}
+
+		// Restricting a word to a set of columns needs an OR, and the precedence of OR
+		// against the implicit AND differs between the standard and enhanced query
+		// syntax: search each word on its own and intersect the results.
+		StringBuilder sql = new StringBuilder();
+		for (String word : words) {
+			if (sql.length() != 0)
+				sql.append(" INTERSECT ");
+
+			if (isUnsegmented(word)) {
+				// Normalized words never contain the wildcards of LIKE
+				sql.append(SELECT_SONGS_WHERE).append('(');
+				String[] searched = (columns == null ? ALL_COLUMNS : columns);
+				for (int i = 0; i < searched.length; i++) {
+					if (i != 0)
+						sql.append(" OR ");
+					sql.append(searched[i]).append(" LIKE ?");
+					args.add("%"+word+"%");
+				}
+				sql.append(')');
+				continue;
+			}
+
+			StringBuilder match = new StringBuilder();
+			if (columns == null) {
+				match.append(word).append('*');
+			} else {
+				for (String column : columns) {
+					if (match.length() != 0)
+						match.append(" OR ");
+					match.append(column).append(':').append(word).append('*');
+				}
+			}
+			sql.append(SELECT_MATCHING_SONGS);
+			args.add(match.toString());
+		}
+		return sql.toString();
+	}
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2026 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ch.blinkenlights.android.medialibrary;
+
+import android.database.Cursor;
+
+/**
+ * Snapshot of the per-song state the scanner needs to decide if a file changed:
+ * mtime, flags, playcount and skipcount, keyed by song id.
+ *
+ * This is an open addressing hash map using linear probing on primitive
+ * arrays, so a lookup does not allocate anything. The map is not thread safe
+ * and must only be used by the scanner thread.
+ */
+class MediaSongStateCache {
+	/**
+	 * Key used to mark free slots. Song ids are positive hashes, but
+	 * we still handle an id of 0 to be on the safe side.
+	 */
+	private static final long FREE_KEY = 0;
+	/**
+	 * Slot returned for the FREE_KEY id, if present.
+	 */
+	private static final int ZERO_SLOT = -2;
+	/**
+	 * The minimal capacity of a new map
+	 */
+	private static final int MIN_CAPACITY = 64;
+
+	private long[] mKeys;
+	private long[] mMtimes;
+	private int[] mFlags;
+	private int[] mPlayCounts;
+	private int[] mSkipCounts;
+	/**
+	 * Number of used slots, excluding the zero key
+	 */
+	private int mSize;
+	/**
+	 * mKeys.length - 1, used to wrap slots
+	 */
+	private int mMask;
+	/**
+	 * True if the zero key is present, its values live in the extra
+	 * slot at the very end of the value arrays
+	 */
+	private boolean mHasZeroKey;
+
+	/**
+	 * Creates a new cache
+	 *
+	 * @param expected the expected number of entries
+	 */
+	MediaSongStateCache(int expected) {
+		allocate(capacityFor(expected));
+	}
+
+	/**
+	 * Returns a new cache populated with all songs of the library
+	 *
+	 * @param backend the backend to query
+	 * @return a new cache
+	 */
+	static MediaSongStateCache fromBackend(MediaLibraryBackend backend) {
+		final String[] projection = { MediaLibrary.SongColumns._ID, MediaLibrary.SongColumns.MTIME, MediaLibrary.SongColumns.FLAGS,
+		                              MediaLibrary.SongColumns.PLAYCOUNT, MediaLibrary.SongColumns.SKIPCOUNT };
+		Cursor cursor = backend.query(false, MediaLibrary.TABLE_SONGS, projection, null, null, null, null, null, null);
+		MediaSongStateCache cache = new MediaSongStateCache(cursor.getCount());
+		while (cursor.moveToNext()) {
+			cache.put(cursor.getLong(0), cursor.getLong(1), cursor.getInt(2), cursor.getInt(3), cursor.getInt(4));
+		}
+		cursor.close();
+		return cache;
+	}
+
+	/**
+	 * Returns the slot of given song id
+	 *
+	 * @param id the song id to look up
+	 * @return the slot to use with the getters, negative if the id is unknown
+	 */
+	int indexOf(long id) {
+		if (id == FREE_KEY)
+			return (mHasZeroKey ? ZERO_SLOT : -1);
+
+		int slot = mix(id) & mMask;
+		while (mKeys[slot] != FREE_KEY) {
+			if (mKeys[slot] == id)
+				return slot;
+			slot = (slot + 1) & mMask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the mtime (in unixtime) stored at slot
+	 */
+	long getMtime(int slot) {
+		return mMtimes[valueSlot(slot)];
+	}
+
+	/**
+	 * Returns the flags stored at slot
+	 */
+	int getFlags(int slot) {
+		return mFlags[valueSlot(slot)];
+	}
+
+	/**
+	 * Returns the playcount stored at slot
+	 */
+	int getPlayCount(int slot) {
+		return mPlayCounts[valueSlot(slot)];
+	}
+
+	/**
+	 * Returns the skipcount stored at slot
+	 */
+	int getSkipCount(int slot) {
+		return mSkipCounts[valueSlot(slot)];
+	}
+
+	/**
+	 * Adds or replaces the state of a song
+	 *
+	 * @param id the song id
+	 * @param mtime the mtime of the song, in unixtime
+	 * @param flags the flags of the song
+	 * @param playCount the playcount of the song
+	 * @param skipCount the skipcount of the song
+	 */
+	void put(long id, long mtime, int flags, int playCount, int skipCount) {
+		int slot;
+		if (id == FREE_KEY) {
+			mHasZeroKey = true;
+			slot = mKeys.length;
+		} else {
+			if ((mSize + 1) * 4 > mKeys.length * 3)
+				allocate(mKeys.length * 2);
+
+			slot = mix(id) & mMask;
+			while (mKeys[slot] != FREE_KEY && mKeys[slot] != id) {
+				slot = (slot + 1) & mMask;
+			}
+			if (mKeys[slot] == FREE_KEY) {
+				mKeys[slot] = id;
+				mSize++;
+			}
+		}
+		mMtimes[slot] = mtime;
+		mFlags[slot] = flags;
+		mPlayCounts[slot] = playCount;
+		mSkipCounts[slot] = skipCount;
+	}
+
+	/**
+	 * Removes a song from the cache, does nothing if the song was not cached.
+	 *
+	 * @param id the song id to remove
+	 */
+	void remove(long id) {
+		int slot = indexOf(id);
+		if (slot == ZERO_SLOT) {
+			mHasZeroKey = false;
+			return;
+		}
+		if (slot < 0)
+			return;
+
+		// Shift back all following entries of this cluster, so that
+		// lookups never hit a hole before reaching their key.
+		int next = (slot + 1) & mMask;
+		while (mKeys[next] != FREE_KEY) {
+			int home = mix(mKeys[next]) & mMask;
+			// Move the entry if its home slot is not within (slot, next]
+			if (((next - home) & mMask) >= ((next - slot) & mMask)) {
+				mKeys[slot] = mKeys[next];
+				mMtimes[slot] = mMtimes[next];
+				mFlags[slot] = mFlags[next];
+				mPlayCounts[slot] = mPlayCounts[next];
+				mSkipCounts[slot] = mSkipCounts[next];
+				slot = next;
+			}
+			next = (next + 1) & mMask;
+		}
+		mKeys[slot] = FREE_KEY;
+		mSize--;
+	}
+
+	/**
+	 * Returns the number of cached songs
+	 */
+	int size() {
+		return mSize + (mHasZeroKey ? 1 : 0);
+	}
+
+	/**
+	 * Maps the slot returned by indexOf() to an index in the value arrays
+	 */
+	private int valueSlot(int slot) {
+		return (slot == ZERO_SLOT ? mKeys.length : slot);
+	}
+
+	/**
+	 * (Re-)allocates all arrays, re-inserting existing entries
+	 *
+	 * @param capacity the new capacity, must be a power of two
+	 */
+	private void allocate(int capacity) {
+		long[] keys = mKeys;
+		long[] mtimes = mMtimes;
+		int[] flags = mFlags;
+		int[] playCounts = mPlayCounts;
+		int[] skipCounts = mSkipCounts;
+
+		// Value arrays have one extra slot for the zero key
+		mKeys = new long[capacity];
+		mMtimes = new long[capacity + 1];
+		mFlags = new int[capacity + 1];
+		mPlayCounts = new int[capacity + 1];
+		mSkipCounts = new int[capacity + 1];
+		mMask = capacity - 1;
+		mSize = 0;
+
+		if (keys != null) {
+			int zero = keys.length;
+			mMtimes[capacity] = mtimes[zero];
+			mFlags[capacity] = flags[zero];
+			mPlayCounts[capacity] = playCounts[zero];
+			mSkipCounts[capacity] = skipCounts[zero];
+
+			for (int i = 0; i < keys.length; i++) {
+				if (keys[i] != FREE_KEY)
+					put(keys[i], mtimes[i], flags[i], playCounts[i], skipCounts[i]);
+			}
+		}
+	}
+
+	/**
+	 * Returns a power of two capacity able to hold `expected' entries
+	 * at a load factor of at most 0.5
+	 */
+	private static int capacityFor(int expected) {
+		int capacity = MIN_CAPACITY;
+		while (capacity < expected * 2) {
+			capacity <<= 1;
+		}
+		return capacity;
+	}
+
+	/**
+	 * Spreads the bits of the given id: our ids are string hashes
+	 * whose lower bits alone do not distribute well
+	 */
+	private static int mix(long id) {
+		long h = id * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32));
+	}
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2026 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ch.blinkenlights.android.medialibrary;
+
+import android.database.DatabaseUtils;
+
+import java.util.ArrayList;
+
+/**
+ * Describes the query of a library tab and builds its selection and sort order.
+ *
+ * This is used by the MediaAdapter of each tab, and by the query plan checks
+ * which must see exactly the same SQL.
+ */
+public class MediaTabQuery {
+	/**
+	 * The table / view to use for this query
+	 */
+	public final String source;
+	/**
+	 * The fields to use from the content provider. The last field will be
+	 * displayed in the MediaView, as will the first field if there are
+	 * multiple fields. Other fields will be used for searching.
+	 */
+	public final String[] fields;
+	/**
+	 * The collation keys corresponding to each field. If provided, these are
+	 * used to speed up sorting and filtering.
+	 */
+	public final String[] fieldKeys;
+	/**
+	 * The columns of the song search index to search in, null to search
+	 * all of them.
+	 */
+	public final String[] searchColumns;
+	/**
+	 * Selection restricting source to the songs found in the search index,
+	 * %s is replaced by the sub-select returning the song ids. If null,
+	 * fieldKeys are used to filter the items of this tab.
+	 */
+	public final String searchSelection;
+	/**
+	 * An array ORDER BY expressions for each sort mode. %1$s is replaced by
+	 * ASC or DESC as appropriate before being passed to the query.
+	 */
+	public final String[] sortValues;
+	/**
+	 * True if the items of this tab are part of the song search index
+	 */
+	private final boolean mIndexed;
+	/**
+	 * True if the songs of an item should also be sorted by album
+	 */
+	private final boolean mSongsByAlbum;
+
+	public static final MediaTabQuery ARTISTS = new MediaTabQuery(MediaLibrary.VIEW_ARTISTS,
+		new String[] { MediaLibrary.ContributorColumns.ARTIST },
+		new String[] { MediaLibrary.ContributorColumns.ARTIST_SORT },
+		new String[] { MediaLibrary.SongSearchColumns.ARTIST },
+		buildContributorSearchSelection(MediaLibrary.ROLE_ARTIST),
+		new String[] { MediaLibrary.ContributorColumns.ARTIST_SORT+" %1$s", MediaLibrary.ContributorColumns.MTIME+" %1$s" },
+		true, true);
+
+	public static final MediaTabQuery ALBUMARTISTS = new MediaTabQuery(MediaLibrary.VIEW_ALBUMARTISTS,
+		new String[] { MediaLibrary.ContributorColumns.ALBUMARTIST },
+		new String[] { MediaLibrary.ContributorColumns.ALBUMARTIST_SORT },
+		new String[] { MediaLibrary.SongSearchColumns.ALBUMARTIST },
+		buildContributorSearchSelection(MediaLibrary.ROLE_ALBUMARTIST),
+		new String[] { MediaLibrary.ContributorColumns.ALBUMARTIST_SORT+" %1$s", MediaLibrary.ContributorColumns.MTIME+" %1$s" },
+		true, false);
+
+	public static final MediaTabQuery COMPOSERS = new MediaTabQuery(MediaLibrary.VIEW_COMPOSERS,
+		new String[] { MediaLibrary.ContributorColumns.COMPOSER },
+		new String[] { MediaLibrary.ContributorColumns.COMPOSER_SORT },
+		new String[] { MediaLibrary.SongSearchColumns.COMPOSER },
+		buildContributorSearchSelection(MediaLibrary.ROLE_COMPOSER),
+		new String[] { MediaLibrary.ContributorColumns.COMPOSER_SORT+" %1$s", MediaLibrary.ContributorColumns.MTIME+" %1$s" },
+		true, false); // fixme: sort the songs of a composer by album?
+
+	public static final MediaTabQuery ALBUMS = new MediaTabQuery(MediaLibrary.VIEW_ALBUMS_ARTISTS,
+		new String[] { MediaLibrary.AlbumColumns.ALBUM, MediaLibrary.ContributorColumns.ARTIST, MediaLibrary.SongColumns.DURATION },
+		new String[] { MediaLibrary.AlbumColumns.ALBUM_SORT, MediaLibrary.ContributorColumns.ARTIST_SORT },
+		new String[] { MediaLibrary.SongSearchColumns.ALBUM, MediaLibrary.SongSearchColumns.ARTIST },
+		MediaLibrary.AlbumColumns._ID+" IN (SELECT "+MediaLibrary.SongColumns.ALBUM_ID+" FROM "+MediaLibrary.TABLE_SONGS
+		  +" WHERE "+MediaLibrary.SongColumns._ID+" IN (%s))",
+		new String[] { MediaLibrary.AlbumColumns.ALBUM_SORT+" %1$s",
+		               MediaLibrary.ContributorColumns.ARTIST_SORT+" %1$s,"+MediaLibrary.AlbumColumns.ALBUM_SORT+" %1$s",
+		               MediaLibrary.AlbumColumns.PRIMARY_ALBUM_YEAR+" %1$s", MediaLibrary.AlbumColumns.MTIME+" %1$s",
+		               MediaLibrary.SongColumns.DURATION+" %1$s" },
+		true, false);
+
+	public static final MediaTabQuery SONGS = new MediaTabQuery(MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS,
+		new String[] { MediaLibrary.SongColumns.TITLE, MediaLibrary.AlbumColumns.ALBUM, MediaLibrary.ContributorColumns.ARTIST, MediaLibrary.SongColumns.DURATION },
+		new String[] { MediaLibrary.SongColumns.TITLE_SORT, MediaLibrary.AlbumColumns.ALBUM_SORT, MediaLibrary.ContributorColumns.ARTIST_SORT, null },
+		null, // search everything
+		MediaLibrary.SongColumns._ID+" IN (%s)",
+		new String[] { MediaLibrary.SongColumns.TITLE_SORT+" %1$s",
+		               MediaLibrary.ContributorColumns.ARTIST_SORT+" %1$s,"+MediaLibrary.AlbumColumns.ALBUM_SORT+" %1$s,"+MediaLibrary.SongColumns.DISC_NUMBER+","+MediaLibrary.SongColumns.SONG_NUMBER,
+		               MediaLibrary.ContributorColumns.ARTIST_SORT+" %1$s,"+MediaLibrary.AlbumColumns.ALBUM_SORT+" %1$s,"+MediaLibrary.SongColumns.TITLE_SORT+" %1$s",
+		               MediaLibrary.AlbumColumns.ALBUM_SORT+" %1$s,"+MediaLibrary.SongColumns.DISC_NUMBER+","+MediaLibrary.SongColumns.SONG_NUMBER,
+		               MediaLibrary.SongColumns.YEAR+" %1$s,"+MediaLibrary.AlbumColumns.ALBUM_SORT+" %1$s,"+MediaLibrary.SongColumns.DISC_NUMBER+","+MediaLibrary.SongColumns.SONG_NUMBER,
+		               MediaLibrary.SongColumns.MTIME+" %1$s,"+MediaLibrary.SongColumns.DISC_NUMBER+","+MediaLibrary.SongColumns.SONG_NUMBER,
+		               MediaLibrary.SongColumns.PLAYCOUNT+" %1$s,"+MediaLibrary.SongColumns.DISC_NUMBER+","+MediaLibrary.SongColumns.SONG_NUMBER,
+		               MediaLibrary.SongColumns.PATH+" %1$s",
+		               MediaLibrary.SongColumns.DURATION+" %1$s" },
+		true, false);
+
+	public static final MediaTabQuery PLAYLISTS = new MediaTabQuery(MediaLibrary.VIEW_PLAYLISTS,
+		new String[] { MediaLibrary.PlaylistColumns.NAME, MediaLibrary.SongColumns.DURATION },
+		new String[] { MediaLibrary.PlaylistColumns.NAME_SORT },
+		null,
+		null,
+		new String[] { MediaLibrary.PlaylistColumns.NAME_SORT+" %1$s", MediaLibrary.PlaylistColumns._ID+" %1$s",
+		               MediaLibrary.SongColumns.DURATION+" %1$s" },
+		false, false); // playlists are not part of the search index
+
+	// Songs may have multiple genres, so the search index cannot tell which
+	// of them matched: the (short) genre list keeps filtering its own keys and
+	// the index is only used to look up the songs.
+	public static final MediaTabQuery GENRES = new MediaTabQuery(MediaLibrary.TABLE_GENRES,
+		new String[] { MediaLibrary.GenreColumns._GENRE },
+		new String[] { MediaLibrary.GenreColumns._GENRE_SORT },
+		new String[] { MediaLibrary.SongSearchColumns.GENRE },
+		null,
+		new String[] { MediaLibrary.GenreColumns._GENRE_SORT+" %1$s" },
+		true, false);
+
+	private MediaTabQuery(String source, String[] fields, String[] fieldKeys, String[] searchColumns, String searchSelection,
+	                      String[] sortValues, boolean indexed, boolean songsByAlbum) {
+		this.source = source;
+		this.fields = fields;
+		this.fieldKeys = fieldKeys;
+		this.searchColumns = searchColumns;
+		this.searchSelection = searchSelection;
+		this.sortValues = sortValues;
+		mIndexed = indexed;
+		mSongsByAlbum = songsByAlbum;
+	}
+
+	/**
+	 * Returns a selection restricting contributors to those of the songs
+	 * found in the search index
+	 *
+	 * @param role the role of the contributors to select
+	 * @return the selection, %s is to be replaced by the song search
+	 */
+	private static String buildContributorSearchSelection(int role) {
+		return MediaLibrary.ContributorColumns._ID+" IN (SELECT "+MediaLibrary.ContributorSongColumns._CONTRIBUTOR_ID+" FROM "+MediaLibrary.TABLE_CONTRIBUTORS_SONGS
+		      +" WHERE "+MediaLibrary.ContributorSongColumns.ROLE+"="+role+" AND "+MediaLibrary.ContributorSongColumns.SONG_ID+" IN (%s))";
+	}
+
+	/**
+	 * Returns the table / view to query
+	 *
+	 * @param returnSongs return songs instead of the items of this tab if true
+	 */
+	public String getSource(boolean returnSongs) {
+		return (returnSongs ? MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS_HUGE : source);
+	}
+
+	/**
+	 * Returns true if a search string is looked up in the song search index,
+	 * false if the fieldKeys of the items are filtered instead
+	 *
+	 * @param returnSongs return songs instead of the items of this tab if true
+	 */
+	public boolean usesSearchIndex(boolean returnSongs) {
+		// Playlists are not part of the search index, anything else is, as long as we
+		// return songs or know how to map them to the items of this tab.
+		return mIndexed && (returnSongs || searchSelection != null);
+	}
+
+	/**
+	 * Returns the ORDER BY expression of a sort mode
+	 *
+	 * @param mode the index of the sort mode in sortValues
+	 * @param descending sort in descending order if true
+	 * @param returnSongs return songs instead of the items of this tab if true
+	 * @return the sort order
+	 */
+	public String buildSort(int mode, boolean descending, boolean returnSongs) {
+		// Fetch current sorting mode and sort by disc+track if we are going to look up the songs table
+		String sortRaw = sortValues[mode];
+		if (returnSongs) {
+			// songs returned from the artist tab should also sort by album
+			if (mSongsByAlbum)
+				sortRaw += ", "+MediaLibrary.AlbumColumns.ALBUM_SORT+" %1$s";
+			// and this is for all types:
+			sortRaw += ", "+MediaLibrary.SongColumns.DISC_NUMBER+", "+MediaLibrary.SongColumns.SONG_NUMBER;
+		}
+
+		// ...and assemble the SQL string we are really going to use
+		return String.format(sortRaw, descending ? "DESC" : "ASC");
+	}
+
+	/**
+	 * Returns the selection of a query
+	 *
+	 * @param constraint the search string entered by the user, may be null
+	 * @param limiter the data of the limiter passed by a parent tab, may be null
+	 * @param returnSongs return songs instead of the items of this tab if true
+	 * @param args the list to append the selection arguments to
+	 * @return the selection, empty if nothing is selected
+	 */
+	public String buildSelection(String constraint, Object limiter, boolean returnSongs, ArrayList<String> args) {
+		StringBuilder selection = new StringBuilder();
+
+		// include the constraint (aka: search string) if any
+		if (constraint != null && constraint.length() != 0 && usesSearchIndex(returnSongs)) {
+			String songSearch = MediaLibrary.buildSongSearch(constraint, searchColumns, args);
+			if (songSearch != null) {
+				String idSelection = (returnSongs ? MediaLibrary.SongColumns._ID+" IN (%s)" : searchSelection);
+				selection.append(String.format(idSelection, songSearch));
+			}
+		} else if (constraint != null && constraint.length() != 0) {
+			String colKey = MediaLibrary.keyFor(constraint);
+			String spaceColKey = DatabaseUtils.getCollationKey(" ");
+			String[] needles = colKey.split(spaceColKey);
+			String[] keySource = fieldKeys;
+
+			StringBuilder keys = new StringBuilder(20);
+			keys.append(keySource[0]);
+			for (int j = 1; j != keySource.length; ++j) {
+				String src = keySource[j];
+				if (src != null) {
+					keys.append("||");
+					keys.append(src);
+				}
+			}
+
+			for (int j = 0; j != needles.length; ++j) {
+				args.add('%' + needles[j] + '%');
+
+				// If we have something in the selection args (i.e. j > 0), we
+				// must have something in the selection, so we can skip the more
+				// costly direct check of the selection length.
+				if (j != 0 || selection.length() != 0)
+					selection.append(" AND ");
+				selection.append(keys);
+				selection.append(" LIKE ?");
+			}
+		}
+
+		if (limiter != null) {
+			if (selection.length() != 0) {
+				selection.append(" AND ");
+			}
+			selection.append(limiter);
+		}
+		return selection.toString();
+	}
+}
@@ -19,8 +19,11 @@ package ch.blinkenlights.android.vanilla;
 
 import android.util.LruCache;
 import ch.blinkenlights.bastp.Bastp;
-import java.util.ArrayList;
-import java.util.HashMap;
+import ch.blinkenlights.bastp.TagCache;
+import ch.blinkenlights.bastp.TagCollector;
+import java.io.File;
+import java.util.List;
+import java.util.Map;
 
 public class BastpUtil {
 	/**
@@ -34,9 +37,12 @@ public class BastpUtil {
 		public float album;
 		public float track;
 		public boolean found;
+		// length and mtime of the file when the values were read
+		long length;
+		long mtime;
 	}
 	/**
-	 * LRU cache for ReplayGain values
+	 * LRU cache for ReplayGain values, keyed by path
 	 */
 	private class RGLruCache extends LruCache<String, GainValues> {
 		public RGLruCache(int size) {
@@ -58,9 +64,16 @@ public class BastpUtil {
 			path = "//null\\";
 		}
 
+		// The file may have been re-tagged since we cached its values
+		File file = new File(path);
+		long length = file.length();
+		long mtime = file.lastModified();
+
 		GainValues cached = rgCache.get(path);
-		if(cached == null) {
-			cached = getReplayGainValuesFromFile(path);
+		if(cached == null || cached.length != length || cached.mtime != mtime) {
+			cached = getReplayGainValuesFromFile(file);
+			cached.length = length;
+			cached.mtime = mtime;
 			rgCache.put(path, cached);
 		}
 		return cached;
@@ -69,40 +82,67 @@ public class BastpUtil {
 	/**
 	 *  Parse given file and return track,album replay gain values
 	 */
-	private GainValues getReplayGainValuesFromFile(String path) {
-		HashMap tags  = (new Bastp()).getTags(path);
+	private GainValues getReplayGainValuesFromFile(File file) {
+		// The scanner or the track details may have parsed this file already
+		Map tags = TagCache.get(file);
+		if(tags == null) {
+			// Only ask for the gain tags: bastp skips decoding everything else
+			// and stops once it found one value of each key of either family.
+			TagCollector collector = new TagCollector(new String[][] {
+				{ "REPLAYGAIN_TRACK_GAIN", "REPLAYGAIN_ALBUM_GAIN" },
+				{ "R128_BASTP_BASE_GAIN", "R128_TRACK_GAIN", "R128_ALBUM_GAIN" },
+			});
+			(new Bastp()).visitTags(file.getPath(), collector);
+			tags = collector.getTags();
+		}
+		// R128 values are stored as Q7.8 fixed point numbers
+		return getReplayGainValues(getGain(tags, "REPLAYGAIN_TRACK_GAIN", 1.0f), getGain(tags, "REPLAYGAIN_ALBUM_GAIN", 1.0f),
+		                           getGain(tags, "R128_BASTP_BASE_GAIN", 256.0f),
+		                           getGain(tags, "R128_TRACK_GAIN", 256.0f), getGain(tags, "R128_ALBUM_GAIN", 256.0f));
+	}
+
+	/**
+	 * Returns a GainValues object for already known gain values,
+	 * such as the ones stored in the library. All values are in dB, NaN if absent.
+	 *
+	 * @param rgTrack the replay gain of the track
+	 * @param rgAlbum the replay gain of the album
+	 * @param r128Base the output gain of the opus header
+	 * @param r128Track the R128 gain of the track
+	 * @param r128Album the R128 gain of the album
+	 */
+	public GainValues getReplayGainValues(float rgTrack, float rgAlbum, float r128Base, float r128Track, float r128Album) {
 		GainValues gv = new GainValues();
 
 		// normal replay gain
-		if(tags.containsKey("REPLAYGAIN_TRACK_GAIN")) {
-			gv.track = getFloatFromString((String)((ArrayList)tags.get("REPLAYGAIN_TRACK_GAIN")).get(0));
+		if(!Float.isNaN(rgTrack)) {
+			gv.track = rgTrack;
 			gv.found = true;
 		}
-		if(tags.containsKey("REPLAYGAIN_ALBUM_GAIN")) {
-			gv.album = getFloatFromString((String)((ArrayList)tags.get("REPLAYGAIN_ALBUM_GAIN")).get(0));
+		if(!Float.isNaN(rgAlbum)) {
+			gv.album = rgAlbum;
 			gv.found = true;
 		}
 
 		// R128 replay gain
 		boolean r128 = false;
-		if(tags.containsKey("R128_BASTP_BASE_GAIN")) {
+		if(!Float.isNaN(r128Base)) {
 			// This is the gain found in the opus header which automatically gets applied by the media framework.
 			// We therefore do not need to include it in our calculation, but we set the 'found' bit and reset
 			// both album and track gain information as an opus file should only ever contain r128 gain infos.
-			float base = getFloatFromString((String)((ArrayList)tags.get("R128_BASTP_BASE_GAIN")).get(0)) / 256.0f;
-			if (base != 0.0f) {
+			if (r128Base != 0.0f) {
 				gv.track = 0;
 				gv.album = 0;
 				gv.found = true;
 			}
 		}
-		if(tags.containsKey("R128_TRACK_GAIN")) {
-			gv.track += getFloatFromString((String)((ArrayList)tags.get("R128_TRACK_GAIN")).get(0)) / 256.0f;
+		if(!Float.isNaN(r128Track)) {
+			gv.track += r128Track;
 			gv.found = true;
 			r128 = true;
 		}
-		if(tags.containsKey("R128_ALBUM_GAIN")) {
-			gv.album += getFloatFromString((String)((ArrayList)tags.get("R128_ALBUM_GAIN")).get(0)) / 256.0f;
+		if(!Float.isNaN(r128Album)) {
+			gv.album += r128Album;
 			gv.found = true;
 			r128 = true;
 		}
@@ -114,6 +154,15 @@ public class BastpUtil {
 		return gv;
 	}
 
+	/**
+	 * Returns the first value of `key' divided by `divisor', NaN if not found
+	 */
+	private float getGain(Map tags, String key, float divisor) {
+		if(!tags.containsKey(key))
+			return Float.NaN;
+		return getFloatFromString((String)((List)tags.get(key)).get(0)) / divisor;
+	}
+
 	/**
 	 * Parses common replayGain string values
 	 */
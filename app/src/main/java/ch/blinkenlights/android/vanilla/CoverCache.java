@@ -32,12 +32,16 @@ import android.net.Uri;
 import android.os.Environment;
 import android.util.DisplayMetrics;
 import android.util.Log;
+import ch.blinkenlights.bastp.TagCache;
 
 import java.io.ByteArrayOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.util.Map;
 import java.util.Random;
 import java.util.regex.Pattern;
 
@@ -472,15 +476,25 @@ public class CoverCache {
 				}
 
 				if (inputStream == null && (CoverCache.mCoverLoadMode & CoverCache.COVER_MODE_INLINE) != 0) {
-					MediaMetadataRetriever mmr = new MediaMetadataRetriever();
-					mmr.setDataSource(song.path);
+					// bastp knows where the picture is stored for most formats: decode
+					// it straight from the file instead of asking the media framework.
+					Map tags = TagCache.getTags(song.path);
+					if (tags.containsKey("picture_offset")) {
+						long offset = (Long)tags.get("picture_offset");
+						long length = (Long)tags.get("picture_length");
+						sampleInputStream = new FileRegionInputStream(song.path, offset, length);
+						inputStream = new FileRegionInputStream(song.path, offset, length);
+					} else {
+						MediaMetadataRetriever mmr = new MediaMetadataRetriever();
+						mmr.setDataSource(song.path);
 
-					byte[] data = mmr.getEmbeddedPicture();
-					if (data != null) {
-						sampleInputStream = new ByteArrayInputStream(data);
-						inputStream = new ByteArrayInputStream(data);
+						byte[] data = mmr.getEmbeddedPicture();
+						if (data != null) {
+							sampleInputStream = new ByteArrayInputStream(data);
+							inputStream = new ByteArrayInputStream(data);
+						}
+						mmr.release();
 					}
-					mmr.release();
 				}
 
 				if (inputStream != null) {
@@ -524,4 +538,64 @@ public class CoverCache {
 		}
 
 	}
+
+	/**
+	 * An input stream returning 'length' bytes of a file, starting at 'offset'
+	 */
+	private static class FileRegionInputStream extends FilterInputStream {
+		/**
+		 * Number of bytes left in this region
+		 */
+		private long mRemaining;
+
+		FileRegionInputStream(String path, long offset, long length) throws IOException {
+			super(new FileInputStream(path));
+			mRemaining = length;
+			while (offset > 0) {
+				long skipped = in.skip(offset);
+				if (skipped <= 0) {
+					close();
+					throw new IOException("Failed to seek to "+offset+" in "+path);
+				}
+				offset -= skipped;
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (mRemaining <= 0)
+				return -1;
+			int b = in.read();
+			if (b != -1)
+				mRemaining--;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (mRemaining <= 0)
+				return -1;
+			int bread = in.read(b, off, (int)Math.min(len, mRemaining));
+			if (bread > 0)
+				mRemaining -= bread;
+			return bread;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = in.skip(Math.min(n, mRemaining));
+			mRemaining -= skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int)Math.min(in.available(), mRemaining);
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
 }
@@ -541,7 +541,7 @@ public class FullPlaybackActivity extends SlidingPlaybackActivity
 
 			mFormat = data.getFormat();
 
-			BastpUtil.GainValues rg = PlaybackService.get(this).getReplayGainValues(song.path);
+			BastpUtil.GainValues rg = PlaybackService.get(this).getReplayGainValues(song);
 			mReplayGain = String.format("found=%s, track=%.2f, album=%.2f", rg.found, rg.track, rg.album);
 		}
 
@@ -24,11 +24,11 @@
 package ch.blinkenlights.android.vanilla;
 
 import ch.blinkenlights.android.medialibrary.MediaLibrary;
+import ch.blinkenlights.android.medialibrary.MediaTabQuery;
 
 import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
-import android.database.DatabaseUtils;
 import android.provider.BaseColumns;
 import android.provider.MediaStore;
 import android.text.format.DateUtils;
@@ -43,7 +43,6 @@ import java.util.Date;
 import java.util.List;
 import java.util.regex.Pattern;
 import java.util.ArrayList;
-import java.lang.StringBuilder;
 
 
 /**
@@ -91,20 +90,9 @@ public class MediaAdapter
 	 */
 	private final int mType;
 	/**
-	 * The table / view to use for this query
+	 * The query of this tab: its source, fields, search and sort orders
 	 */
-	private String mSource;
-	/**
-	 * The fields to use from the content provider. The last field will be
-	 * displayed in the MediaView, as will the first field if there are
-	 * multiple fields. Other fields will be used for searching.
-	 */
-	private String[] mFields;
-	/**
-	 * The collation keys corresponding to each field. If provided, these are
-	 * used to speed up sorting and filtering.
-	 */
-	private String[] mFieldKeys;
+	private final MediaTabQuery mQuery;
 	/**
 	 * The columns to query from the content provider.
 	 */
@@ -119,11 +107,6 @@ public class MediaAdapter
 	 * The constraint used for filtering, set by the search box.
 	 */
 	private String mConstraint;
-	/**
-	 * An array ORDER BY expressions for each sort mode. %1$s is replaced by
-	 * ASC or DESC as appropriate before being passed to the query.
-	 */
-	private String[] mAdapterSortValues;
 	/**
 	 * If true, show the expander button on each row.
 	 */
@@ -169,82 +152,49 @@ public class MediaAdapter
 
 		switch (type) {
 		case MediaUtils.TYPE_ARTIST:
-			mSource = MediaLibrary.VIEW_ARTISTS;
-			mFields = new String[] { MediaLibrary.ContributorColumns.ARTIST };
-			mFieldKeys = new String[] { MediaLibrary.ContributorColumns.ARTIST_SORT };
+			mQuery = MediaTabQuery.ARTISTS;
 			mSortEntries = new int[] { R.string.title, R.string.date_added };
-			mAdapterSortValues = new String[] { MediaLibrary.ContributorColumns.ARTIST_SORT+" %1$s", MediaLibrary.ContributorColumns.MTIME+" %1$s" };
 			break;
 		case MediaUtils.TYPE_ALBARTIST:
-			mSource = MediaLibrary.VIEW_ALBUMARTISTS;
-			mFields = new String[] { MediaLibrary.ContributorColumns.ALBUMARTIST };
-			mFieldKeys = new String[] { MediaLibrary.ContributorColumns.ALBUMARTIST_SORT };
+			mQuery = MediaTabQuery.ALBUMARTISTS;
 			mSortEntries = new int[] { R.string.title, R.string.date_added };
-			mAdapterSortValues = new String[] { MediaLibrary.ContributorColumns.ALBUMARTIST_SORT+" %1$s", MediaLibrary.ContributorColumns.MTIME+" %1$s" };
 			break;
 		case MediaUtils.TYPE_COMPOSER:
-			mSource = MediaLibrary.VIEW_COMPOSERS;
-			mFields = new String[] { MediaLibrary.ContributorColumns.COMPOSER };
-			mFieldKeys = new String[] { MediaLibrary.ContributorColumns.COMPOSER_SORT };
+			mQuery = MediaTabQuery.COMPOSERS;
 			mSortEntries = new int[] { R.string.title, R.string.date_added };
-			mAdapterSortValues = new String[] { MediaLibrary.ContributorColumns.COMPOSER_SORT+" %1$s", MediaLibrary.ContributorColumns.MTIME+" %1$s" };
 			break;
 		case MediaUtils.TYPE_ALBUM:
-			mSource = MediaLibrary.VIEW_ALBUMS_ARTISTS;
-			mFields = new String[] { MediaLibrary.AlbumColumns.ALBUM, MediaLibrary.ContributorColumns.ARTIST, MediaLibrary.SongColumns.DURATION };
-			mFieldKeys = new String[] { MediaLibrary.AlbumColumns.ALBUM_SORT, MediaLibrary.ContributorColumns.ARTIST_SORT };
+			mQuery = MediaTabQuery.ALBUMS;
 			mSortEntries = new int[] { R.string.title, R.string.artist_album, R.string.year, R.string.date_added, R.string.duration };
-			mAdapterSortValues = new String[] { MediaLibrary.AlbumColumns.ALBUM_SORT+" %1$s",
-												MediaLibrary.ContributorColumns.ARTIST_SORT+" %1$s,"+MediaLibrary.AlbumColumns.ALBUM_SORT+" %1$s",
-			                                    MediaLibrary.AlbumColumns.PRIMARY_ALBUM_YEAR+" %1$s", MediaLibrary.AlbumColumns.MTIME+" %1$s",
-												MediaLibrary.SongColumns.DURATION+" %1$s" };
 			break;
 		case MediaUtils.TYPE_SONG:
-			mSource = MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS;
-			mFields = new String[] { MediaLibrary.SongColumns.TITLE, MediaLibrary.AlbumColumns.ALBUM, MediaLibrary.ContributorColumns.ARTIST, MediaLibrary.SongColumns.DURATION };
-			mFieldKeys = new String[] { MediaLibrary.SongColumns.TITLE_SORT, MediaLibrary.AlbumColumns.ALBUM_SORT, MediaLibrary.ContributorColumns.ARTIST_SORT, null };
+			mQuery = MediaTabQuery.SONGS;
 			mSortEntries = new int[] { R.string.title, R.string.artist_album_track, R.string.artist_album_title, R.string.album_track, R.string.year, R.string.date_added,
 			                           R.string.song_playcount, R.string.filename, R.string.duration };
-			mAdapterSortValues = new String[] { MediaLibrary.SongColumns.TITLE_SORT+" %1$s",
-			                                    MediaLibrary.ContributorColumns.ARTIST_SORT+" %1$s,"+MediaLibrary.AlbumColumns.ALBUM_SORT+" %1$s,"+MediaLibrary.SongColumns.DISC_NUMBER+","+MediaLibrary.SongColumns.SONG_NUMBER,
-			                                    MediaLibrary.ContributorColumns.ARTIST_SORT+" %1$s,"+MediaLibrary.AlbumColumns.ALBUM_SORT+" %1$s,"+MediaLibrary.SongColumns.TITLE_SORT+" %1$s",
-			                                    MediaLibrary.AlbumColumns.ALBUM_SORT+" %1$s,"+MediaLibrary.SongColumns.DISC_NUMBER+","+MediaLibrary.SongColumns.SONG_NUMBER,
-			                                    MediaLibrary.SongColumns.YEAR+" %1$s,"+MediaLibrary.AlbumColumns.ALBUM_SORT+" %1$s,"+MediaLibrary.SongColumns.DISC_NUMBER+","+MediaLibrary.SongColumns.SONG_NUMBER,
-			                                    MediaLibrary.SongColumns.MTIME+" %1$s,"+MediaLibrary.SongColumns.DISC_NUMBER+","+MediaLibrary.SongColumns.SONG_NUMBER,
-			                                    MediaLibrary.SongColumns.PLAYCOUNT+" %1$s,"+MediaLibrary.SongColumns.DISC_NUMBER+","+MediaLibrary.SongColumns.SONG_NUMBER,
-			                                    MediaLibrary.SongColumns.PATH+" %1$s",
-			                                    MediaLibrary.SongColumns.DURATION+" %1$s",
-			                                  };
 			// Songs covers are cached per-album
 			mCoverCacheType = MediaUtils.TYPE_ALBUM;
 			coverCacheKey = MediaStore.Audio.Albums.ALBUM_ID;
 			break;
 		case MediaUtils.TYPE_PLAYLIST:
-			mSource = MediaLibrary.VIEW_PLAYLISTS;
-			mFields = new String[] { MediaLibrary.PlaylistColumns.NAME, MediaLibrary.SongColumns.DURATION };
-			mFieldKeys = new String[] { MediaLibrary.PlaylistColumns.NAME_SORT };
+			mQuery = MediaTabQuery.PLAYLISTS;
 			mSortEntries = new int[] { R.string.title, R.string.date_added, R.string.duration };
-			mAdapterSortValues = new String[] { MediaLibrary.PlaylistColumns.NAME_SORT+" %1$s", MediaLibrary.PlaylistColumns._ID+" %1$s",
-			                                    MediaLibrary.SongColumns.DURATION+" %1$s" };
 			mExpandable = true;
 			break;
 		case MediaUtils.TYPE_GENRE:
-			mSource = MediaLibrary.TABLE_GENRES;
-			mFields = new String[] { MediaLibrary.GenreColumns._GENRE };
-			mFieldKeys = new String[] { MediaLibrary.GenreColumns._GENRE_SORT };
+			mQuery = MediaTabQuery.GENRES;
 			mSortEntries = new int[] { R.string.title };
-			mAdapterSortValues = new String[] { MediaLibrary.GenreColumns._GENRE_SORT+" %1$s" };
 			break;
 		default:
 			throw new IllegalArgumentException("Invalid value for type: " + type);
 		}
 
 
-		mProjection = new String[mFields.length + 2];
+		String[] fields = mQuery.fields;
+		mProjection = new String[fields.length + 2];
 		mProjection[0] = BaseColumns._ID;
 		mProjection[1] = coverCacheKey;
-		for (int i = 0; i < mFields.length; i++) {
-			mProjection[i + 2] = mFields[i];
+		for (int i = 0; i < fields.length; i++) {
+			mProjection[i + 2] = fields[i];
 		}
 	}
 
@@ -257,7 +207,7 @@ public class MediaAdapter
 	 */
 	private String getFirstSortColumn() {
 		int mode = mSortMode < 0 ? ~mSortMode : mSortMode; // get current sort mode
-		String column = SPACE_SPLIT.split(mAdapterSortValues[mode])[0];
+		String column = SPACE_SPLIT.split(mQuery.sortValues[mode])[0];
 		if(column.endsWith("_sort")) { // we want human-readable string, not machine-composed
 			column = column.substring(0, column.length() - 5);
 		}
@@ -292,79 +242,22 @@ public class MediaAdapter
 	 * @param returnSongs return songs instead of mType if true.
 	 */
 	private QueryTask buildQuery(String[] projection, boolean returnSongs) {
-		String source = mSource;
-		String constraint = mConstraint;
 		Limiter limiter = mLimiter;
-
-		StringBuilder selection = new StringBuilder();
-		String[] selectionArgs = null;
 		String[] enrichedProjection = projection;
 
 		// Assemble the sort string as requested by the user
-		int mode = getSortModeIndex();
-		String sortDir = isSortDescending() ? "DESC" : "ASC";
-
-		// Fetch current sorting mode and sort by disc+track if we are going to look up the songs table
-		String sortRaw = mAdapterSortValues[mode];
-		if (returnSongs) {
-			// songs returned from the artist tab should also sort by album
-			if (mType == MediaUtils.TYPE_ARTIST) // fixme: composer?
-				sortRaw += ", "+MediaLibrary.AlbumColumns.ALBUM_SORT+" %1$s";
-			// and this is for all types:
-			sortRaw += ", "+MediaLibrary.SongColumns.DISC_NUMBER+", "+MediaLibrary.SongColumns.SONG_NUMBER;
-		}
+		String sort = mQuery.buildSort(getSortModeIndex(), isSortDescending(), returnSongs);
 
-		// ...and assemble the SQL string we are really going to use
-		String sort = String.format(sortRaw, sortDir);
-
-		// include the constraint (aka: search string) if any
-		if (constraint != null && constraint.length() != 0) {
-			String colKey = MediaLibrary.keyFor(constraint);
-			String spaceColKey = DatabaseUtils.getCollationKey(" ");
-			String[] needles = colKey.split(spaceColKey);
-			String[] keySource = mFieldKeys;
-
-			int size = needles.length;
-			selectionArgs = new String[size];
-
-			StringBuilder keys = new StringBuilder(20);
-			keys.append(keySource[0]);
-			for (int j = 1; j != keySource.length; ++j) {
-				String src = keySource[j];
-				if (src != null) {
-					keys.append("||");
-					keys.append(src);
-				}
-			}
+		ArrayList<String> args = new ArrayList<>();
+		String selection = mQuery.buildSelection(mConstraint, (limiter == null ? null : limiter.data), returnSongs, args);
+		String[] selectionArgs = (args.size() == 0 ? null : args.toArray(new String[args.size()]));
 
-			for (int j = 0; j != needles.length; ++j) {
-				selectionArgs[j] = '%' + needles[j] + '%';
-
-				// If we have something in the selection args (i.e. j > 0), we
-				// must have something in the selection, so we can skip the more
-				// costly direct check of the selection length.
-				if (j != 0 || selection.length() != 0)
-					selection.append(" AND ");
-				selection.append(keys);
-				selection.append(" LIKE ?");
-			}
-		}
-
-		if (limiter != null) {
-			if (selection.length() != 0) {
-				selection.append(" AND ");
-			}
-			selection.append(limiter.data);
-		}
-
-		if (returnSongs == true) {
-			source = MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS_HUGE;
-		} else {
+		if (returnSongs == false) {
 			enrichedProjection = Arrays.copyOf(projection, projection.length + 1);
 			enrichedProjection[projection.length] = getFirstSortColumn();
 		}
 
-		QueryTask query = new QueryTask(source, enrichedProjection, selection.toString(), selectionArgs, sort);
+		QueryTask query = new QueryTask(mQuery.getSource(returnSongs), enrichedProjection, selection, selectionArgs, sort);
 		return query;
 	}
 
@@ -531,15 +531,23 @@ public class MediaUtils {
 		// Try to detect more popular mount point:
 		path = sanitizeMediaPath(path);
 		String query = MediaLibrary.SongColumns.PATH+" = ?";
-
-		if (recursive) {
-			// This is a LIKE query: add a slash to the directory if the current path
-			// points to an existing one.
-			path = addDirEndSlash(path) + "%";
-			query = MediaLibrary.SongColumns.PATH+" LIKE ?";
+		String[] queryArgs = new String[]{ path };
+
+		if (recursive && path.length() == 0) {
+			// an empty prefix matches everything
+			query = null;
+			queryArgs = null;
+		} else if (recursive) {
+			// This is a prefix search: add a slash to the directory if the current path
+			// points to an existing one. Unlike LIKE, a range can use the path index:
+			// it matches everything up to the prefix with its last char incremented.
+			String prefix = addDirEndSlash(path);
+			char last = prefix.charAt(prefix.length() - 1);
+			query = MediaLibrary.SongColumns.PATH+" >= ? AND "+MediaLibrary.SongColumns.PATH+" < ?";
+			queryArgs = new String[]{ prefix, prefix.substring(0, prefix.length() - 1) + (char)(last + 1) };
 		}
 
-		QueryTask result = new QueryTask(MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS, projection, query, new String[]{ path }, FILE_SORT);
+		QueryTask result = new QueryTask(MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS, projection, query, queryArgs, FILE_SORT);
 		result.type = TYPE_FILE;
 		return result;
 	}
@@ -584,7 +592,7 @@ public class MediaUtils {
 				songId = -2; // must be less than -1 (-1 defines an empty song object)
 
 			// Build minimal fake-database entry for this file
-			Object[] objData = new Object[] { songId, path, "", "", "", 0, 0, 0, 0, 0, 0 };
+			Object[] objData = new Object[] { songId, path, "", "", "", 0, 0, 0, 0, 0, 0, null, null, null, null, null };
 
 			if (title != null)
 				objData[2] = title;
@@ -664,8 +664,8 @@ public final class PlaybackService extends Service
 		return mp;
 	}
 
-	public void prepareMediaPlayer(VanillaMediaPlayer mp, String path) throws IOException{
-		mp.setDataSource(path);
+	public void prepareMediaPlayer(VanillaMediaPlayer mp, Song song) throws IOException{
+		mp.setDataSource(song);
 		mp.prepare();
 		applyReplayGain(mp);
 	}
@@ -721,7 +721,9 @@ public final class PlaybackService extends Service
 	 */
 	private void applyReplayGain(VanillaMediaPlayer mp) {
 
-		BastpUtil.GainValues rg = getReplayGainValues(mp.getDataSource());
+		// The library usually knows the values, so we do not need to touch the file
+		Song song = mp.getSong();
+		BastpUtil.GainValues rg = (song != null ? getReplayGainValues(song) : getReplayGainValues(mp.getDataSource()));
 		float adjust = 0f;
 
 		if (mReplayGainAlbumEnabled) {
@@ -766,6 +768,16 @@ public final class PlaybackService extends Service
 		return mBastpUtil.getReplayGainValues(path);
 	}
 
+	/**
+	 * Returns the replaygain values of given song, only
+	 * reading the file if the library does not know them
+	 */
+	public BastpUtil.GainValues getReplayGainValues(Song song) {
+		if (!song.hasGainInfo)
+			return mBastpUtil.getReplayGainValues(song.path);
+		return mBastpUtil.getReplayGainValues(song.replayGainTrack, song.replayGainAlbum, song.r128Base, song.r128Track, song.r128Album);
+	}
+
 	/**
 	 * Prepares PlaybackService to sleep / shutdown
 	 * Closes any open AudioFX session and releases
@@ -816,7 +828,7 @@ public final class PlaybackService extends Service
 					// Prepared MP has a different data source: We need to re-initalize
 					// it and set it as the next MP for the active media player
 					mPreparedMediaPlayer.reset();
-					prepareMediaPlayer(mPreparedMediaPlayer, nextSong.path);
+					prepareMediaPlayer(mPreparedMediaPlayer, nextSong);
 					mMediaPlayer.setNextMediaPlayer(mPreparedMediaPlayer);
 				}
 				if(mMediaPlayer.hasNextMediaPlayer() == false) {
@@ -1371,7 +1383,7 @@ public final class PlaybackService extends Service
 				mPreparedMediaPlayer = tmpPlayer; // this was mMediaPlayer and is in reset() state
 			}
 			else {
-				prepareMediaPlayer(mMediaPlayer, song.path);
+				prepareMediaPlayer(mMediaPlayer, song);
 			}
 
 
@@ -65,6 +65,11 @@ public class Song implements Comparable<Song> {
 		MediaLibrary.SongColumns.SONG_NUMBER,
 		MediaLibrary.SongColumns.DISC_NUMBER,
 		MediaLibrary.SongColumns.FLAGS,
+		MediaLibrary.SongColumns.REPLAYGAIN_TRACK,
+		MediaLibrary.SongColumns.REPLAYGAIN_ALBUM,
+		MediaLibrary.SongColumns.R128_TRACK,
+		MediaLibrary.SongColumns.R128_ALBUM,
+		MediaLibrary.SongColumns.R128_BASE,
 	};
 
 	public static final String[] EMPTY_PLAYLIST_PROJECTION = {
@@ -83,6 +88,11 @@ public class Song implements Comparable<Song> {
 		MediaLibrary.SongColumns.SONG_NUMBER,
 		MediaLibrary.SongColumns.DISC_NUMBER,
 		MediaLibrary.SongColumns.FLAGS,
+		MediaLibrary.SongColumns.REPLAYGAIN_TRACK,
+		MediaLibrary.SongColumns.REPLAYGAIN_ALBUM,
+		MediaLibrary.SongColumns.R128_TRACK,
+		MediaLibrary.SongColumns.R128_ALBUM,
+		MediaLibrary.SongColumns.R128_BASE,
 	};
 
 	/**
@@ -139,6 +149,26 @@ public class Song implements Comparable<Song> {
 	 */
 	public int flags;
 
+	/**
+	 * True if the replay gain values below were read from the library.
+	 * They are NaN if the file had no such tag.
+	 */
+	public boolean hasGainInfo;
+	/**
+	 * Replay gain of this track and its album, in dB
+	 */
+	public float replayGainTrack = Float.NaN;
+	public float replayGainAlbum = Float.NaN;
+	/**
+	 * R128 gain of this track and its album, in dB
+	 */
+	public float r128Track = Float.NaN;
+	public float r128Album = Float.NaN;
+	/**
+	 * Output gain found in the Opus header, in dB
+	 */
+	public float r128Base = Float.NaN;
+
 	/**
 	 * Initialize the song with the specified id. Call populate to fill fields
 	 * in the song.
@@ -200,6 +230,20 @@ public class Song implements Comparable<Song> {
 			// have the flag set for other reasons.
 			flags |= FLAG_NO_COVER;
 		}
+
+		hasGainInfo = (libraryFlags & MediaLibrary.SONG_FLAG_HAS_GAIN_INFO) != 0;
+		replayGainTrack = getFloatOrNaN(cursor, 11);
+		replayGainAlbum = getFloatOrNaN(cursor, 12);
+		r128Track = getFloatOrNaN(cursor, 13);
+		r128Album = getFloatOrNaN(cursor, 14);
+		r128Base = getFloatOrNaN(cursor, 15);
+	}
+
+	/**
+	 * Returns the float at given column, NaN if it is null
+	 */
+	private static float getFloatOrNaN(Cursor cursor, int column) {
+		return (cursor.isNull(column) ? Float.NaN : cursor.getFloat(column));
 	}
 
 	/**
@@ -27,7 +27,7 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.TextView;
 
-import ch.blinkenlights.android.medialibrary.MediaMetadataExtractor;
+import ch.blinkenlights.android.medialibrary.MediaLibrary;
 
 /**
  * A dialog to show details about a track/song
@@ -94,7 +94,11 @@ public class TrackDetailsDialog extends DialogFragment {
 				if (song == null) {
 					return;
 				}
-				final MediaMetadataExtractor metadata = new MediaMetadataExtractor(song.path);
+				// Stored by the scanner, so we do not need to parse the file again
+				final MediaLibrary.TrackDetails details = MediaLibrary.getTrackDetails(getActivity(), songId);
+				if (details == null) {
+					return;
+				}
 
 				getActivity().runOnUiThread(new Runnable() {
 					@Override
@@ -102,12 +106,12 @@ public class TrackDetailsDialog extends DialogFragment {
 						titleView.setText(song.title);
 						artistView.setText(song.artist);
 						albumView.setText(song.album);
-						genreView.setText(metadata.getFirst(MediaMetadataExtractor.GENRE));
+						genreView.setText(details.genre);
 						trackView.setText(song.getTrackAndDiscNumber());
-						yearView.setText(metadata.getFirst(MediaMetadataExtractor.YEAR));
-						composerView.setText(metadata.getFirst(MediaMetadataExtractor.COMPOSER));
+						yearView.setText(details.year);
+						composerView.setText(details.composer);
 						pathView.setText(song.path);
-						formatView.setText(metadata.getFormat());
+						formatView.setText(details.getFormat());
 					}
 				});
 			}
@@ -32,6 +32,7 @@ public class VanillaMediaPlayer extends MediaPlayer {
 
 	private Context mContext;
 	private String mDataSource;
+	private Song mSong;
 	private boolean mHasNextMediaPlayer;
 	private float mReplayGain = Float.NaN;
 	private float mDuckingFactor = Float.NaN;
@@ -50,6 +51,7 @@ public class VanillaMediaPlayer extends MediaPlayer {
 	 */
 	public void reset() {
 		mDataSource = null;
+		mSong = null;
 		mHasNextMediaPlayer = false;
 		super.reset();
 	}
@@ -59,6 +61,7 @@ public class VanillaMediaPlayer extends MediaPlayer {
 	 */
 	public void release() {
 		mDataSource = null;
+		mSong = null;
 		mHasNextMediaPlayer = false;
 		super.release();
 	}
@@ -76,6 +79,21 @@ public class VanillaMediaPlayer extends MediaPlayer {
 		mDataSource = path;
 	}
 
+	/**
+	 * Sets the song to play, using its path as data source
+	 */
+	public void setDataSource(Song song) throws IOException, IllegalArgumentException, SecurityException, IllegalStateException {
+		setDataSource(song.path);
+		mSong = song;
+	}
+
+	/**
+	 * Returns the song set via setDataSource(Song), may be null
+	 */
+	public Song getSong() {
+		return mSong;
+	}
+
 	/**
 	 * Returns the configured data source, may be null
 	 */
@@ -23,12 +23,30 @@ import ch.blinkenlights.bastp.OggFile;
 import ch.blinkenlights.bastp.FlacFile;
 import java.io.RandomAccessFile;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 
 
 public class Bastp {
+	/**
+	 * Key set in the tags returned by getTags() if the parser
+	 * ran out of budget, the tags are incomplete in this case.
+	 */
+	public static final String BUDGET_EXCEEDED = "_budget_exceeded";
+
+	private final ParseBudget mBudget;
 
 	public Bastp() {
+		this(ParseBudget.DEFAULT);
+	}
+
+	/**
+	 * Creates a new parser using given limits for each file
+	 *
+	 * @param budget the limits to use
+	 */
+	public Bastp(ParseBudget budget) {
+		mBudget = budget;
 	}
 
 	public HashMap getTags(String fname) {
@@ -45,18 +63,29 @@ public class Bastp {
 		return tags;
 	}
 	
-	public HashMap getTags(RandomAccessFile s) {
+	public HashMap getTags(RandomAccessFile ra) {
+		HashMap tags = new HashMap();
+		try {
+			tags = getTags(new ByteSource(ra, mBudget));
+		}
+		catch(IOException e) {
+		}
+		return tags;
+	}
+
+	public HashMap getTags(ByteSource s) {
 		HashMap tags = new HashMap();
-		byte[] file_ff = new byte[12];
 		
 		try {
-			s.read(file_ff);
-			String magic = new String(file_ff);
-			if(magic.substring(0,4).equals("fLaC")) {
+			String type = detectType(s);
+			if(type == null) {
+				// unknown format
+			}
+			else if(type.equals("FLAC")) {
 				tags = (new FlacFile()).getTags(s);
 				tags.put("type", "FLAC");
 			}
-			else if(magic.substring(0,4).equals("OggS")) {
+			else if(type.equals("OGG")) {
 				// This may be an Opus OR an Ogg Vorbis file
 				tags = (new OpusFile()).getTags(s);
 				if (tags.size() > 0) {
@@ -66,11 +95,12 @@ public class Bastp {
 					tags.put("type", "OGG");
 				}
 			}
-			else if(file_ff[0] == -1 && file_ff[1] == -5) { /* aka 0xfffb in real languages */
+			else if(type.equals("MP3/Lame")) {
 				tags = (new LameHeader()).getTags(s);
+				tags.putAll((new MpegAudioFrame()).getAudioProperties(s, 0));
 				tags.put("type", "MP3/Lame");
 			}
-			else if(magic.substring(0,3).equals("ID3")) {
+			else if(type.equals("MP3/ID3v2")) {
 				tags = (new ID3v2File()).getTags(s);
 				if(tags.containsKey("_hdrlen")) {
 					Long hlen = Long.parseLong( tags.get("_hdrlen").toString(), 10 );
@@ -79,35 +109,161 @@ public class Bastp {
 					inheritTag("REPLAYGAIN_TRACK_GAIN", lameInfo, tags);
 					inheritTag("REPLAYGAIN_ALBUM_GAIN", lameInfo, tags);
 					inheritTag("duration", lameInfo, tags);
+					tags.putAll((new MpegAudioFrame()).getAudioProperties(s, hlen));
 				}
 				tags.put("type", "MP3/ID3v2");
 			}
-			else if(magic.substring(4,8).equals("ftyp") && (
-				// see http://www.ftyps.com/ for all MP4 subtypes
-				magic.substring(8,11).equals("M4A") ||  // Apple audio
-				magic.substring(8,11).equals("M4V") ||  // Apple video
-				magic.substring(8,12).equals("mp42") || // generic MP4, e.g. FAAC
-				magic.substring(8,12).equals("isom") || // generic MP4, e.g. ffmpeg
-				magic.substring(8,12).equals("dash")    // IEC 23009-1 data
-			)) {
+			else if(type.equals("MP4")) {
 				tags = (new Mp4File()).getTags(s);
+				tags.putAll((new Mp4File()).getAudioProperties(s));
 				tags.put("type", "MP4");
 			}
-			else if(magic.substring(0,4).equals("MThd")) {
+			else {
+				// MIDI and ADTS
 				tags = (new RawFile()).getTags(s);
-				tags.put("type", "MIDI");
+				tags.put("type", type);
 			}
-			else if(file_ff[0] == -1 && (file_ff[1]&0xF0) == 0xF0) { /* aka 0xfff? */
-				tags = (new RawFile()).getTags(s);
-				tags.put("type", "ADTS");
+
+			// Formats without a bitrate field get the average bitrate of the whole file
+			if(tags.containsKey("duration_ms") && !tags.containsKey("bitrate")) {
+				long duration_ms = (Long)tags.get("duration_ms");
+				if(duration_ms > 0)
+					tags.put("bitrate", (int)(s.length() * 8000 / duration_ms));
 			}
 
 		}
 		catch (IOException e) {
 		}
+
+		if(s.isExhausted()) {
+			tags.put(BUDGET_EXCEEDED, true);
+		}
 		return tags;
 	}
 	
+	/**
+	 * Passes the tags of given file to 'visitor' without building a hashmap
+	 * of all tags. Audio properties and pictures are not reported.
+	 *
+	 * @param fname the path of the file to parse
+	 * @param visitor the visitor receiving the tags
+	 */
+	public void visitTags(String fname, TagVisitor visitor) {
+		try {
+			RandomAccessFile ra = new RandomAccessFile(fname, "r");
+			try {
+				visitTags(new ByteSource(ra, mBudget), visitor);
+			} finally {
+				ra.close();
+			}
+		}
+		catch(Exception e) {
+			/* same as getTags(): we do not care */
+		}
+	}
+
+	/**
+	 * Passes the tags found in 's' to 'visitor'
+	 *
+	 * @param s the source to parse
+	 * @param visitor the visitor receiving the tags
+	 */
+	public void visitTags(ByteSource s, TagVisitor visitor) {
+		try {
+			String type = detectType(s);
+			if(type == null) {
+				// unknown format
+			}
+			else if(type.equals("FLAC")) {
+				(new FlacFile()).visitTags(s, visitor);
+			}
+			else if(type.equals("OGG")) {
+				if(!(new OpusFile()).visitTags(s, visitor))
+					(new OggFile()).visitTags(s, visitor);
+			}
+			else if(type.equals("MP3/Lame")) {
+				visitMap((new LameHeader()).getTags(s), visitor);
+			}
+			else if(type.equals("MP3/ID3v2")) {
+				long hlen = (new ID3v2File()).visitTags(s, visitor);
+				if(!visitor.isDone()) {
+					/* add tags from lame header if not already present */
+					HashMap lameInfo = (new LameHeader()).parseLameHeader(s, hlen);
+					for(String key : new String[] { "REPLAYGAIN_TRACK_GAIN", "REPLAYGAIN_ALBUM_GAIN" }) {
+						if(!visitor.hasFound(key))
+							visitMap(key, lameInfo, visitor);
+					}
+				}
+			}
+			else if(type.equals("MP4")) {
+				visitMap((new Mp4File()).getTags(s), visitor);
+			}
+		}
+		catch (IOException e) {
+		}
+	}
+
+	/**
+	 * Returns the type of the file, as found in the "type" field,
+	 * null if the format is not supported. Ogg Vorbis and Opus files
+	 * are both reported as "OGG".
+	 */
+	private String detectType(ByteSource s) throws IOException {
+		byte[] file_ff = new byte[12];
+		s.seek(0);
+		s.read(file_ff);
+		String magic = new String(file_ff);
+		if(magic.substring(0,4).equals("fLaC"))
+			return "FLAC";
+		if(magic.substring(0,4).equals("OggS"))
+			return "OGG";
+		if(file_ff[0] == -1 && file_ff[1] == -5) /* aka 0xfffb in real languages */
+			return "MP3/Lame";
+		if(magic.substring(0,3).equals("ID3"))
+			return "MP3/ID3v2";
+		if(magic.substring(4,8).equals("ftyp") && (
+			// see http://www.ftyps.com/ for all MP4 subtypes
+			magic.substring(8,11).equals("M4A") ||  // Apple audio
+			magic.substring(8,11).equals("M4V") ||  // Apple video
+			magic.substring(8,12).equals("mp42") || // generic MP4, e.g. FAAC
+			magic.substring(8,12).equals("isom") || // generic MP4, e.g. ffmpeg
+			magic.substring(8,12).equals("dash")    // IEC 23009-1 data
+		))
+			return "MP4";
+		if(magic.substring(0,4).equals("MThd"))
+			return "MIDI";
+		if(file_ff[0] == -1 && (file_ff[1]&0xF0) == 0xF0) /* aka 0xfff? */
+			return "ADTS";
+		return null;
+	}
+
+	/**
+	 * Passes all text tags of a parsed hashmap to 'visitor', used
+	 * by formats without a streaming parser
+	 */
+	private void visitMap(HashMap tags, TagVisitor visitor) {
+		for(Object key : tags.keySet()) {
+			if(!visitMap((String)key, tags, visitor))
+				break;
+		}
+	}
+
+	/**
+	 * Passes all values of 'key' in 'tags' to 'visitor'
+	 * Returns false if the visitor is done
+	 */
+	private boolean visitMap(String key, HashMap tags, TagVisitor visitor) {
+		Object values = tags.get(key);
+		if(!(values instanceof ArrayList) || !visitor.wants(key))
+			return !visitor.isDone();
+
+		for(Object value : (ArrayList)values) {
+			if(!visitor.deliver(key, (String)value))
+				return false;
+		}
+		return true;
+	}
+
 	private void inheritTag(String key, HashMap from, HashMap to) {
 		if(!to.containsKey(key) && from.containsKey(key)) {
 			to.put(key, from.get(key));
@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2026 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package ch.blinkenlights.bastp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+
+/**
+ * A seekable, read-only view of a file used by all parsers.
+ *
+ * Reads are served from a window which is refilled with a single read()
+ * call whenever the position leaves it: the many small header reads
+ * of a parser therefore only cost a few system calls per file.
+ * Reads larger than the window bypass it.
+ *
+ * All reads and seeks are accounted against a ParseBudget: once it
+ * is exhausted, the source acts as if the end of the file was reached.
+ */
+public class ByteSource {
+	// Size of the read window, most tag headers fit in here.
+	private static final int WINDOW_SIZE = 16384;
+
+	private final RandomAccessFile mFile;
+	private final long mLength;
+	private final byte[] mWindow = new byte[WINDOW_SIZE];
+	// File offset of mWindow[0]
+	private long mWindowStart;
+	// Number of valid bytes in mWindow
+	private int mWindowLen;
+	// The current (virtual) file position
+	private long mPos;
+	// The limits of this source
+	private final ParseBudget mBudget;
+	// System.nanoTime() of our creation
+	private final long mStartedAt;
+	// Bytes read from the file so far
+	private long mBytesRead;
+	// Number of seek() calls so far
+	private int mSeeks;
+	// True once the budget was exceeded
+	private boolean mExhausted;
+
+	/**
+	 * Creates a new source reading from given file
+	 *
+	 * @param file the file to read, which is not closed by this class
+	 */
+	public ByteSource(RandomAccessFile file) throws IOException {
+		this(file, ParseBudget.DEFAULT);
+	}
+
+	/**
+	 * Creates a new source reading from given file
+	 *
+	 * @param file the file to read, which is not closed by this class
+	 * @param budget the limits for reading this file
+	 */
+	public ByteSource(RandomAccessFile file, ParseBudget budget) throws IOException {
+		mFile = file;
+		mLength = file.length();
+		mBudget = budget;
+		mStartedAt = System.nanoTime();
+	}
+
+	/**
+	 * Returns true if the budget of this source was exceeded,
+	 * all further reads will hit the end of the file
+	 */
+	public boolean isExhausted() {
+		return mExhausted;
+	}
+
+	/**
+	 * Returns the length of the underlying file
+	 */
+	public long length() {
+		return mLength;
+	}
+
+	/**
+	 * Returns the current read position
+	 */
+	public long getFilePointer() {
+		return mPos;
+	}
+
+	/**
+	 * Sets the read position, this does not access the file
+	 *
+	 * @param pos the new position
+	 */
+	public void seek(long pos) throws IOException {
+		if (pos < 0)
+			throw new IOException("Negative seek offset");
+		mPos = pos;
+		if (++mSeeks > mBudget.maxSeeks)
+			mExhausted = true;
+	}
+
+	/**
+	 * Skips up to 'n' bytes, but never past the end of the file
+	 *
+	 * @param n the number of bytes to skip
+	 * @return the number of skipped bytes
+	 */
+	public int skipBytes(int n) {
+		if (n <= 0 || mPos >= mLength)
+			return 0;
+		int skipped = (int)Math.min(n, mLength - mPos);
+		mPos += skipped;
+		return skipped;
+	}
+
+	/**
+	 * Same as read(b, 0, b.length)
+	 */
+	public int read(byte[] b) throws IOException {
+		return read(b, 0, b.length);
+	}
+
+	/**
+	 * Reads up to 'len' bytes into 'b'
+	 *
+	 * @param b the buffer to fill
+	 * @param off the offset in 'b'
+	 * @param len the number of bytes to read
+	 * @return the number of bytes read, -1 at the end of the file
+	 */
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		if (mPos >= mLength || !checkBudget())
+			return -1;
+
+		int done = 0;
+		while (done < len && mPos < mLength) {
+			if (mPos < mWindowStart || mPos >= mWindowStart + mWindowLen) {
+				if (len - done >= WINDOW_SIZE) {
+					// a large read would only thrash the window
+					if (!checkBudget())
+						break;
+					mFile.seek(mPos);
+					int bread = mFile.read(b, off + done, len - done);
+					if (bread <= 0)
+						break;
+					mBytesRead += bread;
+					done += bread;
+					mPos += bread;
+					continue;
+				}
+				if (!fill())
+					break;
+			}
+			int woff = (int)(mPos - mWindowStart);
+			int n = Math.min(len - done, mWindowLen - woff);
+			System.arraycopy(mWindow, woff, b, off + done, n);
+			done += n;
+			mPos += n;
+		}
+		return (done == 0 ? -1 : done);
+	}
+
+	/**
+	 * Reads a big endian 32bit integer
+	 */
+	public int readInt() throws IOException {
+		return (int)readBigEndian(4);
+	}
+
+	/**
+	 * Reads a big endian 64bit integer
+	 */
+	public long readLong() throws IOException {
+		return readBigEndian(8);
+	}
+
+	/**
+	 * Reads 'n' bytes as a big endian value
+	 */
+	private long readBigEndian(int n) throws IOException {
+		if (mExhausted)
+			throw new EOFException();
+		long r = 0;
+		for (int i = 0; i < n; i++) {
+			if (mPos < mWindowStart || mPos >= mWindowStart + mWindowLen) {
+				if (mPos >= mLength || !fill())
+					throw new EOFException();
+			}
+			r = (r << 8) | (mWindow[(int)(mPos - mWindowStart)] & 0xFF);
+			mPos++;
+		}
+		return r;
+	}
+
+	/**
+	 * Fills the window starting at the current position
+	 *
+	 * @return true if any bytes were read
+	 */
+	private boolean fill() throws IOException {
+		if (!checkBudget())
+			return false;
+		mFile.seek(mPos);
+		int bread = mFile.read(mWindow, 0, WINDOW_SIZE);
+		mWindowStart = mPos;
+		mWindowLen = Math.max(0, bread);
+		mBytesRead += mWindowLen;
+		return mWindowLen > 0;
+	}
+
+	/**
+	 * Returns true if we may still access the file
+	 */
+	private boolean checkBudget() {
+		if (!mExhausted && (mBytesRead >= mBudget.maxBytes || mSeeks > mBudget.maxSeeks
+		                    || (System.nanoTime() - mStartedAt) / 1000000 >= mBudget.maxMillis))
+			mExhausted = true;
+		return !mExhausted;
+	}
+
+}
@@ -19,12 +19,12 @@
 package ch.blinkenlights.bastp;
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.util.HashMap;
 import java.util.ArrayList;
 
 public class Common {
 	private static final int MAX_COMMENT_SIZE = 512;
+	public static final int PICTURE_FRONT_COVER = 3;
 
 	/**
 	 * Returns a 32bit int from given byte offset in LE
@@ -38,15 +38,23 @@ public class Common {
 	}
 
 	/**
-	 * Same as b2le32 but reads from a RandomAccessFile instead of a buffer
+	 * Same as b2le32 but reads from a ByteSource instead of a buffer
 	 */
-	public int raf2le32(RandomAccessFile fh, long off) throws IOException {
+	public int raf2le32(ByteSource fh, long off) throws IOException {
 		byte[] scratch = new byte[4];
 		fh.seek(off);
 		fh.read(scratch);
 		return b2le32(scratch, 0);
 	}
 
+	/**
+	 * Same as b2be32 but reads from a ByteSource instead of a buffer
+	 */
+	public int raf2be32(ByteSource fh, long off) throws IOException {
+		fh.seek(off);
+		return fh.readInt();
+	}
+
 	public int b2be32(byte[] b, int off) {
 		return swap32(b2le32(b, off));
 	}
@@ -83,10 +91,28 @@ public class Common {
 		throw new IOException(reason);
 	}
 
-	public HashMap parse_vorbis_comment(RandomAccessFile fh, PageInfo.PageParser pp, long offset, long payload_len) throws IOException {
-		HashMap tags = new HashMap();
+	public HashMap parse_vorbis_comment(ByteSource fh, PageInfo.PageParser pp, long offset, long payload_len) throws IOException {
+		TagCollector collector = new TagCollector();
+		try {
+			parse_vorbis_comment(fh, pp, offset, payload_len, collector);
+		} catch (IOException e) {
+			// keep what we found if we simply ran out of budget
+			if (!fh.isExhausted())
+				throw e;
+		}
+		return collector.getTags();
+	}
+
+	/**
+	 * Passes all comments of the vorbis comment block at 'offset' to 'visitor'
+	 *
+	 * @return false if the visitor stopped the parsing
+	 */
+	public boolean parse_vorbis_comment(ByteSource fh, PageInfo.PageParser pp, long offset, long payload_len, TagVisitor visitor) throws IOException {
 		long last_byte = offset + payload_len;
 
+		byte[] data = new byte[MAX_COMMENT_SIZE];
+
 		// skip vendor string in format: [LEN][VENDOR_STRING] -> 4 = LEN = 32bit int
 		offset += 4 + raf2le32(fh, offset);
 
@@ -95,7 +121,9 @@ public class Common {
 		int comments = raf2le32(fh, offset);
 		offset += 4;
 
-		for ( ; comments > 0; comments--) {
+		// stop once the budget is used up: a bogus comment count would
+		// otherwise keep us spinning on the (now empty) source
+		for ( ; comments > 0 && !fh.isExhausted(); comments--) {
 			int comment_len = raf2le32(fh, offset);
 			offset += 4;
 			long can_read = last_byte - offset; // indicates the last byte of this page
@@ -103,13 +131,19 @@ public class Common {
 
 			if (do_read >= 3) {
 				int bsize = (do_read > MAX_COMMENT_SIZE ? MAX_COMMENT_SIZE : do_read);
-				byte[] data = new byte[bsize];
 				fh.seek(offset);
-				fh.read(data);
-				String   tag_raw = new String(data);
-				String[] tag_vec = tag_raw.split("=", 2);
-				String   tag_key = tag_vec[0].toUpperCase();
-				addTagEntry(tags, tag_key, tag_vec[1]);
+				// only look at the bytes we actually got: the buffer still
+				// holds the previous comment after a short read
+				bsize = Math.max(0, fh.read(data, 0, bsize));
+				int eq = 0;
+				while (eq < bsize && data[eq] != '=')
+					eq++;
+				// keys are plain ASCII: only decode the values of wanted keys
+				if (eq < bsize && visitor.wants(data, 0, eq)) {
+					String tag_key = new String(data, 0, eq).toUpperCase();
+					if (!visitor.deliver(tag_key, new String(data, eq + 1, bsize - eq - 1)))
+						return false;
+				}
 			}
 
 			// set offset to begin of next tag (OR the end of this page!)
@@ -120,7 +154,7 @@ public class Common {
 			// the page boundary -> we must now calculate the position of the next tag
 			if (offset == last_byte) {
 				int partial_cruft = comment_len - do_read; // how many bytes we did not read
-				while(partial_cruft > 0) {
+				while(partial_cruft > 0 && !fh.isExhausted()) {
 					PageInfo pi = pp.parse_stream_page(fh, last_byte);
 					if (pi.header_len <1 || pi.payload_len < 1)
 						xdie("Data from callback doesnt make much sense");
@@ -139,7 +173,28 @@ public class Common {
 				}
 			}
 		}
-		return tags;
+		return true;
+	}
+
+	/**
+	 * Records the location of an embedded picture: the front cover wins,
+	 * otherwise the first picture found is kept.
+	 *
+	 * @param tags the hashmap to update
+	 * @param offset file offset of the raw image data
+	 * @param length length of the image data
+	 * @param mime the mime type of the image, such as image/jpeg
+	 * @param type the picture type as used by ID3v2 and FLAC, 3 = front cover
+	 */
+	public void addPicture(HashMap tags, long offset, long length, String mime, int type) {
+		if (length <= 0)
+			return;
+		if (tags.containsKey("picture_offset") && (type != PICTURE_FRONT_COVER || (Integer)tags.get("picture_type") == PICTURE_FRONT_COVER))
+			return;
+		tags.put("picture_offset", offset);
+		tags.put("picture_length", length);
+		tags.put("picture_mime", mime);
+		tags.put("picture_type", type);
 	}
 
 	public void addTagEntry(HashMap tags, String key, String value) {
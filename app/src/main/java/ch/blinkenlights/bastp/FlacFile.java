@@ -18,7 +18,6 @@
 package ch.blinkenlights.bastp;
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.util.HashMap;
 import java.util.Enumeration;
 
@@ -26,19 +25,22 @@ import java.util.Enumeration;
 public class FlacFile extends Common implements PageInfo.PageParser {
 	private static final int FLAC_TYPE_STREAMINFO = 0; // Basic info about the stream
 	private static final int FLAC_TYPE_COMMENT = 4;   // ID of 'VorbisComment's
+	private static final int FLAC_TYPE_PICTURE = 6;   // An embedded picture
 	
 	public FlacFile() {
 	}
 	
-	public HashMap getTags(RandomAccessFile s) throws IOException {
+	public HashMap getTags(ByteSource s) throws IOException {
 		int xoff  = 4;  // skip file magic
 		int retry = 64;
 		boolean need_infos = true;
 		boolean need_tags = true;
+		boolean need_picture = true;
 		HashMap infos = new HashMap();
 		HashMap tags = new HashMap();
+		HashMap pictures = new HashMap();
 
-		for(; retry > 0; retry--) {
+		for(; retry > 0 && !s.isExhausted(); retry--) {
 			PageInfo pi = parse_stream_page(s, xoff);
 			if(pi.type == FLAC_TYPE_STREAMINFO) {
 				infos = parse_streaminfo_block(s, xoff+pi.header_len, pi.payload_len);
@@ -48,8 +50,13 @@ public class FlacFile extends Common implements PageInfo.PageParser {
 				tags = parse_vorbis_comment(s, this, xoff+pi.header_len, pi.payload_len);
 				need_tags = false;
 			}
+			if(pi.type == FLAC_TYPE_PICTURE) {
+				parse_picture_block(s, xoff+pi.header_len, pi.payload_len, pictures);
+				need_picture = !pictures.containsKey("picture_type") || (Integer)pictures.get("picture_type") != PICTURE_FRONT_COVER;
+			}
 
-			if(pi.last_page == true || (need_tags == false && need_infos == false))
+			// A picture can only be found by walking all blocks, but a front cover is good enough.
+			if(pi.last_page == true || (need_tags == false && need_infos == false && need_picture == false))
 				break; // eof reached
 
 			// else: calculate next offset
@@ -60,14 +67,42 @@ public class FlacFile extends Common implements PageInfo.PageParser {
 		if(infos.containsKey("duration")) {
 			tags.put("duration", infos.get("duration"));
 		}
+		tags.putAll(pictures);
+		// ...and the audio properties
+		if(infos.containsKey("duration_ms")) {
+			tags.put("duration_ms", infos.get("duration_ms"));
+			tags.put("sampling_rate", infos.get("sampling_rate"));
+			tags.put("channels", infos.get("channels"));
+			tags.put("bits_per_sample", infos.get("bits_per_sample"));
+			tags.put("mime", "audio/flac");
+		}
 
 		return tags;
 	}
 	
+	/**
+	 * Passes the vorbis comments of the file to 'visitor'
+	 * Returns false if no comment block was found
+	 */
+	public boolean visitTags(ByteSource s, TagVisitor visitor) throws IOException {
+		long xoff = 4; // skip file magic
+		for(int retry = 64; retry > 0; retry--) {
+			PageInfo pi = parse_stream_page(s, xoff);
+			if(pi.type == FLAC_TYPE_COMMENT) {
+				parse_vorbis_comment(s, this, xoff+pi.header_len, pi.payload_len, visitor);
+				return true;
+			}
+			if(pi.last_page == true)
+				break;
+			xoff += pi.header_len + pi.payload_len;
+		}
+		return false;
+	}
+
 	/**
 	 * Parses the metadata block at 'offset'
 	 */
-	public PageInfo parse_stream_page(RandomAccessFile s, long offset) throws IOException {
+	public PageInfo parse_stream_page(ByteSource s, long offset) throws IOException {
 		byte[] mb_head = new byte[4];
 		int stop_after = 0;
 		int block_type = 0;
@@ -91,10 +126,36 @@ public class FlacFile extends Common implements PageInfo.PageParser {
 		return pi;
 	}
 
+	/**
+	 * Adds the location of the image in the PICTURE block at 'offset' to 'pictures'
+	 */
+	private void parse_picture_block(ByteSource s, long offset, long pl_len, HashMap pictures) throws IOException {
+		long end = offset + pl_len;
+		int type = raf2be32(s, offset);
+		int mime_len = raf2be32(s, offset + 4);
+		if(mime_len < 0 || mime_len > 64 || offset + 8 + mime_len > end)
+			return;
+
+		byte[] mime = new byte[mime_len];
+		s.read(mime);
+		long pos = offset + 8 + mime_len;
+		int desc_len = raf2be32(s, pos);
+		if(desc_len < 0)
+			return;
+		pos += 4 + desc_len + 16; // skip description, width, height, depth and colors
+		if(pos + 4 > end)
+			return;
+
+		long data_len = raf2be32(s, pos) & 0xFFFFFFFFL;
+		pos += 4;
+		if(pos + data_len <= end)
+			addPicture(pictures, pos, data_len, new String(mime, "ISO-8859-1"), type);
+	}
+
 	/*
 	 ** Returns a hashma with parsed vorbis identification header data
 	 **/
-	private HashMap parse_streaminfo_block(RandomAccessFile s, long offset, long pl_len) throws IOException {
+	private HashMap parse_streaminfo_block(ByteSource s, long offset, long pl_len) throws IOException {
 		HashMap id_hash = new HashMap();
 		byte[] buff = new byte[18];
 
@@ -107,10 +168,15 @@ public class FlacFile extends Common implements PageInfo.PageParser {
 			id_hash.put("framesize_maximal", (b2be32(buff, 7)  >> 8));
 			id_hash.put("sampling_rate",     (b2be32(buff, 10) >> 12));
 			id_hash.put("channels",          ((b2be32(buff, 10) >> 9) & 7) + 1); // 3 bits
-			id_hash.put("num_samples",       b2be32(buff, 14)); // fixme: this is actually 36 bit: the 4 hi bits are discarded due to java
+			id_hash.put("bits_per_sample",   ((b2be32(buff, 10) >> 4) & 0x1F) + 1); // 5 bits
+			// total samples are a 36 bit value: 4 bits of byte 13 followed by 32 bits.
+			long total_samples = ((long)(buff[13] & 0x0F) << 32) | (b2be32(buff, 14) & 0xFFFFFFFFL);
+			id_hash.put("num_samples",       total_samples);
 			if((Integer)id_hash.get("sampling_rate") > 0) {
-				int duration = (Integer)id_hash.get("num_samples") / (Integer)id_hash.get("sampling_rate");
-				id_hash.put("duration", (int)duration);
+				int sampling_rate = (Integer)id_hash.get("sampling_rate");
+				id_hash.put("duration", (int)(total_samples / sampling_rate));
+				if(total_samples > 0)
+					id_hash.put("duration_ms", total_samples * 1000 / sampling_rate);
 			}
 		}
 		return id_hash;
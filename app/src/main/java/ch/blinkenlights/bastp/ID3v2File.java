@@ -19,7 +19,6 @@
 package ch.blinkenlights.bastp;
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Enumeration;
@@ -32,6 +31,12 @@ public class ID3v2File extends Common {
 	private static final int ID3_ENC_UTF16BE = 0x02;
 	private static final int ID3_ENC_UTF8    = 0x03;
 	private static final HashMap<String, String> sOggNames;
+	private static final HashMap<Integer, String> sWantedFrames;
+	// packed ids of picture frames in ID3v2.2 and ID3v2.3+
+	private static final int FRAME_PIC  = packFrameId("PIC");
+	private static final int FRAME_APIC = packFrameId("APIC");
+	// we only need the start of a picture frame to find the image data
+	private static final int PICTURE_HEADER_MAX = 256;
 	static {
 		// ID3v2.3 -> ogg mapping
 		sOggNames = new HashMap<String, String>();
@@ -53,8 +58,25 @@ public class ID3v2File extends Common {
 		sOggNames.put("TRK", "TRACKNUMBER");
 		sOggNames.put("TCO", "GENRE");
 		sOggNames.put("TCM", "COMPOSER");
+
+		// frame ids we decode, packed into an int
+		sWantedFrames = new HashMap<Integer, String>();
+		for (String k : sOggNames.keySet()) {
+			sWantedFrames.put(packFrameId(k), k);
+		}
+		sWantedFrames.put(packFrameId("TXXX"), "TXXX");
 	}
 
+	/**
+	 * Buffer holding the payload of the current frame, grown on demand
+	 */
+	private byte[] mFrameBuffer = new byte[256];
+	/**
+	 * True if the whole tag was unsynchronized, frame contents do not match
+	 * the file contents in this case
+	 */
+	private boolean mUnsynchronized;
+
 	// Holds a key-value pair
 	private class TagItem {
 		String key;
@@ -68,9 +90,33 @@ public class ID3v2File extends Common {
 	public ID3v2File() {
 	}
 
-	public HashMap getTags(RandomAccessFile s) throws IOException {
-		HashMap tags = new HashMap();
+	public HashMap getTags(ByteSource s) throws IOException {
+		TagCollector collector = new TagCollector();
+		HashMap pictures = new HashMap();
+		int hdrlen = visit(s, collector, pictures);
+		HashMap tags = collector.getTags();
+		tags.putAll(pictures);
+		tags.put("_hdrlen", hdrlen);
+		return tags;
+	}
 
+	/**
+	 * Passes the tags of the file to 'visitor'
+	 * Returns the length of the ID3v2 tag, including its header
+	 */
+	public long visitTags(ByteSource s, TagVisitor visitor) throws IOException {
+		return visit(s, visitor, null);
+	}
+
+	/**
+	 * Parses the ID3v2 header and all frames, passing tags to 'visitor'
+	 *
+	 * @param s the source to read from
+	 * @param visitor the visitor receiving the tags
+	 * @param pictures hashmap to add the embedded picture to, null to ignore pictures
+	 * @return the length of the ID3v2 tag, including its header
+	 */
+	private int visit(ByteSource s, TagVisitor visitor, HashMap pictures) throws IOException {
 		final int v2hdr_len = 10;
 		byte[] v2hdr = new byte[v2hdr_len];
 
@@ -103,9 +149,9 @@ public class ID3v2File extends Common {
 
 		// we should already be at the first frame
 		// so we can start the parsing right now
-		tags = parse_v3_frames(s, v3len, v3major);
-		tags.put("_hdrlen", v3len+v2hdr_len);
-		return tags;
+		mUnsynchronized = (v3flags & 0x80) != 0;
+		visit_v3_frames(s, v3len, v3major, visitor, pictures);
+		return v3len+v2hdr_len;
 	}
 
 	/*
@@ -125,7 +171,7 @@ public class ID3v2File extends Common {
 	private int calculateFrameLength(byte[] frame, int offset, int v3major) {
 		// ID3v2 (aka ID3v2.2) had a 3-byte unencoded length field.
 		if (v3major < 3) {
-			return (frame[offset] << 16) + (frame[offset+1] << 8) + frame[offset+2];
+			return (b2u(frame[offset]) << 16) + (b2u(frame[offset+1]) << 8) + b2u(frame[offset+2]);
 		}
 		int rawlen = b2be32(frame, offset);
 		// Encoders prior ID3v2.4 did not encode the frame length
@@ -138,8 +184,26 @@ public class ID3v2File extends Common {
 	/* Parses all ID3v2 frames at the current position up until payload_len
 	** bytes were read
 	*/
-	public HashMap parse_v3_frames(RandomAccessFile s, long payload_len, int v3major) throws IOException {
-		HashMap tags = new HashMap();
+	public HashMap parse_v3_frames(ByteSource s, long payload_len, int v3major) throws IOException {
+		TagCollector collector = new TagCollector();
+		HashMap pictures = new HashMap();
+		visit_v3_frames(s, payload_len, v3major, collector, pictures);
+		HashMap tags = collector.getTags();
+		tags.putAll(pictures);
+		return tags;
+	}
+
+	/**
+	 * Parses all frames at the current position, passing wanted tags to 'visitor'
+	 * Frames are only decoded if the visitor wants their key
+	 *
+	 * @param s the source, positioned at the first frame
+	 * @param payload_len the number of bytes to parse
+	 * @param v3major the ID3v2 major version
+	 * @param visitor the visitor receiving the tags
+	 * @param pictures hashmap to add the embedded picture to, null to ignore pictures
+	 */
+	private void visit_v3_frames(ByteSource s, long payload_len, int v3major, TagVisitor visitor, HashMap pictures) throws IOException {
 		// ID3v2 (aka ID3v2.2) had a 6-byte header of a 3-byte name and a 3-byte length.
 		// ID3v2.3 increased the header size to 10 bytes, with a 4-byte name and a 4-byte length
 		int namelen = (v3major >= 3 ? 4 : 3);
@@ -147,32 +211,148 @@ public class ID3v2File extends Common {
 		byte[] frame   = new byte[headerlen];
 		long bread     = 0;                      // total amount of read bytes
 
-		while(bread < payload_len) {
-			bread += s.read(frame);
-			String framename = new String(frame, 0, namelen);
+		while(bread < payload_len && !visitor.isDone()) {
+			if (s.read(frame) != headerlen)
+				break;
+			bread += headerlen;
+			int frameid = b2be32(frame, 0) >>> (8 * (4 - namelen));
 			int slen = calculateFrameLength(frame, namelen, v3major);
 			/* Abort on silly sizes */
 			long bytesRemaining = payload_len - bread;
 			if(slen < 1 || slen > bytesRemaining)
 				break;
+			bread += slen;
 
-			byte[] xpl = new byte[slen];
-			bread += s.read(xpl);
+			String framename = sWantedFrames.get(frameid);
+			if (pictures != null && (frameid == FRAME_APIC || frameid == FRAME_PIC)) {
+				long start = s.getFilePointer();
+				parse_picture_frame(s, frame, slen, v3major, pictures);
+				s.seek(start + slen);
+				continue;
+			}
+			if (framename == null || !wantsFrame(framename, visitor)) {
+				// Not interesting (such as APIC cover art): just skip the payload
+				s.seek(s.getFilePointer() + slen);
+				continue;
+			}
 
-			if(framename.substring(0,1).equals("T")) {
-				TagItem nti = normalizeTaginfo(framename, xpl);
-				if (nti.key.length() > 0) {
-					for (TagItem ti : splitTagPayload(nti)) {
-						addTagEntry(tags, ti.key, ti.value);
-					}
+			if (mFrameBuffer.length < slen)
+				mFrameBuffer = new byte[Math.max(slen, mFrameBuffer.length * 2)];
+			if (s.read(mFrameBuffer, 0, slen) != slen)
+				break;
+
+			if (framename.equals("TXXX") && !wantsTxxx(mFrameBuffer, slen, visitor))
+				continue;
+
+			TagItem nti = normalizeTaginfo(framename, mFrameBuffer, slen);
+			if (nti.key.length() > 0) {
+				for (TagItem ti : splitTagPayload(nti)) {
+					if (!visitor.deliver(ti.key, ti.value))
+						return;
 				}
 			}
-			else if(framename.equals("RVA2")) {
-				//
+		}
+	}
+
+	/**
+	 * Returns true if 'visitor' may want the tag stored in given frame
+	 */
+	private boolean wantsFrame(String framename, TagVisitor visitor) {
+		if (framename.equals("TXXX")) {
+			// We only extract replay gain values from TXXX frames
+			return visitor.wants("REPLAYGAIN_TRACK_GAIN") || visitor.wants("REPLAYGAIN_ALBUM_GAIN");
+		}
+		return visitor.wants(sOggNames.get(framename));
+	}
+
+	/**
+	 * Checks the description of a TXXX frame before decoding it:
+	 * Latin-1 and UTF-8 descriptions are compared as raw bytes
+	 */
+	private boolean wantsTxxx(byte[] raw, int len, TagVisitor visitor) {
+		int encid = raw[0] & 0xFF;
+		if (encid != ID3_ENC_LATIN && encid != ID3_ENC_UTF8)
+			return true; // can not tell without decoding
+
+		int end = 1;
+		while (end < len && raw[end] != 0)
+			end++;
+		return visitor.wants(raw, 1, end - 1);
+	}
+
+	/**
+	 * Records the location of the image data of the APIC (or PIC) frame
+	 * whose payload starts at the current position
+	 *
+	 * @param s the source, positioned at the frame payload
+	 * @param frame the raw frame header
+	 * @param slen the size of the payload
+	 * @param v3major the ID3v2 major version
+	 * @param tags the hashmap to add the picture to
+	 */
+	private void parse_picture_frame(ByteSource s, byte[] frame, int slen, int v3major, HashMap tags) throws IOException {
+		// Compressed, encrypted or unsynchronized frames do not map to a plain file range
+		int flags = (v3major >= 3 ? b2u(frame[9]) : 0);
+		if (mUnsynchronized || (v3major == 3 && (flags & 0xE0) != 0) || (v3major >= 4 && (flags & 0x4F) != 0))
+			return;
+
+		long start = s.getFilePointer();
+		int len = Math.min(slen, PICTURE_HEADER_MAX);
+		byte[] buf = mFrameBuffer;
+		if (s.read(buf, 0, len) != len)
+			return;
+
+		int encoding = b2u(buf[0]);
+		int pos = 1;
+		String mime;
+		if (v3major < 3) {
+			// ID3v2.2 has a 3 character image format
+			if (len < 5)
+				return;
+			String format = new String(buf, 1, 3, "ISO-8859-1");
+			mime = (format.equalsIgnoreCase("PNG") ? "image/png" : "image/jpeg");
+			pos = 4;
+		} else {
+			while (pos < len && buf[pos] != 0)
+				pos++;
+			mime = new String(buf, 1, pos - 1, "ISO-8859-1");
+			pos++; // skip terminator
+		}
+		if (pos >= len)
+			return;
+
+		int type = b2u(buf[pos++]);
+		// description is terminated by a single (or double in UTF-16) null byte
+		boolean wide = (encoding == ID3_ENC_UTF16 || encoding == ID3_ENC_UTF16BE);
+		while (pos < len) {
+			if (!wide && buf[pos] == 0) {
+				pos += 1;
+				break;
+			}
+			if (wide && pos + 1 < len && buf[pos] == 0 && buf[pos+1] == 0) {
+				pos += 2;
+				break;
 			}
+			pos += (wide ? 2 : 1);
+		}
+		if (pos >= len)
+			return;
+
+		if (mime.length() == 0 || mime.equals("image/jpg"))
+			mime = "image/jpeg";
+		addPicture(tags, start + pos, slen - pos, mime, type);
+	}
 
+	/**
+	 * Packs a 3 or 4 character frame id into an int, as done
+	 * by parse_v3_frames while reading frame headers
+	 */
+	private static int packFrameId(String id) {
+		int packed = 0;
+		for (int i = 0; i < id.length(); i++) {
+			packed = (packed << 8) | (id.charAt(i) & 0xFF);
 		}
-		return tags;
+		return packed;
 	}
 
 	/* Split null-separated tags into individual elements */
@@ -199,16 +379,16 @@ public class ID3v2File extends Common {
 	}
 
 	/* Converts ID3v2 sillyframes to OggNames */
-	private TagItem normalizeTaginfo(String k, byte[] v) {
+	private TagItem normalizeTaginfo(String k, byte[] v, int len) {
 		TagItem ti = new TagItem("", "");
 		if(sOggNames.containsKey(k)) {
 			/* A normal, known key: translate into Ogg-Frame name */
 			ti.key = (String)sOggNames.get(k);
-			ti.value = getDecodedString(v);
+			ti.value = getDecodedString(v, len);
 		}
 		else if(k.equals("TXXX")) {
 			/* A freestyle field, ieks! */
-			String txData[] = getDecodedString(v).split(Character.toString('\0'), 2);
+			String txData[] = getDecodedString(v, len).split(Character.toString('\0'), 2);
 			/* Check if we got replaygain info in key\0value style */
 			if(txData.length == 2 && txData[0].matches("^(?i)REPLAYGAIN_(ALBUM|TRACK)_GAIN$")) {
 				ti.key = txData[0].toUpperCase(); /* some tagwriters use lowercase for this */
@@ -219,8 +399,8 @@ public class ID3v2File extends Common {
 		return ti;
 	}
 
-	/* Converts a raw byte-stream text into a java String */
-	private String getDecodedString(byte[] raw) {
+	/* Converts the first 'len' bytes of a raw byte-stream text into a java String */
+	private String getDecodedString(byte[] raw, int len) {
 		int encid = raw[0] & 0xFF;
 		int skip  = 1;
 		String cs = "ISO-8859-1";
@@ -236,7 +416,7 @@ public class ID3v2File extends Common {
 					break;
 				case ID3_ENC_UTF16:
 					cs = "UTF-16";
-					if (raw.length > 4) {
+					if (len > 4) {
 						if ((raw[1]&0xFF) == 0xFE && (raw[2]&0XFF) == 0xFF && (raw[3]&0xFF) == 0x00 && (raw[4]&0xFF) == 0x00) {
 							// buggy tag written by lame?!
 							raw[3] = raw[2];
@@ -254,7 +434,7 @@ public class ID3v2File extends Common {
 					// uses defaults
 			}
 
-			rv = new String(raw, skip, raw.length-skip, cs);
+			rv = new String(raw, skip, len-skip, cs);
 
 			if (rv.length() > 0 && rv.substring(rv.length()-1).equals("\0")) {
 				// SOME tag writers seem to null terminate strings, some don't...
@@ -19,7 +19,6 @@
 package ch.blinkenlights.bastp;
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Enumeration;
@@ -28,7 +27,7 @@ import java.util.Enumeration;
 public class LameHeader extends Common {
 
 	// Sampling rate version -> field mapping
-	private static int[][] sampleRates = {
+	static int[][] sampleRates = {
 		{ 11025, 12000,  8000 }, // MPEG2.5 (idx = 0)
 		{     0,     0,     0 }, // reserved (idx = 1)
 		{ 22050, 24000, 16000 }, // MPEG2 (idx = 2)
@@ -36,7 +35,7 @@ public class LameHeader extends Common {
 	};
 
 	// SamplesPerFrame layer -> version mapping
-	private static int[][] samplesPerFrame = {
+	static int[][] samplesPerFrame = {
 		// reserved, layer3, layer2, layer1
 		{  0,        576,   1152,  384 }, // MPEG2.5
 		{  0,          0,      0,    0 }, // RESERVED
@@ -48,7 +47,7 @@ public class LameHeader extends Common {
 	public LameHeader() {
 	}
 	
-	public HashMap getTags(RandomAccessFile s) throws IOException {
+	public HashMap getTags(ByteSource s) throws IOException {
 		HashMap rgain = parseLameHeader(s, 0);
 		HashMap tags = parseV1Header(s, s.length()-128);
 
@@ -62,12 +61,12 @@ public class LameHeader extends Common {
 	}
 
 	/**
-	 * Attempts to parse ID3v1(.1) information from given RandomAccessFile
+	 * Attempts to parse ID3v1(.1) information from given ByteSource
 	 *
-	 * @param s the seekable RandomAccessFile
+	 * @param s the seekable ByteSource
 	 * @param offset position of the ID3v1 tag
 	 */
-	private HashMap parseV1Header(RandomAccessFile s, long offset) throws IOException {
+	private HashMap parseV1Header(ByteSource s, long offset) throws IOException {
 		HashMap tags = new HashMap();
 		byte[] tag  = new byte[3];
 		byte[] year = new byte[4];
@@ -104,7 +103,7 @@ public class LameHeader extends Common {
 		return tags;
 	}
 
-	public HashMap parseLameHeader(RandomAccessFile s, long offset) throws IOException {
+	public HashMap parseLameHeader(ByteSource s, long offset) throws IOException {
 		HashMap tags = new HashMap();
 		byte[] chunk = new byte[12];
 		
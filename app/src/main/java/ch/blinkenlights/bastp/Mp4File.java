@@ -19,25 +19,20 @@
 package ch.blinkenlights.bastp;
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Stack;
 
 /*
-* Helper class for tracking the traversal of the atom tree
+* Helper class holding the header of an atom
 */
 class Atom {
-	String name;
-	long start;
-	int length;
-	
-	public Atom(String name, long start, int length) {
-		this.name = name;
-		this.start = start;
-		this.length = length;
-	}
+	// the packed 4 character name
+	int name;
+	// the start of the payload, after the (possibly 64bit) header
+	long payload;
+	// the end of the atom
+	long end;
 }
 
 /*
@@ -60,19 +55,19 @@ public class Mp4File extends Common {
 		"discnumber"
 	);
 
-	// mapping between atom <-> vorbis tags
-	final static HashMap<String, String> ATOM_TAGS;
+	// mapping between packed atom names <-> vorbis tags
+	final static HashMap<Integer, String> ATOM_TAGS;
 	static {
-		ATOM_TAGS = new HashMap<String, String>();
-		ATOM_TAGS.put("�nam", "title");
-		ATOM_TAGS.put("�alb", "album");
-		ATOM_TAGS.put("�ART", "artist");
-		ATOM_TAGS.put("aART", "albumartist");
-		ATOM_TAGS.put("�wrt", "composer");
-		ATOM_TAGS.put("�gen", "genre");
-		ATOM_TAGS.put("�day", "year");
-		ATOM_TAGS.put("trkn", "tracknumber");
-		ATOM_TAGS.put("disk", "discnumber");
+		ATOM_TAGS = new HashMap<Integer, String>();
+		ATOM_TAGS.put(packAtomName("\u00a9nam"), "title");
+		ATOM_TAGS.put(packAtomName("\u00a9alb"), "album");
+		ATOM_TAGS.put(packAtomName("\u00a9ART"), "artist");
+		ATOM_TAGS.put(packAtomName("aART"), "albumartist");
+		ATOM_TAGS.put(packAtomName("\u00a9wrt"), "composer");
+		ATOM_TAGS.put(packAtomName("\u00a9gen"), "genre");
+		ATOM_TAGS.put(packAtomName("\u00a9day"), "year");
+		ATOM_TAGS.put(packAtomName("trkn"), "tracknumber");
+		ATOM_TAGS.put(packAtomName("disk"), "discnumber");
 	}
 
 	// These tags are 32bit integers, not strings.
@@ -81,174 +76,314 @@ public class Mp4File extends Common {
 		"discnumber"
 	);
 
+	// atoms on the path to the tags and the audio properties
+	final static int ATOM_MOOV = packAtomName("moov");
+	final static int ATOM_MVHD = packAtomName("mvhd");
+	final static int ATOM_UDTA = packAtomName("udta");
+	final static int ATOM_META = packAtomName("meta");
+	final static int ATOM_ILST = packAtomName("ilst");
+	final static int ATOM_COVR = packAtomName("covr");
+	final static int ATOM_FREEFORM = packAtomName("----");
+	final static int ATOM_NAME = packAtomName("name");
+	final static int ATOM_DATA = packAtomName("data");
+	final static int ATOM_TRAK = packAtomName("trak");
+	final static int ATOM_HDLR = packAtomName("hdlr");
+	final static int ATOM_MDHD = packAtomName("mdhd");
+	final static int ATOM_STSD = packAtomName("stsd");
+	// formats of audio sample entries in [stsd]
+	final static int FORMAT_MP4A = packAtomName("mp4a");
+	final static int FORMAT_ALAC = packAtomName("alac");
+
 	// maximum size for tag names or values
 	final static int MAX_BUFFER_SIZE = 512;
-	// only used when developing
-	final static boolean PRINT_DEBUG = false;
 
 	// When processing atoms, we first read the atom length (4 bytes),
 	// and then the atom name (also 4 bytes). This value should not be changed.
 	final static int ATOM_HEADER_SIZE = 8;
-	
+
+	// maximum number of atoms visited by a single call
+	final static int MAX_ATOMS = 1024;
+
+	// buffer for tag names and values
+	private final byte[] mBuffer = new byte[MAX_BUFFER_SIZE];
+	// number of atoms we may still visit
+	private int mAtomBudget;
+
 	/*
-	* Traverses the atom structure of an MP4 file and returns as soon as tags
-	* are parsed
+	* Returns the tags of an MP4 file. Only the path to the tags is visited:
+	* moov -> udta -> meta -> ilst. Other atoms, such as [mdat], are skipped
+	* by their size, so the position of [moov] in the file does not matter.
 	*/
-	public HashMap getTags(RandomAccessFile s) throws IOException {
+	public HashMap getTags(ByteSource s) throws IOException {
 		HashMap tags = new HashMap();
-		if (PRINT_DEBUG) { System.out.println(); }
+		mAtomBudget = MAX_ATOMS;
 		try {
+			// file structure info from http://atomicparsley.sourceforge.net/mpeg-4files.html
+			Atom moov = findAtom(s, 0, s.length(), ATOM_MOOV);
+			if (moov == null)
+				return tags;
+
+			Atom atom = new Atom();
+			for (long pos = moov.payload; readAtom(s, pos, moov.end, atom); pos = atom.end) {
+				if (atom.name == ATOM_MVHD) {
+					long[] duration = parseHeaderAtom(s, atom);
+					if (duration != null && duration[0] > 0)
+						tags.put("duration", (int)(duration[1] / duration[0]));
+				} else if (atom.name == ATOM_UDTA) {
+					Atom meta = findAtom(s, atom.payload, atom.end, ATOM_META);
+					// the meta atom has an extra 4 bytes of version and flags
+					Atom ilst = (meta == null ? null : findAtom(s, meta.payload + 4, meta.end, ATOM_ILST));
+					if (ilst != null)
+						parseIlstAtom(s, ilst, tags);
+				}
+			}
+		}
+		// if anything goes wrong, just return whatever we already have
+		catch (Exception e) {}
+		return tags;
+	}
+
+	/*
+	* Parses all tag items of the [ilst] atom
+	*/
+	private void parseIlstAtom(ByteSource s, Atom ilst, HashMap tags) throws IOException {
+		Atom item = new Atom();
+		Atom child = new Atom();
+		for (long pos = ilst.payload; readAtom(s, pos, ilst.end, item); pos = item.end) {
+			// record the location of cover art, which is a [data] atom in [covr]
+			if (item.name == ATOM_COVR) {
+				s.seek(item.payload);
+				parseCoverAtom(s, item.end, tags);
+				continue;
+			}
 
-			// maintain a trail of breadcrumbs to know what part of the file we're in,
-			// so e.g. that we only parse [name] atoms that are part of a tag
-			Stack<Atom> path = new Stack<Atom>();
+			// known atoms map to a tag, freeform [----] atoms carry their name in a [name] atom
+			String fourAtom = ATOM_TAGS.get(item.name);
+			if (fourAtom == null && item.name != ATOM_FREEFORM)
+				continue;
 
-			s.seek(0);
-			int atomSize;
-			byte[] atomNameRaw = new byte[4];
-			String atomName;
 			String tagName = null;
+			for (long cpos = item.payload; readAtom(s, cpos, item.end, child); cpos = child.end) {
+				if (child.name == ATOM_NAME) {
+					// skip version and flags
+					int len = readIntoBuffer(s, child.payload + 4, child.end);
+					tagName = new String(mBuffer, 0, len, "UTF-8");
+				} else if (child.name == ATOM_DATA) {
+					// use the 'fourAtom' value if we did not have a tag name
+					String key = (tagName == null ? fourAtom : tagName);
+					// This is the end of this tree, make sure that we don't re-use tagName in any other tree
+					tagName = null;
+					if (key == null || !ALLOWED_TAGS.contains(key))
+						continue;
 
-			// begin traversing the file
-			// file structure info from http://atomicparsley.sourceforge.net/mpeg-4files.html
-			while (s.getFilePointer() < s.length()) {
-
-				// if we've read/skipped past the end of atoms, remove them from the path stack
-				while (!path.empty() && s.getFilePointer() >= (path.peek().start + path.peek().length)) {
-					// if we've finished the tag atom [ilst], we can stop parsing.
-					// when tags are read successfully, this should be the exit point for the parser.
-					if (path.peek().name.equals("ilst")) {
-						if (PRINT_DEBUG) { System.out.println(); }
-						return tags;
+					// skip type and locale
+					int len = readIntoBuffer(s, child.payload + 8, child.end);
+					if (BINARY_TAGS.contains(key)) {
+						if (len >= 4)
+							addTagEntry(tags, key.toUpperCase(), String.format("%d", b2be32(mBuffer, 0)));
+					} else {
+						addTagEntry(tags, key.toUpperCase(), new String(mBuffer, 0, len, "UTF-8"));
 					}
-					path.pop();
 				}
+			}
+		}
+	}
 
-				// read a new atom's details
-				atomSize = s.readInt();
-
-				// return if we're unable to parse an atom size
-				// (e.g. previous atoms were parsed incorrectly and the
-				// file pointer is misaligned)
-				if (atomSize <= 0) { return tags; }
-
-				s.read(atomNameRaw);
-				atomName = new String(atomNameRaw);
-
-				// determine if we're currently decending through the hierarchy
-				// to a tag atom
-				boolean approachingTagAtom = false;
-				boolean onMetaAtom = false;
-				boolean onTagAtom = false;
-				String fourAtom = null;
-				// compare everything in the current path hierarchy and the new atom as well
-				// this is a bit repetitive as-is, but shouldn't be noticeable
-				for (int i = 0; i <= path.size(); i++) {
-					String thisAtomName = (i < path.size()) ? path.get(i).name : atomName;
-					if ((i == 0 && thisAtomName.equals("moov"))         ||
-						(i == 1 && thisAtomName.equals("udta"))         ||
-						(i == 2 && thisAtomName.equals("meta"))         ||
-						(i == 3 && thisAtomName.equals("ilst"))         ||
-						(i == 4 && thisAtomName.equals("----"))         ||
-						(i == 4 && ATOM_TAGS.containsKey(thisAtomName)) ||
-						(i == 5 && (thisAtomName.equals("name")         || thisAtomName.equals("data")))
-					) {
-						approachingTagAtom = true;
-						// if we're at the end of the current hierarchy, mark if it's the [meta] or a tag atom.
-						if (i == path.size()) {
-							onMetaAtom = thisAtomName.equals("meta");
-							onTagAtom = (thisAtomName.equals("name") || thisAtomName.equals("data"));
-						}
-						// depth is 4 and this is a known atom: rembemer this!
-						if (i == 4 && ATOM_TAGS.containsKey(thisAtomName)) {
-							fourAtom = ATOM_TAGS.get(thisAtomName);
-						}
-					}
-					// quit as soon as we know we're not on the road to a tag atom
-					else {
-						approachingTagAtom = false;
-						break;
-					}
-				}
+	/*
+	* Records the image data of the first [data] atom of a [covr] atom.
+	* The payload of [data] starts with a 4 byte type and 4 bytes of locale.
+	*/
+	private void parseCoverAtom(ByteSource s, long atomEnd, HashMap tags) throws IOException {
+		long start = s.getFilePointer();
+		if (start + ATOM_HEADER_SIZE + 8 > atomEnd)
+			return;
 
-				// add the new atom to the path hierarchy
-				path.push(new Atom(atomName, s.getFilePointer()-ATOM_HEADER_SIZE, atomSize));
-				if (PRINT_DEBUG) { printDebugAtomPath(s, path, atomName, atomSize); }
-
-				// skip all non-pertinent atoms
-				if (!approachingTagAtom) { s.skipBytes(atomSize-ATOM_HEADER_SIZE); }
-				// dive into tag-related ones
-				else {
-					// the meta atom has an extra 4 bytes that need to be skipped
-					if (onMetaAtom) { s.skipBytes(4); }
-
-					// read tag contents when there
-					if (onTagAtom) {
-						// get a tag name
-						if (atomName.equals("name")) {
-							// skip null bytes
-							s.skipBytes(4);
-							tagName = new String(readIntoBuffer(s, atomSize-(ATOM_HEADER_SIZE+4)));
-						}
-
-						// get a tag value
-						else if (atomName.equals("data")) {
-							// skip flags/null bytes
-							s.skipBytes(8);
-
-							// use the 'fourAtom' value if we did not have a tag name
-							tagName = (tagName == null ? fourAtom : tagName);
-							// read the tag
-							byte[] tagBuffer = readIntoBuffer(s, atomSize-(ATOM_HEADER_SIZE+8));
-
-							if (ALLOWED_TAGS.contains(tagName))
-							{
-								String tagValue = (BINARY_TAGS.contains(tagName) ? String.format("%d", b2be32(tagBuffer, 0)) : new String(tagBuffer, "UTF-8"));
-								if (PRINT_DEBUG) {
-									System.out.println(String.format("parsed tag '%s': '%s'\n", tagName, tagValue));
-								}
-								addTagEntry(tags, tagName.toUpperCase(), tagValue);
-							}
-							// This is the end of this tree, make sure that we don't re-use tagName in any other tree
-							tagName = null;
-						}
-					}
+		int dataSize = s.readInt();
+		int dataName = s.readInt();
+		int type = s.readInt() & 0xFFFFFF;
+		if (dataName != ATOM_DATA || dataSize < ATOM_HEADER_SIZE + 8 || start + dataSize > atomEnd)
+			return;
+
+		// well known types: 13 = JPEG, 14 = PNG, 27 = BMP
+		String mime = (type == 14 ? "image/png" : (type == 27 ? "image/bmp" : "image/jpeg"));
+		long offset = start + ATOM_HEADER_SIZE + 8;
+		addPicture(tags, offset, dataSize - ATOM_HEADER_SIZE - 8, mime, PICTURE_FRONT_COVER);
+	}
+
+	// container atoms we descend into while looking for audio properties
+	final static List<Integer> PROPERTY_CONTAINERS = Arrays.asList(
+		packAtomName("moov"), packAtomName("trak"), packAtomName("mdia"), packAtomName("minf"), packAtomName("stbl")
+	);
+
+	/*
+	* Returns the audio properties of an MP4 file: the duration is read from [mvhd],
+	* sampling rate and channels from the [mdhd] and [stsd] atoms of the first sound track.
+	*/
+	public HashMap getAudioProperties(ByteSource s) throws IOException {
+		HashMap props = new HashMap();
+		mAtomBudget = MAX_ATOMS;
+		try {
+			// [0] = movie timescale, [1] = movie duration, [2] = sound timescale, [3] = sound duration,
+			// [4] = channels, [5] = sampling rate, [6] = number of video tracks,
+			// [7] and [8] = timescale and duration of the current track,
+			// [9] = format of the audio sample entry, [10] = its sample size
+			long[] info = new long[11];
+			parsePropertyAtoms(s, 0, s.length(), info, new String[1]);
+
+			long duration_ms = 0;
+			if (info[0] > 0)
+				duration_ms = info[1] * 1000 / info[0];
+			if (duration_ms <= 0 && info[2] > 0)
+				duration_ms = info[3] * 1000 / info[2];
+
+			if (duration_ms > 0 && info[2] > 0) {
+				props.put("duration_ms", duration_ms);
+				props.put("sampling_rate", (int)(info[5] > 0 ? info[5] : info[2]));
+				if (info[4] > 0)
+					props.put("channels", (int)info[4]);
+				if (info[9] == FORMAT_MP4A) {
+					props.put("codec", "AAC");
+				} else if (info[9] == FORMAT_ALAC) {
+					// the sample size is only meaningful for lossless formats
+					props.put("codec", "ALAC");
+					if (info[10] > 0)
+						props.put("bits_per_sample", (int)info[10]);
 				}
+				props.put("has_video", info[6] > 0);
+				props.put("mime", "audio/mp4");
 			}
-			// End of while loop, the file has been completely read through.
-			// The parser should only return here if the tags atom [ilst] was missing.
-			return tags;
 		}
 		// if anything goes wrong, just return whatever we already have
-		catch (Exception e) {
-			return tags;
+		catch (Exception e) {}
+		return props;
+	}
+
+	/*
+	* Walks the atoms between 'start' and 'end', descending into PROPERTY_CONTAINERS.
+	* 'handler' holds the handler type of the current track.
+	*/
+	private void parsePropertyAtoms(ByteSource s, long start, long end, long[] info, String[] handler) throws IOException {
+		byte[] buff = new byte[44];
+		Atom atom = new Atom();
+		for (long pos = start; readAtom(s, pos, end, atom); pos = atom.end) {
+			int len = (int)Math.min(buff.length, atom.end - atom.payload);
+			if (PROPERTY_CONTAINERS.contains(atom.name)) {
+				if (atom.name == ATOM_TRAK)
+					handler[0] = null;
+				parsePropertyAtoms(s, atom.payload, atom.end, info, handler);
+			} else if (atom.name == ATOM_MVHD) {
+				long[] duration = parseHeaderAtom(s, atom);
+				if (duration != null) {
+					info[0] = duration[0];
+					info[1] = duration[1];
+				}
+			} else if (atom.name == ATOM_HDLR && s.read(buff, 0, len) == len && len >= 12) {
+				handler[0] = new String(buff, 8, 4, "ISO-8859-1");
+				if (handler[0].equals("vide"))
+					info[6]++;
+				// [mdhd] precedes [hdlr]: keep the values of the first sound track
+				if (handler[0].equals("soun") && info[2] == 0) {
+					info[2] = info[7];
+					info[3] = info[8];
+				}
+			} else if (atom.name == ATOM_MDHD) {
+				long[] duration = parseHeaderAtom(s, atom);
+				if (duration != null) {
+					info[7] = duration[0];
+					info[8] = duration[1];
+				}
+			} else if (atom.name == ATOM_STSD && "soun".equals(handler[0]) && info[4] == 0 && s.read(buff, 0, len) == len && len >= 44) {
+				// version/flags and entry count, followed by the first audio sample entry:
+				// its format is at offset 12, channels at 32, the sample size at 34
+				// and the 16.16 fixed point sampling rate at 40.
+				info[9] = b2be32(buff, 12);
+				info[4] = ((buff[32] & 0xFF) << 8) | (buff[33] & 0xFF);
+				info[10] = ((buff[34] & 0xFF) << 8) | (buff[35] & 0xFF);
+				info[5] = (b2be32(buff, 40) >>> 16);
+			}
+		}
+	}
+
+	/*
+	* Returns the timescale and duration of a [mvhd] or [mdhd] atom,
+	* null if the atom is too short
+	*/
+	private long[] parseHeaderAtom(ByteSource s, Atom atom) throws IOException {
+		byte[] buff = mBuffer;
+		int len = (int)Math.min(32, atom.end - atom.payload);
+		s.seek(atom.payload);
+		if (s.read(buff, 0, len) != len || len < (buff[0] == 1 ? 32 : 20))
+			return null;
+
+		// version 1 uses 64bit times and duration
+		if (buff[0] == 1)
+			return new long[] { b2be32(buff, 20) & 0xFFFFFFFFL, ((long)b2be32(buff, 24) << 32) | (b2be32(buff, 28) & 0xFFFFFFFFL) };
+		return new long[] { b2be32(buff, 12) & 0xFFFFFFFFL, b2be32(buff, 16) & 0xFFFFFFFFL };
+	}
+
+	/*
+	* Returns the first atom named 'name' between 'start' and 'end', null if not found
+	*/
+	private Atom findAtom(ByteSource s, long start, long end, int name) throws IOException {
+		Atom atom = new Atom();
+		for (long pos = start; readAtom(s, pos, end, atom); pos = atom.end) {
+			if (atom.name == name)
+				return atom;
 		}
+		return null;
 	}
 
 	/*
-	* Reads bytes from an atom up to the buffer size limit, currently 512B
+	* Reads the header of the atom at 'pos' into 'atom' and leaves the file pointer
+	* at its payload. Returns false if there is no valid atom ending before 'end'
+	* or if we visited too many atoms.
 	*/
-	private byte[] readIntoBuffer(RandomAccessFile s, int dataSize) throws IOException {
-		// read tag up to buffer limit
-		int bufferSize = Math.min(dataSize, MAX_BUFFER_SIZE);
-		byte[] buffer = new byte[bufferSize];
-		s.read(buffer, 0, buffer.length);
-		if (dataSize > bufferSize) {
-			s.skipBytes(dataSize - bufferSize);
+	private boolean readAtom(ByteSource s, long pos, long end, Atom atom) throws IOException {
+		if (pos + ATOM_HEADER_SIZE > end || mAtomBudget-- <= 0)
+			return false;
+
+		s.seek(pos);
+		long atomSize = s.readInt() & 0xFFFFFFFFL;
+		int headerSize = ATOM_HEADER_SIZE;
+		atom.name = s.readInt();
+		if (atomSize == 1) {
+			// a 64bit 'largesize' follows the name
+			if (pos + ATOM_HEADER_SIZE + 8 > end)
+				return false;
+			atomSize = s.readLong();
+			headerSize += 8;
+		} else if (atomSize == 0) {
+			// the atom extends to the end of its container
+			atomSize = end - pos;
 		}
-		return buffer;
+		if (atomSize < headerSize || atomSize > end - pos)
+			return false;
+
+		atom.payload = pos + headerSize;
+		atom.end = pos + atomSize;
+		return true;
 	}
 
 	/*
-	* Can be used when traversing the atom hierarchy to print the tree of atoms
+	* Reads the bytes between 'start' and 'end' into mBuffer, up to its size
+	* Returns the number of bytes read
 	*/
-	private void printDebugAtomPath(RandomAccessFile s, Stack<Atom> path,
-		String atomName, int atomSize) throws IOException
-	{
-		String treeLines = "";
-		for (int i = 0; i < path.size(); i++) { treeLines += ". "; }
-		long atomStart = s.getFilePointer()-ATOM_HEADER_SIZE;
-		System.out.println(String.format("%-22s %8d to %8d, length %8d",
-			(treeLines + "[" + atomName + "]"), atomStart, (atomStart+atomSize), atomSize));
+	private int readIntoBuffer(ByteSource s, long start, long end) throws IOException {
+		if (start >= end)
+			return 0;
+		int len = (int)Math.min(end - start, MAX_BUFFER_SIZE);
+		s.seek(start);
+		return Math.max(0, s.read(mBuffer, 0, len));
+	}
+
+	/*
+	* Packs a 4 character atom name into an int, as read by readAtom()
+	*/
+	private static int packAtomName(String name) {
+		int packed = 0;
+		for (int i = 0; i < 4; i++) {
+			packed = (packed << 8) | (name.charAt(i) & 0xFF);
+		}
+		return packed;
 	}
 }
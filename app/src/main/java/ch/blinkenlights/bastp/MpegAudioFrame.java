@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2026 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package ch.blinkenlights.bastp;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+
+/**
+ * Reads the audio properties of an MPEG audio stream (MP1, MP2 and MP3)
+ * from its first frame header and the optional Xing/Info or VBRI header.
+ */
+public class MpegAudioFrame extends Common {
+
+	// How far we are searching for the first frame after the given offset
+	private static final int MAX_SYNC_SEARCH = 16384;
+
+	// Bitrates in kbit/s: MPEG1 layer1-3, MPEG2(.5) layer1 and layer2/3
+	private static int[][] bitRates = {
+		{ 0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448 },
+		{ 0, 32, 48, 56,  64,  80,  96, 112, 128, 160, 192, 224, 256, 320, 384 },
+		{ 0, 32, 40, 48,  56,  64,  80,  96, 112, 128, 160, 192, 224, 256, 320 },
+		{ 0, 32, 48, 56,  64,  80,  96, 112, 128, 144, 160, 176, 192, 224, 256 },
+		{ 0,  8, 16, 24,  32,  40,  48,  56,  64,  80,  96, 112, 128, 144, 160 },
+	};
+
+	public MpegAudioFrame() {
+	}
+
+	/**
+	 * Returns the audio properties of the stream starting at 'offset'
+	 *
+	 * @param s the seekable ByteSource
+	 * @param offset position of the first frame, such as the end of an ID3v2 tag
+	 * @return a hashmap with duration_ms, bitrate, sampling_rate, channels
+	 *   and mime, empty if no valid frame was found
+	 */
+	public HashMap getAudioProperties(ByteSource s, long offset) throws IOException {
+		HashMap props = new HashMap();
+		byte[] buff = new byte[MAX_SYNC_SEARCH];
+
+		s.seek(offset);
+		int len = s.read(buff);
+		int pos = 0;
+		int hdr = 0;
+		for (; pos + 4 <= len; pos++) {
+			if (buff[pos] == -1 && (buff[pos+1] & 0xE0) == 0xE0) {
+				hdr = b2be32(buff, pos);
+				// ID3 junk and cover art may contain false syncs: only accept
+				// a header which is followed by another frame of this stream.
+				if (isValidHeader(hdr) && hasNextFrame(s, buff, len, offset, pos, hdr))
+					break;
+			}
+		}
+		if (pos + 4 > len)
+			return props;
+
+		int ver_idx   = (hdr >> 19) & 3; // 0 = MPEG2.5, 2 = MPEG2, 3 = MPEG1
+		int layer_idx = (hdr >> 17) & 3; // 1 = layer3, 2 = layer2, 3 = layer1
+		int br_idx    = (hdr >> 12) & 15;
+		int srate_idx = (hdr >> 10) & 3;
+		int channels  = (((hdr >> 6) & 3) == 3 ? 1 : 2);
+
+		int sample_rate = LameHeader.sampleRates[ver_idx][srate_idx];
+		int sample_pfr  = LameHeader.samplesPerFrame[ver_idx][layer_idx];
+		int br_table    = (ver_idx == 3 ? 3 - layer_idx : (layer_idx == 3 ? 3 : 4));
+		int bitrate     = bitRates[br_table][br_idx] * 1000;
+
+		long frame_start = offset + pos;
+		long audio_bytes = s.length() - frame_start;
+		if (hasV1Tag(s))
+			audio_bytes -= 128;
+
+		// Size of the layer3 side information, the Xing header follows it.
+		int side_info = (ver_idx == 3 ? (channels == 1 ? 17 : 32) : (channels == 1 ? 9 : 17));
+		long total_frames = -1;
+		long total_bytes = -1;
+
+		if (pos + 4 + side_info + 16 <= len) {
+			int xoff = pos + 4 + side_info;
+			String mark = new String(buff, xoff, 4, "ISO-8859-1");
+			if (mark.equals("Xing") || mark.equals("Info")) {
+				int flags = b2be32(buff, xoff + 4);
+				int foff = xoff + 8;
+				if ((flags & 0x01) != 0) {
+					total_frames = b2be32(buff, foff) & 0xFFFFFFFFL;
+					foff += 4;
+				}
+				if ((flags & 0x02) != 0) {
+					total_bytes = b2be32(buff, foff) & 0xFFFFFFFFL;
+				}
+			}
+		}
+		if (total_frames < 0 && pos + 4 + 32 + 18 <= len) {
+			int voff = pos + 4 + 32;
+			if (new String(buff, voff, 4, "ISO-8859-1").equals("VBRI")) {
+				total_bytes = b2be32(buff, voff + 10) & 0xFFFFFFFFL;
+				total_frames = b2be32(buff, voff + 14) & 0xFFFFFFFFL;
+			}
+		}
+
+		long duration_ms = 0;
+		if (total_frames > 0) {
+			duration_ms = total_frames * sample_pfr * 1000 / sample_rate;
+			if (total_bytes > 0 && total_bytes <= audio_bytes)
+				audio_bytes = total_bytes;
+			if (duration_ms > 0)
+				bitrate = (int)(audio_bytes * 8000 / duration_ms);
+		} else {
+			// No VBR header: assume a constant bitrate stream
+			duration_ms = audio_bytes * 8000 / bitrate;
+		}
+
+		if (duration_ms > 0) {
+			props.put("duration_ms", duration_ms);
+			props.put("bitrate", bitrate);
+			props.put("sampling_rate", sample_rate);
+			props.put("channels", channels);
+			props.put("mime", "audio/mpeg");
+		}
+		return props;
+	}
+
+	/**
+	 * Returns true if given 32bit value looks like a sane frame header
+	 */
+	private boolean isValidHeader(int hdr) {
+		int ver_idx   = (hdr >> 19) & 3;
+		int layer_idx = (hdr >> 17) & 3;
+		int br_idx    = (hdr >> 12) & 15;
+		int srate_idx = (hdr >> 10) & 3;
+		return ((hdr & 0xFFE00000) == 0xFFE00000 && ver_idx != 1 && layer_idx != 0 &&
+		        br_idx != 0 && br_idx != 15 && srate_idx != 3);
+	}
+
+	/**
+	 * Returns the length of the frame with given header in bytes
+	 */
+	private int getFrameLength(int hdr) {
+		int ver_idx   = (hdr >> 19) & 3;
+		int layer_idx = (hdr >> 17) & 3;
+		int br_idx    = (hdr >> 12) & 15;
+		int srate_idx = (hdr >> 10) & 3;
+		int padding   = (hdr >> 9) & 1;
+
+		int sample_rate = LameHeader.sampleRates[ver_idx][srate_idx];
+		int br_table    = (ver_idx == 3 ? 3 - layer_idx : (layer_idx == 3 ? 3 : 4));
+		int bitrate     = bitRates[br_table][br_idx] * 1000;
+		if (layer_idx == 3)
+			return (12 * bitrate / sample_rate + padding) * 4;
+		int sample_pfr = LameHeader.samplesPerFrame[ver_idx][layer_idx];
+		return sample_pfr / 8 * bitrate / sample_rate + padding;
+	}
+
+	/**
+	 * Returns true if the frame at 'pos' of buff is followed by a frame
+	 * header of the same version, layer and sampling rate. A frame ending
+	 * exactly at the end of the stream is also accepted.
+	 *
+	 * @param s the ByteSource, used if the next header is not in buff
+	 * @param buff the buffer holding the data read from 'offset'
+	 * @param len number of valid bytes in buff
+	 * @param offset the position of buff in s
+	 * @param pos the position of the frame in buff
+	 * @param hdr the header of the frame
+	 */
+	private boolean hasNextFrame(ByteSource s, byte[] buff, int len, long offset, int pos, int hdr) throws IOException {
+		long next = offset + pos + getFrameLength(hdr);
+		int nhdr;
+		if (next + 4 <= offset + len) {
+			nhdr = b2be32(buff, (int)(next - offset));
+		} else if (next + 4 <= s.length()) {
+			byte[] nbuff = new byte[4];
+			s.seek(next);
+			if (s.read(nbuff) != 4)
+				return false;
+			nhdr = b2be32(nbuff, 0);
+		} else {
+			return next == s.length();
+		}
+		// version, layer and sampling rate must match
+		return isValidHeader(nhdr) && (nhdr & 0xFFFE0C00) == (hdr & 0xFFFE0C00);
+	}
+
+	/**
+	 * Returns true if the file ends with an ID3v1 tag
+	 */
+	private boolean hasV1Tag(ByteSource s) throws IOException {
+		byte[] tag = new byte[3];
+		if (s.length() < 128)
+			return false;
+		s.seek(s.length() - 128);
+		return s.read(tag) == 3 && "TAG".equals(new String(tag, "ISO-8859-1"));
+	}
+
+}
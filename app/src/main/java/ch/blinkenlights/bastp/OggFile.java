@@ -19,7 +19,6 @@ package ch.blinkenlights.bastp;
 
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.util.HashMap;
 
 
@@ -32,7 +31,7 @@ public class OggFile extends Common implements PageInfo.PageParser {
 	public OggFile() {
 	}
 	
-	public HashMap getTags(RandomAccessFile s) throws IOException {
+	public HashMap getTags(ByteSource s) throws IOException {
 		long offset = 0;
 		int  retry  = 64;
 		boolean need_tags = true;
@@ -41,13 +40,15 @@ public class OggFile extends Common implements PageInfo.PageParser {
 		HashMap tags = new HashMap();
 		HashMap identification = new HashMap();
 		
-		for( ; retry > 0 ; retry-- ) {
+		for( ; retry > 0 && !s.isExhausted(); retry-- ) {
 			PageInfo pi = parse_stream_page(s, offset);
 			if(pi.type == OGG_TYPE_IDENTIFICATION) {
 				identification = parse_ogg_vorbis_identification(s, offset+pi.header_len, pi.payload_len);
 				need_id = false;
 			} else if(pi.type == OGG_TYPE_COMMENT) {
-				tags = parse_ogg_vorbis_comment(s, offset+pi.header_len, pi.payload_len);
+				TagCollector collector = new TagCollector();
+				parse_ogg_vorbis_comment(s, offset+pi.header_len, pi.payload_len, collector);
+				tags = collector.getTags();
 				need_tags = false;
 			}
 			offset += pi.header_len + pi.payload_len;
@@ -67,14 +68,43 @@ public class OggFile extends Common implements PageInfo.PageParser {
 			}
 		}
 
+		// The granule position of the last page is the exact number of samples
+		if (identification.containsKey("sampling_rate")) {
+			int sampling_rate = (Integer)identification.get("sampling_rate");
+			long granule = find_last_granule(s);
+			if (sampling_rate > 0 && granule > 0) {
+				tags.put("duration_ms", granule * 1000 / sampling_rate);
+				tags.put("sampling_rate", sampling_rate);
+				tags.put("channels", identification.get("channels"));
+				tags.put("mime", "audio/vorbis");
+			}
+		}
+
 		return tags;
 	}
 	
 	
+	/**
+	 * Passes the vorbis comments of the file to 'visitor'
+	 * Returns false if no comment packet was found
+	 */
+	public boolean visitTags(ByteSource s, TagVisitor visitor) throws IOException {
+		long offset = 0;
+		for(int retry = 64; retry > 0; retry--) {
+			PageInfo pi = parse_stream_page(s, offset);
+			if(pi.type == OGG_TYPE_COMMENT) {
+				parse_ogg_vorbis_comment(s, offset+pi.header_len, pi.payload_len, visitor);
+				return true;
+			}
+			offset += pi.header_len + pi.payload_len;
+		}
+		return false;
+	}
+
 	/**
 	 * Parses the ogg page at offset 'offset'
 	 */
-	public PageInfo parse_stream_page(RandomAccessFile s, long offset) throws IOException {
+	public PageInfo parse_stream_page(ByteSource s, long offset) throws IOException {
 		long[] result   = new long[3];               // [header_size, payload_size]
 		byte[] p_header = new byte[OGG_PAGE_SIZE];   // buffer for the page header 
 		byte[] scratch;
@@ -115,10 +145,33 @@ public class OggFile extends Common implements PageInfo.PageParser {
 		return pi;
 	}
 	
+	/**
+	 * Returns the granule position of the last page in the file,
+	 * -1 if no page was found near the end of the file
+	 */
+	public long find_last_granule(ByteSource s) throws IOException {
+		// A page is at most 64k: the last one must start within this range
+		final int tail_len = 65536 + OGG_PAGE_SIZE;
+		long file_length = s.length();
+		long start = Math.max(0, file_length - tail_len);
+		byte[] tail = new byte[(int)(file_length - start)];
+
+		s.seek(start);
+		int bread = s.read(tail);
+		for (int i = bread - OGG_PAGE_SIZE; i >= 0; i--) {
+			if (tail[i] == 'O' && tail[i+1] == 'g' && tail[i+2] == 'g' && tail[i+3] == 'S' && tail[i+4] == 0) {
+				long granule = (b2le32(tail, i+6) & 0xFFFFFFFFL) | ((long)b2le32(tail, i+10) << 32);
+				if (granule != -1)
+					return granule;
+			}
+		}
+		return -1;
+	}
+
 	/* In 'vorbiscomment' field is prefixed with \3vorbis in OGG files
 	** we check that this marker is present and call the generic comment
 	** parset with the correct offset (+7) */
-	private HashMap parse_ogg_vorbis_comment(RandomAccessFile s, long offset, long pl_len) throws IOException {
+	private boolean parse_ogg_vorbis_comment(ByteSource s, long offset, long pl_len, TagVisitor visitor) throws IOException {
 		final int pfx_len = 7;
 		byte[] pfx        = new byte[pfx_len];
 		
@@ -131,13 +184,13 @@ public class OggFile extends Common implements PageInfo.PageParser {
 		if( (new String(pfx, 0, pfx_len)).equals("\3vorbis") == false )
 			xdie("Damaged packet found!");
 		
-		return parse_vorbis_comment(s, this, offset+pfx_len, pl_len-pfx_len);
+		return parse_vorbis_comment(s, this, offset+pfx_len, pl_len-pfx_len, visitor);
 	}
 
 	/*
 	 ** Returns a hashma with parsed vorbis identification header data
 	 **/
-	private HashMap parse_ogg_vorbis_identification(RandomAccessFile s, long offset, long pl_len) throws IOException {
+	private HashMap parse_ogg_vorbis_identification(ByteSource s, long offset, long pl_len) throws IOException {
 		/* Structure:
 		 * 7 bytes of \1vorbis
 		 * 4 bytes version
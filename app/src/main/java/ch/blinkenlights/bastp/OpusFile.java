@@ -18,7 +18,6 @@ package ch.blinkenlights.bastp;
 
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.util.HashMap;
 
 
@@ -29,15 +28,35 @@ public class OpusFile extends OggFile {
 	public OpusFile() {
 	}
 
-	public HashMap getTags(RandomAccessFile s) throws IOException {
+	public HashMap getTags(ByteSource s) throws IOException {
+		TagCollector collector = new TagCollector();
+		HashMap opus_head = visit_opus(s, collector);
+		HashMap tags = collector.getTags();
+		if(opus_head.size() > 0) {
+			calculate_duration(s, opus_head, tags);
+		}
+		return tags;
+	}
+
+	/**
+	 * Passes the tags of the file to 'visitor'
+	 * Returns false if this is not an opus file
+	 */
+	public boolean visitTags(ByteSource s, TagVisitor visitor) throws IOException {
+		return visit_opus(s, visitor).size() > 0;
+	}
 
+	/**
+	 * Parses the OpusHead and OpusTags packets, passing all tags to 'visitor'
+	 * Returns the parsed OpusHead, which is empty if this is not an opus file
+	 */
+	private HashMap visit_opus(ByteSource s, TagVisitor visitor) throws IOException {
 		// The opus specification is very strict: The first packet MUST
 		// contain the OpusHeader while the 2nd MUST contain the
 		// OggHeader payload: https://wiki.xiph.org/OggOpus
 		long pos = 0;
 		PageInfo pi =  parse_stream_page(s, pos);
 
-		HashMap tags = new HashMap();
 		HashMap opus_head = parse_opus_head(s, pos+pi.header_len, pi.payload_len);
 		pos += pi.header_len+pi.payload_len;
 
@@ -46,34 +65,79 @@ public class OpusFile extends OggFile {
 		if(opus_head.containsKey("version") && (Integer)opus_head.get("version") <= 0xF) {
 			// Get next page: The spec requires this to be an OpusTags head
 			pi = parse_stream_page(s, pos);
-			tags = parse_opus_vorbis_comment(s, pos+pi.header_len, pi.payload_len);
-			// ...and merge replay gain intos into the tags map
-			calculate_gain(opus_head, tags);
+			// Include the gain value found in the opus header. It goes first, so that
+			// a visitor which stops early on the comments still receives it.
+			int header_gain = (Integer)opus_head.get("header_gain");
+			visitor.deliver("R128_BASTP_BASE_GAIN", ""+header_gain);
+			parse_opus_vorbis_comment(s, pos+pi.header_len, pi.payload_len, new OpusTagFilter(visitor));
+			return opus_head;
 		}
 
-		return tags;
+		return new HashMap();
 	}
 
 	/**
-	 * Adds replay gain information to the tags hash map
+	 * Drops unacceptable tags: Opus files must not have their own REPLAYGAIN_* fields
 	 */
-	private void calculate_gain(HashMap header, HashMap tags) {
-		// Remove any unacceptable tags (Opus files must not have
-		// their own REPLAYGAIN_* fields)
-		for(String k : FORBIDDEN_TAGS) {
-			tags.remove(k);
+	private static class OpusTagFilter extends TagVisitor {
+		private final TagVisitor mVisitor;
+
+		OpusTagFilter(TagVisitor visitor) {
+			mVisitor = visitor;
+		}
+
+		@Override
+		public boolean visitTag(String key, String value) {
+			return true; // not used, everything goes through deliver()
+		}
+
+		@Override
+		boolean wants(String key) {
+			return mVisitor.wants(key);
+		}
+
+		@Override
+		boolean wants(byte[] buf, int off, int len) {
+			return mVisitor.wants(buf, off, len);
+		}
+
+		@Override
+		boolean isDone() {
+			return mVisitor.isDone();
+		}
+
+		@Override
+		boolean deliver(String key, String value) {
+			for(String k : FORBIDDEN_TAGS) {
+				if(k.equals(key))
+					return true;
+			}
+			return mVisitor.deliver(key, value);
 		}
-		// Include the gain value found in the opus header
-		int header_gain = (Integer)header.get("header_gain");
-		addTagEntry(tags, "R128_BASTP_BASE_GAIN", ""+header_gain);
 	}
 
 
+	/**
+	 * Adds the audio properties to the tags hash map
+	 */
+	private void calculate_duration(ByteSource s, HashMap header, HashMap tags) throws IOException {
+		// Granule positions of opus streams always count samples at 48kHz,
+		// the 'input sample rate' is only informational.
+		long granule = find_last_granule(s) - (Integer)header.get("pre_skip");
+		if (granule > 0) {
+			int sampling_rate = (Integer)header.get("sampling_rate");
+			tags.put("duration_ms", granule * 1000 / 48000);
+			tags.put("sampling_rate", (sampling_rate > 0 ? sampling_rate : 48000));
+			tags.put("channels", header.get("channels"));
+			tags.put("mime", "audio/opus");
+		}
+	}
+
 	/**
 	 * Attempts to parse an OpusHead block at given offset.
 	 * Returns an hash-map, will be empty on failure
 	 */
-	private HashMap parse_opus_head(RandomAccessFile s, long offset, long pl_len) throws IOException {
+	private HashMap parse_opus_head(ByteSource s, long offset, long pl_len) throws IOException {
 		/* Structure:
 		 * 8 bytes of 'OpusHead'
 		 * 1 byte  version
@@ -104,10 +168,9 @@ public class OpusFile extends OggFile {
 	}
 
 	/**
-	 * Parses an OpusTags section
-	 * Returns a hash map of the found tags
+	 * Parses an OpusTags section, passing all tags to 'visitor'
 	 */
-	private HashMap parse_opus_vorbis_comment(RandomAccessFile s, long offset, long pl_len) throws IOException {
+	private boolean parse_opus_vorbis_comment(ByteSource s, long offset, long pl_len, TagVisitor visitor) throws IOException {
 		final int magic_len = 8; // OpusTags
 		byte[] magic = new byte[magic_len];
 
@@ -121,7 +184,7 @@ public class OpusFile extends OggFile {
 		if((new String(magic, 0, magic_len)).equals("OpusTags") == false)
 			xdie("Damaged packet found!");
 
-		return parse_vorbis_comment(s, this, offset+magic_len, pl_len-magic_len);
+		return parse_vorbis_comment(s, this, offset+magic_len, pl_len-magic_len, visitor);
 	}
 
 }
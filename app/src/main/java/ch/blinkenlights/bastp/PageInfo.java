@@ -1,7 +1,6 @@
 package ch.blinkenlights.bastp;
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
 
 public class PageInfo {
 
@@ -11,6 +10,6 @@ public class PageInfo {
 	boolean last_page;
 
 	public static interface PageParser {
-		PageInfo parse_stream_page(RandomAccessFile fh, long offset) throws IOException;
+		PageInfo parse_stream_page(ByteSource fh, long offset) throws IOException;
 	}
 }
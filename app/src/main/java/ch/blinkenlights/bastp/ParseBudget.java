@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2026 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package ch.blinkenlights.bastp;
+
+
+/**
+ * Per-file limits for the parsers: a broken file, such as an Ogg
+ * stream with bogus comment counts or an ID3 tag claiming to be
+ * hundreds of megabytes large, must not keep a scan busy for long.
+ *
+ * Once a ByteSource exceeds one of the limits it behaves as if the
+ * end of the file was reached, so the parsers return what they
+ * found so far.
+ */
+public class ParseBudget {
+	/**
+	 * The budget used if none was given
+	 */
+	public static final ParseBudget DEFAULT = new ParseBudget(32 * 1024 * 1024, 20000, 3000);
+	/**
+	 * A budget which never runs out
+	 */
+	public static final ParseBudget UNLIMITED = new ParseBudget(Long.MAX_VALUE, Integer.MAX_VALUE, Long.MAX_VALUE);
+
+	/**
+	 * Maximum number of bytes to read from the file
+	 */
+	public final long maxBytes;
+	/**
+	 * Maximum number of seeks
+	 */
+	public final int maxSeeks;
+	/**
+	 * Maximum time to spend on a file, in ms
+	 */
+	public final long maxMillis;
+
+	/**
+	 * Creates a new budget
+	 *
+	 * @param maxBytes the maximum number of bytes read from the file
+	 * @param maxSeeks the maximum number of seeks
+	 * @param maxMillis the maximum time spent on a file, in ms
+	 */
+	public ParseBudget(long maxBytes, int maxSeeks, long maxMillis) {
+		this.maxBytes = maxBytes;
+		this.maxSeeks = maxSeeks;
+		this.maxMillis = maxMillis;
+	}
+}
@@ -18,7 +18,6 @@
 package ch.blinkenlights.bastp;
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.util.HashMap;
 
 public class RawFile extends Common {
@@ -27,7 +26,7 @@ public class RawFile extends Common {
 	 * Returns the tags of a Raw File which is just an empty HashMap.
 	 * This shall be used for raw streams with no (supported) tags.
 	 */
-	public HashMap getTags(RandomAccessFile s) throws IOException {
+	public HashMap getTags(ByteSource s) throws IOException {
 		HashMap tags = new HashMap();
 		return tags;
 	}
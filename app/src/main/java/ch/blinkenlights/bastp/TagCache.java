@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2026 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package ch.blinkenlights.bastp;
+
+import java.io.File;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * A process wide cache of parsed tags, shared by the media scanner,
+ * the replay gain lookup and the track details.
+ *
+ * Entries are keyed by the path of the file and only returned if its
+ * length and modification time did not change since it was parsed.
+ * The most recently used entries are kept in a LRU list bounded by entry
+ * count and (estimated) size. Entries dropped from that list are only
+ * weakly referenced, so they survive as long as someone still uses them.
+ * Large entries, such as Ogg files with a base64 encoded cover in their
+ * comments, are never strongly referenced: they would evict everything else.
+ *
+ * The returned maps are shared between all callers and therefore read-only,
+ * the same goes for the value lists they contain. Results of parsers which
+ * ran out of their budget are not cached, see put().
+ */
+public class TagCache {
+	/**
+	 * Maximum number of strongly referenced entries
+	 */
+	private static final int MAX_ENTRIES = 256;
+	/**
+	 * Maximum estimated size of all strongly referenced entries, in bytes
+	 */
+	private static final int MAX_BYTES = 512 * 1024;
+	/**
+	 * Maximum estimated size of a single strongly referenced entry, in bytes
+	 */
+	private static final int MAX_ENTRY_BYTES = MAX_BYTES / 16;
+	/**
+	 * Estimated overhead of a hashmap entry, in bytes
+	 */
+	private static final int ENTRY_OVERHEAD = 64;
+	/**
+	 * Strongly referenced entries, in access order
+	 */
+	private static final LinkedHashMap<String, Entry> sEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	/**
+	 * Weak references to all entries, including the ones
+	 * evicted from sEntries
+	 */
+	private static final HashMap<String, WeakEntry> sWeakEntries = new HashMap<String, WeakEntry>();
+	/**
+	 * Queue of collected weak entries
+	 */
+	private static final ReferenceQueue<Entry> sQueue = new ReferenceQueue<Entry>();
+	/**
+	 * Estimated size of sEntries
+	 */
+	private static int sBytes;
+
+	/**
+	 * A cached result of Bastp.getTags()
+	 */
+	private static class Entry {
+		final long length;
+		final long mtime;
+		final Map tags;
+		final int bytes;
+
+		Entry(long length, long mtime, Map tags, int bytes) {
+			this.length = length;
+			this.mtime = mtime;
+			this.tags = tags;
+			this.bytes = bytes;
+		}
+	}
+
+	/**
+	 * A weak reference to an entry which remembers its path
+	 */
+	private static class WeakEntry extends WeakReference<Entry> {
+		final String path;
+
+		WeakEntry(String path, Entry entry) {
+			super(entry, sQueue);
+			this.path = path;
+		}
+	}
+
+	private TagCache() {
+	}
+
+	/**
+	 * Returns the tags of given file, parsing it with bastp
+	 * if it is not cached yet
+	 *
+	 * @param path the path of the file
+	 * @return the tags as returned by Bastp.getTags(), as a read-only view
+	 */
+	public static Map getTags(String path) {
+		File file = new File(path);
+		Map tags = get(file);
+		if (tags == null) {
+			// Read the file state first: a change while we parse
+			// must not leave us with a fresh looking entry.
+			long length = file.length();
+			long mtime = file.lastModified();
+			tags = cache(path, length, mtime, (new Bastp()).getTags(path));
+		}
+		return tags;
+	}
+
+	/**
+	 * Returns the cached tags of given file
+	 *
+	 * @param file the file to look up
+	 * @return the tags as a read-only view, null if the file is not cached or changed since it was parsed
+	 */
+	public static Map get(File file) {
+		String path = file.getPath();
+		long length = file.length();
+		long mtime = file.lastModified();
+
+		synchronized (sEntries) {
+			expungeStaleEntries();
+
+			Entry entry = sEntries.get(path);
+			if (entry == null) {
+				WeakEntry ref = sWeakEntries.get(path);
+				entry = (ref == null ? null : ref.get());
+				if (entry != null)
+					insert(path, entry); // used again: make it strong
+			}
+			if (entry == null)
+				return null;
+
+			if (entry.length != length || entry.mtime != mtime) {
+				remove(path);
+				return null;
+			}
+			return entry.tags;
+		}
+	}
+
+	/**
+	 * Caches the tags of given file. Tags of a parser which exceeded its budget
+	 * are incomplete, possibly only because the device was busy, and are not cached.
+	 *
+	 * @param path the path of the file
+	 * @param length the length of the file when it was parsed
+	 * @param mtime the modification time of the file when it was parsed
+	 * @param tags the parsed tags, must not be modified afterwards
+	 */
+	public static void put(String path, long length, long mtime, HashMap tags) {
+		cache(path, length, mtime, tags);
+	}
+
+	/**
+	 * Same as put(), but returns the tags as a read-only view
+	 */
+	private static Map cache(String path, long length, long mtime, HashMap tags) {
+		Map readOnly = readOnly(tags);
+		if (length == 0 && mtime == 0)
+			return readOnly; // file does not exist
+		if (tags.containsKey(Bastp.BUDGET_EXCEEDED))
+			return readOnly; // try again next time
+
+		Entry entry = new Entry(length, mtime, readOnly, estimateSize(tags));
+		synchronized (sEntries) {
+			expungeStaleEntries();
+			remove(path);
+			insert(path, entry);
+			sWeakEntries.put(path, new WeakEntry(path, entry));
+		}
+		return readOnly;
+	}
+
+	/**
+	 * Drops all cached entries
+	 */
+	public static void clear() {
+		synchronized (sEntries) {
+			sEntries.clear();
+			sWeakEntries.clear();
+			sBytes = 0;
+		}
+	}
+
+	/**
+	 * Adds an entry to the LRU list, trimming it to its size limits.
+	 * Must be called while holding the lock.
+	 */
+	private static void insert(String path, Entry entry) {
+		if (entry.bytes > MAX_ENTRY_BYTES)
+			return; // only weakly referenced
+
+		sEntries.put(path, entry);
+		sBytes += entry.bytes;
+
+		Iterator<Map.Entry<String, Entry>> iter = sEntries.entrySet().iterator();
+		while (iter.hasNext() && (sEntries.size() > MAX_ENTRIES || sBytes > MAX_BYTES)) {
+			Entry oldest = iter.next().getValue();
+			if (oldest == entry)
+				break; // always keep the new entry
+			sBytes -= oldest.bytes;
+			iter.remove();
+		}
+	}
+
+	/**
+	 * Removes all references to given path.
+	 * Must be called while holding the lock.
+	 */
+	private static void remove(String path) {
+		Entry entry = sEntries.remove(path);
+		if (entry != null)
+			sBytes -= entry.bytes;
+		sWeakEntries.remove(path);
+	}
+
+	/**
+	 * Forgets the paths of collected entries.
+	 * Must be called while holding the lock.
+	 */
+	private static void expungeStaleEntries() {
+		WeakEntry ref;
+		while ((ref = (WeakEntry)sQueue.poll()) != null) {
+			// The path may have been re-added in the meantime
+			if (sWeakEntries.get(ref.path) == ref)
+				sWeakEntries.remove(ref.path);
+		}
+	}
+
+	/**
+	 * Returns a read-only view of given tags and of the value lists they contain
+	 */
+	private static Map readOnly(HashMap tags) {
+		HashMap copy = new HashMap(tags);
+		for (Object o : copy.entrySet()) {
+			Map.Entry e = (Map.Entry)o;
+			if (e.getValue() instanceof List)
+				e.setValue(Collections.unmodifiableList((List)e.getValue()));
+		}
+		return Collections.unmodifiableMap(copy);
+	}
+
+	/**
+	 * Returns a rough estimate of the memory used by given tags
+	 */
+	private static int estimateSize(Map tags) {
+		int bytes = ENTRY_OVERHEAD;
+		for (Object o : tags.entrySet()) {
+			Map.Entry e = (Map.Entry)o;
+			bytes += ENTRY_OVERHEAD + ((String)e.getKey()).length() * 2;
+			if (e.getValue() instanceof ArrayList) {
+				for (Object v : (ArrayList)e.getValue()) {
+					bytes += ENTRY_OVERHEAD / 2 + ((String)v).length() * 2;
+				}
+			}
+		}
+		return bytes;
+	}
+}
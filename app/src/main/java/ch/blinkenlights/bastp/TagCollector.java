@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2026 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package ch.blinkenlights.bastp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+
+/**
+ * A TagVisitor collecting all tags into a hashmap of lists,
+ * the format returned by the getTags() methods.
+ */
+public class TagCollector extends TagVisitor {
+	private final HashMap mTags = new HashMap();
+
+	/**
+	 * Creates a new collector
+	 *
+	 * @param keys the keys to collect, all if none were given
+	 */
+	public TagCollector(String... keys) {
+		super(keys);
+	}
+
+	/**
+	 * Creates a new collector
+	 *
+	 * @param firstValueOnly true to stop once every key has a value
+	 * @param keys the keys to collect, all if none were given
+	 */
+	public TagCollector(boolean firstValueOnly, String... keys) {
+		super(firstValueOnly, keys);
+	}
+
+	/**
+	 * Creates a new collector of the first value of each key,
+	 * which stops once every key of one family was found
+	 *
+	 * @param families the families of keys to collect
+	 */
+	public TagCollector(String[][] families) {
+		super(families);
+	}
+
+	@Override
+	public boolean visitTag(String key, String value) {
+		ArrayList list = (ArrayList)mTags.get(key);
+		if (list == null) {
+			list = new ArrayList<String>();
+			mTags.put(key, list);
+		}
+		list.add(value);
+		return true;
+	}
+
+	/**
+	 * Returns the collected tags
+	 */
+	public HashMap getTags() {
+		return mTags;
+	}
+}
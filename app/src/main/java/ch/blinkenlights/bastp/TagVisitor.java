@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2026 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package ch.blinkenlights.bastp;
+
+
+/**
+ * Receives the tags of a file while it is being parsed.
+ *
+ * A visitor may restrict itself to a set of keys: the parsers compare
+ * the raw keys against this set and only decode the values of wanted tags.
+ * Parsing stops if visitTag() returns false or, for visitors which only
+ * want the first value of each key, as soon as every key of one of their
+ * key families was seen once.
+ */
+public abstract class TagVisitor {
+	// Wanted keys, uppercase. Null if we want everything
+	private final String[] mKeys;
+	private final byte[][] mRawKeys;
+	private final boolean[] mFound;
+	// Family of each key, null if parsing may not stop early
+	private final int[] mFamily;
+	// Number of keys not found yet, per family
+	private final int[] mMissing;
+	private boolean mStopped;
+
+	/**
+	 * Creates a visitor interested in the given keys
+	 *
+	 * @param keys the keys to report, such as "ARTIST". No keys selects all tags.
+	 */
+	public TagVisitor(String... keys) {
+		this(false, keys);
+	}
+
+	/**
+	 * Creates a visitor interested in the given keys
+	 *
+	 * @param firstValueOnly true if only the first value of each key is needed,
+	 *                       parsing then stops once all keys were found
+	 * @param keys the keys to report, such as "ARTIST". No keys selects all tags.
+	 */
+	public TagVisitor(boolean firstValueOnly, String... keys) {
+		this(firstValueOnly, new String[][] { keys });
+	}
+
+	/**
+	 * Creates a visitor which only wants the first value of each key. Parsing
+	 * stops as soon as every key of any family was found: a file usually only
+	 * carries one of them, such as REPLAYGAIN_* or R128_* gains.
+	 *
+	 * @param families the families of keys to report
+	 */
+	public TagVisitor(String[][] families) {
+		this(true, families);
+	}
+
+	private TagVisitor(boolean firstValueOnly, String[][] families) {
+		int count = 0;
+		for (String[] family : families) {
+			count += (family == null ? 0 : family.length);
+		}
+		if (count == 0) {
+			mKeys = null;
+			mRawKeys = null;
+			mFound = null;
+			mFamily = null;
+			mMissing = null;
+			return;
+		}
+		mKeys = new String[count];
+		mRawKeys = new byte[count][];
+		mFound = new boolean[count];
+		mFamily = (firstValueOnly ? new int[count] : null);
+		mMissing = (firstValueOnly ? new int[families.length] : null);
+		int i = 0;
+		for (int f = 0; f < families.length; f++) {
+			if (families[f] == null)
+				continue;
+			for (String key : families[f]) {
+				mKeys[i] = key.toUpperCase();
+				mRawKeys[i] = mKeys[i].getBytes();
+				if (mFamily != null) {
+					mFamily[i] = f;
+					mMissing[f]++;
+				}
+				i++;
+			}
+		}
+	}
+
+	/**
+	 * Called for each wanted tag
+	 *
+	 * @param key the uppercase key of the tag, such as "ARTIST"
+	 * @param value the value of the tag
+	 * @return false to stop parsing
+	 */
+	public abstract boolean visitTag(String key, String value);
+
+	/**
+	 * Returns true if the given key should be reported
+	 */
+	boolean wants(String key) {
+		return !mStopped && (mKeys == null || indexOf(key) >= 0);
+	}
+
+	/**
+	 * Returns true if the ASCII key stored in buf[off..off+len)
+	 * should be reported, the comparison ignores case.
+	 */
+	boolean wants(byte[] buf, int off, int len) {
+		if (mStopped)
+			return false;
+		if (mKeys == null)
+			return true;
+
+		for (byte[] key : mRawKeys) {
+			if (key.length != len)
+				continue;
+			int i = 0;
+			for (; i < len; i++) {
+				int b = buf[off + i];
+				if (b >= 'a' && b <= 'z')
+					b -= 'a' - 'A';
+				if (b != key[i])
+					break;
+			}
+			if (i == len)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns true if a value of given key was already reported
+	 */
+	boolean hasFound(String key) {
+		int i = (mKeys == null ? -1 : indexOf(key));
+		return i >= 0 && mFound[i];
+	}
+
+	/**
+	 * Returns true if the parser should stop
+	 */
+	boolean isDone() {
+		return mStopped;
+	}
+
+	/**
+	 * Passes a tag to visitTag() if it is wanted
+	 *
+	 * @param key the uppercase key
+	 * @param value the value
+	 * @return false if parsing should stop
+	 */
+	boolean deliver(String key, String value) {
+		if (mStopped)
+			return false;
+
+		boolean complete = false;
+		if (mKeys != null) {
+			int i = indexOf(key);
+			if (i < 0)
+				return true;
+			if (!mFound[i]) {
+				mFound[i] = true;
+				if (mFamily != null)
+					complete = (--mMissing[mFamily[i]] == 0);
+			}
+		}
+		if (!visitTag(key, value) || complete)
+			mStopped = true;
+		return !mStopped;
+	}
+
+	private int indexOf(String key) {
+		for (int i = 0; i < mKeys.length; i++) {
+			if (mKeys[i].equals(key))
+				return i;
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2026 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package ch.blinkenlights.android.medialibrary;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Measures the latency of library tab queries while a scan writes, using the
+ * rollback journal (before) and write-ahead logging (after).
+ *
+ * The writer and the reader use their own connection in both modes. This only
+ * reports the latencies, timings of a shared test machine are too noisy to be
+ * asserted: the report is written to REPORT_FILE.
+ */
+public class MediaQueryLatencyTest {
+	/**
+	 * Batch limits of the scanner, see MediaBatchWriter
+	 */
+	private static final int MAX_BATCH_FILES = 400;
+	private static final long MAX_BATCH_MILLIS = 500;
+	/**
+	 * Time the scanner spends extracting the tags of a file
+	 */
+	private static final long EXTRACT_MILLIS = 1;
+	/**
+	 * Songs in the library before the scan starts, and files added by the scan
+	 */
+	private static final int LIBRARY_SONGS = 5000;
+	private static final int SCANNED_FILES = 2000;
+	private static final int ALBUMS = 500;
+	private static final int ARTISTS = 200;
+	private static final int GENRES = 20;
+	/**
+	 * Pause of the UI between two queries
+	 */
+	private static final long QUERY_INTERVAL_MILLIS = 10;
+	/**
+	 * How long a connection waits for the lock of another one
+	 */
+	private static final long BUSY_TIMEOUT_MILLIS = 30000;
+	/**
+	 * Where the latencies are reported, relative to the module
+	 */
+	private static final String REPORT_FILE = "build/reports/media-query-latency.txt";
+
+	@Rule
+	public TemporaryFolder mTmp = new TemporaryFolder();
+
+	/**
+	 * The connections of a library database
+	 */
+	private static class Library {
+		final Connection writer;
+		final Connection reader;
+
+		Library(File file, boolean wal) throws Exception {
+			writer = open(file);
+			Statement st = writer.createStatement();
+			if (wal) {
+				// same settings as MediaLibraryBackend.onConfigure()
+				st.execute("PRAGMA journal_mode=WAL");
+				st.execute("PRAGMA synchronous=NORMAL");
+			} else {
+				st.execute("PRAGMA journal_mode=DELETE");
+			}
+			st.close();
+			reader = open(file);
+		}
+
+		private static Connection open(File file) throws Exception {
+			Connection db = DriverManager.getConnection("jdbc:sqlite:"+file.getPath());
+			Statement st = db.createStatement();
+			st.execute("PRAGMA busy_timeout="+BUSY_TIMEOUT_MILLIS);
+			st.close();
+			return db;
+		}
+
+		void close() throws Exception {
+			reader.close();
+			writer.close();
+		}
+	}
+
+	/**
+	 * Inserts a song together with everything the scanner adds
+	 */
+	private static void insertSong(Statement st, long id) throws Exception {
+		long albumId = id % ALBUMS + 1;
+		long artistId = id % ARTISTS + 1;
+		long genreId = id % GENRES + 1;
+		st.execute("INSERT INTO "+MediaLibrary.TABLE_SONGS+" ("+MediaLibrary.SongColumns._ID+", "+MediaLibrary.SongColumns.TITLE+", "
+		           +MediaLibrary.SongColumns.TITLE_SORT+", "+MediaLibrary.SongColumns.ALBUM_ID+", "+MediaLibrary.SongColumns.DURATION+", "
+		           +MediaLibrary.SongColumns.PATH+") VALUES ("+id+", 'Song "+id+"', 'song "+id+"', "+albumId+", 180000, '/sdcard/Music/"+id+".flac')");
+		st.execute("INSERT OR IGNORE INTO "+MediaLibrary.TABLE_ALBUMS+" ("+MediaLibrary.AlbumColumns._ID+", "+MediaLibrary.AlbumColumns.ALBUM+", "
+		           +MediaLibrary.AlbumColumns.ALBUM_SORT+", "+MediaLibrary.AlbumColumns.PRIMARY_ARTIST_ID+") VALUES ("+albumId+", 'Album "+albumId+"', 'album "+albumId+"', "+artistId+")");
+		st.execute("INSERT OR IGNORE INTO "+MediaLibrary.TABLE_CONTRIBUTORS+" ("+MediaLibrary.ContributorColumns._ID+", "+MediaLibrary.ContributorColumns._CONTRIBUTOR+", "
+		           +MediaLibrary.ContributorColumns._CONTRIBUTOR_SORT+") VALUES ("+artistId+", 'Artist "+artistId+"', 'artist "+artistId+"')");
+		st.execute("INSERT INTO "+MediaLibrary.TABLE_CONTRIBUTORS_SONGS+" ("+MediaLibrary.ContributorSongColumns.ROLE+", "+MediaLibrary.ContributorSongColumns._CONTRIBUTOR_ID+", "
+		           +MediaLibrary.ContributorSongColumns.SONG_ID+") VALUES ("+MediaLibrary.ROLE_ARTIST+", "+artistId+", "+id+")");
+		st.execute("INSERT OR IGNORE INTO "+MediaLibrary.TABLE_GENRES+" ("+MediaLibrary.GenreColumns._ID+", "+MediaLibrary.GenreColumns._GENRE+", "
+		           +MediaLibrary.GenreColumns._GENRE_SORT+") VALUES ("+genreId+", 'Genre "+genreId+"', 'genre "+genreId+"')");
+		st.execute("INSERT INTO "+MediaLibrary.TABLE_GENRES_SONGS+" ("+MediaLibrary.GenreSongColumns._GENRE_ID+", "+MediaLibrary.GenreSongColumns.SONG_ID+") VALUES ("+genreId+", "+id+")");
+		st.execute("INSERT INTO "+MediaLibrary.TABLE_SONGS_SEARCH+" ("+MediaLibrary.SongSearchColumns.DOCID+", "+MediaLibrary.SongSearchColumns.TITLE+", "
+		           +MediaLibrary.SongSearchColumns.ALBUM+", "+MediaLibrary.SongSearchColumns.ARTIST+") VALUES ("+id+", 'song "+id+"', 'album "+albumId+"', 'artist "+artistId+"')");
+		for (String sql : MediaLibraryBackend.buildRollupInserts(id)) {
+			st.execute(sql);
+		}
+	}
+
+	/**
+	 * Creates the schema and the songs which exist before the scan
+	 */
+	private static void populate(Library library) throws Exception {
+		Connection db = library.writer;
+		db.setAutoCommit(false);
+		Statement st = db.createStatement();
+		for (String sql : MediaSchema.DATABASE_SCHEMA) {
+			st.execute(sql);
+		}
+		for (long id = 1; id <= LIBRARY_SONGS; id++) {
+			insertSong(st, id);
+		}
+		st.close();
+		db.commit();
+		db.setAutoCommit(true);
+	}
+
+	/**
+	 * Adds SCANNED_FILES songs in batches, like MediaScanner does
+	 */
+	private static void scan(Library library) throws Exception {
+		Connection db = library.writer;
+		Statement st = db.createStatement();
+		long id = LIBRARY_SONGS;
+		while (id < LIBRARY_SONGS + SCANNED_FILES) {
+			db.setAutoCommit(false);
+			long startedAt = System.nanoTime();
+			for (int files = 0; files < MAX_BATCH_FILES && (System.nanoTime() - startedAt) / 1000000 < MAX_BATCH_MILLIS; files++) {
+				Thread.sleep(EXTRACT_MILLIS);
+				insertSong(st, ++id);
+			}
+			db.commit();
+			db.setAutoCommit(true);
+		}
+		st.close();
+	}
+
+	/**
+	 * Runs a query of a library tab and reads all of its rows
+	 */
+	private static void queryTab(Library library, String columns, String table, String selection, String orderBy) throws Exception {
+		String sql = "SELECT "+columns+" FROM "+table;
+		if (selection != null)
+			sql += " WHERE "+MediaLibraryBackend.optimizeSelection(table, selection);
+		sql += " ORDER BY "+orderBy;
+
+		Statement st = library.reader.createStatement();
+		ResultSet rs = st.executeQuery(sql);
+		while (rs.next()) {
+			rs.getLong(1);
+		}
+		st.close();
+	}
+
+	/**
+	 * Queries the albums tab, the songs of an artist and the genres tab
+	 * until the scan finished
+	 *
+	 * @return the latencies of all queries
+	 */
+	private static MediaScanMetrics.Histogram browse(Library library, AtomicBoolean scanning) throws Exception {
+		MediaScanMetrics.Histogram latency = new MediaScanMetrics.Histogram();
+		int artist = 1;
+		while (scanning.get()) {
+			long startedAt = System.nanoTime();
+			queryTab(library, MediaLibrary.AlbumColumns._ID+", "+MediaLibrary.AlbumColumns.ALBUM+", "+MediaLibrary.ContributorColumns.ARTIST,
+			         MediaLibrary.VIEW_ALBUMS_ARTISTS, null, MediaLibrary.AlbumColumns.ALBUM_SORT);
+			queryTab(library, MediaLibrary.SongColumns._ID+", "+MediaLibrary.SongColumns.TITLE+", "+MediaLibrary.AlbumColumns.ALBUM,
+			         MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS, MediaLibrary.ContributorColumns.ARTIST_ID+"="+artist, MediaLibrary.SongColumns.TITLE_SORT);
+			queryTab(library, MediaLibrary.GenreColumns._ID+", "+MediaLibrary.GenreColumns._GENRE,
+			         MediaLibrary.TABLE_GENRES, null, MediaLibrary.GenreColumns._GENRE_SORT);
+			latency.add((System.nanoTime() - startedAt) / 1000);
+			artist = artist % ARTISTS + 1;
+			Thread.sleep(QUERY_INTERVAL_MILLIS);
+		}
+		return latency;
+	}
+
+	/**
+	 * Runs a scan and browses the library at the same time
+	 *
+	 * @param wal use write-ahead logging if true
+	 * @return the latencies of the queries
+	 */
+	private MediaScanMetrics.Histogram measure(boolean wal) throws Exception {
+		final Library library = new Library(new File(mTmp.getRoot(), wal ? "wal.db" : "rollback.db"), wal);
+		populate(library);
+
+		final AtomicBoolean scanning = new AtomicBoolean(true);
+		final Exception[] scanError = new Exception[1];
+		Thread scanner = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					scan(library);
+				} catch (Exception e) {
+					scanError[0] = e;
+				}
+				scanning.set(false);
+			}
+		});
+		scanner.start();
+		MediaScanMetrics.Histogram latency = browse(library, scanning);
+		scanner.join();
+		library.close();
+
+		if (scanError[0] != null)
+			throw scanError[0];
+		return latency;
+	}
+
+	@Test
+	public void reportBrowsingLatencyDuringScan() throws Exception {
+		MediaScanMetrics.Histogram rollback = measure(false);
+		MediaScanMetrics.Histogram wal = measure(true);
+
+		File report = new File(REPORT_FILE);
+		report.getParentFile().mkdirs();
+		FileWriter out = new FileWriter(report);
+		out.write("browsing during scan, rollback journal: "+rollback+"\n");
+		out.write("browsing during scan, write-ahead log:  "+wal+"\n");
+		out.close();
+	}
+
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2026 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package ch.blinkenlights.android.medialibrary;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs EXPLAIN QUERY PLAN on the queries of the library tabs, as built by
+ * MediaTabQuery for MediaAdapter and rewritten by MediaLibraryBackend.query().
+ */
+public class MediaQueryPlanTest {
+	/**
+	 * Tables which must never be scanned by a filtered query
+	 */
+	private static final String[] LARGE_TABLES = { MediaLibrary.TABLE_SONGS, MediaLibrary.TABLE_ALBUMS, MediaLibrary.TABLE_GENRES };
+	/**
+	 * The search strings to check, null for no search at all
+	 */
+	private static final String[] CONSTRAINTS = { null, "foo bar", "东京 foo" };
+	/**
+	 * The limiters a parent tab passes to its children, see MediaAdapter.buildLimiter()
+	 */
+	private static final String ARTIST_LIMITER = MediaLibrary.ContributorColumns.ARTIST_ID+"=3";
+	private static final String ALBUMARTIST_LIMITER = MediaLibrary.ContributorColumns.ALBUMARTIST_ID+"=3";
+	private static final String COMPOSER_LIMITER = MediaLibrary.ContributorColumns.COMPOSER_ID+"=3";
+	private static final String ALBUM_LIMITER = MediaLibrary.SongColumns.ALBUM_ID+"=7";
+	private static final String GENRE_LIMITER = MediaLibrary.GenreSongColumns._GENRE_ID+"=11";
+
+	private Connection mDb;
+
+	@Before
+	public void setUp() throws Exception {
+		mDb = DriverManager.getConnection("jdbc:sqlite::memory:");
+		Statement st = mDb.createStatement();
+		for (String sql : MediaSchema.DATABASE_SCHEMA) {
+			st.execute(sql);
+		}
+		st.close();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		mDb.close();
+	}
+
+	/**
+	 * Returns the EXPLAIN QUERY PLAN output of a query passed to MediaLibraryBackend.query()
+	 */
+	private ArrayList<String> explain(String table, String columns, String selection, String orderBy) throws Exception {
+		String sql = "SELECT "+columns+" FROM "+table;
+		if (selection != null)
+			sql += " WHERE "+MediaLibraryBackend.optimizeSelection(table, selection);
+		if (orderBy != null)
+			sql += " ORDER BY "+orderBy;
+
+		ArrayList<String> plan = new ArrayList<>();
+		Statement st = mDb.createStatement();
+		ResultSet rs = st.executeQuery("EXPLAIN QUERY PLAN "+sql);
+		while (rs.next()) {
+			plan.add(rs.getString("detail"));
+		}
+		st.close();
+		return plan;
+	}
+
+	/**
+	 * Fails if the plan of given query does a full scan of songs, albums or genres
+	 */
+	private void assertNoScan(String table, String columns, String selection, String orderBy) throws Exception {
+		ArrayList<String> plan = explain(table, columns, selection, orderBy);
+		for (String detail : plan) {
+			Matcher scan = MediaLibraryBackend.sQueryPlanTableScan.matcher(detail);
+			if (!scan.matches())
+				continue;
+			for (String large : LARGE_TABLES) {
+				if (large.equals(scan.group(2)))
+					fail("query on "+table+" WHERE "+selection+" ORDER BY "+orderBy+" scans "+large+": "+plan);
+			}
+		}
+	}
+
+	/**
+	 * Fails unless the plan walks the given index, e.g. 'COVERING INDEX idx_songs_path'
+	 */
+	private void assertUsesIndex(String index, String table, String columns, String selection, String orderBy) throws Exception {
+		ArrayList<String> plan = explain(table, columns, selection, orderBy);
+		for (String detail : plan) {
+			if (detail.contains(index))
+				return;
+		}
+		fail("query on "+table+" WHERE "+selection+" ORDER BY "+orderBy+" does not use "+index+": "+plan);
+	}
+
+	/**
+	 * Returns the columns read by a tab, see MediaAdapter
+	 */
+	private static String columns(MediaTabQuery tab) {
+		StringBuilder columns = new StringBuilder(MediaLibrary.SongColumns._ID);
+		for (String field : tab.fields) {
+			columns.append(", ").append(field);
+		}
+		return columns.toString();
+	}
+
+	/**
+	 * Checks all sort orders of a tab and of its 'play all' query, with and
+	 * without a search string, for every limiter a parent tab may pass.
+	 * Unfiltered queries read everything anyway and are not checked.
+	 */
+	private void checkTab(MediaTabQuery tab, String columns, String[] limiters) throws Exception {
+		String[] allLimiters = Arrays.copyOf(limiters, limiters.length + 1);
+		for (boolean returnSongs : new boolean[] { false, true }) {
+			for (int mode = 0; mode < tab.sortValues.length; mode++) {
+				for (boolean descending : new boolean[] { false, true }) {
+					String orderBy = tab.buildSort(mode, descending, returnSongs);
+					for (String constraint : CONSTRAINTS) {
+						for (String limiter : allLimiters) {
+							String selection = tab.buildSelection(constraint, limiter, returnSongs, new ArrayList<String>());
+							if (selection.length() != 0)
+								assertNoScan(tab.getSource(returnSongs), (returnSongs ? "*" : columns), selection, orderBy);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void contributorTabs() throws Exception {
+		for (MediaTabQuery tab : new MediaTabQuery[] { MediaTabQuery.ARTISTS, MediaTabQuery.ALBUMARTISTS, MediaTabQuery.COMPOSERS }) {
+			checkTab(tab, columns(tab), new String[] { GENRE_LIMITER });
+		}
+	}
+
+	@Test
+	public void albumTab() throws Exception {
+		MediaTabQuery tab = MediaTabQuery.ALBUMS;
+		checkTab(tab, columns(tab), new String[] { ARTIST_LIMITER, ALBUMARTIST_LIMITER, COMPOSER_LIMITER, GENRE_LIMITER });
+		assertUsesIndex("COVERING INDEX idx_albums_album_sort", tab.source, columns(tab), null, tab.buildSort(0, false, false));
+	}
+
+	@Test
+	public void songTab() throws Exception {
+		MediaTabQuery tab = MediaTabQuery.SONGS;
+		// songs also read their album id, which is the key of their cover
+		String columns = columns(tab)+", "+MediaLibrary.SongColumns.ALBUM_ID;
+		checkTab(tab, columns, new String[] { ARTIST_LIMITER, ALBUMARTIST_LIMITER, COMPOSER_LIMITER, ALBUM_LIMITER, GENRE_LIMITER });
+
+		assertUsesIndex("COVERING INDEX idx_songs_title_sort", tab.source, columns, null, tab.buildSort(0, false, false));
+		assertUsesIndex("INDEX idx_songs_title_sort", tab.getSource(true), "*", null, tab.buildSort(0, false, true));
+		assertUsesIndex("INDEX idx_songs_path", tab.source, columns, null, tab.buildSort(7, false, false));
+	}
+
+	@Test
+	public void playlistTab() throws Exception {
+		// playlists are not part of the search index and filter their own sort key
+		MediaTabQuery tab = MediaTabQuery.PLAYLISTS;
+		String orderBy = tab.buildSort(0, false, false);
+		assertNoScan(tab.source, columns(tab), null, orderBy);
+		assertNoScan(tab.source, columns(tab), tab.buildSelection("foo", null, false, new ArrayList<String>()), orderBy);
+	}
+
+	@Test
+	public void genreTab() throws Exception {
+		MediaTabQuery tab = MediaTabQuery.GENRES;
+		String columns = columns(tab);
+		String orderBy = tab.buildSort(0, false, false);
+		// genres are not mapped to the search index, they filter their own sort key
+		assertNoScan(tab.source, columns, null, orderBy);
+		assertNoScan(tab.source, columns, tab.buildSelection("foo", null, false, new ArrayList<String>()), orderBy);
+		assertUsesIndex("COVERING INDEX idx_genres_genre_sort", tab.source, columns, null, orderBy);
+	}
+
+	@Test
+	public void fileQueries() throws Exception {
+		String columns = MediaLibrary.SongColumns._ID+", "+MediaLibrary.SongColumns.PATH;
+		String range = MediaLibrary.SongColumns.PATH+" >= '/sdcard/Music/' AND "+MediaLibrary.SongColumns.PATH+" < '/sdcard/Music0'";
+		// MediaUtils.buildFileQuery()
+		assertNoScan(MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS, "*", MediaLibrary.SongColumns.PATH+"='/sdcard/Music/a.mp3'", null);
+		assertNoScan(MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS, "*", range, MediaLibrary.SongColumns.PATH);
+		// MediaScanner.rpcLibraryVerify() only needs the index
+		assertUsesIndex("COVERING INDEX idx_songs_path", MediaLibrary.TABLE_SONGS, MediaLibrary.SongColumns.PATH, range, null);
+		assertUsesIndex("COVERING INDEX idx_songs_path", MediaLibrary.TABLE_SONGS, columns, range, null);
+	}
+
+	@Test
+	public void largeTablesAreNeverScannedByFilteredQueries() throws Exception {
+		// the check itself must notice a scan
+		ArrayList<String> plan = explain(MediaLibrary.TABLE_SONGS, "*", MediaLibrary.SongColumns.PLAYCOUNT+" > 0", null);
+		boolean scans = false;
+		for (String detail : plan) {
+			scans |= MediaLibraryBackend.sQueryPlanTableScan.matcher(detail).matches();
+		}
+		assertTrue(plan.toString(), scans);
+	}
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2026 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package ch.blinkenlights.android.medialibrary;
+
+import ch.blinkenlights.bastp.Bastp;
+import ch.blinkenlights.bastp.ParseBudget;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+
+public class MediaScannerTest {
+	@Rule
+	public TemporaryFolder mTmp = new TemporaryFolder();
+
+	/**
+	 * Runs the decisions of MediaScanner for a single file, as done
+	 * by isOutdated() and updateDatabase()
+	 */
+	private static class Library {
+		final MediaSongStateCache states = new MediaSongStateCache(1);
+		int extractions;
+
+		void scan(File file, ParseBudget budget) {
+			long songId = MediaLibrary.hash63(file.getAbsolutePath());
+			int slot = states.indexOf(songId);
+			long dbEntryMtime = (slot < 0 ? 0 : states.getMtime(slot) * 1000);
+			long songFlags = (slot < 0 ? 0 : states.getFlags(slot));
+			if (!MediaScanner.needsRescan(file.lastModified(), dbEntryMtime, songFlags))
+				return;
+
+			extractions++;
+			HashMap tags = (new Bastp(budget)).getTags(file.getPath());
+			songFlags = MediaScanner.flagsForInsert(songFlags, tags.containsKey(Bastp.BUDGET_EXCEEDED));
+			states.put(songId, System.currentTimeMillis() / 1000 + 1, (int)songFlags, 0, 0);
+		}
+	}
+
+	private File createFile() throws Exception {
+		File file = mTmp.newFile("song.flac");
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(new byte[] { 'f', 'L', 'a', 'C', 0, 0, 0, 0, 0, 0, 0, 0 });
+		out.close();
+		file.setLastModified(System.currentTimeMillis() - 60000);
+		return file;
+	}
+
+	@Test
+	public void truncatedFileIsParsedAgain() throws Exception {
+		File file = createFile();
+		Library library = new Library();
+
+		// the wall clock budget is used up before the first read
+		library.scan(file, new ParseBudget(Long.MAX_VALUE, Integer.MAX_VALUE, 0));
+		library.scan(file, ParseBudget.DEFAULT);
+		library.scan(file, ParseBudget.DEFAULT);
+		assertEquals(2, library.extractions);
+	}
+
+	@Test
+	public void completeFileIsNotParsedAgain() throws Exception {
+		File file = createFile();
+		Library library = new Library();
+
+		library.scan(file, ParseBudget.DEFAULT);
+		library.scan(file, ParseBudget.DEFAULT);
+		assertEquals(1, library.extractions);
+	}
+
+}
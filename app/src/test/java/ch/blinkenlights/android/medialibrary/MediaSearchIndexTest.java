@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2026 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package ch.blinkenlights.android.medialibrary;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs the sub-selects of MediaSearchIndex.buildSongSearch() against an index
+ */
+public class MediaSearchIndexTest {
+	private static final String[] TITLE_AND_ALBUM = { MediaLibrary.SongSearchColumns.TITLE, MediaLibrary.SongSearchColumns.ALBUM };
+
+	private Connection mDb;
+
+	@Before
+	public void setUp() throws Exception {
+		mDb = DriverManager.getConnection("jdbc:sqlite::memory:");
+		Statement st = mDb.createStatement();
+		for (String sql : MediaSchema.DATABASE_SCHEMA) {
+			st.execute(sql);
+		}
+		st.close();
+
+		index(1, "Yellow Submarine", "Yellow Submarine", "The Beatles");
+		index(2, "東京事変", "教育", "東京事変");
+		index(3, "ขอใจเธอแลกเบอร์โทร", "Single", "หญิงลี ศรีจุมพล");
+		index(4, "Tokyo", "Sports", "Café Müller");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		mDb.close();
+	}
+
+	/**
+	 * Indexes a song like MediaSearchIndex.buildValues()
+	 */
+	private void index(long id, String title, String album, String artist) throws Exception {
+		PreparedStatement st = mDb.prepareStatement("INSERT INTO "+MediaLibrary.TABLE_SONGS_SEARCH+" ("+MediaLibrary.SongSearchColumns.DOCID+", "
+		                                            +MediaLibrary.SongSearchColumns.TITLE+", "+MediaLibrary.SongSearchColumns.ALBUM+", "
+		                                            +MediaLibrary.SongSearchColumns.ARTIST+") VALUES (?, ?, ?, ?)");
+		st.setLong(1, id);
+		st.setString(2, MediaSearchIndex.normalize(title));
+		st.setString(3, MediaSearchIndex.normalize(album));
+		st.setString(4, MediaSearchIndex.normalize(artist));
+		st.execute();
+		st.close();
+	}
+
+	/**
+	 * Returns the ids of all songs matching a search string
+	 */
+	private List<Long> search(String constraint, String[] columns) throws Exception {
+		ArrayList<String> args = new ArrayList<>();
+		String sql = MediaSearchIndex.buildSongSearch(constraint, columns, args);
+		PreparedStatement st = mDb.prepareStatement(sql+" ORDER BY 1");
+		for (int i = 0; i < args.size(); i++) {
+			st.setString(i + 1, args.get(i));
+		}
+		ArrayList<Long> ids = new ArrayList<>();
+		ResultSet rs = st.executeQuery();
+		while (rs.next()) {
+			ids.add(rs.getLong(1));
+		}
+		st.close();
+		return ids;
+	}
+
+	@Test
+	public void wordsMatchByPrefix() throws Exception {
+		assertEquals(Arrays.asList(1L), search("yel sub", null));
+		assertEquals(Arrays.asList(1L), search("Beatles", null));
+		assertEquals(Arrays.asList(4L), search("cafe muller", null));
+		assertEquals(Arrays.asList(), search("marine", null));
+		assertEquals(Arrays.asList(1L, 3L, 4L), search("S", TITLE_AND_ALBUM));
+	}
+
+	@Test
+	public void unsegmentedTitlesMatchAnywhere() throws Exception {
+		assertEquals(Arrays.asList(2L), search("京事", null));
+		assertEquals(Arrays.asList(2L), search("京事", new String[] { MediaLibrary.SongSearchColumns.TITLE }));
+		assertEquals(Arrays.asList(), search("京事", new String[] { MediaLibrary.SongSearchColumns.ALBUM }));
+		assertEquals(Arrays.asList(3L), search("แลกเบอร์", TITLE_AND_ALBUM));
+		// mixed with a word searched through the index
+		assertEquals(Arrays.asList(3L), search("single ใจ", null));
+	}
+
+}
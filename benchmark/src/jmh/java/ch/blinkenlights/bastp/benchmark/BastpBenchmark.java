@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2026 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package ch.blinkenlights.bastp.benchmark;
+
+import ch.blinkenlights.android.vanilla.BastpUtil;
+import ch.blinkenlights.bastp.Bastp;
+import ch.blinkenlights.bastp.ByteSource;
+import ch.blinkenlights.bastp.FlacFile;
+import ch.blinkenlights.bastp.ID3v2File;
+import ch.blinkenlights.bastp.Mp4File;
+import ch.blinkenlights.bastp.OggFile;
+import ch.blinkenlights.bastp.OpusFile;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of the bastp parsers on generated files.
+ * Run with the gc profiler (the default of this module) to also get
+ * the allocation rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class BastpBenchmark {
+	@Param({ "FLAC", "OGG", "OPUS", "ID3V22", "ID3V23", "ID3V24", "MP4" })
+	public CorpusGenerator.Format format;
+
+	@Param({ "16", "256" })
+	public int tags;
+
+	@Param({ "0", "2097152" })
+	public int pictureSize;
+
+	private File mDir;
+	private String mPath;
+
+	@Setup
+	public void setup() throws IOException {
+		CorpusGenerator.Options opts = new CorpusGenerator.Options();
+		opts.tags = tags;
+		opts.pictureSize = pictureSize;
+		mDir = Files.createTempDirectory("bastp-benchmark").toFile();
+		mPath = CorpusGenerator.write(mDir, format, opts).getPath();
+	}
+
+	@TearDown
+	public void tearDown() {
+		for (File file : mDir.listFiles()) {
+			file.delete();
+		}
+		mDir.delete();
+	}
+
+	/**
+	 * The complete bastp path, as used by the media scanner
+	 */
+	@Benchmark
+	public HashMap getTags() {
+		return new Bastp().getTags(mPath);
+	}
+
+	/**
+	 * Only the tag parser of the format, without the magic detection
+	 * and the audio properties
+	 */
+	@Benchmark
+	public HashMap parser() throws IOException {
+		try (RandomAccessFile ra = new RandomAccessFile(mPath, "r")) {
+			ByteSource s = new ByteSource(ra);
+			switch (format) {
+				case FLAC:
+					return new FlacFile().getTags(s);
+				case OGG:
+					return new OggFile().getTags(s);
+				case OPUS:
+					return new OpusFile().getTags(s);
+				case MP4:
+					return new Mp4File().getTags(s);
+				default:
+					return new ID3v2File().getTags(s);
+			}
+		}
+	}
+
+	/**
+	 * Replay gain lookup as done on every track change, a new instance
+	 * is used so that its LRU cache never answers.
+	 */
+	@Benchmark
+	public BastpUtil.GainValues replayGain() {
+		return new BastpUtil().getReplayGainValues(mPath);
+	}
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2026 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package ch.blinkenlights.bastp.benchmark;
+
+import ch.blinkenlights.bastp.ByteSource;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares reading through a ByteSource with plain RandomAccessFile reads.
+ *
+ * Both variants walk all vorbis comments of a FLAC file the way
+ * Common.parse_vorbis_comment does: a seek and a 4 byte read for every
+ * length field, followed by a seek and a read of the comment itself.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ByteSourceBenchmark {
+	// Same limit as in Common
+	private static final int MAX_COMMENT_SIZE = 512;
+
+	@Param({ "16", "256" })
+	public int tags;
+
+	private File mDir;
+	private String mPath;
+
+	@Setup
+	public void setup() throws IOException {
+		CorpusGenerator.Options opts = new CorpusGenerator.Options();
+		opts.tags = tags;
+		mDir = Files.createTempDirectory("bastp-benchmark").toFile();
+		mPath = CorpusGenerator.write(mDir, CorpusGenerator.Format.FLAC, opts).getPath();
+	}
+
+	@TearDown
+	public void tearDown() {
+		for (File file : mDir.listFiles()) {
+			file.delete();
+		}
+		mDir.delete();
+	}
+
+	@Benchmark
+	public long randomAccessFile() throws IOException {
+		try (RandomAccessFile ra = new RandomAccessFile(mPath, "r")) {
+			byte[] scratch = new byte[4];
+			long offset = commentBlockOffset();
+			long sum = 0;
+
+			ra.seek(offset);
+			ra.read(scratch);
+			offset += 4 + le32(scratch);
+			ra.seek(offset);
+			ra.read(scratch);
+			int comments = le32(scratch);
+			offset += 4;
+			for (; comments > 0; comments--) {
+				ra.seek(offset);
+				ra.read(scratch);
+				int len = le32(scratch);
+				offset += 4;
+				byte[] data = new byte[Math.min(len, MAX_COMMENT_SIZE)];
+				ra.seek(offset);
+				sum += ra.read(data);
+				offset += len;
+			}
+			return sum;
+		}
+	}
+
+	@Benchmark
+	public long byteSource() throws IOException {
+		try (RandomAccessFile ra = new RandomAccessFile(mPath, "r")) {
+			ByteSource s = new ByteSource(ra);
+			byte[] scratch = new byte[4];
+			long offset = commentBlockOffset();
+			long sum = 0;
+
+			s.seek(offset);
+			s.read(scratch);
+			offset += 4 + le32(scratch);
+			s.seek(offset);
+			s.read(scratch);
+			int comments = le32(scratch);
+			offset += 4;
+			for (; comments > 0; comments--) {
+				s.seek(offset);
+				s.read(scratch);
+				int len = le32(scratch);
+				offset += 4;
+				byte[] data = new byte[Math.min(len, MAX_COMMENT_SIZE)];
+				s.seek(offset);
+				sum += s.read(data);
+				offset += len;
+			}
+			return sum;
+		}
+	}
+
+	/**
+	 * Offset of the vorbis comment payload in generated FLAC files:
+	 * the magic and the STREAMINFO block are followed by its header.
+	 */
+	private static long commentBlockOffset() {
+		return 4 + (4 + 34) + 4;
+	}
+
+	private static int le32(byte[] b) {
+		return (b[0] & 0xFF) | (b[1] & 0xFF) << 8 | (b[2] & 0xFF) << 16 | (b[3] & 0xFF) << 24;
+	}
+}
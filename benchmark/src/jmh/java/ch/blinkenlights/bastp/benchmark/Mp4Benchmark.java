@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2026 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package ch.blinkenlights.bastp.benchmark;
+
+import ch.blinkenlights.bastp.ByteSource;
+import ch.blinkenlights.bastp.Mp4File;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the MP4 parser on files with [moov] before and after
+ * a (large) [mdat] atom: both layouts should perform the same.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class Mp4Benchmark {
+	@Param({ "false", "true" })
+	public boolean moovLast;
+
+	@Param({ "10", "600" })
+	public int seconds;
+
+	private File mDir;
+	private String mPath;
+
+	@Setup
+	public void setup() throws IOException {
+		CorpusGenerator.Options opts = new CorpusGenerator.Options();
+		opts.moovLast = moovLast;
+		opts.seconds = seconds;
+		mDir = Files.createTempDirectory("bastp-benchmark").toFile();
+		mPath = CorpusGenerator.write(mDir, CorpusGenerator.Format.MP4, opts).getPath();
+	}
+
+	@TearDown
+	public void tearDown() {
+		for (File file : mDir.listFiles()) {
+			file.delete();
+		}
+		mDir.delete();
+	}
+
+	@Benchmark
+	public HashMap getTags() throws IOException {
+		try (RandomAccessFile ra = new RandomAccessFile(mPath, "r")) {
+			return new Mp4File().getTags(new ByteSource(ra));
+		}
+	}
+
+	@Benchmark
+	public HashMap getAudioProperties() throws IOException {
+		try (RandomAccessFile ra = new RandomAccessFile(mPath, "r")) {
+			return new Mp4File().getAudioProperties(new ByteSource(ra));
+		}
+	}
+}
@@ -0,0 +1,625 @@
+/*
+ * Copyright (C) 2026 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package ch.blinkenlights.bastp.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Writes synthetic, tagged audio files for every format bastp understands.
+ *
+ * The files carry well formed containers and tags but no real audio: bastp
+ * never decodes audio data, so the payload only has to have a realistic size
+ * and, for MP3, valid frame headers.
+ */
+public class CorpusGenerator {
+	/**
+	 * The formats we can generate
+	 */
+	public enum Format {
+		FLAC("flac"),
+		OGG("ogg"),
+		OPUS("opus"),
+		ID3V22("mp3"),
+		ID3V23("mp3"),
+		ID3V24("mp3"),
+		MP4("m4a");
+
+		final String extension;
+
+		Format(String extension) {
+			this.extension = extension;
+		}
+	}
+
+	/**
+	 * Controls the layout of the generated files
+	 */
+	public static class Options {
+		/**
+		 * Number of custom tags added on top of the common ones
+		 */
+		public int tags = 16;
+		/**
+		 * Bytes of padding after the tags
+		 */
+		public int padding = 4096;
+		/**
+		 * Size of the embedded picture, 0 for none
+		 */
+		public int pictureSize = 0;
+		/**
+		 * Maximum number of lacing values per ogg page: lower values
+		 * spread the vorbis comments over more pages
+		 */
+		public int oggPageSegments = 255;
+		/**
+		 * Length of the fake audio stream, in seconds
+		 */
+		public int seconds = 10;
+		/**
+		 * Write the MP4 [moov] atom after a 64bit sized [mdat],
+		 * as done by some streaming encoders
+		 */
+		public boolean moovLast = false;
+		/**
+		 * Additional key, value pairs written after the common tags,
+		 * such as a second ARTIST
+		 */
+		public List<String[]> extraTags = new ArrayList<>();
+	}
+
+	private static final int SAMPLE_RATE = 44100;
+	private static final int OPUS_PRE_SKIP = 312;
+	// a 128kbit/s, 44.1kHz stereo MPEG1 layer3 frame without padding
+	private static final int MP3_FRAME_SIZE = 417;
+	private static final int MP3_SAMPLES_PER_FRAME = 1152;
+
+	/**
+	 * Writes a file of given format to 'dir'
+	 *
+	 * @param dir the directory to write to
+	 * @param format the format to generate
+	 * @param opts the layout of the file
+	 * @return the written file
+	 */
+	public static File write(File dir, Format format, Options opts) throws IOException {
+		File file = new File(dir, "corpus-" + format.name().toLowerCase() + "." + format.extension);
+		try (FileOutputStream out = new FileOutputStream(file)) {
+			out.write(generate(format, opts));
+		}
+		return file;
+	}
+
+	/**
+	 * Returns the contents of a file of given format
+	 *
+	 * @param format the format to generate
+	 * @param opts the layout of the file
+	 */
+	public static byte[] generate(Format format, Options opts) throws IOException {
+		switch (format) {
+			case FLAC:
+				return flac(opts);
+			case OGG:
+				return vorbis(opts);
+			case OPUS:
+				return opus(opts);
+			case ID3V22:
+				return mp3(opts, 2);
+			case ID3V23:
+				return mp3(opts, 3);
+			case ID3V24:
+				return mp3(opts, 4);
+			case MP4:
+				return mp4(opts);
+		}
+		throw new IllegalArgumentException("Unknown format " + format);
+	}
+
+	/**
+	 * Returns the tags of a file as key, value pairs
+	 *
+	 * @param opts the options to use
+	 * @param r128 use R128 gain tags instead of replay gain
+	 */
+	private static List<String[]> tags(Options opts, boolean r128) {
+		List<String[]> tags = new ArrayList<>();
+		tags.add(new String[] { "TITLE", "Synthetic track \u00e9\u00e8" });
+		tags.add(new String[] { "ARTIST", "Bastp Benchmark Orchestra" });
+		tags.add(new String[] { "ALBUMARTIST", "Various Artists" });
+		tags.add(new String[] { "ALBUM", "A corpus of generated files" });
+		tags.add(new String[] { "GENRE", "Noise" });
+		tags.add(new String[] { "YEAR", "2026" });
+		tags.add(new String[] { "TRACKNUMBER", "3" });
+		tags.add(new String[] { "DISCNUMBER", "1" });
+		if (r128) {
+			tags.add(new String[] { "R128_TRACK_GAIN", "-1664" });
+			tags.add(new String[] { "R128_ALBUM_GAIN", "-1280" });
+		} else {
+			tags.add(new String[] { "REPLAYGAIN_TRACK_GAIN", "-6.50 dB" });
+			tags.add(new String[] { "REPLAYGAIN_ALBUM_GAIN", "-5.00 dB" });
+		}
+		tags.addAll(opts.extraTags);
+		for (int i = 0; i < opts.tags; i++) {
+			tags.add(new String[] { "CUSTOM_" + i, "Some value of custom tag number " + i });
+		}
+		return tags;
+	}
+
+	/**
+	 * Returns fake JPEG data of given size
+	 */
+	private static byte[] picture(int size) {
+		byte[] data = new byte[size];
+		for (int i = 0; i < size; i++) {
+			data[i] = (byte)(i * 31 + (i >> 8));
+		}
+		byte[] soi = { (byte)0xFF, (byte)0xD8, (byte)0xFF, (byte)0xE0 };
+		System.arraycopy(soi, 0, data, 0, Math.min(size, soi.length));
+		return data;
+	}
+
+	/**
+	 * Returns a FLAC PICTURE block payload, also used by
+	 * METADATA_BLOCK_PICTURE in ogg files
+	 */
+	private static byte[] flacPicture(int size) throws IOException {
+		Bytes b = new Bytes();
+		b.be32(3); // front cover
+		b.be32(10).ascii("image/jpeg");
+		b.be32(5).ascii("Cover");
+		b.be32(500).be32(500).be32(24).be32(0);
+		b.be32(size).bytes(picture(size));
+		return b.toByteArray();
+	}
+
+	/**
+	 * Returns a vorbis comment block
+	 *
+	 * @param prefix the prefix of the packet, such as "\3vorbis"
+	 * @param framing true to append the framing bit
+	 */
+	private static byte[] vorbisComment(String prefix, List<String[]> tags, Options opts, boolean framing) throws IOException {
+		Bytes b = new Bytes();
+		b.ascii(prefix);
+		b.le32(6).ascii("bastp!");
+		int count = tags.size() + (opts.pictureSize > 0 ? 1 : 0);
+		b.le32(count);
+		for (String[] tag : tags) {
+			byte[] kv = (tag[0] + "=" + tag[1]).getBytes(StandardCharsets.UTF_8);
+			b.le32(kv.length).bytes(kv);
+		}
+		if (opts.pictureSize > 0) {
+			byte[] kv = ("METADATA_BLOCK_PICTURE=" + Base64.getEncoder().encodeToString(flacPicture(opts.pictureSize))).getBytes(StandardCharsets.US_ASCII);
+			b.le32(kv.length).bytes(kv);
+		}
+		if (framing)
+			b.u8(1);
+		return b.toByteArray();
+	}
+
+	private static byte[] flac(Options opts) throws IOException {
+		List<byte[]> blocks = new ArrayList<>();
+		List<Integer> types = new ArrayList<>();
+
+		long samples = (long)SAMPLE_RATE * opts.seconds;
+		Bytes info = new Bytes();
+		info.be16(4096).be16(4096).be24(0).be24(0);
+		info.be64(((long)SAMPLE_RATE << 44) | (1L << 41) | (15L << 36) | samples);
+		info.bytes(new byte[16]); // md5
+		blocks.add(info.toByteArray());
+		types.add(0);
+
+		blocks.add(vorbisComment("", tags(opts, false), opts, false));
+		types.add(4);
+
+		if (opts.pictureSize > 0) {
+			blocks.add(flacPicture(opts.pictureSize));
+			types.add(6);
+		}
+		if (opts.padding > 0) {
+			blocks.add(new byte[opts.padding]);
+			types.add(1);
+		}
+
+		Bytes b = new Bytes();
+		b.ascii("fLaC");
+		for (int i = 0; i < blocks.size(); i++) {
+			int last = (i == blocks.size() - 1 ? 0x80 : 0);
+			b.u8(last | types.get(i)).be24(blocks.get(i).length).bytes(blocks.get(i));
+		}
+		b.bytes(audio(opts));
+		return b.toByteArray();
+	}
+
+	private static byte[] vorbis(Options opts) throws IOException {
+		OggWriter ogg = new OggWriter(opts.oggPageSegments);
+
+		Bytes id = new Bytes();
+		id.ascii("\1vorbis").le32(0).u8(2).le32(SAMPLE_RATE);
+		id.le32(0).le32(128000).le32(0).u8(0xB8).u8(1);
+		ogg.packet(id.toByteArray(), 0, true, false);
+		ogg.packet(vorbisComment("\3vorbis", tags(opts, false), opts, true), 0, false, false);
+		ogg.packet(new Bytes().ascii("\5vorbis").bytes(new byte[opts.padding + 64]).toByteArray(), 0, false, false);
+		ogg.packet(audio(opts), (long)SAMPLE_RATE * opts.seconds, false, true);
+		return ogg.toByteArray();
+	}
+
+	private static byte[] opus(Options opts) throws IOException {
+		OggWriter ogg = new OggWriter(opts.oggPageSegments);
+
+		Bytes head = new Bytes();
+		head.ascii("OpusHead").u8(1).u8(2).le16(OPUS_PRE_SKIP).le32(SAMPLE_RATE).le16(0).u8(0);
+		ogg.packet(head.toByteArray(), 0, true, false);
+		Bytes comment = new Bytes();
+		comment.bytes(vorbisComment("OpusTags", tags(opts, true), opts, false)).bytes(new byte[opts.padding]);
+		ogg.packet(comment.toByteArray(), 0, false, false);
+		ogg.packet(audio(opts), OPUS_PRE_SKIP + 48000L * opts.seconds, false, true);
+		return ogg.toByteArray();
+	}
+
+	/**
+	 * Returns an MP3 file with an ID3v2.x tag
+	 *
+	 * @param major the ID3v2 major version, 2 to 4
+	 */
+	private static byte[] mp3(Options opts, int major) throws IOException {
+		String[][] names = {
+			{ "TITLE", "TT2", "TIT2" },
+			{ "ARTIST", "TP1", "TPE1" },
+			{ "ALBUMARTIST", "TP2", "TPE2" },
+			{ "ALBUM", "TAL", "TALB" },
+			{ "GENRE", "TCO", "TCON" },
+			{ "YEAR", "TYE", (major == 4 ? "TDRC" : "TYER") },
+			{ "TRACKNUMBER", "TRK", "TRCK" },
+			{ "DISCNUMBER", "TPA", "TPOS" },
+		};
+
+		Bytes frames = new Bytes();
+		for (String[] tag : tags(opts, false)) {
+			String id = null;
+			for (String[] name : names) {
+				if (name[0].equals(tag[0]))
+					id = (major == 2 ? name[1] : name[2]);
+			}
+			Bytes payload = new Bytes().u8(3); // UTF-8
+			if (id == null) {
+				id = (major == 2 ? "TXX" : "TXXX");
+				payload.utf8(tag[0]).u8(0);
+			}
+			payload.utf8(tag[1]);
+			id3Frame(frames, major, id, payload.toByteArray());
+		}
+
+		if (opts.pictureSize > 0) {
+			Bytes payload = new Bytes().u8(0);
+			if (major == 2) {
+				payload.ascii("JPG");
+			} else {
+				payload.ascii("image/jpeg").u8(0);
+			}
+			payload.u8(3).ascii("Cover").u8(0).bytes(picture(opts.pictureSize));
+			id3Frame(frames, major, (major == 2 ? "PIC" : "APIC"), payload.toByteArray());
+		}
+		frames.bytes(new byte[opts.padding]);
+
+		Bytes b = new Bytes();
+		b.ascii("ID3").u8(major).u8(0).u8(0).syncsafe(frames.size());
+		b.bytes(frames.toByteArray());
+
+		int nframes = SAMPLE_RATE * opts.seconds / MP3_SAMPLES_PER_FRAME;
+		byte[] frame = new byte[MP3_FRAME_SIZE];
+		frame[0] = (byte)0xFF;
+		frame[1] = (byte)0xFB;
+		frame[2] = (byte)0x90;
+		for (int i = 0; i < nframes; i++) {
+			b.bytes(frame);
+		}
+		return b.toByteArray();
+	}
+
+	/**
+	 * Appends an ID3v2 frame
+	 */
+	private static void id3Frame(Bytes out, int major, String id, byte[] payload) throws IOException {
+		out.ascii(id);
+		if (major == 2) {
+			out.be24(payload.length);
+		} else {
+			if (major == 4) {
+				out.syncsafe(payload.length);
+			} else {
+				out.be32(payload.length);
+			}
+			out.be16(0); // flags
+		}
+		out.bytes(payload);
+	}
+
+	private static byte[] mp4(Options opts) throws IOException {
+		long duration = 1000L * opts.seconds;
+
+		Bytes ftyp = new Bytes().ascii("M4A ").be32(0).ascii("M4A mp42isom");
+
+		Bytes mvhd = new Bytes().be32(0).be32(0).be32(0).be32(1000).be32((int)duration);
+		mvhd.be32(0x00010000).be16(0x0100).bytes(new byte[10]).bytes(new byte[36]).bytes(new byte[24]).be32(2);
+
+		Bytes mdhd = new Bytes().be32(0).be32(0).be32(0).be32(SAMPLE_RATE).be32(SAMPLE_RATE * opts.seconds).be16(0x55C4).be16(0);
+		Bytes hdlr = new Bytes().be32(0).be32(0).ascii("soun").bytes(new byte[12]).ascii("SoundHandler").u8(0);
+		Bytes mp4a = new Bytes().bytes(new byte[6]).be16(1).bytes(new byte[8]).be16(2).be16(16).be16(0).be16(0).be32(SAMPLE_RATE << 16);
+		Bytes stsd = new Bytes().be32(0).be32(1).bytes(atom("mp4a", mp4a.toByteArray()));
+		byte[] emptyTable = new Bytes().be32(0).be32(0).toByteArray();
+		byte[] stbl = atom("stbl", atom("stsd", stsd.toByteArray()), atom("stts", emptyTable), atom("stsc", emptyTable),
+			atom("stsz", new Bytes().be32(0).be32(0).be32(0).toByteArray()), atom("stco", emptyTable));
+		byte[] minf = atom("minf", atom("smhd", new byte[8]), stbl);
+		byte[] trak = atom("trak", atom("tkhd", new byte[84]), atom("mdia", atom("mdhd", mdhd.toByteArray()), atom("hdlr", hdlr.toByteArray()), minf));
+
+		String[][] names = {
+			{ "TITLE", "\u00a9nam" },
+			{ "ARTIST", "\u00a9ART" },
+			{ "ALBUMARTIST", "aART" },
+			{ "ALBUM", "\u00a9alb" },
+			{ "GENRE", "\u00a9gen" },
+			{ "YEAR", "\u00a9day" },
+		};
+		Bytes ilst = new Bytes();
+		for (String[] tag : tags(opts, false)) {
+			byte[] value = tag[1].getBytes(StandardCharsets.UTF_8);
+			String id = null;
+			for (String[] name : names) {
+				if (name[0].equals(tag[0]))
+					id = name[1];
+			}
+			if (tag[0].equals("TRACKNUMBER") || tag[0].equals("DISCNUMBER")) {
+				byte[] data = new Bytes().be16(0).be16(Integer.parseInt(tag[1])).be16(0).be16(0).toByteArray();
+				ilst.bytes(atom((tag[0].equals("TRACKNUMBER") ? "trkn" : "disk"), mp4Data(0, data)));
+			} else if (id != null) {
+				ilst.bytes(atom(id, mp4Data(1, value)));
+			} else {
+				byte[] mean = new Bytes().be32(0).ascii("com.apple.iTunes").toByteArray();
+				byte[] name = new Bytes().be32(0).ascii(tag[0].toLowerCase()).toByteArray();
+				ilst.bytes(atom("----", atom("mean", mean), atom("name", name), mp4Data(1, value)));
+			}
+		}
+		if (opts.pictureSize > 0)
+			ilst.bytes(atom("covr", mp4Data(13, picture(opts.pictureSize))));
+
+		byte[] metaHdlr = new Bytes().be32(0).be32(0).ascii("mdirappl").bytes(new byte[9]).toByteArray();
+		Bytes meta = new Bytes().be32(0).bytes(atom("hdlr", metaHdlr)).bytes(atom("ilst", ilst.toByteArray()));
+		if (opts.padding > 0)
+			meta.bytes(atom("free", new byte[opts.padding]));
+		byte[] moov = atom("moov", atom("mvhd", mvhd.toByteArray()), trak, atom("udta", atom("meta", meta.toByteArray())));
+
+		Bytes b = new Bytes();
+		b.bytes(atom("ftyp", ftyp.toByteArray()));
+		if (opts.moovLast) {
+			byte[] audio = audio(opts);
+			b.be32(1).ascii("mdat").be32(0).be32(audio.length + 16).bytes(audio).bytes(moov);
+		} else {
+			b.bytes(moov).bytes(atom("mdat", audio(opts)));
+		}
+		return b.toByteArray();
+	}
+
+	/**
+	 * Returns a [data] atom
+	 *
+	 * @param type the data type, 1 = UTF-8, 0 = binary, 13 = JPEG
+	 */
+	private static byte[] mp4Data(int type, byte[] value) throws IOException {
+		return atom("data", new Bytes().be32(type).be32(0).bytes(value).toByteArray());
+	}
+
+	/**
+	 * Returns an MP4 atom holding the given children
+	 */
+	private static byte[] atom(String name, byte[]... children) throws IOException {
+		Bytes payload = new Bytes();
+		for (byte[] child : children) {
+			payload.bytes(child);
+		}
+		Bytes b = new Bytes();
+		b.be32(payload.size() + 8).bytes(name.getBytes(StandardCharsets.ISO_8859_1)).bytes(payload.toByteArray());
+		return b.toByteArray();
+	}
+
+	/**
+	 * Returns the fake audio payload, 128kbit/s worth of data
+	 */
+	private static byte[] audio(Options opts) {
+		return new byte[16000 * opts.seconds];
+	}
+
+	/**
+	 * A byte array stream with helpers for the integer encodings we need
+	 */
+	private static class Bytes extends ByteArrayOutputStream {
+		Bytes u8(int v) {
+			write(v);
+			return this;
+		}
+
+		Bytes be16(int v) {
+			return u8(v >> 8).u8(v);
+		}
+
+		Bytes be24(int v) {
+			return u8(v >> 16).be16(v);
+		}
+
+		Bytes be32(int v) {
+			return be16(v >> 16).be16(v);
+		}
+
+		Bytes be64(long v) {
+			return be32((int)(v >> 32)).be32((int)v);
+		}
+
+		Bytes le16(int v) {
+			return u8(v).u8(v >> 8);
+		}
+
+		Bytes le32(int v) {
+			return le16(v).le16(v >> 16);
+		}
+
+		Bytes le64(long v) {
+			return le32((int)v).le32((int)(v >> 32));
+		}
+
+		Bytes syncsafe(int v) {
+			return u8((v >> 21) & 0x7F).u8((v >> 14) & 0x7F).u8((v >> 7) & 0x7F).u8(v & 0x7F);
+		}
+
+		Bytes ascii(String s) {
+			return bytes(s.getBytes(StandardCharsets.ISO_8859_1));
+		}
+
+		Bytes utf8(String s) {
+			return bytes(s.getBytes(StandardCharsets.UTF_8));
+		}
+
+		Bytes bytes(byte[] b) {
+			write(b, 0, b.length);
+			return this;
+		}
+	}
+
+	/**
+	 * Splits packets into ogg pages
+	 */
+	private static class OggWriter {
+		private static final int SERIAL = 0x42415354;
+		private final Bytes mOut = new Bytes();
+		private final int mMaxSegments;
+		private int mSequence;
+
+		OggWriter(int maxSegments) {
+			mMaxSegments = Math.max(1, Math.min(255, maxSegments));
+		}
+
+		/**
+		 * Writes a packet, which always starts on a new page
+		 *
+		 * @param packet the packet to write
+		 * @param granule the granule position after this packet
+		 * @param bos true if this is the first packet of the stream
+		 * @param eos true if this is the last packet of the stream
+		 */
+		void packet(byte[] packet, long granule, boolean bos, boolean eos) {
+			int lacing = packet.length / 255 + 1; // a packet always ends with a value < 255
+			int segment = 0;
+			int offset = 0;
+			while (segment < lacing) {
+				int nsegs = Math.min(mMaxSegments, lacing - segment);
+				boolean last = (segment + nsegs == lacing);
+				int flags = (segment > 0 ? 0x01 : 0) | (bos && segment == 0 ? 0x02 : 0) | (eos && last ? 0x04 : 0);
+
+				Bytes page = new Bytes();
+				page.ascii("OggS").u8(0).u8(flags).le64(last ? granule : -1);
+				page.le32(SERIAL).le32(mSequence++).le32(0).u8(nsegs);
+				int len = 0;
+				for (int i = 0; i < nsegs; i++, segment++) {
+					int value = (segment == lacing - 1 ? packet.length % 255 : 255);
+					page.u8(value);
+					len += value;
+				}
+				page.write(packet, offset, len);
+				offset += len;
+
+				byte[] data = page.toByteArray();
+				int crc = crc32(data);
+				data[22] = (byte)crc;
+				data[23] = (byte)(crc >> 8);
+				data[24] = (byte)(crc >> 16);
+				data[25] = (byte)(crc >> 24);
+				mOut.bytes(data);
+			}
+		}
+
+		byte[] toByteArray() {
+			return mOut.toByteArray();
+		}
+
+		/**
+		 * The CRC used by ogg: polynomial 0x04c11db7, no reflection, zero init
+		 */
+		private static int crc32(byte[] data) {
+			int crc = 0;
+			for (byte b : data) {
+				crc ^= (b & 0xFF) << 24;
+				for (int i = 0; i < 8; i++) {
+					crc = (crc & 0x80000000) != 0 ? (crc << 1) ^ 0x04C11DB7 : crc << 1;
+				}
+			}
+			return crc;
+		}
+	}
+
+	/**
+	 * Writes one file per format, usage:
+	 *   CorpusGenerator DIR [--tags N] [--padding N] [--picture N] [--page-segments N] [--seconds N] [--moov-last 0|1]
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1 || args.length % 2 != 1) {
+			System.err.println("usage: CorpusGenerator DIR [--tags N] [--padding N] [--picture N] [--page-segments N] [--seconds N] [--moov-last 0|1]");
+			System.exit(1);
+		}
+
+		Options opts = new Options();
+		for (int i = 1; i < args.length; i += 2) {
+			int value = Integer.parseInt(args[i+1]);
+			switch (args[i]) {
+				case "--tags":
+					opts.tags = value;
+					break;
+				case "--padding":
+					opts.padding = value;
+					break;
+				case "--picture":
+					opts.pictureSize = value;
+					break;
+				case "--page-segments":
+					opts.oggPageSegments = value;
+					break;
+				case "--seconds":
+					opts.seconds = value;
+					break;
+				case "--moov-last":
+					opts.moovLast = (value != 0);
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown option " + args[i]);
+			}
+		}
+
+		File dir = new File(args[0]);
+		dir.mkdirs();
+		for (Format format : Format.values()) {
+			System.out.println(write(dir, format, opts));
+		}
+	}
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2026 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package ch.blinkenlights.bastp;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+
+public class MpegAudioFrameTest {
+	@Rule
+	public TemporaryFolder mTmp = new TemporaryFolder();
+
+	// a 128kbit/s, 44.1kHz stereo MPEG1 layer3 frame without padding
+	private static final int FRAME_SIZE = 417;
+	private static final int FRAMES = 100;
+	private static final int JUNK_SIZE = 300;
+
+	@Test
+	public void falseSyncIsSkipped() throws Exception {
+		byte[] data = new byte[JUNK_SIZE + FRAMES * FRAME_SIZE];
+		// junk starting with a valid looking 64kbit/s header, not followed by another frame
+		data[0] = (byte)0xFF;
+		data[1] = (byte)0xFB;
+		data[2] = (byte)0x50;
+		for (int i = 0; i < FRAMES; i++) {
+			int pos = JUNK_SIZE + i * FRAME_SIZE;
+			data[pos] = (byte)0xFF;
+			data[pos+1] = (byte)0xFB;
+			data[pos+2] = (byte)0x90;
+		}
+		File file = mTmp.newFile("sync.mp3");
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(data);
+		out.close();
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		HashMap props = (new MpegAudioFrame()).getAudioProperties(new ByteSource(raf), 0);
+		raf.close();
+
+		assertEquals(128000, props.get("bitrate"));
+		assertEquals((long)FRAMES * FRAME_SIZE * 8000 / 128000, props.get("duration_ms"));
+	}
+
+}
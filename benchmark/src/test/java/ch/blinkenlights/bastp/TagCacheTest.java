@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2026 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package ch.blinkenlights.bastp;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertNotNull;
+
+public class TagCacheTest {
+	@Rule
+	public TemporaryFolder mTmp = new TemporaryFolder();
+
+	@After
+	public void tearDown() {
+		TagCache.clear();
+	}
+
+	private static HashMap tags(String key, String value) {
+		HashMap tags = new HashMap();
+		tags.put(key, new ArrayList<String>(Arrays.asList(value)));
+		tags.put("type", "OPUS");
+		return tags;
+	}
+
+	private static void put(File file, HashMap tags) {
+		TagCache.put(file.getPath(), file.length(), file.lastModified(), tags);
+	}
+
+	@Test
+	public void largeEntryDoesNotEvictOthers() throws Exception {
+		File[] small = new File[10];
+		for (int i = 0; i < small.length; i++) {
+			small[i] = mTmp.newFile("small"+i+".opus");
+			put(small[i], tags("TITLE", "Song "+i));
+		}
+
+		// an embedded cover, larger than the whole cache
+		char[] cover = new char[1024 * 1024];
+		Arrays.fill(cover, 'A');
+		File large = mTmp.newFile("large.opus");
+		put(large, tags("METADATA_BLOCK_PICTURE", new String(cover)));
+
+		// evicted entries would only be weakly referenced
+		System.gc();
+		for (File file : small) {
+			assertNotNull(file.getName(), TagCache.get(file));
+		}
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void valueListsAreReadOnly() throws Exception {
+		File file = mTmp.newFile("song.opus");
+		put(file, tags("TITLE", "Song"));
+
+		Map tags = TagCache.get(file);
+		((List)tags.get("TITLE")).add("Another song");
+	}
+
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2026 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package ch.blinkenlights.bastp;
+
+import ch.blinkenlights.bastp.benchmark.CorpusGenerator;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TagVisitorTest {
+	@Rule
+	public TemporaryFolder mTmp = new TemporaryFolder();
+
+	/**
+	 * Writes a file with two ARTIST comments and a GENRE in between
+	 */
+	private File writeMultiArtist(CorpusGenerator.Format format) throws Exception {
+		CorpusGenerator.Options opts = new CorpusGenerator.Options();
+		opts.extraTags.add(new String[] { "ARTIST", "Second Artist" });
+		opts.extraTags.add(new String[] { "GENRE", "Drone" });
+		opts.extraTags.add(new String[] { "ARTIST", "Third Artist" });
+		return CorpusGenerator.write(mTmp.getRoot(), format, opts);
+	}
+
+	@Test
+	public void filteredVisitorKeepsAllValues() throws Exception {
+		for (CorpusGenerator.Format format : new CorpusGenerator.Format[] { CorpusGenerator.Format.FLAC, CorpusGenerator.Format.OGG }) {
+			File file = writeMultiArtist(format);
+			TagCollector collector = new TagCollector("ARTIST", "GENRE");
+			(new Bastp()).visitTags(file.getPath(), collector);
+			HashMap tags = collector.getTags();
+
+			assertEquals(format.name(), Arrays.asList("Bastp Benchmark Orchestra", "Second Artist", "Third Artist"), tags.get("ARTIST"));
+			assertEquals(format.name(), Arrays.asList("Noise", "Drone"), tags.get("GENRE"));
+			// same result as a full parse
+			HashMap all = (new Bastp()).getTags(file.getPath());
+			assertEquals(format.name(), all.get("ARTIST"), tags.get("ARTIST"));
+		}
+	}
+
+	/**
+	 * A collector counting the keys the parser still asks for after it
+	 * should have stopped
+	 */
+	private static class StopCheckingCollector extends TagCollector {
+		int lookupsAfterStop;
+
+		StopCheckingCollector(boolean firstValueOnly, String... keys) {
+			super(firstValueOnly, keys);
+		}
+
+		StopCheckingCollector(String[][] families) {
+			super(families);
+		}
+
+		@Override
+		boolean wants(String key) {
+			if (isDone())
+				lookupsAfterStop++;
+			return super.wants(key);
+		}
+
+		@Override
+		boolean wants(byte[] buf, int off, int len) {
+			if (isDone())
+				lookupsAfterStop++;
+			return super.wants(buf, off, len);
+		}
+	}
+
+	@Test
+	public void firstValueOnlyStopsEarly() throws Exception {
+		for (CorpusGenerator.Format format : new CorpusGenerator.Format[] { CorpusGenerator.Format.FLAC, CorpusGenerator.Format.OGG }) {
+			File file = writeMultiArtist(format);
+			StopCheckingCollector collector = new StopCheckingCollector(true, "ARTIST", "GENRE");
+			(new Bastp()).visitTags(file.getPath(), collector);
+			HashMap tags = collector.getTags();
+
+			assertEquals(format.name(), Arrays.asList("Bastp Benchmark Orchestra"), tags.get("ARTIST"));
+			assertEquals(format.name(), Arrays.asList("Noise"), tags.get("GENRE"));
+			// the extra tags following the first values were never looked at
+			assertTrue(format.name(), collector.isDone());
+			assertEquals(format.name(), 0, collector.lookupsAfterStop);
+		}
+	}
+
+	@Test
+	public void firstCompleteFamilyStops() throws Exception {
+		File file = writeMultiArtist(CorpusGenerator.Format.FLAC);
+		StopCheckingCollector collector = new StopCheckingCollector(new String[][] {
+			{ "R128_TRACK_GAIN", "R128_ALBUM_GAIN" },
+			{ "ARTIST", "GENRE" },
+		});
+		(new Bastp()).visitTags(file.getPath(), collector);
+
+		assertEquals(Arrays.asList("Noise"), collector.getTags().get("GENRE"));
+		assertTrue(collector.isDone());
+		assertEquals(0, collector.lookupsAfterStop);
+
+		// without families, a missing key keeps the parser going
+		StopCheckingCollector all = new StopCheckingCollector(true, "R128_TRACK_GAIN", "ARTIST", "GENRE");
+		(new Bastp()).visitTags(file.getPath(), all);
+		assertFalse(all.isDone());
+	}
+}